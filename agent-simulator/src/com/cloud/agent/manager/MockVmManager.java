@@ -28,6 +28,8 @@ import com.cloud.agent.api.MigrateCommand;
 import com.cloud.agent.api.NetworkUsageCommand;
 import com.cloud.agent.api.RebootCommand;
 import com.cloud.agent.api.SecurityGroupRuleAnswer;
+import com.cloud.agent.api.SecurityGroupMembersAnswer;
+import com.cloud.agent.api.SecurityGroupMembersCmd;
 import com.cloud.agent.api.SecurityGroupRulesCmd;
 import com.cloud.agent.api.StartCommand;
 import com.cloud.agent.api.StopCommand;
@@ -81,6 +83,7 @@ public interface MockVmManager extends Manager {
     Answer SavePassword(SavePasswordCommand cmd);
     HashMap<String, Pair<Long, Long>> syncNetworkGroups(SimulatorInfo info);
     SecurityGroupRuleAnswer AddSecurityGroupRules(SecurityGroupRulesCmd cmd, SimulatorInfo info);
+    SecurityGroupMembersAnswer UpdateSecurityGroupMembers(SecurityGroupMembersCmd cmd, SimulatorInfo info);
 	MigrateAnswer Migrate(MigrateCommand cmd, SimulatorInfo info);
 	GetDomRVersionAnswer getDomRVersion(GetDomRVersionCmd cmd);
 	Map<String, MockVMVO> getVms(String hostGuid);
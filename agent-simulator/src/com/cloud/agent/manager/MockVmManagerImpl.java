@@ -13,9 +13,13 @@
 package com.cloud.agent.manager;
 
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 import javax.ejb.Local;
@@ -39,6 +43,9 @@ import com.cloud.agent.api.NetworkUsageAnswer;
 import com.cloud.agent.api.NetworkUsageCommand;
 import com.cloud.agent.api.RebootCommand;
 import com.cloud.agent.api.SecurityGroupRuleAnswer;
+import com.cloud.agent.api.SecurityGroupMembersAnswer;
+import com.cloud.agent.api.SecurityGroupMembersCmd;
+import com.cloud.agent.api.SecurityGroupMembersCmd.MemberSet;
 import com.cloud.agent.api.SecurityGroupRulesCmd;
 import com.cloud.agent.api.StartAnswer;
 import com.cloud.agent.api.StartCommand;
@@ -80,6 +87,8 @@ public class MockVmManagerImpl implements MockVmManager {
 	@Inject MockHostDao _mockHostDao = null;
 	@Inject MockSecurityRulesDao _mockSecurityDao = null;
 	private Map<String, Map<String, Ternary<String,Long,Long>>> _securityRules = new ConcurrentHashMap<String, Map<String, Ternary<String, Long, Long>>>();
+	// host guid -> member set name -> addresses
+	private Map<String, Map<String, Set<String>>> _memberSets = new ConcurrentHashMap<String, Map<String, Set<String>>>();
 	
 	public MockVmManagerImpl() {
 	}
@@ -389,6 +398,34 @@ public class MockVmManagerImpl implements MockVmManager {
         return new SecurityGroupRuleAnswer(cmd);
     }
     
+    @Override
+    public SecurityGroupMembersAnswer UpdateSecurityGroupMembers(SecurityGroupMembersCmd cmd, SimulatorInfo info) {
+        if (!info.isEnabled()) {
+            return new SecurityGroupMembersAnswer(cmd, false, "Disabled");
+        }
+
+        Map<String, Set<String>> sets = _memberSets.get(info.getHostUuid());
+        if (sets == null) {
+            sets = new ConcurrentHashMap<String, Set<String>>();
+            _memberSets.put(info.getHostUuid(), sets);
+        }
+        for (MemberSet set : cmd.getSets()) {
+            Set<String> members = sets.get(set.getName());
+            if (set.isFull()) {
+                members = Collections.synchronizedSet(new HashSet<String>());
+                sets.put(set.getName(), members);
+            } else if (members == null) {
+                // like the hosts, a delta of a set that isn't there fails so that the set is sent in full
+                return new SecurityGroupMembersAnswer(cmd, false, "No member set " + set.getName());
+            }
+            members.addAll(Arrays.asList(set.getAdded()));
+            members.removeAll(Arrays.asList(set.getRemoved()));
+            s_logger.info("Member set " + set.getName() + (set.isFull() ? " replaced" : " updated") + ", added=" + set.getAdded().length
+                    + " removed=" + set.getRemoved().length + " size=" + members.size());
+        }
+        return new SecurityGroupMembersAnswer(cmd);
+    }
+
     private boolean logSecurityGroupAction(SecurityGroupRulesCmd cmd, Ternary<String,Long, Long> rule) {
         String action = ", do nothing";
         String reason = ", reason=";
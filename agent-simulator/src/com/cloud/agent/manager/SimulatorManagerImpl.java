@@ -53,6 +53,7 @@ import com.cloud.agent.api.PingTestCommand;
 import com.cloud.agent.api.RebootCommand;
 import com.cloud.agent.api.SecStorageSetupCommand;
 import com.cloud.agent.api.SecStorageVMSetupCommand;
+import com.cloud.agent.api.SecurityGroupMembersCmd;
 import com.cloud.agent.api.SecurityGroupRulesCmd;
 import com.cloud.agent.api.StartCommand;
 import com.cloud.agent.api.StopCommand;
@@ -228,6 +229,8 @@ public class SimulatorManagerImpl implements SimulatorManager {
                 return _mockVmMgr.WatchConsoleProxyLoad((WatchConsoleProxyLoadCommand)cmd);
             } else if (cmd instanceof SecurityGroupRulesCmd) {
                 return _mockVmMgr.AddSecurityGroupRules((SecurityGroupRulesCmd)cmd, info);
+            } else if (cmd instanceof SecurityGroupMembersCmd) {
+                return _mockVmMgr.UpdateSecurityGroupMembers((SecurityGroupMembersCmd)cmd, info);
             } else if (cmd instanceof SavePasswordCommand) {
                 return _mockVmMgr.SavePassword((SavePasswordCommand)cmd);
             } else if (cmd instanceof PrimaryStorageDownloadCommand) {
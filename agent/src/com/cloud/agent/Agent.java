@@ -43,6 +43,7 @@ import com.cloud.agent.api.CronCommand;
 import com.cloud.agent.api.MaintainAnswer;
 import com.cloud.agent.api.MaintainCommand;
 import com.cloud.agent.api.ModifySshKeysCommand;
+import com.cloud.agent.api.PingAnswer;
 import com.cloud.agent.api.PingCommand;
 import com.cloud.agent.api.ShutdownCommand;
 import com.cloud.agent.api.StartupAnswer;
@@ -52,7 +53,9 @@ import com.cloud.agent.api.UpgradeCommand;
 import com.cloud.agent.transport.Request;
 import com.cloud.agent.transport.Response;
 import com.cloud.exception.AgentControlChannelException;
+import com.cloud.resource.PingAnswerListener;
 import com.cloud.resource.ServerResource;
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.PropertiesUtil;
 import com.cloud.utils.backoff.BackoffAlgorithm;
 import com.cloud.utils.concurrency.NamedThreadFactory;
@@ -156,6 +159,11 @@ public class Agent implements HandlerFactory, IAgentControl {
             params.put(cmdLineProp.getKey(), cmdLineProp.getValue());
         }
 
+        Object threshold = params.get("compression.threshold");
+        if (threshold != null) {
+            Request.setCompressionThreshold(NumbersUtil.parseInt(threshold.toString(), Request.getCompressionThreshold()));
+        }
+
         if (!_resource.configure(getResourceName(), params)) {
             throw new ConfigurationException("Unable to configure " + _resource.getName());
         }
@@ -254,7 +262,7 @@ public class Agent implements HandlerFactory, IAgentControl {
             try {
                 if (_link != null) {
                     Request req = new Request((_id != null ? _id : -1), -1, cmd, false);
-                    _link.send(req.toBytes());
+                    _link.send(req.toBytes(_link.getPeerCapabilities()));
                 }
             } catch (final ClosedChannelException e) {
                 s_logger.warn("Unable to send: " + cmd.toString());
@@ -331,7 +339,7 @@ public class Agent implements HandlerFactory, IAgentControl {
             _timer.schedule(_startup, _startupWait);
         }
         try {
-            link.send(request.toBytes());
+            link.send(request.toBytes(link.getPeerCapabilities()));
         } catch (final ClosedChannelException e) {
             s_logger.warn("Unable to send reques: " + request.toString());
         }
@@ -546,7 +554,7 @@ public class Agent implements HandlerFactory, IAgentControl {
 
             if (response != null) {
                 try {
-                    link.send(response.toBytes());
+                    link.send(response.toBytes(link.getPeerCapabilities()));
                 } catch (final ClosedChannelException e) {
                     s_logger.warn("Unable to send response: " + response.toString());
                 }
@@ -569,6 +577,9 @@ public class Agent implements HandlerFactory, IAgentControl {
                 }
             }
         } else {
+            if (answer instanceof PingAnswer && _resource instanceof PingAnswerListener) {
+                ((PingAnswerListener) _resource).processPingAnswer((PingAnswer) answer);
+            }
             setLastPingResponseTime();
         }
     }
@@ -591,7 +602,7 @@ public class Agent implements HandlerFactory, IAgentControl {
             }
 
             try {
-                task.getLink().send(request.toBytes());
+                task.getLink().send(request.toBytes(task.getLink().getPeerCapabilities()));
                 //if i can send pingcommand out, means the link is ok
                 setLastPingResponseTime();
             } catch (final ClosedChannelException e) {
@@ -614,7 +625,7 @@ public class Agent implements HandlerFactory, IAgentControl {
                     s_logger.debug("Watch Sent: " + response.toString());
                 }
                 try {
-                    task.getLink().send(response.toBytes());
+                    task.getLink().send(response.toBytes(task.getLink().getPeerCapabilities()));
                 } catch (final ClosedChannelException e) {
                     s_logger.warn("Unable to send response: " + response.toString());
                 }
@@ -699,7 +710,7 @@ public class Agent implements HandlerFactory, IAgentControl {
     private void postRequest(Request request) throws AgentControlChannelException {
         if (_link != null) {
             try {
-                _link.send(request.toBytes());
+                _link.send(request.toBytes(_link.getPeerCapabilities()));
             } catch (final ClosedChannelException e) {
                 s_logger.warn("Unable to post agent control reques: " + request.toString());
                 throw new AgentControlChannelException("Unable to post agent control request due to " + e.getMessage());
@@ -847,6 +858,7 @@ public class Agent implements HandlerFactory, IAgentControl {
             } else if (task.getType() == Task.Type.DATA) {
                 Request request;
                 try {
+                    task.getLink().setPeerCapabilities(Request.getCapabilities(task.getData()));
                     request = Request.parse(task.getData());
                     if (request instanceof Response) {
                     	//It's for pinganswer etc, should be processed immediately.
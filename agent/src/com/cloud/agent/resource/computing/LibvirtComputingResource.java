@@ -103,6 +103,7 @@ import com.cloud.agent.api.ModifyStoragePoolCommand;
 import com.cloud.agent.api.NetworkRulesSystemVmCommand;
 import com.cloud.agent.api.NetworkUsageAnswer;
 import com.cloud.agent.api.NetworkUsageCommand;
+import com.cloud.agent.api.PingAnswer;
 import com.cloud.agent.api.PingCommand;
 import com.cloud.agent.api.PingRoutingCommand;
 import com.cloud.agent.api.PingRoutingWithNwGroupsCommand;
@@ -115,6 +116,9 @@ import com.cloud.agent.api.RebootAnswer;
 import com.cloud.agent.api.RebootCommand;
 import com.cloud.agent.api.RebootRouterCommand;
 import com.cloud.agent.api.SecurityGroupRuleAnswer;
+import com.cloud.agent.api.SecurityGroupMembersAnswer;
+import com.cloud.agent.api.SecurityGroupMembersCmd;
+import com.cloud.agent.api.SecurityGroupMembersCmd.MemberSet;
 import com.cloud.agent.api.SecurityGroupRulesCmd;
 import com.cloud.agent.api.StartAnswer;
 import com.cloud.agent.api.StartCommand;
@@ -174,8 +178,10 @@ import com.cloud.network.Networks.IsolationType;
 import com.cloud.network.Networks.RouterPrivateIpStrategy;
 import com.cloud.network.Networks.TrafficType;
 import com.cloud.network.PhysicalNetworkSetupInfo;
+import com.cloud.resource.PingAnswerListener;
 import com.cloud.resource.ServerResource;
 import com.cloud.resource.ServerResourceBase;
+import com.cloud.resource.VmStateDeltaTracker;
 import com.cloud.storage.Storage;
 import com.cloud.storage.Storage.ImageFormat;
 import com.cloud.storage.Storage.StoragePoolType;
@@ -189,6 +195,7 @@ import com.cloud.storage.template.TemplateLocation;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.Pair;
 import com.cloud.utils.PropertiesUtil;
+import com.cloud.utils.StringUtils;
 import com.cloud.utils.component.ComponentLocator;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.net.NetUtils;
@@ -223,7 +230,7 @@ import com.cloud.vm.VirtualMachineName;
  **/
 @Local(value = { ServerResource.class })
 public class LibvirtComputingResource extends ServerResourceBase implements
-		ServerResource {
+		ServerResource, PingAnswerListener {
 	private static final Logger s_logger = Logger
 			.getLogger(LibvirtComputingResource.class);
 
@@ -235,6 +242,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements
 	private String _createTmplPath;
 	private String _heartBeatPath;
 	private String _securityGroupPath;
+	private int _maxMemberSetAddressesPerCall = 2000;
 	private String _networkUsagePath;
 	private String _host;
 	private String _dcId;
@@ -331,6 +339,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements
 
 	protected HashMap<String, State> _vms = new HashMap<String, State>(20);
 	protected List<String> _vmsKilled = new ArrayList<String>();
+	protected VmStateDeltaTracker _vmStateTracker;
 
 	private VirtualRoutingResource _virtRouterResource;
 
@@ -721,6 +730,10 @@ public class LibvirtComputingResource extends ServerResourceBase implements
 			_mountPoint = "/mnt";
 		}
 		
+		value = (String) params.get("vm.fullsync.interval");
+		_vmStateTracker = new VmStateDeltaTracker(NumbersUtil.parseInt(value,
+				VmStateDeltaTracker.DEFAULT_FULL_SYNC_INTERVAL));
+
 		value = (String) params.get("vm.migrate.speed");
 		_migrateSpeed = NumbersUtil.parseInt(value, -1);
 		if (_migrateSpeed == -1) {
@@ -995,6 +1008,8 @@ public class LibvirtComputingResource extends ServerResourceBase implements
 				return execute((ModifyStoragePoolCommand) cmd);
 			} else if (cmd instanceof SecurityGroupRulesCmd) {
 				return execute((SecurityGroupRulesCmd) cmd);
+			} else if (cmd instanceof SecurityGroupMembersCmd) {
+				return execute((SecurityGroupMembersCmd) cmd);
 			} else if (cmd instanceof DeleteStoragePoolCommand) {
 				return execute((DeleteStoragePoolCommand) cmd);
 			} else if (cmd instanceof FenceCommand) {
@@ -1796,6 +1811,40 @@ public class LibvirtComputingResource extends ServerResourceBase implements
 		}
 	}
 
+	private Answer execute(SecurityGroupMembersCmd cmd) {
+		if (!_can_bridge_firewall) {
+			return new SecurityGroupMembersAnswer(cmd, false,
+					"Host cannot do bridge firewalling");
+		}
+
+		for (MemberSet set : cmd.getSets()) {
+			String[] added = set.getAdded();
+			// large sets are sent in several calls to stay under the
+			// argument length limit; a full set is filled aside by all of
+			// them and replaces the set after the last one
+			int from = 0;
+			do {
+				int to = Math.min(added.length, from
+						+ _maxMemberSetAddressesPerCall);
+				boolean result = update_member_set(set.getName(),
+						set.isFull(), from > 0, to < added.length,
+						Arrays.copyOfRange(added, from, to),
+						from == 0 ? set.getRemoved() : new String[0]);
+				if (!result) {
+					s_logger.warn("Failed to program member set "
+							+ set.getName());
+					return new SecurityGroupMembersAnswer(cmd, false,
+							"programming member set " + set.getName()
+									+ " failed");
+				}
+				from = to;
+			} while (from < added.length);
+		}
+		s_logger.debug("Programmed " + cmd.getSets().length
+				+ " member sets, " + cmd.getTotalNumAddresses() + " addresses");
+		return new SecurityGroupMembersAnswer(cmd);
+	}
+
 	private Answer execute(CleanupNetworkRulesCmd cmd) {
 		boolean result = cleanup_rules();
 		return new Answer(cmd, result, "");
@@ -2921,16 +2970,31 @@ public class LibvirtComputingResource extends ServerResourceBase implements
 
 	@Override
 	public PingCommand getCurrentStatus(long id) {
-		final HashMap<String, State> newStates = sync();
+		_vmStateTracker.addChanges(sync());
 
+		HashMap<String, State> fullStates = null;
+		if (_vmStateTracker.isFullSyncDue()) {
+			synchronized (_vms) {
+				fullStates = new HashMap<String, State>(_vms);
+			}
+		}
+
+		PingRoutingCommand ping;
 		if (!_can_bridge_firewall) {
-			return new PingRoutingCommand(com.cloud.host.Host.Type.Routing, id,
-					newStates);
+			ping = new PingRoutingCommand(com.cloud.host.Host.Type.Routing, id,
+					null);
 		} else {
 			HashMap<String, Pair<Long, Long>> nwGrpStates = syncNetworkGroups(id);
-			return new PingRoutingWithNwGroupsCommand(getType(), id, newStates,
+			ping = new PingRoutingWithNwGroupsCommand(getType(), id, null,
 					nwGrpStates);
 		}
+		_vmStateTracker.fillPing(ping, fullStates);
+		return ping;
+	}
+
+	@Override
+	public void processPingAnswer(PingAnswer answer) {
+		_vmStateTracker.processPingAnswer(answer);
 	}
 
 	@Override
@@ -2958,6 +3022,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements
 			_vms.clear();
 			changes = sync();
 		}
+		_vmStateTracker.reset();
 
 		final List<Object> info = getHostInfo();
 
@@ -3999,6 +4064,29 @@ public class LibvirtComputingResource extends ServerResourceBase implements
 		return true;
 	}
 
+	private boolean update_member_set(String setName, boolean full,
+			boolean continued, boolean more, String[] added, String[] removed) {
+		Script cmd = new Script(_securityGroupPath, _timeout, s_logger);
+		cmd.add("update_member_set");
+		cmd.add("--setname", setName);
+		if (full) {
+			cmd.add("--full");
+			if (continued) {
+				cmd.add("--continued");
+			}
+			if (more) {
+				cmd.add("--more");
+			}
+		}
+		cmd.add("--added", StringUtils.join(Arrays.asList(added), ","));
+		cmd.add("--removed", StringUtils.join(Arrays.asList(removed), ","));
+		String result = cmd.execute();
+		if (result != null) {
+			return false;
+		}
+		return true;
+	}
+
 	private boolean cleanup_rules() {
 		if (!_can_bridge_firewall) {
 			return false;
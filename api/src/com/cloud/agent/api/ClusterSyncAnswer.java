@@ -20,6 +20,7 @@ import com.cloud.vm.VirtualMachine.State;
 public class ClusterSyncAnswer extends Answer {
     private long _clusterId;
     private HashMap<String, Pair<String, State>> _newStates;
+    private HashMap<String, Pair<String, State>> _allStates;
     private boolean _isExecuted=false;
  
     // this is here because a cron command answer is being sent twice
@@ -39,6 +40,11 @@ public class ClusterSyncAnswer extends Answer {
         _newStates = newStates;
         result = true;
     }
+
+    public ClusterSyncAnswer(long clusterId, HashMap<String, Pair<String, State>> newStates, HashMap<String, Pair<String, State>> allStates){
+        this(clusterId, newStates);
+        _allStates = allStates;
+    }
     
     public long getClusterId() {
         return _clusterId;
@@ -48,4 +54,12 @@ public class ClusterSyncAnswer extends Answer {
         return _newStates;
     }   
 
+    /**
+     * @return the state of every vm in the cluster if this sync is a periodic
+     *         full sync, null if it only carries the changes.
+     */
+    public HashMap<String, Pair<String, State>> getAllStates() {
+        return _allStates;
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,47 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.agent.api;
+
+/**
+ * Sent between management servers to invalidate a DAO cache region after a
+ * write.  ids is null if any entity in the region could have been written.
+ */
+public class InvalidateEntityCacheCommand extends Command {
+    String region;
+    long version;
+    String[] ids;
+
+    protected InvalidateEntityCacheCommand() {
+    }
+
+    public InvalidateEntityCacheCommand(String region, long version, String[] ids) {
+        this.region = region;
+        this.version = version;
+        this.ids = ids;
+    }
+
+    public String getRegion() {
+        return region;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public String[] getIds() {
+        return ids;
+    }
+
+    @Override
+    public boolean executeInSequence() {
+        return false;
+    }
+}
@@ -14,6 +14,7 @@ package com.cloud.agent.api;
 
 public class PingAnswer extends Answer {
     private PingCommand _command = null;
+    private long _stateSequence;
 
     protected PingAnswer() {
     }
@@ -21,9 +22,21 @@ public class PingAnswer extends Answer {
     public PingAnswer(PingCommand cmd) {
         super(cmd);
         _command = cmd;
+        if (cmd instanceof PingRoutingCommand) {
+            _stateSequence = ((PingRoutingCommand) cmd).getStateSequence();
+        }
     }
 
     public PingCommand getCommand() {
         return _command;
     }
+
+    /**
+     * @return the VM state sequence of the ping answered.  Kept apart from
+     *         the command since only the PingCommand part of it survives the
+     *         trip back to the agent.
+     */
+    public long getStateSequence() {
+        return _stateSequence;
+    }
 }
@@ -21,6 +21,8 @@ public class PingRoutingCommand extends PingCommand {
     Map<String, State> newStates;
     boolean _gatewayAccessible = true;
     boolean _vnetAccessible = true;
+    long _stateSequence;
+    boolean _fullSync;
    
     protected PingRoutingCommand() {
     }
@@ -34,6 +36,33 @@ public class PingRoutingCommand extends PingCommand {
         return newStates;
     }
 
+    public void setNewStates(Map<String, State> newStates) {
+        this.newStates = newStates;
+    }
+
+    /**
+     * @return sequence of the last VM state change the resource has found.
+     *         It is echoed in the PingAnswer so that the resource can drop
+     *         the changes the management server has processed.
+     */
+    public long getStateSequence() {
+        return _stateSequence;
+    }
+    public void setStateSequence(long stateSequence) {
+        _stateSequence = stateSequence;
+    }
+
+    /**
+     * @return true if the states are all the VMs on the host rather than
+     *         only the ones that changed.
+     */
+    public boolean isFullSync() {
+        return _fullSync;
+    }
+    public void setFullSync(boolean fullSync) {
+        _fullSync = fullSync;
+    }
+
     public boolean isGatewayAccessible() {
         return _gatewayAccessible;
     }
@@ -0,0 +1,144 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.agent.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DeflaterOutputStream;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.LogLevel.Log4jLevel;
+
+/**
+ * Programs the member sets of security groups into a host.  A member set
+ * holds the addresses of the running vms of a group, and the rules of
+ * SecurityGroupRulesCmd that allow a group refer to its set by name instead
+ * of listing the addresses.
+ *
+ * A set is either sent in full, replacing what the host has, or as the
+ * addresses added to and removed from it since it was last sent.
+ */
+public class SecurityGroupMembersCmd extends Command {
+    private static final Logger s_logger = Logger.getLogger(SecurityGroupMembersCmd.class);
+    public static final String SET_PREFIX = "sg_";
+
+    public static class MemberSet {
+        private long groupId;
+        private boolean full;
+        @LogLevel(Log4jLevel.Trace)
+        private String[] added;
+        @LogLevel(Log4jLevel.Trace)
+        private String[] removed;
+
+        public MemberSet() { }
+
+        public MemberSet(long groupId, boolean full, String[] added, String[] removed) {
+            this.groupId = groupId;
+            this.full = full;
+            this.added = added;
+            this.removed = removed;
+        }
+
+        public long getGroupId() {
+            return groupId;
+        }
+
+        public String getName() {
+            return getSetName(groupId);
+        }
+
+        /**
+         * @return true if the added addresses are all the members of the set.
+         */
+        public boolean isFull() {
+            return full;
+        }
+
+        public String[] getAdded() {
+            return added;
+        }
+
+        public String[] getRemoved() {
+            return removed;
+        }
+    }
+
+    MemberSet[] sets;
+
+    protected SecurityGroupMembersCmd() {
+        super();
+    }
+
+    public SecurityGroupMembersCmd(MemberSet[] sets) {
+        super();
+        this.sets = sets;
+    }
+
+    @Override
+    public boolean executeInSequence() {
+        return true;
+    }
+
+    public MemberSet[] getSets() {
+        return sets;
+    }
+
+    public static String getSetName(long groupId) {
+        return SET_PREFIX + groupId;
+    }
+
+    /**
+     * @return the sets as "name:F|D:added,...:removed,... " for the scripts,
+     *         F for a full set and D for a delta.
+     */
+    public String stringifySets() {
+        StringBuilder builder = new StringBuilder();
+        for (MemberSet set : sets) {
+            builder.append(set.getName()).append(":").append(set.isFull() ? "F" : "D").append(":");
+            for (String ip : set.getAdded()) {
+                builder.append(ip).append(",");
+            }
+            builder.append(":");
+            for (String ip : set.getRemoved()) {
+                builder.append(ip).append(",");
+            }
+            builder.append(" ");
+        }
+        return builder.toString();
+    }
+
+    /*
+     * Compress the sets like SecurityGroupRulesCmd.compressStringifiedRules
+     */
+    public String compressStringifiedSets() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            DeflaterOutputStream dzip = new DeflaterOutputStream(out);
+            dzip.write(stringifySets().getBytes());
+            dzip.close();
+        } catch (IOException e) {
+            s_logger.warn("Exception while compressing security group member sets");
+            return null;
+        }
+        return Base64.encodeBase64String(out.toByteArray());
+    }
+
+    public int getTotalNumAddresses() {
+        //useful for logging
+        int count = 0;
+        for (MemberSet set : sets) {
+            count += set.getAdded().length + set.getRemoved().length;
+        }
+        return count;
+    }
+}
@@ -26,22 +26,30 @@ import com.cloud.utils.net.NetUtils;
 
 public class SecurityGroupRulesCmd extends Command {
     private static Logger s_logger = Logger.getLogger(SecurityGroupRulesCmd.class);
+    public static final String SET_MARKER = "@";
     public static class IpPortAndProto {
         private String proto;
         private int startPort;
         private int endPort;
         @LogLevel(Log4jLevel.Trace)
         private String [] allowedCidrs;
+        private String [] allowedSets;
 
         public IpPortAndProto() { }
 
         public IpPortAndProto(String proto, int startPort, int endPort,
                 String[] allowedCidrs) {
+            this(proto, startPort, endPort, allowedCidrs, new String[0]);
+        }
+
+        public IpPortAndProto(String proto, int startPort, int endPort,
+                String[] allowedCidrs, String[] allowedSets) {
             super();
             this.proto = proto;
             this.startPort = startPort;
             this.endPort = endPort;
             this.allowedCidrs = allowedCidrs;
+            this.allowedSets = allowedSets;
         }
 
         public String[] getAllowedCidrs() {
@@ -52,6 +60,14 @@ public class SecurityGroupRulesCmd extends Command {
             this.allowedCidrs = allowedCidrs;
         }
 
+        /**
+         * @return the names of the SecurityGroupMembersCmd member sets
+         *         allowed besides the cidrs.
+         */
+        public String[] getAllowedSets() {
+            return allowedSets == null ? new String[0] : allowedSets;
+        }
+
         public String getProto() {
             return proto;
         }
@@ -139,6 +155,7 @@ public class SecurityGroupRulesCmd extends Command {
             for (String cidr: ipPandP.getAllowedCidrs()) {
                 ruleBuilder.append(cidr).append(",");
             }
+            appendSets(ruleBuilder, ipPandP);
             ruleBuilder.append("NEXT");
             ruleBuilder.append(" ");
         }
@@ -147,12 +164,20 @@ public class SecurityGroupRulesCmd extends Command {
             for (String cidr: ipPandP.getAllowedCidrs()) {
                 ruleBuilder.append(cidr).append(",");
             }
+            appendSets(ruleBuilder, ipPandP);
             ruleBuilder.append("NEXT");
             ruleBuilder.append(" ");
         }
         return ruleBuilder.toString();
     }
     
+    //member sets are listed with the cidrs as "@setname"
+    private void appendSets(StringBuilder ruleBuilder, IpPortAndProto ipPandP) {
+        for (String set: ipPandP.getAllowedSets()) {
+            ruleBuilder.append(SET_MARKER).append(set).append(",");
+        }
+    }
+
     //convert cidrs in the form "a.b.c.d/e" to "hexvalue of 32bit ip/e"
     private String compressCidr(String cidr) {
         String [] toks = cidr.split("/");
@@ -169,6 +194,7 @@ public class SecurityGroupRulesCmd extends Command {
                 //convert cidrs in the form "a.b.c.d/e" to "hexvalue of 32bit ip/e"
                 ruleBuilder.append(compressCidr(cidr)).append(",");
             }
+            appendSets(ruleBuilder, ipPandP);
             ruleBuilder.append("NEXT");
             ruleBuilder.append(" ");
         }
@@ -178,6 +204,7 @@ public class SecurityGroupRulesCmd extends Command {
                 //convert cidrs in the form "a.b.c.d/e" to "hexvalue of 32bit ip/e"
                 ruleBuilder.append(compressCidr(cidr)).append(",");
             }
+            appendSets(ruleBuilder, ipPandP);
             ruleBuilder.append("NEXT");
             ruleBuilder.append(" ");
         }
@@ -195,6 +222,7 @@ public class SecurityGroupRulesCmd extends Command {
             for (String cidr: ipPandP.getAllowedCidrs()) {
                 ruleBuilder.append(cidr).append(",");
             }
+            appendSets(ruleBuilder, ipPandP);
             ruleBuilder.append("NEXT");
             ruleBuilder.append(" ");
         }
@@ -203,6 +231,7 @@ public class SecurityGroupRulesCmd extends Command {
             for (String cidr: ipPandP.getAllowedCidrs()) {
                 ruleBuilder.append(cidr).append(",");
             }
+            appendSets(ruleBuilder, ipPandP);
             ruleBuilder.append("NEXT");
             ruleBuilder.append(" ");
         }
@@ -251,6 +280,18 @@ public class SecurityGroupRulesCmd extends Command {
         }
         return count;
     }
+
+    public int getTotalNumSets() {
+        //useful for logging
+        int count = 0;
+        for (IpPortAndProto i: ingressRuleSet) {
+            count += i.getAllowedSets().length;
+        }
+        for (IpPortAndProto i: egressRuleSet) {
+            count += i.getAllowedSets().length;
+        }
+        return count;
+    }
     
     public void setMsId(long msId) {
         this.msId = msId;
@@ -0,0 +1,51 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.agent.api.routing;
+
+import com.cloud.agent.api.Answer;
+
+public class RouterConfigBatchAnswer extends Answer {
+    Answer[] answers;
+
+    protected RouterConfigBatchAnswer() {
+        super();
+    }
+
+    public RouterConfigBatchAnswer(RouterConfigBatchCommand cmd, Answer[] answers) {
+        super(cmd, isSuccess(answers), null);
+
+        assert(cmd.getCommands().length == answers.length) : "Shouldn't the answers match the commands?";
+        this.answers = answers;
+    }
+
+    public RouterConfigBatchAnswer(RouterConfigBatchCommand cmd, boolean success, String details) {
+        super(cmd, success, details);
+    }
+
+    private static boolean isSuccess(Answer[] answers) {
+        for (Answer answer : answers) {
+            if (!answer.getResult()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the answers of the commands of the batch, or null if the batch
+     *         couldn't be applied.
+     */
+    public Answer[] getAnswers() {
+        return answers;
+    }
+}
@@ -0,0 +1,46 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.agent.api.routing;
+
+import java.util.List;
+
+import com.cloud.agent.api.Command;
+
+/**
+ * Configures a virtual router with several commands at once: what the
+ * commands configure is shipped to the router as one file and applied in one
+ * ssh session, instead of one session per command or per rule.
+ *
+ * DhcpEntryCommand, SavePasswordCommand, SetPortForwardingRulesCommand and
+ * SetStaticNatRulesCommand can be batched.  The answer carries the answer of
+ * each command.
+ */
+public class RouterConfigBatchCommand extends NetworkElementCommand {
+    Command[] commands;
+
+    protected RouterConfigBatchCommand() {
+    }
+
+    public RouterConfigBatchCommand(List<? extends NetworkElementCommand> commands) {
+        this.commands = commands.toArray(new Command[commands.size()]);
+    }
+
+    @Override
+    public boolean executeInSequence() {
+        return true;
+    }
+
+    public Command[] getCommands() {
+        return commands;
+    }
+}
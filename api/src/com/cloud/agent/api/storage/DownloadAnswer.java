@@ -29,10 +29,43 @@ public class DownloadAnswer extends Answer  {
 	private long templateSize = 0L;
 	private long templatePhySicalSize = 0L;
 	private String checkSum;
+	private String sha256CheckSum;
+	private long downloadRate = 0L;
+	private int[] segmentPcts;
 	
 	public String getCheckSum() {
 		return checkSum;
 	}
+
+	public String getSha256CheckSum() {
+		return sha256CheckSum;
+	}
+
+	public void setSha256CheckSum(String sha256CheckSum) {
+		this.sha256CheckSum = sha256CheckSum;
+	}
+
+	/**
+	 * @return bytes per second the template was downloaded at.
+	 */
+	public long getDownloadRate() {
+		return downloadRate;
+	}
+
+	public void setDownloadRate(long downloadRate) {
+		this.downloadRate = downloadRate;
+	}
+
+	/**
+	 * @return percent downloaded of each segment of a segmented download, null if it isn't segmented.
+	 */
+	public int[] getSegmentPcts() {
+		return segmentPcts;
+	}
+
+	public void setSegmentPcts(int[] segmentPcts) {
+		this.segmentPcts = segmentPcts;
+	}
 	
 	public int getDownloadPct() {
 		return downloadPct;
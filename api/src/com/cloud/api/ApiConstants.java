@@ -97,6 +97,7 @@ public class ApiConstants {
     public static final String ISO_FILTER = "isofilter";
     public static final String ISO_GUEST_OS_NONE = "None";
     public static final String JOB_ID = "jobid";
+    public static final String JOB_IDS = "jobids";
     public static final String JOB_STATUS = "jobstatus";
     public static final String LASTNAME = "lastname";
     public static final String LEVEL = "level";
@@ -169,6 +170,7 @@ public class ApiConstants {
     public static final String SNAPSHOT_TYPE = "snapshottype";
     public static final String SOURCE_ZONE_ID = "sourcezoneid";    
     public static final String START_DATE = "startdate";
+    public static final String START_ID = "startid";
     public static final String START_IP = "startip";
     public static final String START_PORT = "startport";
     public static final String STATE = "state";
@@ -330,6 +332,8 @@ public class ApiConstants {
     public static final String IS_TAGGED = "istagged";
     public static final String INSTANCE_NAME = "instancename";
     public static final String START_VM = "startvm";
+    public static final String SPREAD_POLICY = "spreadpolicy";
+    public static final String WAIT = "wait";
     public static final String HA_HOST = "hahost";
     public static final String CUSTOM_DISK_OFF_MAX_SIZE = "customdiskofferingmaxsize";
 
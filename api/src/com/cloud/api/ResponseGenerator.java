@@ -19,6 +19,7 @@ import java.util.List;
 import com.cloud.api.ApiConstants.HostDetails;
 import com.cloud.api.ApiConstants.VMDetails;
 import com.cloud.api.commands.QueryAsyncJobResultCmd;
+import com.cloud.api.commands.QueryAsyncJobResultsCmd;
 import com.cloud.api.response.AccountResponse;
 import com.cloud.api.response.AsyncJobResponse;
 import com.cloud.api.response.CapacityResponse;
@@ -152,6 +153,8 @@ public interface ResponseGenerator {
 
     DomainRouterResponse createDomainRouterResponse(VirtualRouter router);
 
+    List<DomainRouterResponse> createDomainRouterResponses(List<? extends VirtualRouter> routers);
+
     HostResponse createHostResponse(Host host, EnumSet<HostDetails> details);
 
     HostResponse createHostResponse(Host host);
@@ -172,6 +175,8 @@ public interface ResponseGenerator {
 
     VolumeResponse createVolumeResponse(Volume volume);
 
+    List<VolumeResponse> createVolumeResponses(List<? extends Volume> volumes);
+
     InstanceGroupResponse createInstanceGroupResponse(InstanceGroup group);
 
     StoragePoolResponse createStoragePoolResponse(StoragePool pool);
@@ -226,6 +231,8 @@ public interface ResponseGenerator {
 
     AsyncJobResponse queryJobResult(QueryAsyncJobResultCmd cmd);
 
+    List<AsyncJobResponse> queryJobResults(QueryAsyncJobResultsCmd cmd);
+
     NetworkOfferingResponse createNetworkOfferingResponse(NetworkOffering offering);
 
     NetworkResponse createNetworkResponse(Network network);
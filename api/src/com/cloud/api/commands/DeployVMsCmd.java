@@ -0,0 +1,281 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.api.commands;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.api.ApiConstants;
+import com.cloud.api.BaseAsyncCmd;
+import com.cloud.api.BaseCmd;
+import com.cloud.api.IdentityMapper;
+import com.cloud.api.Implementation;
+import com.cloud.api.Parameter;
+import com.cloud.api.ServerApiException;
+import com.cloud.api.response.DeployVMsResponse;
+import com.cloud.api.response.VirtualMachineDeploymentResponse;
+import com.cloud.event.EventTypes;
+import com.cloud.exception.ConcurrentOperationException;
+import com.cloud.exception.InsufficientCapacityException;
+import com.cloud.exception.InvalidParameterValueException;
+import com.cloud.exception.ResourceAllocationException;
+import com.cloud.exception.ResourceUnavailableException;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.user.UserContext;
+import com.cloud.uservm.UserVm;
+import com.cloud.utils.Pair;
+
+@Implementation(description="Creates and starts a number of virtual machines of the same service offering and template as one job.", responseObject=DeployVMsResponse.class)
+public class DeployVMsCmd extends BaseAsyncCmd {
+    public static final Logger s_logger = Logger.getLogger(DeployVMsCmd.class.getName());
+
+    private static final String s_name = "deployvirtualmachinesresponse";
+
+    /////////////////////////////////////////////////////
+    //////////////// API parameters /////////////////////
+    /////////////////////////////////////////////////////
+
+    @IdentityMapper(entityTableName="data_center")
+    @Parameter(name=ApiConstants.ZONE_ID, type=CommandType.LONG, required=true, description="availability zone for the virtual machines")
+    private Long zoneId;
+
+    @IdentityMapper(entityTableName="disk_offering")
+    @Parameter(name=ApiConstants.SERVICE_OFFERING_ID, type=CommandType.LONG, required=true, description="the ID of the service offering for the virtual machines")
+    private Long serviceOfferingId;
+
+    @IdentityMapper(entityTableName="vm_template")
+    @Parameter(name=ApiConstants.TEMPLATE_ID, type=CommandType.LONG, required=true, description="the ID of the template for the virtual machines")
+    private Long templateId;
+
+    @Parameter(name=ApiConstants.COUNT, type=CommandType.INTEGER, required=true, description="the number of virtual machines to deploy")
+    private Integer count;
+
+    @Parameter(name=ApiConstants.SPREAD_POLICY, type=CommandType.STRING, description="how to place the virtual machines: spread to put each on the cluster with the most room left, pack to fill the clusters with the least room first; defaulted to spread")
+    private String spreadPolicy;
+
+    @Parameter(name=ApiConstants.NAME, type=CommandType.STRING, description="host name prefix for the virtual machines; the position in the batch is appended to it")
+    private String name;
+
+    @Parameter(name=ApiConstants.DISPLAY_NAME, type=CommandType.STRING, description="an optional user generated name prefix for the virtual machines")
+    private String displayName;
+
+    //Owner information
+    @Parameter(name=ApiConstants.ACCOUNT, type=CommandType.STRING, description="an optional account for the virtual machines. Must be used with domainId.")
+    private String accountName;
+
+    @IdentityMapper(entityTableName="domain")
+    @Parameter(name=ApiConstants.DOMAIN_ID, type=CommandType.LONG, description="an optional domainId for the virtual machines. If the account parameter is used, domainId must also be used.")
+    private Long domainId;
+
+    @IdentityMapper(entityTableName="projects")
+    @Parameter(name=ApiConstants.PROJECT_ID, type=CommandType.LONG, description="Deploy the vms for the project")
+    private Long projectId;
+
+    //Network information
+    @IdentityMapper(entityTableName="networks")
+    @Parameter(name=ApiConstants.NETWORK_IDS, type=CommandType.LIST, collectionType=CommandType.LONG, description="list of network ids used by the virtual machines")
+    private List<Long> networkIds;
+
+    //DataDisk information
+    @IdentityMapper(entityTableName="disk_offering")
+    @Parameter(name=ApiConstants.DISK_OFFERING_ID, type=CommandType.LONG, description="the ID of the disk offering for the virtual machines, as in deployVirtualMachine")
+    private Long diskOfferingId;
+
+    @Parameter(name=ApiConstants.SIZE, type=CommandType.LONG, description="the arbitrary size for the DATADISK volumes. Mutually exclusive with diskOfferingId")
+    private Long size;
+
+    @Parameter(name=ApiConstants.GROUP, type=CommandType.STRING, description="an optional group for the virtual machines")
+    private String group;
+
+    @Parameter(name=ApiConstants.HYPERVISOR, type=CommandType.STRING, description="the hypervisor on which to deploy the virtual machines")
+    private String hypervisor;
+
+    @Parameter(name=ApiConstants.USER_DATA, type=CommandType.STRING, description="an optional binary data that can be sent to the virtual machines upon a successful deployment, base64 encoded", length=2048)
+    private String userData;
+
+    @Parameter(name=ApiConstants.SSH_KEYPAIR, type=CommandType.STRING, description="name of the ssh key pair used to login to the virtual machines")
+    private String sshKeyPairName;
+
+    @IdentityMapper(entityTableName="security_group")
+    @Parameter(name=ApiConstants.SECURITY_GROUP_IDS, type=CommandType.LIST, collectionType=CommandType.LONG, description="comma separated list of security groups id that going to be applied to the virtual machines. Mutually exclusive with securitygroupnames parameter")
+    private List<Long> securityGroupIdList;
+
+    @Parameter(name=ApiConstants.SECURITY_GROUP_NAMES, type=CommandType.LIST, collectionType=CommandType.STRING, description="comma separated list of security groups names that going to be applied to the virtual machines. Mutually exclusive with securitygroupids parameter")
+    private List<String> securityGroupNameList;
+
+    @Parameter(name=ApiConstants.KEYBOARD, type=CommandType.STRING, description="an optional keyboard device type for the virtual machines")
+    private String keyboard;
+
+    @Parameter(name=ApiConstants.START_VM, type=CommandType.BOOLEAN, description="true to start the virtual machines once they are created; defaulted to true if not specified")
+    private Boolean startVm;
+
+    /////////////////////////////////////////////////////
+    /////////////////// Accessors ///////////////////////
+    /////////////////////////////////////////////////////
+
+    public Long getZoneId() {
+        return zoneId;
+    }
+
+    public Long getServiceOfferingId() {
+        return serviceOfferingId;
+    }
+
+    public Long getTemplateId() {
+        return templateId;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public String getSpreadPolicy() {
+        return spreadPolicy;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    public List<Long> getNetworkIds() {
+        return networkIds;
+    }
+
+    public Long getDiskOfferingId() {
+        return diskOfferingId;
+    }
+
+    public Long getSize() {
+        return size;
+    }
+
+    public String getGroup() {
+        return group;
+    }
+
+    public HypervisorType getHypervisor() {
+        return HypervisorType.getType(hypervisor);
+    }
+
+    public String getUserData() {
+        return userData;
+    }
+
+    public String getSSHKeyPairName() {
+        return sshKeyPairName;
+    }
+
+    public List<Long> getSecurityGroupIdList() {
+        if (securityGroupNameList != null && securityGroupIdList != null) {
+            throw new InvalidParameterValueException("securitygroupids parameter is mutually exclusive with securitygroupnames parameter");
+        }
+
+        //transform group names to ids here
+        if (securityGroupNameList != null) {
+            List<Long> securityGroupIds = new ArrayList<Long>();
+            for (String groupName : securityGroupNameList) {
+                Long groupId = _responseGenerator.getSecurityGroupId(groupName, getEntityOwnerId());
+                if (groupId == null) {
+                    throw new InvalidParameterValueException("Unable to find group by name " + groupName + " for account " + getEntityOwnerId());
+                }
+                securityGroupIds.add(groupId);
+            }
+            return securityGroupIds;
+        }
+        return securityGroupIdList;
+    }
+
+    public String getKeyboard() {
+        return keyboard;
+    }
+
+    public boolean getStartVm() {
+        return startVm == null ? true : startVm;
+    }
+
+    /////////////////////////////////////////////////////
+    /////////////// API Implementation///////////////////
+    /////////////////////////////////////////////////////
+
+    @Override
+    public String getCommandName() {
+        return s_name;
+    }
+
+    @Override
+    public long getEntityOwnerId() {
+        Long accountId = finalyzeAccountId(accountName, domainId, projectId, true);
+        if (accountId == null) {
+            return UserContext.current().getCaller().getId();
+        }
+
+        return accountId;
+    }
+
+    @Override
+    public String getEventType() {
+        return EventTypes.EVENT_VM_CREATE;
+    }
+
+    @Override
+    public String getEventDescription() {
+        return "deploying " + count + " Vms";
+    }
+
+    @Override
+    public void execute() throws ResourceAllocationException {
+        List<Pair<UserVm, String>> results;
+        try {
+            results = _userVmService.deployVirtualMachines(this);
+        } catch (ResourceUnavailableException ex) {
+            s_logger.warn("Exception: ", ex);
+            throw new ServerApiException(BaseCmd.RESOURCE_UNAVAILABLE_ERROR, ex.getMessage());
+        } catch (ConcurrentOperationException ex) {
+            s_logger.warn("Exception: ", ex);
+            throw new ServerApiException(BaseCmd.INTERNAL_ERROR, ex.getMessage());
+        } catch (InsufficientCapacityException ex) {
+            s_logger.info(ex);
+            s_logger.trace(ex);
+            throw new ServerApiException(BaseCmd.INSUFFICIENT_CAPACITY_ERROR, ex.getMessage());
+        }
+
+        List<VirtualMachineDeploymentResponse> deployments = new ArrayList<VirtualMachineDeploymentResponse>();
+        int successCount = 0;
+        for (int i = 0; i < results.size(); i++) {
+            Pair<UserVm, String> result = results.get(i);
+            VirtualMachineDeploymentResponse deployment = new VirtualMachineDeploymentResponse();
+            deployment.setIndex(i);
+            deployment.setSuccess(result.second() == null);
+            deployment.setErrorText(result.second());
+            if (result.first() != null) {
+                deployment.setVirtualMachine(_responseGenerator.createUserVmResponse("virtualmachine", result.first()).get(0));
+            }
+            if (result.second() == null) {
+                successCount++;
+            }
+            deployment.setObjectName("deployment");
+            deployments.add(deployment);
+        }
+
+        DeployVMsResponse response = new DeployVMsResponse();
+        response.setCount(getCount());
+        response.setSuccessCount(successCount);
+        response.setDeployments(deployments);
+        response.setResponseName(getCommandName());
+        this.setResponseObject(response);
+    }
+}
@@ -18,6 +18,7 @@ import java.util.List;
 
 import com.cloud.api.ApiConstants;
 import com.cloud.api.BaseListAccountResourcesCmd;
+import com.cloud.api.IdentityMapper;
 import com.cloud.api.Implementation;
 import com.cloud.api.Parameter;
 import com.cloud.api.response.AsyncJobResponse;
@@ -35,6 +36,9 @@ public class ListAsyncJobsCmd extends BaseListAccountResourcesCmd {
     @Parameter(name=ApiConstants.START_DATE, type=CommandType.TZDATE, description="the start date of the async job")
     private Date startDate;
 
+    @IdentityMapper(entityTableName="async_job")
+    @Parameter(name=ApiConstants.START_ID, type=CommandType.LONG, description="list the jobs after the job with this ID; use the last ID of the previous page instead of page to page through the jobs quickly")
+    private Long startId;
 
     /////////////////////////////////////////////////////
     /////////////////// Accessors ///////////////////////
@@ -44,6 +48,10 @@ public class ListAsyncJobsCmd extends BaseListAccountResourcesCmd {
         return startDate;
     }
 
+    public Long getStartId() {
+        return startId;
+    }
+
     /////////////////////////////////////////////////////
     /////////////// API Implementation///////////////////
     /////////////////////////////////////////////////////
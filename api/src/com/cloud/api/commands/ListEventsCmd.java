@@ -25,7 +25,9 @@ import com.cloud.api.Implementation;
 import com.cloud.api.Parameter;
 import com.cloud.api.response.EventResponse;
 import com.cloud.api.response.ListResponse;
+import com.cloud.api.response.ResponseCursor;
 import com.cloud.event.Event;
+import com.cloud.utils.db.SearchCursor;
 
 @Implementation(description="A command to list events.", responseObject=EventResponse.class)
 public class ListEventsCmd extends BaseListProjectAndAccountResourcesCmd {
@@ -59,6 +61,10 @@ public class ListEventsCmd extends BaseListProjectAndAccountResourcesCmd {
     @Parameter(name=ApiConstants.TYPE, type=CommandType.STRING, description="the event type (see event types)")
     private String type;
 
+    @IdentityMapper(entityTableName="event")
+    @Parameter(name=ApiConstants.START_ID, type=CommandType.LONG, description="list the events older than the event with this ID, newest first; use the last ID of the previous page instead of page to page through the events quickly")
+    private Long startId;
+
     /////////////////////////////////////////////////////
     /////////////////// Accessors ///////////////////////
     /////////////////////////////////////////////////////
@@ -91,6 +97,10 @@ public class ListEventsCmd extends BaseListProjectAndAccountResourcesCmd {
         return type;
     }
 
+    public Long getStartId() {
+        return startId;
+    }
+
     /////////////////////////////////////////////////////
     /////////////// API Implementation///////////////////
     /////////////////////////////////////////////////////
@@ -102,14 +112,25 @@ public class ListEventsCmd extends BaseListProjectAndAccountResourcesCmd {
 
     @Override
     public void execute(){
-        List<? extends Event> result = _mgr.searchForEvents(this);
         ListResponse<EventResponse> response = new ListResponse<EventResponse>();
-        List<EventResponse> eventResponses = new ArrayList<EventResponse>();
-        for (Event event : result) {
-            eventResponses.add(_responseGenerator.createEventResponse(event));
+        if (getPageSizeVal() == null && (entryTime == null || duration == null)) {
+            // There can be any number of events, so they are serialized as they are read instead of all being built first
+            SearchCursor<? extends Event> result = _mgr.searchForEventsCursor(this);
+            response.setResponseCursor(new ResponseCursor<Event, EventResponse>(result) {
+                @Override
+                protected EventResponse toResponse(Event event) {
+                    return _responseGenerator.createEventResponse(event);
+                }
+            });
+        } else {
+            List<? extends Event> result = _mgr.searchForEvents(this);
+            List<EventResponse> eventResponses = new ArrayList<EventResponse>();
+            for (Event event : result) {
+                eventResponses.add(_responseGenerator.createEventResponse(event));
+            }
+            response.setResponses(eventResponses);
         }
 
-        response.setResponses(eventResponses);
         response.setResponseName(getCommandName());
         this.setResponseObject(response);
     }
@@ -12,7 +12,6 @@
 // Automatically generated by addcopyright.py at 04/03/2012
 package com.cloud.api.commands;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.log4j.Logger;
@@ -113,11 +112,9 @@ public class ListRoutersCmd extends BaseListProjectAndAccountResourcesCmd {
     public void execute(){
         List<? extends VirtualRouter> result = _mgr.searchForRouters(this);
         ListResponse<DomainRouterResponse> response = new ListResponse<DomainRouterResponse>();
-        List<DomainRouterResponse> routerResponses = new ArrayList<DomainRouterResponse>();
-        for (VirtualRouter router : result) {
-            DomainRouterResponse routerResponse = _responseGenerator.createDomainRouterResponse(router);
+        List<DomainRouterResponse> routerResponses = _responseGenerator.createDomainRouterResponses(result);
+        for (DomainRouterResponse routerResponse : routerResponses) {
             routerResponse.setObjectName("router");
-            routerResponses.add(routerResponse);
         }
 
         response.setResponses(routerResponses);
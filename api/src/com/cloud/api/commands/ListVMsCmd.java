@@ -83,6 +83,10 @@ public class ListVMsCmd extends BaseListProjectAndAccountResourcesCmd {
     @Parameter(name=ApiConstants.DETAILS, type=CommandType.LIST, collectionType=CommandType.STRING, description="comma separated list of host details requested, " +
     		"value can be a list of [all, group, nics, stats, secgrp, tmpl, servoff, iso, volume, min]. If no parameter is passed in, the details will be defaulted to all" )
     private List<String> viewDetails; 
+
+    @IdentityMapper(entityTableName="vm_instance")
+    @Parameter(name=ApiConstants.START_ID, type=CommandType.LONG, description="list the virtual machines after the virtual machine with this ID; use the last ID of the previous page instead of page to page through the virtual machines quickly")
+    private Long startId;
    
 
     /////////////////////////////////////////////////////
@@ -116,6 +120,10 @@ public class ListVMsCmd extends BaseListProjectAndAccountResourcesCmd {
     public Long getZoneId() {
         return zoneId;
     }
+
+    public Long getStartId() {
+        return startId;
+    }
     
     public Boolean getForVirtualNetwork() {
         return forVirtualNetwork;
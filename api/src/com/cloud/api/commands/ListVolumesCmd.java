@@ -12,7 +12,6 @@
 // Automatically generated by addcopyright.py at 04/03/2012
 package com.cloud.api.commands;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.log4j.Logger;
@@ -115,11 +114,9 @@ public class ListVolumesCmd extends BaseListProjectAndAccountResourcesCmd {
         List<? extends Volume> volumes = _storageService.searchForVolumes(this);
 
         ListResponse<VolumeResponse> response = new ListResponse<VolumeResponse>();
-        List<VolumeResponse> volResponses = new ArrayList<VolumeResponse>();
-        for (Volume volume : volumes) {
-            VolumeResponse volResponse = _responseGenerator.createVolumeResponse(volume);
+        List<VolumeResponse> volResponses = _responseGenerator.createVolumeResponses(volumes);
+        for (VolumeResponse volResponse : volResponses) {
             volResponse.setObjectName("volume");
-            volResponses.add(volResponse);
         }
 
         response.setResponses(volResponses);
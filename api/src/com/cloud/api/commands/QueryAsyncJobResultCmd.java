@@ -36,6 +36,9 @@ public class QueryAsyncJobResultCmd extends BaseCmd {
     @Parameter(name=ApiConstants.JOB_ID, type=CommandType.LONG, required=true, description="the ID of the asychronous job")
     private Long id;
 
+    @Parameter(name=ApiConstants.WAIT, type=CommandType.INTEGER, description="the number of seconds to wait for the job to complete before returning its status; defaulted to 0")
+    private Integer wait;
+
     /////////////////////////////////////////////////////
     /////////////////// Accessors ///////////////////////
     /////////////////////////////////////////////////////
@@ -44,6 +47,10 @@ public class QueryAsyncJobResultCmd extends BaseCmd {
         return id;
     }
 
+    public Integer getWait() {
+        return wait;
+    }
+
     /////////////////////////////////////////////////////
     /////////////// API Implementation///////////////////
     /////////////////////////////////////////////////////
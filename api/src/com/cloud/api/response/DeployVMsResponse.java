@@ -0,0 +1,40 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.api.response;
+
+import java.util.List;
+
+import com.cloud.api.ApiConstants;
+import com.cloud.serializer.Param;
+import com.google.gson.annotations.SerializedName;
+
+public class DeployVMsResponse extends BaseResponse {
+    @SerializedName(ApiConstants.COUNT) @Param(description="the number of virtual machines asked for")
+    private Integer count;
+
+    @SerializedName("successcount") @Param(description="the number of virtual machines deployed")
+    private Integer successCount;
+
+    @SerializedName("deployment") @Param(description="the result of each virtual machine of the batch", responseObject = VirtualMachineDeploymentResponse.class)
+    private List<VirtualMachineDeploymentResponse> deployments;
+
+    public void setCount(Integer count) {
+        this.count = count;
+    }
+
+    public void setSuccessCount(Integer successCount) {
+        this.successCount = successCount;
+    }
+
+    public void setDeployments(List<VirtualMachineDeploymentResponse> deployments) {
+        this.deployments = deployments;
+    }
+}
@@ -15,9 +15,11 @@ package com.cloud.api.response;
 import java.util.List;
 
 import com.cloud.api.ResponseObject;
+import com.cloud.utils.db.SearchCursor;
 
 public class ListResponse<T extends ResponseObject> extends BaseResponse {
     List<T> responses;
+    transient SearchCursor<T> responseCursor;
 
     public List<T> getResponses() {
         return responses;
@@ -34,4 +36,16 @@ public class ListResponse<T extends ResponseObject> extends BaseResponse {
             return null;
         }
     }
+
+    /**
+     * Sets the responses to be serialized as they are read from the cursor
+     * rather than all built first.  The count isn't known until then.
+     */
+    public void setResponseCursor(SearchCursor<T> responseCursor) {
+        this.responseCursor = responseCursor;
+    }
+
+    public SearchCursor<T> getResponseCursor() {
+        return responseCursor;
+    }
 }
@@ -0,0 +1,48 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.api.response;
+
+import com.cloud.api.ResponseObject;
+import com.cloud.utils.db.SearchCursor;
+
+/**
+ * ResponseCursor builds the response for each row of a search cursor as the
+ * response is serialized.
+ */
+public abstract class ResponseCursor<V, R extends ResponseObject> implements SearchCursor<R> {
+    protected final SearchCursor<? extends V> _rows;
+
+    public ResponseCursor(SearchCursor<? extends V> rows) {
+        _rows = rows;
+    }
+
+    protected abstract R toResponse(V row);
+
+    @Override
+    public boolean hasNext() {
+        return _rows.hasNext();
+    }
+
+    @Override
+    public R next() {
+        return toResponse(_rows.next());
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+        _rows.close();
+    }
+}
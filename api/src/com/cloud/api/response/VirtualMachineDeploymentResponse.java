@@ -0,0 +1,44 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.api.response;
+
+import com.cloud.serializer.Param;
+import com.google.gson.annotations.SerializedName;
+
+public class VirtualMachineDeploymentResponse extends BaseResponse {
+    @SerializedName("index") @Param(description="the position of the virtual machine in the batch, starting at 0")
+    private Integer index;
+
+    @SerializedName("success") @Param(description="true if the virtual machine was deployed")
+    private Boolean success;
+
+    @SerializedName("errortext") @Param(description="why the virtual machine could not be deployed")
+    private String errorText;
+
+    @SerializedName("virtualmachine") @Param(description="the virtual machine, if it was created", responseObject = UserVmResponse.class)
+    private UserVmResponse virtualMachine;
+
+    public void setIndex(Integer index) {
+        this.index = index;
+    }
+
+    public void setSuccess(Boolean success) {
+        this.success = success;
+    }
+
+    public void setErrorText(String errorText) {
+        this.errorText = errorText;
+    }
+
+    public void setVirtualMachine(UserVmResponse virtualMachine) {
+        this.virtualMachine = virtualMachine;
+    }
+}
@@ -84,6 +84,7 @@ import com.cloud.storage.StoragePool;
 import com.cloud.template.VirtualMachineTemplate;
 import com.cloud.user.SSHKeyPair;
 import com.cloud.utils.Pair;
+import com.cloud.utils.db.SearchCursor;
 import com.cloud.vm.InstanceGroup;
 import com.cloud.vm.VirtualMachine;
 import com.cloud.vm.VirtualMachine.Type;
@@ -165,6 +166,14 @@ public interface ManagementService {
      */
     List<? extends Event> searchForEvents(ListEventsCmd c);
 
+    /**
+     * Searches for events like searchForEvents but returns them as they are read from the database.
+     * 
+     * @param c
+     * @return cursor over the events; the caller closes it.
+     */
+    SearchCursor<? extends Event> searchForEventsCursor(ListEventsCmd c);
+
     /**
      * Obtains a list of routers by the specified search criteria. Can search by: "userId", "name", "state",
      * "dataCenterId",
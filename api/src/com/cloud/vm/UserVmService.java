@@ -23,6 +23,7 @@ import com.cloud.api.commands.CreateTemplateCmd;
 import com.cloud.api.commands.CreateVMGroupCmd;
 import com.cloud.api.commands.DeleteVMGroupCmd;
 import com.cloud.api.commands.DeployVMCmd;
+import com.cloud.api.commands.DeployVMsCmd;
 import com.cloud.api.commands.DestroyVMCmd;
 import com.cloud.api.commands.DetachVolumeCmd;
 import com.cloud.api.commands.ListVMsCmd;
@@ -49,6 +50,7 @@ import com.cloud.storage.Volume;
 import com.cloud.template.VirtualMachineTemplate;
 import com.cloud.user.Account;
 import com.cloud.uservm.UserVm;
+import com.cloud.utils.Pair;
 import com.cloud.utils.exception.ExecutionException;
 import com.cloud.vm.VirtualMachineProfile.Param;
 
@@ -342,6 +344,20 @@ public interface UserVmService {
      */
     UserVm startVirtualMachine(DeployVMCmd cmd) throws InsufficientCapacityException, ConcurrentOperationException, ResourceUnavailableException;
 
+    /**
+     * Creates and starts a batch of virtual machines of the same offering and template. The batch is placed on the
+     * clusters of the zone in one pass and the virtual machines are started in parallel.
+     * 
+     * @param cmd
+     *            Command to deploy.
+     * @return for each virtual machine of the batch, the virtual machine if it was created and why it failed to deploy,
+     *         null if it did not.
+     * @throws ResourceAllocationException
+     *             if the owner can not have that many more virtual machines.
+     */
+    List<Pair<UserVm, String>> deployVirtualMachines(DeployVMsCmd cmd) throws InsufficientCapacityException, ConcurrentOperationException, ResourceUnavailableException,
+            ResourceAllocationException;
+
     /**
      * Creates a vm group.
      * 
@@ -24,7 +24,9 @@ import java.security.SecureRandom;
 import java.util.Hashtable;
 import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.axis.encoding.Base64;
 import org.apache.log4j.xml.DOMConfigurator;
@@ -63,8 +65,22 @@ public class ConsoleProxy {
 	static int reconnectMaxRetry = 5;
 	static int readTimeoutSeconds = 90;
 	static int keyboardType = KEYBOARD_RAW;
+	static int httpMaxThreads = 200;
+	static int httpQueueSize = 500;
 	static String factoryClzName;
 	static boolean standaloneStart = false;
+	
+	static ConsoleProxyHttpExecutor httpExecutor;
+	
+	// completes the AJAX updates parked for longer than the update timeout
+	static ScheduledExecutorService ajaxTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "Console Proxy AJAX Timer");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
 	
 	static String encryptorPassword = genDefaultEncryptorPassword(); 
 	
@@ -150,6 +166,18 @@ public class ConsoleProxy {
 			readTimeoutSeconds = Integer.parseInt(s);
 			s_logger.info("Setting readTimeoutSeconds=" + readTimeoutSeconds);
 		}
+		
+		s = conf.getProperty("consoleproxy.httpMaxThreads");
+		if (s!=null) {
+			httpMaxThreads = Integer.parseInt(s);
+			s_logger.info("Setting httpMaxThreads=" + httpMaxThreads);
+		}
+		
+		s = conf.getProperty("consoleproxy.httpQueueSize");
+		if (s!=null) {
+			httpQueueSize = Integer.parseInt(s);
+			s_logger.info("Setting httpQueueSize=" + httpQueueSize);
+		}
 	}
 	
 	public static ConsoleProxyServerFactory getHttpServerFactory() {
@@ -340,7 +368,8 @@ public class ConsoleProxy {
 			server.createContext("/resource/", new ConsoleProxyResourceHandler());
 			server.createContext("/ajax", new ConsoleProxyAjaxHandler());
 			server.createContext("/ajaximg", new ConsoleProxyAjaxImageHandler());
-			server.setExecutor(new ThreadExecutor()); // creates a default executor
+			httpExecutor = new ConsoleProxyHttpExecutor("Console Proxy HTTP", httpMaxThreads, httpQueueSize);
+			server.setExecutor(httpExecutor);
 			server.start();
 		} catch(Exception e) {
 			s_logger.error(e.getMessage(), e);
@@ -353,7 +382,7 @@ public class ConsoleProxy {
 		    s_logger.info("Listening for HTTP CMDs on port " + httpCmdListenPort);
 			HttpServer cmdServer = HttpServer.create(new InetSocketAddress(httpCmdListenPort), 2);
 			cmdServer.createContext("/cmd", new ConsoleProxyCmdHandler());
-			cmdServer.setExecutor(new ThreadExecutor()); // creates a default executor
+			cmdServer.setExecutor(new ConsoleProxyHttpExecutor("Console Proxy CMD", 4, 50));
 			cmdServer.start();
 		} catch(Exception e) {
 			s_logger.error(e.getMessage(), e);
@@ -480,6 +509,14 @@ public class ConsoleProxy {
 		return authenticateConsoleAccess(param, true);
 	}
 	
+	public static ConsoleProxyHttpExecutor getHttpExecutor() {
+		return httpExecutor;
+	}
+	
+	public static ScheduledExecutorService getAjaxTimer() {
+		return ajaxTimer;
+	}
+	
 	public static String getEncryptorPassword() { 
 		return encryptorPassword; 
 	}
@@ -487,10 +524,4 @@ public class ConsoleProxy {
 	public static void setEncryptorPassword(String password) {
 		encryptorPassword = password;
 	}
-	
-	static class ThreadExecutor implements Executor {
-	     public void execute(Runnable r) {
-	         new Thread(r).start();
-	     }
-	}
 }
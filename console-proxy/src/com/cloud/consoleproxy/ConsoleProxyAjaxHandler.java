@@ -21,6 +21,9 @@ import java.net.URLDecoder;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.cloud.consoleproxy.util.Logger;
 import com.sun.net.httpserver.Headers;
@@ -30,17 +33,20 @@ import com.sun.net.httpserver.HttpHandler;
 public class ConsoleProxyAjaxHandler implements HttpHandler {
 	private static final Logger s_logger = Logger.getLogger(ConsoleProxyAjaxHandler.class);
 	
+	private static final AtomicInteger s_parkedUpdates = new AtomicInteger();
+	
 	public ConsoleProxyAjaxHandler() {
 	}
 	
 	public void handle(HttpExchange t) throws IOException {
+		boolean parked = false;
 		try {
 	        if(s_logger.isTraceEnabled())
 	        	s_logger.trace("AjaxHandler " + t.getRequestURI());
 	        
 	        long startTick = System.currentTimeMillis();
 	        
-	        doHandle(t);
+	        parked = doHandle(t);
 	        
 	        if(s_logger.isTraceEnabled())
 	        	s_logger.trace(t.getRequestURI() + " process time " + (System.currentTimeMillis() - startTick) + " ms");
@@ -53,11 +59,16 @@ public class ConsoleProxyAjaxHandler implements HttpHandler {
 			s_logger.error("Unexpected exception, ", e);
 			t.sendResponseHeaders(500, -1);		// server error
 		} finally {
-			t.close();
+			// a parked update is closed once it is answered
+			if(!parked)
+				t.close();
 		}
 	}
 	
-	private void doHandle(HttpExchange t) throws Exception, IllegalArgumentException {
+	/**
+	 * @return true if the request was parked to be answered later
+	 */
+	private boolean doHandle(HttpExchange t) throws Exception, IllegalArgumentException {
 		String queries = t.getRequestURI().getQuery();
 		if(s_logger.isTraceEnabled())
 			s_logger.trace("Handle AJAX request: " + queries);
@@ -138,7 +149,7 @@ public class ConsoleProxyAjaxHandler implements HttpHandler {
 				sb.append(content[i]);
 			
 			sendResponse(t, "text/html", sb.toString());
-			return;
+			return false;
 		}
 		
 		if(event != 0) {
@@ -173,9 +184,10 @@ public class ConsoleProxyAjaxHandler implements HttpHandler {
 				if(s_logger.isTraceEnabled())
 					s_logger.trace("Ajax request indicates client update");
 				
-				handleClientUpdate(t, viewer);
+				return handleClientUpdate(t, viewer);
 			}
 		}
+		return false;
 	}
 	
 	private static String convertStreamToString(InputStream is, boolean closeStreamAfterRead) { 
@@ -385,9 +397,21 @@ public class ConsoleProxyAjaxHandler implements HttpHandler {
 		}
 	}
 	
-	private void handleClientUpdate(HttpExchange t, ConsoleProxyClient viewer) throws IOException {
-		String response = viewer.onAjaxClientUpdate();
+	/**
+	 * @return true if the update was parked until there is something to send
+	 */
+	private boolean handleClientUpdate(HttpExchange t, ConsoleProxyClient viewer) throws IOException {
+		if(ConsoleProxy.getHttpExecutor() != null) {
+			ParkedClientUpdate update = new ParkedClientUpdate(t, viewer);
+			if(update.park())
+				return true;
+		}
 		
+		sendClientUpdate(t, viewer.onAjaxClientUpdate());
+		return false;
+	}
+	
+	private static void sendClientUpdate(HttpExchange t, String response) throws IOException {
 		Headers hds = t.getResponseHeaders();
 		hds.set("Content-Type", "text/javascript");
 		t.sendResponseHeaders(200, response.length());
@@ -399,4 +423,79 @@ public class ConsoleProxyAjaxHandler implements HttpHandler {
 			os.close();
 		}
 	}
+	
+	public static int getParkedUpdateCount() {
+		return s_parkedUpdates.get();
+	}
+	
+	/**
+	 * An AJAX update waiting for the frame buffer to change, without a
+	 * thread.  It is answered from the HTTP pool when the viewer signals a
+	 * change, or when the update times out with nothing to send.  It is never
+	 * answered on the thread that dispatches it, the VNC receiver or the AJAX
+	 * timer: if the pool is saturated, the client gets a 503 to retry later.
+	 */
+	private static class ParkedClientUpdate implements Runnable {
+		private final HttpExchange t;
+		private final ConsoleProxyClient viewer;
+		private final AtomicBoolean dispatched = new AtomicBoolean(false);
+		
+		private final Runnable onUpdate = new Runnable() {
+			@Override
+			public void run() {
+				dispatch();
+			}
+		};
+		
+		private final Runnable onTimeout = new Runnable() {
+			@Override
+			public void run() {
+				viewer.unparkAjaxClientUpdate(onUpdate);
+				dispatch();
+			}
+		};
+		
+		ParkedClientUpdate(HttpExchange t, ConsoleProxyClient viewer) {
+			this.t = t;
+			this.viewer = viewer;
+		}
+		
+		boolean park() {
+			if(!viewer.parkAjaxClientUpdate(onUpdate))
+				return false;
+			
+			s_parkedUpdates.incrementAndGet();
+			ConsoleProxy.getAjaxTimer().schedule(onTimeout, ConsoleProxyClientBase.AJAX_UPDATE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			return true;
+		}
+		
+		private void dispatch() {
+			if(dispatched.compareAndSet(false, true)) {
+				s_parkedUpdates.decrementAndGet();
+				if(!ConsoleProxy.getHttpExecutor().tryExecute(this))
+					reject();
+			}
+		}
+		
+		private void reject() {
+			try {
+				t.sendResponseHeaders(503, -1);
+			} catch(Throwable e) {
+				s_logger.warn("Unable to reject parked AJAX update, ", e);
+			} finally {
+				t.close();
+			}
+		}
+		
+		@Override
+		public void run() {
+			try {
+				sendClientUpdate(t, viewer.onAjaxClientUpdate(false));
+			} catch(Throwable e) {
+				s_logger.warn("Unable to answer parked AJAX update, ", e);
+			} finally {
+				t.close();
+			}
+		}
+	}
 }
@@ -40,6 +40,9 @@ public interface ConsoleProxyClient {
 	
 	String onAjaxClientStart(String title, List<String> languages, String guest);
 	String onAjaxClientUpdate();
+	String onAjaxClientUpdate(boolean waitForUpdate);
+	boolean parkAjaxClientUpdate(Runnable onUpdate);
+	void unparkAjaxClientUpdate(Runnable onUpdate);
 	String onAjaxClientKickoff();
 
 	//
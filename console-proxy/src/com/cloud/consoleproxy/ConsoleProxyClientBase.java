@@ -14,6 +14,7 @@ package com.cloud.consoleproxy;
 
 import java.awt.Image;
 import java.awt.Rectangle;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.log4j.Logger;
@@ -34,6 +35,8 @@ import com.cloud.consoleproxy.vnc.FrameBufferCanvas;
 public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, ConsoleProxyClientListener {
 	private static final Logger s_logger = Logger.getLogger(ConsoleProxyClientBase.class);
 	
+	public static final int AJAX_UPDATE_TIMEOUT_MS = 3000;
+	
 	private static int s_nextClientId = 0;
 	protected int clientId = getNextClientId();
 	
@@ -41,6 +44,7 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
 	
 	protected boolean dirtyFlag = false;
 	protected Object tileDirtyEvent = new Object();
+	protected List<Runnable> tileDirtyWaiters = new ArrayList<Runnable>();
 	protected TileTracker tracker;
 	protected AjaxFIFOImageCache ajaxImageCache = new AjaxFIFOImageCache(2);
 
@@ -172,12 +176,40 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
 		return null;
 	}
 	
+	/**
+	 * Drops the tiles that were invalidated without their content changing
+	 * since it was last sent.
+	 */
+	private List<TileInfo> removeUnchangedTiles(List<TileInfo> tiles, boolean resized) {
+		FrameBufferCanvas canvas = getFrameBufferCavas();
+		if(canvas == null)
+			return tiles;
+		
+		canvas.hashTiles(tiles);
+		if(resized)
+			return tiles;
+		
+		List<TileInfo> changedTiles = new ArrayList<TileInfo>(tiles.size());
+		for(TileInfo tile : tiles) {
+			if(!tracker.isTileSent(tile))
+				changedTiles.add(tile);
+		}
+		
+		if(s_logger.isTraceEnabled())
+			s_logger.trace("Dirty tiles: " + tiles.size() + ", changed tiles: " + changedTiles.size());
+		return changedTiles;
+	}
+	
 	private String prepareAjaxImage(List<TileInfo> tiles, boolean init) {
 		byte[] imgBits;
-		if(init)
+		if(init) {
+			tracker.clearSentTiles();
 			imgBits = getFrameBufferJpeg();
-		else 
+		} else {
 			imgBits = getTilesMergedJpeg(tiles, tracker.getTileWidth(), tracker.getTileHeight());
+			for(TileInfo tile : tiles)
+				tracker.setTileSent(tile);
+		}
 		
 		if(imgBits == null) {
 			s_logger.warn("Unable to generate jpeg image");
@@ -361,14 +393,19 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
 
 	@Override
 	public String onAjaxClientUpdate() {
+		return onAjaxClientUpdate(true);
+	}
+	
+	@Override
+	public String onAjaxClientUpdate(boolean waitForUpdate) {
 		updateFrontEndActivityTime();
 		if(!waitForViewerReady())
 			return onAjaxClientDisconnected();
 		
 		synchronized(tileDirtyEvent) {
-			if(!dirtyFlag) {
+			if(!dirtyFlag && waitForUpdate) {
 				try {
-					tileDirtyEvent.wait(3000);
+					tileDirtyEvent.wait(AJAX_UPDATE_TIMEOUT_MS);
 				} catch(InterruptedException e) {
 				}
 			}
@@ -389,6 +426,7 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
 		else
 			tiles = tracker.scan(false);
 		dirtyFlag = false;
+		tiles = removeUnchangedTiles(tiles, doResize);
 		
 		String imgUrl = prepareAjaxImage(tiles, false);
 		StringBuffer sbTileSequence = new StringBuffer();
@@ -406,6 +444,34 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
 			tracker.getTileWidth(), tracker.getTileHeight());
 	}
 	
+	/**
+	 * Runs onUpdate, once, when the frame buffer changes, so that an AJAX
+	 * update does not hold a thread while it waits.
+	 * 
+	 * @return false if there are changes to send already, or the viewer is not
+	 * ready, onUpdate is not kept then
+	 */
+	@Override
+	public boolean parkAjaxClientUpdate(Runnable onUpdate) {
+		updateFrontEndActivityTime();
+		if(getFrameBufferCavas() == null)
+			return false;
+		
+		synchronized(tileDirtyEvent) {
+			if(dirtyFlag)
+				return false;
+			tileDirtyWaiters.add(onUpdate);
+			return true;
+		}
+	}
+	
+	@Override
+	public void unparkAjaxClientUpdate(Runnable onUpdate) {
+		synchronized(tileDirtyEvent) {
+			tileDirtyWaiters.remove(onUpdate);
+		}
+	}
+	
 	private String getAjaxViewerUpdatePageContent(String tileSequence, String imgUrl, boolean resized, int width,
 		int height, int tileWidth, int tileHeight) {
 		
@@ -430,9 +496,20 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
 	}
 	
 	private void signalTileDirtyEvent() {
+		List<Runnable> waiters = null;
 		synchronized(tileDirtyEvent) {
 			dirtyFlag = true;
 			tileDirtyEvent.notifyAll();
+			
+			if(!tileDirtyWaiters.isEmpty()) {
+				waiters = tileDirtyWaiters;
+				tileDirtyWaiters = new ArrayList<Runnable>();
+			}
+		}
+		
+		if(waiters != null) {
+			for(Runnable waiter : waiters)
+				waiter.run();
 		}
 	}
 	
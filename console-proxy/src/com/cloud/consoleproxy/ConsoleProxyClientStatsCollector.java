@@ -17,6 +17,7 @@ import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.Hashtable;
 
+import com.cloud.consoleproxy.util.TileEncodingCache;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
@@ -28,12 +29,20 @@ import com.google.gson.GsonBuilder;
 public class ConsoleProxyClientStatsCollector {
 	
 	ArrayList<ConsoleProxyConnection> connections;
+	TileEncodingStats tileEncoding;
+	ThreadPoolStats threadPool;
 	
 	public ConsoleProxyClientStatsCollector() {
 	}
 	
 	public ConsoleProxyClientStatsCollector(Hashtable<String, ConsoleProxyClient> connMap) {
 		setConnections(connMap);
+		setTileEncodingStats();
+		setThreadPoolStats(ConsoleProxy.getHttpExecutor());
+	}
+	
+	public double getThreadPoolSaturation() {
+		return threadPool != null ? threadPool.saturation : 0;
 	}
 	
 	public String getStatsReport() {
@@ -70,6 +79,60 @@ public class ConsoleProxyClientStatsCollector {
 	    connections = conns;
 	}
 	
+	private void setTileEncodingStats() {
+		TileEncodingStats stats = new TileEncodingStats();
+		stats.encodeCount = TileEncodingCache.getEncodeCount();
+		stats.encodeAverageMicros = TileEncodingCache.getAverageEncodeMicros();
+		stats.encodeMaxMicros = TileEncodingCache.getMaxEncodeMicros();
+		stats.cacheHits = TileEncodingCache.getHitCount();
+		stats.cacheMisses = TileEncodingCache.getMissCount();
+		long lookups = stats.cacheHits + stats.cacheMisses;
+		stats.cacheHitRate = lookups > 0 ? (double)stats.cacheHits / lookups : 0;
+		tileEncoding = stats;
+	}
+	
+	private void setThreadPoolStats(ConsoleProxyHttpExecutor executor) {
+		if(executor == null)
+			return;
+		
+		ThreadPoolStats stats = new ThreadPoolStats();
+		stats.activeThreads = executor.getActiveCount();
+		stats.poolSize = executor.getPoolSize();
+		stats.maxThreads = executor.getMaxThreads();
+		stats.queueSize = executor.getQueueSize();
+		stats.queueCapacity = executor.getQueueCapacity();
+		stats.rejected = executor.getRejectedCount();
+		stats.parkedUpdates = ConsoleProxyAjaxHandler.getParkedUpdateCount();
+		stats.saturation = executor.getSaturation();
+		threadPool = stats;
+	}
+	
+	public static class ThreadPoolStats {
+		public int activeThreads;
+		public int poolSize;
+		public int maxThreads;
+		public int queueSize;
+		public int queueCapacity;
+		public long rejected;
+		public int parkedUpdates;
+		public double saturation;
+		
+		public ThreadPoolStats() {
+		}
+	}
+	
+	public static class TileEncodingStats {
+		public long encodeCount;
+		public long encodeAverageMicros;
+		public long encodeMaxMicros;
+		public long cacheHits;
+		public long cacheMisses;
+		public double cacheHitRate;
+		
+		public TileEncodingStats() {
+		}
+	}
+	
 	public static class ConsoleProxyConnection {
 		public int id;
 		public String clientInfo;
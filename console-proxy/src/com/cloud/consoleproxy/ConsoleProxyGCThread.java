@@ -29,6 +29,9 @@ public class ConsoleProxyGCThread extends Thread {
 	private static final Logger s_logger = Logger.getLogger(ConsoleProxyGCThread.class);
 	
 	private final static int MAX_SESSION_IDLE_SECONDS = 180;
+	
+	// report the load again when thread pool saturation moves by this much
+	private final static double SATURATION_REPORT_STEP = 0.2;
 
 	private Hashtable<String, ConsoleProxyClient> connMap;
 	private long lastLogScan = 0;
@@ -61,6 +64,7 @@ public class ConsoleProxyGCThread extends Thread {
     public void run() {
 		
 		boolean bReportLoad = false;
+		double lastReportedSaturation = 0;
 		while (true) {
 			cleanupLogging();
 			bReportLoad = false;
@@ -89,11 +93,19 @@ public class ConsoleProxyGCThread extends Thread {
     		    // close the server connection
     		    s_logger.info("Dropping " + client + " which has not been used for " + seconds_unused + " seconds");
     		    client.closeClient();
+    		    bReportLoad = true;
 		    }
+		    
+		    // thread pool saturation counts as load too
+		    ConsoleProxyClientStatsCollector statsCollector = new ConsoleProxyClientStatsCollector(connMap);
+		    double saturation = statsCollector.getThreadPoolSaturation();
+		    if(Math.abs(saturation - lastReportedSaturation) >= SATURATION_REPORT_STEP)
+		    	bReportLoad = true;
 		    
 		    if(bReportLoad) {
     		    // report load changes
-				String loadInfo = new ConsoleProxyClientStatsCollector(connMap).getStatsReport(); 
+		    	lastReportedSaturation = saturation;
+				String loadInfo = statsCollector.getStatsReport(); 
 				ConsoleProxy.reportLoadInfo(loadInfo);
 				if(s_logger.isDebugEnabled())
 					s_logger.debug("Report load change : " + loadInfo);
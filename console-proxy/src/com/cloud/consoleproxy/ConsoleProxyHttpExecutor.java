@@ -0,0 +1,140 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.consoleproxy;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cloud.consoleproxy.util.Logger;
+
+/**
+ * ConsoleProxyHttpExecutor runs HTTP requests on a bounded pool of threads
+ * with a bounded queue in front of it.  When both are full the request is
+ * run by the thread of the HTTP server that accepted it, which stops it from
+ * accepting more until there is room again.  Work handed over by other
+ * threads through tryExecute is refused instead, as those threads must not
+ * be held up by a slow client.
+ */
+public class ConsoleProxyHttpExecutor implements Executor {
+	private static final Logger s_logger = Logger.getLogger(ConsoleProxyHttpExecutor.class);
+	
+	private final ThreadPoolExecutor pool;
+	private final int queueCapacity;
+	private final AtomicLong rejected = new AtomicLong();
+	
+	public ConsoleProxyHttpExecutor(final String name, int maxThreads, int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+		
+		pool = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS, 
+			new ArrayBlockingQueue<Runnable>(queueCapacity), 
+			new ThreadFactory() {
+				private final AtomicInteger threadNumber = new AtomicInteger(1);
+				
+				@Override
+				public Thread newThread(Runnable r) {
+					return new Thread(r, name + "-" + threadNumber.getAndIncrement());
+				}
+			}, 
+			new RejectedExecutionHandler() {
+				@Override
+				public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+					long count = rejected.incrementAndGet();
+					if(r instanceof NoCallerRuns) {
+						if(s_logger.isDebugEnabled())
+							s_logger.debug(name + " pool is saturated, refuse handed over work, rejected so far: " + count);
+						throw new RejectedExecutionException();
+					}
+					
+					if(s_logger.isDebugEnabled())
+						s_logger.debug(name + " pool is saturated, run request in the accepting thread, rejected so far: " + count);
+					
+					if(!executor.isShutdown())
+						r.run();
+				}
+			});
+		
+		// Threads come and go with the load instead of staying at the maximum
+		pool.allowCoreThreadTimeOut(true);
+	}
+	
+	@Override
+	public void execute(Runnable r) {
+		pool.execute(r);
+	}
+	
+	/**
+	 * Runs r on the pool, never in the calling thread
+	 * 
+	 * @return false if the pool and its queue are full and r won't be run
+	 */
+	public boolean tryExecute(Runnable r) {
+		try {
+			pool.execute(new NoCallerRuns(r));
+			return true;
+		} catch(RejectedExecutionException e) {
+			return false;
+		}
+	}
+	
+	public int getActiveCount() {
+		return pool.getActiveCount();
+	}
+	
+	public int getPoolSize() {
+		return pool.getPoolSize();
+	}
+	
+	public int getMaxThreads() {
+		return pool.getMaximumPoolSize();
+	}
+	
+	public int getQueueSize() {
+		return pool.getQueue().size();
+	}
+	
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+	
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+	
+	/**
+	 * @return how close the pool is to running requests in the accepting
+	 * thread, from 0 to 1
+	 */
+	public double getSaturation() {
+		double threads = (double)getActiveCount() / getMaxThreads();
+		double queue = queueCapacity > 0 ? (double)getQueueSize() / queueCapacity : 0;
+		return Math.min(1, Math.max(threads, queue));
+	}
+	
+	private static class NoCallerRuns implements Runnable {
+		private final Runnable r;
+		
+		NoCallerRuns(Runnable r) {
+			this.r = r;
+		}
+		
+		@Override
+		public void run() {
+			r.run();
+		}
+	}
+}
@@ -24,6 +24,7 @@ import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.Map;
 
+import com.cloud.consoleproxy.util.ImageHelper;
 import com.cloud.consoleproxy.util.Logger;
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
@@ -161,9 +162,7 @@ public class ConsoleProxyThumbnailHandler implements HttpHandler {
 					BufferedImage.TYPE_3BYTE_BGR);
 			Graphics2D bufImageGraphics = bufferedImage.createGraphics();
 			bufImageGraphics.drawImage(scaledImage, 0, 0, null);
-			ByteArrayOutputStream bos = new ByteArrayOutputStream(8196);
-			javax.imageio.ImageIO.write(bufferedImage, "jpg", bos);
-			byte[] bs = bos.toByteArray();
+			byte[] bs = ImageHelper.jpegFromImage(bufferedImage);
 			Headers hds = t.getResponseHeaders();
 			hds.set("Content-Type", "image/jpeg");
 			hds.set("Cache-Control", "no-cache");
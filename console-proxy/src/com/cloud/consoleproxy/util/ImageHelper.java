@@ -15,14 +15,76 @@ package com.cloud.consoleproxy.util;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 
 public class ImageHelper {
+	// JPEG writers and scratch images are expensive to create, every HTTP
+	// handler thread keeps its own
+	private static final ThreadLocal<JpegEncoder> s_encoders = new ThreadLocal<JpegEncoder>() {
+		@Override
+		protected JpegEncoder initialValue() {
+			return new JpegEncoder();
+		}
+	};
+	
 	public static byte[] jpegFromImage(BufferedImage image) throws IOException {
-		ByteArrayOutputStream bos = new ByteArrayOutputStream(128000);
-		javax.imageio.ImageIO.write(image, "jpg", bos);
-		
-		byte[] jpegBits = bos.toByteArray();
-		bos.close();
+		long startTick = System.nanoTime();
+		byte[] jpegBits = s_encoders.get().encode(image);
+		TileEncodingCache.recordEncode(System.nanoTime() - startTick);
 		return jpegBits;
 	}
+	
+	/**
+	 * @return an image of the calling thread to draw into before encoding it,
+	 * the content is left over from the last use.
+	 */
+	public static BufferedImage getScratchImage(int width, int height) {
+		return s_encoders.get().getScratchImage(width, height);
+	}
+	
+	private static class JpegEncoder {
+		private final ImageWriter writer;
+		private final ByteArrayOutputStream bos = new ByteArrayOutputStream(128000);
+		private BufferedImage scratchImage;
+		
+		JpegEncoder() {
+			Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpg");
+			writer = writers.hasNext() ? writers.next() : null;
+		}
+		
+		byte[] encode(BufferedImage image) throws IOException {
+			bos.reset();
+			if(writer == null) {
+				ImageIO.write(image, "jpg", bos);
+				return bos.toByteArray();
+			}
+			
+			ImageOutputStream ios = new MemoryCacheImageOutputStream(bos);
+			try {
+				writer.setOutput(ios);
+				writer.write(image);
+			} finally {
+				writer.reset();
+				ios.close();
+			}
+			return bos.toByteArray();
+		}
+		
+		BufferedImage getScratchImage(int width, int height) {
+			if(scratchImage == null || scratchImage.getWidth() < width || scratchImage.getHeight() < height) {
+				int w = Math.max(width, scratchImage != null ? scratchImage.getWidth() : 0);
+				int h = Math.max(height, scratchImage != null ? scratchImage.getHeight() : 0);
+				scratchImage = new BufferedImage(w, h, BufferedImage.TYPE_3BYTE_BGR);
+			}
+			
+			if(scratchImage.getWidth() == width && scratchImage.getHeight() == height)
+				return scratchImage;
+			return scratchImage.getSubimage(0, 0, width, height);
+		}
+	}
 }
@@ -0,0 +1,137 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.consoleproxy.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * TileEncodingCache keeps encoded images by the hash of their pixels, so that
+ * content that shows up again on a console is not encoded twice.  Each
+ * console has its own cache: the hash is not collision proof, and an image
+ * of one console must never be sent to another one.  The encoding stats
+ * reported with the client stats are kept for all of the consoles.
+ */
+public class TileEncodingCache {
+	private static final Logger s_logger = Logger.getLogger(TileEncodingCache.class);
+	
+	public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+	
+	private static final Object s_statsLock = new Object();
+	private static long s_hits;
+	private static long s_misses;
+	private static long s_encodes;
+	private static long s_encodeNanos;
+	private static long s_maxEncodeNanos;
+	
+	private final LinkedHashMap<Long, byte[]> cache = new LinkedHashMap<Long, byte[]>(64, 0.75f, true);
+	private final long maxBytes;
+	private long bytes;
+	
+	public TileEncodingCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+	
+	public synchronized byte[] get(long hash) {
+		byte[] image = cache.get(hash);
+		synchronized(s_statsLock) {
+			if(image != null)
+				s_hits++;
+			else
+				s_misses++;
+		}
+		return image;
+	}
+	
+	public synchronized void put(long hash, byte[] image) {
+		if(image == null || image.length > maxBytes)
+			return;
+		
+		byte[] old = cache.put(hash, image);
+		if(old != null)
+			bytes -= old.length;
+		bytes += image.length;
+		
+		Iterator<Map.Entry<Long, byte[]>> it = cache.entrySet().iterator();
+		while(bytes > maxBytes && it.hasNext()) {
+			Map.Entry<Long, byte[]> entry = it.next();
+			bytes -= entry.getValue().length;
+			it.remove();
+		}
+		
+		if(s_logger.isTraceEnabled())
+			s_logger.trace("Cached encoded image " + Long.toHexString(hash) + ", size: " + image.length + ", cache size: " + bytes);
+	}
+	
+	public static void recordEncode(long nanos) {
+		synchronized(s_statsLock) {
+			s_encodes++;
+			s_encodeNanos += nanos;
+			s_maxEncodeNanos = Math.max(s_maxEncodeNanos, nanos);
+		}
+	}
+	
+	public static long getHitCount() {
+		synchronized(s_statsLock) {
+			return s_hits;
+		}
+	}
+	
+	public static long getMissCount() {
+		synchronized(s_statsLock) {
+			return s_misses;
+		}
+	}
+	
+	public static long getEncodeCount() {
+		synchronized(s_statsLock) {
+			return s_encodes;
+		}
+	}
+	
+	public static long getAverageEncodeMicros() {
+		synchronized(s_statsLock) {
+			return s_encodes > 0 ? s_encodeNanos / s_encodes / 1000 : 0;
+		}
+	}
+	
+	public static long getMaxEncodeMicros() {
+		synchronized(s_statsLock) {
+			return s_maxEncodeNanos / 1000;
+		}
+	}
+	
+	/**
+	 * @return a hash of the pixels in the rectangle of an int image, never 0
+	 * so that 0 can stand for no hash.
+	 */
+	public static long hashPixels(int[] pixels, int scanWidth, int x, int y, int width, int height) {
+		long hash = 0xcbf29ce484222325L ^ (((long)width << 16) | height);
+		for(int line = y; line < y + height; line++) {
+			int offset = line * scanWidth + x;
+			for(int i = offset; i < offset + width; i++)
+				hash = (hash ^ pixels[i]) * 0x100000001b3L;
+		}
+		return hash != 0 ? hash : 1;
+	}
+	
+	/**
+	 * @return a hash for a sequence of hashes, 0 if any of them is 0.
+	 */
+	public static long combineHashes(long hash, long next) {
+		if(hash == 0 || next == 0)
+			return 0;
+		hash = (hash ^ next) * 0x100000001b3L;
+		hash ^= hash >>> 29;
+		return hash != 0 ? hash : 1;
+	}
+}
@@ -18,6 +18,9 @@ public class TileInfo {
 	private int row;
 	private int col;
 	private Rectangle tileRect;
+	
+	// Hash of the tile pixels, 0 when unknown
+	private long contentHash;
 
 	public TileInfo(int row, int col, Rectangle tileRect) {
 		this.row = row;
@@ -48,4 +51,12 @@ public class TileInfo {
 	public void setTileRect(Rectangle tileRect) {
 		this.tileRect = tileRect;
 	}
+	
+	public long getContentHash() {
+		return contentHash;
+	}
+	
+	public void setContentHash(long contentHash) {
+		this.contentHash = contentHash;
+	}
 }
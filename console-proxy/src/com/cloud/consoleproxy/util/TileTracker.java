@@ -21,6 +21,9 @@ public class TileTracker {
 	// 2 dimension tile status snapshot, a true value means the corresponding tile has been invalidated
 	private boolean[][] snapshot;
 	
+	// content hash of every tile as last sent to the AJAX client, 0 if not known
+	private long[][] sentHashes;
+	
 	private int tileWidth = 0;
 	private int tileHeight = 0;
 	private int trackWidth = 0;
@@ -80,6 +83,7 @@ public class TileTracker {
 		for(int i = 0; i < rows; i++)
 			for(int j = 0; j < cols; j++)
 				snapshot[i][j] = false;
+		sentHashes = new long[rows][cols];
 	}
 	
 	public synchronized void resize(int trackWidth, int trackHeight) {
@@ -97,6 +101,7 @@ public class TileTracker {
 		for(int i = 0; i < rows; i++)
 			for(int j = 0; j < cols; j++)
 				snapshot[i][j] = true;
+		sentHashes = new long[rows][cols];
 	}
 	
 	public void invalidate(Rectangle rect) {
@@ -130,6 +135,27 @@ public class TileTracker {
 		}	
 	}
 	
+	/**
+	 * @return true if the client already has the content of the tile, the
+	 * tile was invalidated by an update that did not change it
+	 */
+	public synchronized boolean isTileSent(TileInfo tile) {
+		if(tile.getContentHash() == 0 || tile.getRow() >= sentHashes.length || tile.getCol() >= sentHashes[tile.getRow()].length)
+			return false;
+		return sentHashes[tile.getRow()][tile.getCol()] == tile.getContentHash();
+	}
+	
+	public synchronized void setTileSent(TileInfo tile) {
+		if(tile.getRow() < sentHashes.length && tile.getCol() < sentHashes[tile.getRow()].length)
+			sentHashes[tile.getRow()][tile.getCol()] = tile.getContentHash();
+	}
+	
+	public synchronized void clearSentTiles() {
+		for(int i = 0; i < sentHashes.length; i++)
+			for(int j = 0; j < sentHashes[i].length; j++)
+				sentHashes[i][j] = 0;
+	}
+	
 	public boolean hasFullCoverage() {
 		synchronized(this) {
 			for(int i = 0; i < getTileRows(); i++) {
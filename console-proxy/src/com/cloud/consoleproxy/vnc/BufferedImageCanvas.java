@@ -19,10 +19,13 @@ import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
 import java.io.IOException;
 import java.util.List;
 
 import com.cloud.consoleproxy.util.ImageHelper;
+import com.cloud.consoleproxy.util.TileEncodingCache;
 import com.cloud.consoleproxy.util.TileInfo;
 
 /**
@@ -40,6 +43,9 @@ public class BufferedImageCanvas extends Canvas implements FrameBufferCanvas {
 
   private PaintNotificationListener listener;
 
+  // Encoded images of this console only, by the hash of their content
+  private final TileEncodingCache tileCache = new TileEncodingCache(TileEncodingCache.DEFAULT_MAX_BYTES);
+
   public BufferedImageCanvas(PaintNotificationListener listener, int width, int height) {
     super();
     this.listener = listener;
@@ -102,49 +108,102 @@ public class BufferedImageCanvas extends Canvas implements FrameBufferCanvas {
   
   @Override
   public byte[] getFrameBufferJpeg() {
-	int width = 800;
-	int height = 600;
-	
-	width = offlineImage.getWidth();
-	height = offlineImage.getHeight();
+	BufferedImage image = offlineImage;
+	int width = image.getWidth();
+	int height = image.getHeight();
 	
-	BufferedImage bufferedImage = new BufferedImage(width, height,
-		BufferedImage.TYPE_3BYTE_BGR);
-	Graphics2D g = bufferedImage.createGraphics();
-	synchronized(offlineImage) {
-	  g.drawImage(offlineImage, 0, 0, width, height, 0, 0, width, height, null);
+	BufferedImage bufferedImage = ImageHelper.getScratchImage(width, height);
+	long hash;
+	synchronized(image) {
+	  hash = hashRect(image, new Rectangle(0, 0, width, height));
+	  byte[] imgBits = tileCache.get(hash);
+	  if(imgBits != null)
+		return imgBits;
+	  
+	  Graphics2D g = bufferedImage.createGraphics();
+	  g.drawImage(image, 0, 0, width, height, 0, 0, width, height, null);
+	  g.dispose();
+	  
+	  // Screen changed while it was copied, don't keep it
+	  if(hashRect(image, new Rectangle(0, 0, width, height)) != hash)
+		hash = 0;
 	}
 		
 	byte[] imgBits = null;
 	try {
 	  imgBits = ImageHelper.jpegFromImage(bufferedImage);
+	  if(hash != 0)
+		tileCache.put(hash, imgBits);
 	} catch (IOException e) {
 	}
 	return imgBits;
   }
 	
+  /**
+   * Tiles are expected to carry the hash of their content set by hashTiles(),
+   * a tile without one, or one that changes before it is copied, makes the
+   * merged image uncacheable and gets its hash cleared.
+   */
   @Override
   public byte[] getTilesMergedJpeg(List<TileInfo> tileList, int tileWidth, int tileHeight) {
 	int width = Math.max(tileWidth, tileWidth*tileList.size());
-	BufferedImage bufferedImage = new BufferedImage(width, tileHeight,
-		BufferedImage.TYPE_3BYTE_BGR);
-	Graphics2D g = bufferedImage.createGraphics();
 	
-	synchronized(offlineImage) {
+	long hash = (((long)tileWidth << 16) | tileHeight) + 1;
+	for(TileInfo tile : tileList)
+	  hash = TileEncodingCache.combineHashes(hash, tile.getContentHash());
+	
+	BufferedImage bufferedImage = ImageHelper.getScratchImage(width, tileHeight);
+	BufferedImage image = offlineImage;
+	synchronized(image) {
+	  byte[] imgBits = hash != 0 ? tileCache.get(hash) : null;
+	  if(imgBits != null)
+		return imgBits;
+	  
+	  Graphics2D g = bufferedImage.createGraphics();
 	  int i = 0;
 	  for(TileInfo tile : tileList) {
 		Rectangle rc = tile.getTileRect();
-		g.drawImage(offlineImage, i*tileWidth, 0, i*tileWidth + rc.width, rc.height, 
+		g.drawImage(image, i*tileWidth, 0, i*tileWidth + rc.width, rc.height, 
 		  rc.x, rc.y, rc.x + rc.width, rc.y + rc.height, null);
 		i++;
+		
+		if(tile.getContentHash() != 0 && hashRect(image, rc) != tile.getContentHash()) {
+		  tile.setContentHash(0);
+		  hash = 0;
+		}
 	  }
+	  g.dispose();
 	}
 	
 	byte[] imgBits = null;
 	try {
 	  imgBits = ImageHelper.jpegFromImage(bufferedImage);
+	  if(hash != 0)
+		tileCache.put(hash, imgBits);
 	} catch (IOException e) {
 	}
 	return imgBits;
   }
+  
+  @Override
+  public void hashTiles(List<TileInfo> tileList) {
+	BufferedImage image = offlineImage;
+	synchronized(image) {
+	  for(TileInfo tile : tileList)
+		tile.setContentHash(hashRect(image, tile.getTileRect()));
+	}
+  }
+  
+  /**
+   * @return hash of the pixels in the rectangle, 0 if it is not fully on the image
+   */
+  private static long hashRect(BufferedImage image, Rectangle rc) {
+	if(rc.x < 0 || rc.y < 0 || rc.x + rc.width > image.getWidth() || rc.y + rc.height > image.getHeight())
+	  return 0;
+	
+	DataBuffer dataBuf = image.getRaster().getDataBuffer();
+	if(!(dataBuf instanceof DataBufferInt))
+	  return 0;
+	return TileEncodingCache.hashPixels(((DataBufferInt)dataBuf).getData(), image.getWidth(), rc.x, rc.y, rc.width, rc.height);
+  }
 }
\ No newline at end of file
@@ -21,4 +21,5 @@ public interface FrameBufferCanvas {
 	Image getFrameBufferScaledImage(int width, int height);
 	public byte[] getFrameBufferJpeg();
 	public byte[] getTilesMergedJpeg(List<TileInfo> tileList, int tileWidth, int tileHeight);
+	public void hashTiles(List<TileInfo> tileList);
 }
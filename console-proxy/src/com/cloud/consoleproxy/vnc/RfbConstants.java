@@ -45,7 +45,7 @@ public interface RfbConstants {
   /**
    * Encodings.
    */
-  public final static int ENCODING_RAW = 0, ENCODING_COPY_RECT = 1, ENCODING_RRE = 2, ENCODING_CO_RRE = 4, ENCODING_HEXTILE = 5, ENCODING_ZRLE = 16;
+  public final static int ENCODING_RAW = 0, ENCODING_COPY_RECT = 1, ENCODING_RRE = 2, ENCODING_CO_RRE = 4, ENCODING_HEXTILE = 5, ENCODING_TIGHT = 7, ENCODING_ZRLE = 16;
 
   /**
    * Pseudo-encodings.
@@ -53,9 +53,15 @@ public interface RfbConstants {
   public final static int ENCODING_CURSOR = -239 /*0xFFFFFF11*/, ENCODING_DESKTOP_SIZE = -223 /*0xFFFFFF21*/;
 
   /**
-   * Encodings, which we support.
+   * Tight pseudo-encodings: zlib compression level 0-9 and JPEG quality level 0-9.
    */
-  public final static int[] SUPPORTED_ENCODINGS_ARRAY = { ENCODING_RAW, ENCODING_COPY_RECT, ENCODING_DESKTOP_SIZE };
+  public final static int ENCODING_COMPRESS_LEVEL_0 = -256 /*0xFFFFFF00*/, ENCODING_QUALITY_LEVEL_0 = -32 /*0xFFFFFFE0*/;
+
+  /**
+   * Encodings, which we support, the ones we prefer first.
+   */
+  public final static int[] SUPPORTED_ENCODINGS_ARRAY = { ENCODING_TIGHT, ENCODING_ZRLE, ENCODING_HEXTILE, ENCODING_COPY_RECT, ENCODING_RAW, ENCODING_DESKTOP_SIZE,
+      ENCODING_COMPRESS_LEVEL_0 + 6, ENCODING_QUALITY_LEVEL_0 + 6 };
 
   /**
    * Frame buffer update request type: update of whole screen or partial update.
@@ -16,9 +16,14 @@ import java.awt.Frame;
 import java.awt.ScrollPane;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.security.spec.KeySpec;
@@ -149,13 +154,15 @@ public class VncClient {
   }
   
   private void doConnect(String password) throws IOException {
-    is = new DataInputStream(socket.getInputStream());
+    // Decoders read a few bytes at a time
+    is = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
     os = new DataOutputStream(socket.getOutputStream());
 
     // Initialize connection
     handshake();
     authenticate(password);
     initialize();
+    startRecording();
     
 	s_logger.info("Connecting to VNC server succeeded, start session");
 
@@ -370,6 +377,65 @@ public class VncClient {
     return c;
   }
 
+  /**
+   * When the consoleproxy.vnc.record system property names a file, copies
+   * everything the server sends from now on to it, after the frame buffer
+   * size, so that a session can be replayed by VncReplayBenchmark.
+   */
+  private void startRecording() throws IOException {
+    String path = System.getProperty("consoleproxy.vnc.record");
+    if (path == null)
+      return;
+
+    s_logger.info("Recording VNC session to " + path);
+    DataOutputStream record = new DataOutputStream(new FileOutputStream(path));
+    record.writeShort(screen.getFramebufferWidth());
+    record.writeShort(screen.getFramebufferHeight());
+    is = new DataInputStream(new RecordingInputStream(is, record));
+  }
+
+  private static class RecordingInputStream extends FilterInputStream {
+    private final OutputStream record;
+
+    RecordingInputStream(InputStream in, OutputStream record) {
+      super(in);
+      this.record = record;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0)
+        record.write(b);
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0)
+        record.write(b, off, n);
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = 0;
+      while (skipped < n && read() >= 0)
+        skipped++;
+      return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        record.close();
+      }
+    }
+  }
+
   private void initialize() throws IOException {
     // Send client initialization message
     {
@@ -19,6 +19,7 @@ import java.io.IOException;
 
 import com.cloud.consoleproxy.ConsoleProxyClientListener;
 import com.cloud.consoleproxy.util.Logger;
+import com.cloud.consoleproxy.vnc.packet.server.DecoderState;
 import com.cloud.consoleproxy.vnc.packet.server.FramebufferUpdatePacket;
 import com.cloud.consoleproxy.vnc.packet.server.ServerCutText;
 
@@ -34,6 +35,9 @@ public class VncServerPacketReceiver implements Runnable {
   private final FrameBufferUpdateListener fburListener;
   private final ConsoleProxyClientListener clientListener;
 
+  // zlib streams of ZRLE and Tight run for the whole connection
+  private final DecoderState decoderState = new DecoderState();
+
   public VncServerPacketReceiver(DataInputStream is, BufferedImageCanvas canvas, VncScreenDescription screen, VncClient vncConnection,
       FrameBufferUpdateListener fburListener, ConsoleProxyClientListener clientListener) {
     this.screen = screen;
@@ -64,7 +68,7 @@ public class VncServerPacketReceiver implements Runnable {
           // so it can send another frame buffer update request
           fburListener.frameBufferPacketReceived();
           // Handle frame buffer update
-          new FramebufferUpdatePacket(canvas, screen, is, clientListener);
+          new FramebufferUpdatePacket(canvas, screen, is, clientListener, decoderState);
           break;
         }
 
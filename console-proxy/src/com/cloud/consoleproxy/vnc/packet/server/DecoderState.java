@@ -0,0 +1,28 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.consoleproxy.vnc.packet.server;
+
+/**
+ * DecoderState is what the decoders of a VNC connection carry from one
+ * rectangle to the next: the ZRLE zlib stream and the four Tight ones.
+ */
+public class DecoderState {
+  private final ZlibStream zrleStream = new ZlibStream();
+  private final ZlibStream[] tightStreams = new ZlibStream[] { new ZlibStream(), new ZlibStream(), new ZlibStream(), new ZlibStream() };
+
+  public ZlibStream getZrleStream() {
+    return zrleStream;
+  }
+
+  public ZlibStream getTightStream(int id) {
+    return tightStreams[id];
+  }
+}
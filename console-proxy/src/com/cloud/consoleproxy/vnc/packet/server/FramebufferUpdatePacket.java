@@ -28,13 +28,15 @@ public class FramebufferUpdatePacket {
   private final VncScreenDescription screen;
   private final BufferedImageCanvas canvas;
   private final ConsoleProxyClientListener clientListener;
+  private final DecoderState state;
 
   public FramebufferUpdatePacket(BufferedImageCanvas canvas, VncScreenDescription screen, DataInputStream is, 
-    ConsoleProxyClientListener clientListener) throws IOException {
+    ConsoleProxyClientListener clientListener, DecoderState state) throws IOException {
 	  
     this.screen = screen;
     this.canvas = canvas;
     this.clientListener = clientListener;
+    this.state = state;
     readPacketData(is);
   }
 
@@ -69,6 +71,21 @@ public class FramebufferUpdatePacket {
         break;
       }
 
+      case RfbConstants.ENCODING_HEXTILE: {
+        rect = new HextileRect(canvas, x, y, width, height, is);
+        break;
+      }
+
+      case RfbConstants.ENCODING_ZRLE: {
+        rect = new ZrleRect(canvas, x, y, width, height, is, state);
+        break;
+      }
+
+      case RfbConstants.ENCODING_TIGHT: {
+        rect = new TightRect(canvas, x, y, width, height, is, state);
+        break;
+      }
+
       case RfbConstants.ENCODING_DESKTOP_SIZE: {
         rect = new FrameBufferSizeChangeRequest(canvas, width, height);
         if(this.clientListener != null)
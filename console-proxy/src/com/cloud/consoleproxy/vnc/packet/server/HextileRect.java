@@ -0,0 +1,83 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.consoleproxy.vnc.packet.server;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import com.cloud.consoleproxy.vnc.BufferedImageCanvas;
+
+/**
+ * Hextile encoding: the rectangle is split in 16x16 tiles, each either raw or
+ * a background color with solid subrectangles on it.
+ */
+public class HextileRect extends PixelRect {
+  private static final int TILE_SIZE = 16;
+
+  private static final int RAW = 1, BACKGROUND_SPECIFIED = 2, FOREGROUND_SPECIFIED = 4, ANY_SUBRECTS = 8, SUBRECTS_COLOURED = 16;
+
+  public HextileRect(BufferedImageCanvas canvas, int x, int y, int width, int height, DataInputStream is) throws IOException {
+    super(canvas, x, y, width, height);
+
+    // Big enough for a raw tile or 255 coloured subrectangles
+    byte[] buf = new byte[Math.max(TILE_SIZE * TILE_SIZE * 4, 255 * 6)];
+    byte[] pixelBuf = new byte[4];
+
+    // Background and foreground carry over from one tile to the next
+    int background = 0;
+    int foreground = 0;
+
+    for (int ty = y; ty < y + height; ty += TILE_SIZE) {
+      int th = Math.min(TILE_SIZE, y + height - ty);
+      for (int tx = x; tx < x + width; tx += TILE_SIZE) {
+        int tw = Math.min(TILE_SIZE, x + width - tx);
+
+        int subencoding = is.readUnsignedByte();
+        if ((subencoding & RAW) != 0) {
+          is.readFully(buf, 0, tw * th * 4);
+          for (int line = 0, i = 0; line < th; line++) {
+            for (int col = 0; col < tw; col++, i += 4) {
+              set(tx + col, ty + line, pixel(buf, i));
+            }
+          }
+          continue;
+        }
+
+        if ((subencoding & BACKGROUND_SPECIFIED) != 0) {
+          is.readFully(pixelBuf);
+          background = pixel(pixelBuf, 0);
+        }
+        fill(tx, ty, tw, th, background);
+
+        if ((subencoding & FOREGROUND_SPECIFIED) != 0) {
+          is.readFully(pixelBuf);
+          foreground = pixel(pixelBuf, 0);
+        }
+
+        if ((subencoding & ANY_SUBRECTS) != 0) {
+          int count = is.readUnsignedByte();
+          boolean coloured = (subencoding & SUBRECTS_COLOURED) != 0;
+          int size = coloured ? 6 : 2;
+          is.readFully(buf, 0, count * size);
+          for (int i = 0, offset = 0; i < count; i++, offset += size) {
+            int pixel = foreground;
+            if (coloured) {
+              pixel = pixel(buf, offset);
+            }
+            int xy = buf[offset + size - 2] & 0xFF;
+            int wh = buf[offset + size - 1] & 0xFF;
+            fill(tx + (xy >> 4), ty + (xy & 0xF), (wh >> 4) + 1, (wh & 0xF) + 1, pixel);
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,81 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.consoleproxy.vnc.packet.server;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+import com.cloud.consoleproxy.vnc.BufferedImageCanvas;
+
+/**
+ * A rectangle that is decoded straight into the offline image of the canvas
+ * as it is read, rather than into a buffer that is copied when painted.
+ *
+ * Pixels are RGB888 in a 32 bit little-endian int, the format the client
+ * asks the server for.
+ */
+public abstract class PixelRect extends AbstractRect {
+  protected final int[] imageBuffer;
+  protected final int imageWidth;
+  protected final int imageHeight;
+
+  public PixelRect(BufferedImageCanvas canvas, int x, int y, int width, int height) {
+    super(x, y, width, height);
+
+    BufferedImage image = canvas.getOfflineImage();
+    DataBuffer dataBuf = image.getRaster().getDataBuffer();
+    if (!(dataBuf instanceof DataBufferInt)) {
+      throw new RuntimeException("Unsupported data buffer in buffered image: expected data buffer of type int (DataBufferInt). Actual data buffer type: "
+          + dataBuf.getClass().getSimpleName());
+    }
+    imageBuffer = ((DataBufferInt) dataBuf).getData();
+    imageWidth = image.getWidth();
+    imageHeight = image.getHeight();
+  }
+
+  /**
+   * Fills an area of the screen, clipped to the image.
+   */
+  protected void fill(int fx, int fy, int fwidth, int fheight, int pixel) {
+    int x0 = Math.max(fx, 0);
+    int x1 = Math.min(fx + fwidth, imageWidth);
+    int y1 = Math.min(fy + fheight, imageHeight);
+    if (x0 >= x1) {
+      return;
+    }
+    for (int line = Math.max(fy, 0); line < y1; line++) {
+      Arrays.fill(imageBuffer, line * imageWidth + x0, line * imageWidth + x1, pixel);
+    }
+  }
+
+  protected void set(int px, int py, int pixel) {
+    if (px >= 0 && px < imageWidth && py >= 0 && py < imageHeight) {
+      imageBuffer[py * imageWidth + px] = pixel;
+    }
+  }
+
+  /**
+   * @return the little-endian pixel at offset.  Only the 3 bytes with the
+   *         color are read, so this works for both 4 byte pixels and the 3
+   *         byte CPIXELs of ZRLE.
+   */
+  protected static int pixel(byte[] buf, int offset) {
+    return (buf[offset] & 0xFF) | ((buf[offset + 1] & 0xFF) << 8) | ((buf[offset + 2] & 0xFF) << 16);
+  }
+
+  @Override
+  public void paint(BufferedImage image, Graphics2D graphics) {
+    // Already on the image
+  }
+}
@@ -0,0 +1,185 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.consoleproxy.vnc.packet.server;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import com.cloud.consoleproxy.vnc.BufferedImageCanvas;
+
+/**
+ * Tight encoding: a rectangle is a solid fill, a JPEG, or pixels that are
+ * optionally filtered (palette or gradient) and then zlib compressed with one
+ * of four streams.  Pixels are sent as 3 byte TPIXELs, red first, since the
+ * client asks for depth 24.
+ */
+public class TightRect extends PixelRect {
+  private static final int FILL = 8, JPEG = 9;
+
+  private static final int FILTER_COPY = 0, FILTER_PALETTE = 1, FILTER_GRADIENT = 2;
+
+  // Data shorter than this is sent without compression
+  private static final int MIN_TO_COMPRESS = 12;
+
+  public TightRect(BufferedImageCanvas canvas, int x, int y, int width, int height, DataInputStream is, DecoderState state) throws IOException {
+    super(canvas, x, y, width, height);
+
+    int control = is.readUnsignedByte();
+
+    // Low 4 bits ask to reset the zlib streams
+    for (int i = 0; i < 4; i++) {
+      if ((control & (1 << i)) != 0) {
+        state.getTightStream(i).reset();
+      }
+    }
+
+    int type = control >> 4;
+    if (type == FILL) {
+      byte[] buf = new byte[3];
+      is.readFully(buf);
+      fill(x, y, width, height, tpixel(buf, 0));
+    } else if (type == JPEG) {
+      byte[] jpeg = new byte[readCompactLength(is)];
+      is.readFully(jpeg);
+      decodeJpeg(jpeg);
+    } else if (type < FILL) {
+      decodeBasic(type, is, state);
+    } else {
+      throw new IOException("Invalid tight compression control: " + control);
+    }
+  }
+
+  private void decodeBasic(int type, DataInputStream is, DecoderState state) throws IOException {
+    int filter = FILTER_COPY;
+    if ((type & 4) != 0) {
+      filter = is.readUnsignedByte();
+    }
+
+    int[] palette = null;
+    int dataSize;
+    if (filter == FILTER_PALETTE) {
+      int colors = is.readUnsignedByte() + 1;
+      byte[] buf = new byte[colors * 3];
+      is.readFully(buf);
+      palette = new int[colors];
+      for (int i = 0; i < colors; i++) {
+        palette[i] = tpixel(buf, i * 3);
+      }
+      // 2 colors are a bitmap, rows starting on a byte boundary
+      dataSize = colors == 2 ? (width + 7) / 8 * height : width * height;
+    } else if (filter == FILTER_COPY || filter == FILTER_GRADIENT) {
+      dataSize = width * height * 3;
+    } else {
+      throw new IOException("Invalid tight filter: " + filter);
+    }
+
+    byte[] data = new byte[dataSize];
+    if (dataSize < MIN_TO_COMPRESS) {
+      is.readFully(data);
+    } else {
+      byte[] compressed = new byte[readCompactLength(is)];
+      is.readFully(compressed);
+      ZlibStream zlib = state.getTightStream(type & 3);
+      zlib.setInput(compressed);
+      zlib.readFully(data, 0, dataSize);
+    }
+
+    if (filter == FILTER_PALETTE) {
+      if (palette.length == 2) {
+        int rowBytes = (width + 7) / 8;
+        for (int line = 0; line < height; line++) {
+          for (int col = 0; col < width; col++) {
+            int bit = (data[line * rowBytes + col / 8] >> (7 - col % 8)) & 1;
+            set(x + col, y + line, palette[bit]);
+          }
+        }
+      } else {
+        for (int line = 0, i = 0; line < height; line++) {
+          for (int col = 0; col < width; col++, i++) {
+            set(x + col, y + line, palette[(data[i] & 0xFF) % palette.length]);
+          }
+        }
+      }
+    } else if (filter == FILTER_GRADIENT) {
+      decodeGradient(data);
+    } else {
+      for (int line = 0, i = 0; line < height; line++) {
+        for (int col = 0; col < width; col++, i += 3) {
+          set(x + col, y + line, tpixel(data, i));
+        }
+      }
+    }
+  }
+
+  /**
+   * Each component was sent as the difference from the prediction
+   * left + above - above left, clamped to 0..255.
+   */
+  private void decodeGradient(byte[] data) {
+    int[] prevRow = new int[(width + 1) * 3];
+    int[] thisRow = new int[(width + 1) * 3];
+    for (int line = 0, i = 0; line < height; line++) {
+      for (int col = 0; col < width; col++) {
+        for (int c = 0; c < 3; c++, i++) {
+          int predicted = thisRow[col * 3 + c] + prevRow[(col + 1) * 3 + c] - prevRow[col * 3 + c];
+          predicted = Math.min(255, Math.max(0, predicted));
+          thisRow[(col + 1) * 3 + c] = (predicted + data[i]) & 0xFF;
+        }
+        int offset = (col + 1) * 3;
+        set(x + col, y + line, (thisRow[offset] << 16) | (thisRow[offset + 1] << 8) | thisRow[offset + 2]);
+      }
+      int[] tmp = prevRow;
+      prevRow = thisRow;
+      thisRow = tmp;
+      thisRow[0] = thisRow[1] = thisRow[2] = 0;
+    }
+  }
+
+  private void decodeJpeg(byte[] jpeg) throws IOException {
+    BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+    if (image == null) {
+      throw new IOException("Unable to decode tight JPEG rectangle");
+    }
+    int w = Math.min(width, image.getWidth());
+    int h = Math.min(height, image.getHeight());
+    int[] row = new int[w];
+    for (int line = 0; line < h; line++) {
+      image.getRGB(0, line, w, 1, row, 0, w);
+      for (int col = 0; col < w; col++) {
+        set(x + col, y + line, row[col] & 0xFFFFFF);
+      }
+    }
+  }
+
+  /**
+   * @return a length sent in 1 to 3 bytes, 7 bits in each but the last.
+   */
+  private static int readCompactLength(DataInputStream is) throws IOException {
+    int b = is.readUnsignedByte();
+    int length = b & 0x7F;
+    if ((b & 0x80) != 0) {
+      b = is.readUnsignedByte();
+      length |= (b & 0x7F) << 7;
+      if ((b & 0x80) != 0) {
+        length |= is.readUnsignedByte() << 14;
+      }
+    }
+    return length;
+  }
+
+  private static int tpixel(byte[] buf, int offset) {
+    return ((buf[offset] & 0xFF) << 16) | ((buf[offset + 1] & 0xFF) << 8) | (buf[offset + 2] & 0xFF);
+  }
+}
@@ -0,0 +1,56 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.consoleproxy.vnc.packet.server;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A zlib stream of a VNC connection.  ZRLE and Tight servers keep one zlib
+ * stream going for the whole connection, so each rectangle's compressed data
+ * continues the stream of the rectangles before it.
+ */
+public class ZlibStream {
+  private final Inflater inflater = new Inflater();
+  private final byte[] one = new byte[1];
+
+  /**
+   * Sets the compressed data of the next rectangle.
+   */
+  public void setInput(byte[] compressed) {
+    inflater.setInput(compressed);
+  }
+
+  public void readFully(byte[] buf, int offset, int length) throws IOException {
+    try {
+      while (length > 0) {
+        int inflated = inflater.inflate(buf, offset, length);
+        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary() || inflater.finished())) {
+          throw new IOException("Compressed data of the rectangle ended early, " + length + " more bytes were expected");
+        }
+        offset += inflated;
+        length -= inflated;
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Invalid compressed data: " + e.getMessage());
+    }
+  }
+
+  public int readUnsignedByte() throws IOException {
+    readFully(one, 0, 1);
+    return one[0] & 0xFF;
+  }
+
+  public void reset() {
+    inflater.reset();
+  }
+}
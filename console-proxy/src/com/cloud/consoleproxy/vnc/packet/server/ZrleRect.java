@@ -0,0 +1,134 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.consoleproxy.vnc.packet.server;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import com.cloud.consoleproxy.vnc.BufferedImageCanvas;
+
+/**
+ * ZRLE encoding: zlib compressed 64x64 tiles, each raw, solid, packed
+ * palette or run-length encoded.  Pixels are sent as 3 byte CPIXELs since
+ * the client asks for depth 24.
+ */
+public class ZrleRect extends PixelRect {
+  private static final int TILE_SIZE = 64;
+
+  public ZrleRect(BufferedImageCanvas canvas, int x, int y, int width, int height, DataInputStream is, DecoderState state) throws IOException {
+    super(canvas, x, y, width, height);
+
+    int length = is.readInt();
+    byte[] compressed = new byte[length];
+    is.readFully(compressed);
+
+    ZlibStream zlib = state.getZrleStream();
+    zlib.setInput(compressed);
+
+    byte[] buf = new byte[TILE_SIZE * TILE_SIZE * 3];
+    int[] palette = new int[128];
+
+    for (int ty = y; ty < y + height; ty += TILE_SIZE) {
+      int th = Math.min(TILE_SIZE, y + height - ty);
+      for (int tx = x; tx < x + width; tx += TILE_SIZE) {
+        int tw = Math.min(TILE_SIZE, x + width - tx);
+        decodeTile(zlib, tx, ty, tw, th, buf, palette);
+      }
+    }
+  }
+
+  private void decodeTile(ZlibStream zlib, int tx, int ty, int tw, int th, byte[] buf, int[] palette) throws IOException {
+    int subencoding = zlib.readUnsignedByte();
+
+    if (subencoding == 0) {
+      // Raw
+      zlib.readFully(buf, 0, tw * th * 3);
+      for (int line = 0, i = 0; line < th; line++) {
+        for (int col = 0; col < tw; col++, i += 3) {
+          set(tx + col, ty + line, pixel(buf, i));
+        }
+      }
+
+    } else if (subencoding == 1) {
+      // Solid
+      fill(tx, ty, tw, th, readCPixel(zlib, buf));
+
+    } else if (subencoding <= 16) {
+      // Packed palette, rows start on a byte boundary
+      readPalette(zlib, subencoding, buf, palette);
+      int bits = subencoding == 2 ? 1 : subencoding <= 4 ? 2 : 4;
+      int mask = (1 << bits) - 1;
+      int rowBytes = (tw * bits + 7) / 8;
+      zlib.readFully(buf, 0, rowBytes * th);
+      for (int line = 0; line < th; line++) {
+        int offset = line * rowBytes;
+        for (int col = 0; col < tw; col++) {
+          int bit = col * bits;
+          int index = ((buf[offset + bit / 8] & 0xFF) >> (8 - bits - bit % 8)) & mask;
+          set(tx + col, ty + line, palette[index]);
+        }
+      }
+
+    } else if (subencoding == 128) {
+      // Plain RLE
+      int i = 0;
+      int count = tw * th;
+      while (i < count) {
+        int pixel = readCPixel(zlib, buf);
+        int run = readRunLength(zlib);
+        i = setRun(tx, ty, tw, i, Math.min(run, count - i), pixel);
+      }
+
+    } else if (subencoding >= 130) {
+      // Palette RLE
+      readPalette(zlib, subencoding - 128, buf, palette);
+      int i = 0;
+      int count = tw * th;
+      while (i < count) {
+        int index = zlib.readUnsignedByte();
+        int run = (index & 0x80) != 0 ? readRunLength(zlib) : 1;
+        i = setRun(tx, ty, tw, i, Math.min(run, count - i), palette[index & 0x7F]);
+      }
+
+    } else {
+      throw new IOException("Invalid ZRLE tile subencoding: " + subencoding);
+    }
+  }
+
+  private int setRun(int tx, int ty, int tw, int i, int run, int pixel) {
+    for (int end = i + run; i < end; i++) {
+      set(tx + i % tw, ty + i / tw, pixel);
+    }
+    return i;
+  }
+
+  private static int readRunLength(ZlibStream zlib) throws IOException {
+    int run = 1;
+    int b;
+    do {
+      b = zlib.readUnsignedByte();
+      run += b;
+    } while (b == 255);
+    return run;
+  }
+
+  private static void readPalette(ZlibStream zlib, int size, byte[] buf, int[] palette) throws IOException {
+    zlib.readFully(buf, 0, size * 3);
+    for (int i = 0; i < size; i++) {
+      palette[i] = pixel(buf, i * 3);
+    }
+  }
+
+  private static int readCPixel(ZlibStream zlib, byte[] buf) throws IOException {
+    zlib.readFully(buf, 0, 3);
+    return pixel(buf, 0);
+  }
+}
@@ -0,0 +1,131 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.consoleproxy.vnc;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.cloud.consoleproxy.vnc.packet.server.DecoderState;
+import com.cloud.consoleproxy.vnc.packet.server.FramebufferUpdatePacket;
+
+/**
+ * Replays a VNC session recorded by starting the console proxy with
+ * -Dconsoleproxy.vnc.record=<file> and reports the bytes received and the
+ * time spent decoding each frame buffer update.  Record the same session
+ * once per encoding to compare them.
+ *
+ * Run it by hand: java com.cloud.consoleproxy.vnc.VncReplayBenchmark <file> [-v]
+ */
+public class VncReplayBenchmark {
+
+  private static class CountingInputStream extends FilterInputStream {
+    long count;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0)
+        count++;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0)
+        count += n;
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count += skipped;
+      return skipped;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.out.println("Usage: VncReplayBenchmark <recording> [-v]");
+      return;
+    }
+    boolean verbose = args.length > 1 && args[1].equals("-v");
+
+    CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(args[0])));
+    DataInputStream is = new DataInputStream(counter);
+
+    VncScreenDescription screen = new VncScreenDescription();
+    screen.setFramebufferSize(is.readUnsignedShort(), is.readUnsignedShort());
+    // What the client asks the server for, see VncClientPacketSender
+    screen.setPixelFormat(32, 24, RfbConstants.LITTLE_ENDIAN, RfbConstants.TRUE_COLOR, 255, 255, 255, 16, 8, 0);
+
+    BufferedImageCanvas canvas = new BufferedImageCanvas(new PaintNotificationListener() {
+      @Override
+      public void imagePaintedOnScreen() {
+      }
+    }, screen.getFramebufferWidth(), screen.getFramebufferHeight());
+    DecoderState state = new DecoderState();
+
+    int frames = 0;
+    long totalBytes = 0;
+    long totalNanos = 0;
+    long maxNanos = 0;
+    try {
+      while (true) {
+        int messageType = is.readUnsignedByte();
+        if (messageType == RfbConstants.SERVER_FRAMEBUFFER_UPDATE) {
+          long start = counter.count;
+          long startNanos = System.nanoTime();
+          new FramebufferUpdatePacket(canvas, screen, is, null, state);
+          long nanos = System.nanoTime() - startNanos;
+          long bytes = counter.count - start + 1;
+
+          frames++;
+          totalBytes += bytes;
+          totalNanos += nanos;
+          maxNanos = Math.max(maxNanos, nanos);
+          if (verbose)
+            System.out.println("frame " + frames + ": " + bytes + " bytes, " + (nanos / 1000) + " us");
+        } else if (messageType == RfbConstants.SERVER_BELL) {
+          // Nothing to read
+        } else if (messageType == RfbConstants.SERVER_CUT_TEXT) {
+          is.skipBytes(3);
+          is.skipBytes(is.readInt());
+        } else {
+          throw new IOException("Unknown server packet type: " + messageType);
+        }
+      }
+    } catch (EOFException e) {
+      // End of the recording
+    } finally {
+      is.close();
+    }
+
+    if (frames == 0) {
+      System.out.println("No frame buffer updates in " + args[0]);
+      return;
+    }
+    System.out.println(screen.getFramebufferWidth() + "x" + screen.getFramebufferHeight() + ", " + frames + " frames");
+    System.out.println("bytes/frame:  " + (totalBytes / frames));
+    System.out.println("decode/frame: " + (totalNanos / frames / 1000) + " us (max " + (maxNanos / 1000) + " us)");
+    System.out.println("throughput:   " + (long) (totalBytes / 1024.0 / Math.max(1, totalNanos) * 1000000000L) + " KB/s decoded");
+  }
+}
@@ -25,8 +25,12 @@ import java.net.InetSocketAddress;
 import java.net.URL;
 import java.net.URLConnection;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
@@ -50,6 +54,8 @@ import com.cloud.agent.api.routing.IpAssocCommand;
 import com.cloud.agent.api.routing.LoadBalancerConfigCommand;
 import com.cloud.agent.api.routing.NetworkElementCommand;
 import com.cloud.agent.api.routing.RemoteAccessVpnCfgCommand;
+import com.cloud.agent.api.routing.RouterConfigBatchAnswer;
+import com.cloud.agent.api.routing.RouterConfigBatchCommand;
 import com.cloud.agent.api.routing.SavePasswordCommand;
 import com.cloud.agent.api.routing.SetFirewallRulesAnswer;
 import com.cloud.agent.api.routing.SetFirewallRulesCommand;
@@ -94,7 +100,21 @@ public class VirtualRoutingResource implements Manager {
     private String _bumpUpPriorityPath;
     private String _l2tpVpnPath;
     private String _getDomRVersionPath;
-
+    private String _routerConfigPath;
+
+    // results of router_config.sh, "<line>:<exit code>"
+    private static final Pattern s_configResult = Pattern.compile("^(\\d+):(\\d+)$");
+    private static final String FIREWALL_SCRIPT = "firewall.sh";
+    // exit code of router_config.sh for routers without apply_config.sh
+    private static final int CONFIG_UNSUPPORTED = 127;
+    // locks serializing the configuration of a router, routers are hashed
+    // onto them so that nothing needs to be removed when a router goes away
+    private final Object[] _routerLocks = new Object[64];
+    {
+        for (int i = 0; i < _routerLocks.length; i++) {
+            _routerLocks[i] = new Object();
+        }
+    }
 
     private int _timeout;
     private int _startTimeout;
@@ -136,6 +156,8 @@ public class VirtualRoutingResource implements Manager {
                 return execute((VpnUsersCfgCommand)cmd);
             } else if (cmd instanceof GetDomRVersionCmd) {
                 return execute((GetDomRVersionCmd)cmd);
+            } else if (cmd instanceof RouterConfigBatchCommand) {
+                return execute((RouterConfigBatchCommand)cmd);
             }
             else {
                 return Answer.createUnsupportedCommandAnswer(cmd);
@@ -218,6 +240,29 @@ public class VirtualRoutingResource implements Manager {
     }
 
     private Answer execute(SetPortForwardingRulesCommand cmd) {
+        String routerIp = cmd.getAccessDetail(NetworkElementCommand.ROUTER_IP);
+        List<String> config = getRouterConfig(cmd);
+        int[] results = applyRouterConfig(routerIp, config, true);
+        if (results == null) {
+            return applyPortForwardingRules(cmd);
+        }
+        return createAnswer(cmd, results, 0, config.size());
+    }
+    
+    private Answer execute(SetStaticNatRulesCommand cmd) {
+        String routerIp = cmd.getAccessDetail(NetworkElementCommand.ROUTER_IP);
+        List<String> config = getRouterConfig(cmd);
+        int[] results = applyRouterConfig(routerIp, config, true);
+        if (results == null) {
+            return applyStaticNatRules(cmd);
+        }
+        return createAnswer(cmd, results, 0, config.size());
+    }
+
+    /**
+     * Applies the rules one by one, for the routers that can't apply a batch.
+     */
+    private Answer applyPortForwardingRules(SetPortForwardingRulesCommand cmd) {
         String routerIp = cmd.getAccessDetail(NetworkElementCommand.ROUTER_IP);
         String[] results = new String[cmd.getRules().length];
         int i = 0;
@@ -234,7 +279,9 @@ public class VirtualRoutingResource implements Manager {
             command.add("-p ", rule.getStringSrcPortRange());
             command.add("-r ", rule.getDstIp());
             command.add("-d ", rule.getStringDstPortRange());
-            result = command.execute();
+            synchronized (getRouterLock(routerIp)) {
+                result = command.execute();
+            }
             if (result == null) {
                 results[i++] = null;
             } else {
@@ -245,8 +292,11 @@ public class VirtualRoutingResource implements Manager {
 
         return new SetPortForwardingRulesAnswer(cmd, results, endResult);
     }
-    
-    private Answer execute(SetStaticNatRulesCommand cmd) {
+
+    /**
+     * Applies the rules one by one, for the routers that can't apply a batch.
+     */
+    private Answer applyStaticNatRules(SetStaticNatRulesCommand cmd) {
         String routerIp = cmd.getAccessDetail(NetworkElementCommand.ROUTER_IP);
         String[] results = new String[cmd.getRules().length];
         int i = 0;
@@ -268,7 +318,9 @@ public class VirtualRoutingResource implements Manager {
             command.add(" -d ", rule.getStringSrcPortRange());
             command.add(" -G ") ;
             
-            result = command.execute();
+            synchronized (getRouterLock(routerIp)) {
+                result = command.execute();
+            }
             if (result == null) {
                 results[i++] = null;
             } else {
@@ -279,7 +331,227 @@ public class VirtualRoutingResource implements Manager {
 
         return new SetStaticNatRulesAnswer(cmd, results, endResult);
     }
-    
+
+    /**
+     * Applies the commands of the batch to the router in one go.  The rules
+     * are applied atomically: if one of them fails, the firewall of the
+     * router is left as it was and all of them are reported failed.  Routers
+     * that can't apply a batch get the commands one by one.
+     */
+    protected Answer execute(RouterConfigBatchCommand cmd) {
+        String routerIp = cmd.getAccessDetail(NetworkElementCommand.ROUTER_IP);
+        Command[] cmds = cmd.getCommands();
+        List<String> config = new ArrayList<String>();
+        // first line of each command in the configuration
+        int[] firstLines = new int[cmds.length + 1];
+        boolean atomic = false;
+        for (int i = 0; i < cmds.length; i++) {
+            firstLines[i] = config.size();
+            List<String> lines = getRouterConfig(cmds[i]);
+            if (lines == null) {
+                return new RouterConfigBatchAnswer(cmd, false, "Unable to batch " + cmds[i].getClass().getSimpleName());
+            }
+            config.addAll(lines);
+            if (cmds[i] instanceof SetPortForwardingRulesCommand || cmds[i] instanceof SetStaticNatRulesCommand) {
+                atomic = true;
+            }
+        }
+        firstLines[cmds.length] = config.size();
+
+        int[] results = applyRouterConfig(routerIp, config, atomic);
+        Answer[] answers = new Answer[cmds.length];
+        for (int i = 0; i < cmds.length; i++) {
+            if (results != null) {
+                answers[i] = createAnswer(cmds[i], results, firstLines[i], firstLines[i + 1]);
+            } else if (cmds[i] instanceof SetPortForwardingRulesCommand) {
+                answers[i] = applyPortForwardingRules((SetPortForwardingRulesCommand)cmds[i]);
+            } else if (cmds[i] instanceof SetStaticNatRulesCommand) {
+                answers[i] = applyStaticNatRules((SetStaticNatRulesCommand)cmds[i]);
+            } else {
+                answers[i] = executeRequest(cmds[i]);
+            }
+        }
+        return new RouterConfigBatchAnswer(cmd, answers);
+    }
+
+    /**
+     * @return the lines of router_config.sh configuring the command, or null
+     *         if the command can't be batched.
+     */
+    protected List<String> getRouterConfig(Command cmd) {
+        List<String> lines = new ArrayList<String>();
+        if (cmd instanceof SetPortForwardingRulesCommand) {
+            for (PortForwardingRuleTO rule : ((SetPortForwardingRulesCommand)cmd).getRules()) {
+                lines.add(FIREWALL_SCRIPT + (rule.revoked() ? " -D" : " -A") + " -P " + rule.getProtocol().toLowerCase() + " -l " + rule.getSrcIp()
+                        + " -p " + rule.getStringSrcPortRange() + " -r " + rule.getDstIp() + " -d " + rule.getStringDstPortRange());
+            }
+        } else if (cmd instanceof SetStaticNatRulesCommand) {
+            for (StaticNatRuleTO rule : ((SetStaticNatRulesCommand)cmd).getRules()) {
+                //1:1 NAT needs instanceip;publicip;domrip;op
+                StringBuilder line = new StringBuilder(FIREWALL_SCRIPT);
+                line.append(rule.revoked() ? " -D" : " -A").append(" -l ").append(rule.getSrcIp()).append(" -r ").append(rule.getDstIp());
+                if (rule.getProtocol() != null) {
+                    line.append(" -P ").append(rule.getProtocol().toLowerCase());
+                }
+                line.append(" -d ").append(rule.getStringSrcPortRange()).append(" -G");
+                lines.add(line.toString());
+            }
+        } else if (cmd instanceof DhcpEntryCommand) {
+            DhcpEntryCommand dhcp = (DhcpEntryCommand)cmd;
+            // same arguments as dhcp_entry.sh gives to edithosts.sh
+            StringBuilder line = new StringBuilder("edithosts.sh");
+            line.append(" ").append(dhcp.getVmMac()).append(" ").append(dhcp.getVmIpAddress()).append(" ").append(dhcp.getVmName());
+            if (dhcp.getDefaultRouter() != null) {
+                line.append(" ").append(dhcp.getDefaultRouter());
+            }
+            if (dhcp.getDefaultDns() != null) {
+                line.append(" ").append(dhcp.getDefaultDns());
+            }
+            if (dhcp.getStaticRoutes() != null) {
+                line.append(" ").append(dhcp.getStaticRoutes());
+            }
+            lines.add(line.toString());
+        } else if (cmd instanceof SavePasswordCommand) {
+            SavePasswordCommand password = (SavePasswordCommand)cmd;
+            lines.add("savepassword.sh -v " + password.getVmIpAddress() + " -p " + password.getPassword());
+        } else {
+            return null;
+        }
+        return lines;
+    }
+
+    /**
+     * Ships the configuration to the router as one file and applies it over
+     * a single ssh session.
+     *
+     * @param atomic if true and a line fails, the firewall of the router is
+     *        restored and all the firewall lines are reported failed.
+     * @return the exit code of each line, -1 for the lines that didn't run;
+     *         null if the router can't apply a batch.
+     */
+    protected int[] applyRouterConfig(String routerIp, List<String> config, boolean atomic) {
+        int[] results = new int[config.size()];
+        if (config.isEmpty()) {
+            return results;
+        }
+        Arrays.fill(results, -1);
+        if (routerIp == null) {
+            return results;
+        }
+
+        File tmpCfgFile = null;
+        try {
+            tmpCfgFile = File.createTempFile(routerIp.replace('.', '_'), "cfg");
+            // the configuration may carry vm passwords, keep it to the owner
+            if (!tmpCfgFile.setReadable(false, false) || !tmpCfgFile.setReadable(true, true)
+                    || !tmpCfgFile.setWritable(false, false) || !tmpCfgFile.setWritable(true, true)) {
+                throw new IOException("Unable to restrict the permissions of " + tmpCfgFile);
+            }
+            final PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(tmpCfgFile)));
+            try {
+                for (String line : config) {
+                    out.println(line);
+                }
+            } finally {
+                out.close();
+            }
+            if (out.checkError()) {
+                throw new IOException("Unable to write " + tmpCfgFile);
+            }
+
+            // one script timeout for every 100 lines, like the scripts run one by one used to get per line
+            final Script command = new Script(_routerConfigPath, _timeout * ((config.size() + 99) / 100), s_logger);
+            command.add("-r", routerIp);
+            command.add("-f", tmpCfgFile.getAbsolutePath());
+            if (atomic) {
+                command.add("-a");
+            }
+            final OutputInterpreter.AllLinesParser parser = new OutputInterpreter.AllLinesParser();
+            String result;
+            synchronized (getRouterLock(routerIp)) {
+                result = command.execute(parser);
+            }
+            if (result != null) {
+                if (command.getExitValue() == CONFIG_UNSUPPORTED) {
+                    s_logger.debug("Router " + routerIp + " can't apply a batch of configuration");
+                    return null;
+                }
+                s_logger.warn("Unable to apply the configuration to router " + routerIp + ": " + result);
+                return results;
+            }
+            return parseRouterConfigResults(config, parser.getLines(), atomic);
+        } catch (final IOException e) {
+            s_logger.warn("Unable to write the configuration of router " + routerIp, e);
+            return results;
+        } finally {
+            if (tmpCfgFile != null && !tmpCfgFile.delete()) {
+                s_logger.warn("Unable to delete " + tmpCfgFile);
+            }
+        }
+    }
+
+    /**
+     * @param output what router_config.sh printed, "<line number>:<exit code>"
+     *        for each line of the configuration it applied.
+     * @return the exit code of each line of the configuration, -1 for the
+     *         lines that didn't run.
+     */
+    protected static int[] parseRouterConfigResults(List<String> config, String output, boolean atomic) {
+        int[] results = new int[config.size()];
+        Arrays.fill(results, -1);
+        if (output != null) {
+            for (String line : output.split("\n")) {
+                Matcher matcher = s_configResult.matcher(line.trim());
+                if (matcher.matches()) {
+                    try {
+                        int index = Integer.parseInt(matcher.group(1)) - 1;
+                        if (index >= 0 && index < results.length) {
+                            results[index] = Integer.parseInt(matcher.group(2));
+                        }
+                    } catch (final NumberFormatException e) {
+                        s_logger.warn("Unexpected result when configuring a router: " + line);
+                    }
+                }
+            }
+        }
+
+        if (atomic) {
+            boolean failed = false;
+            for (int result : results) {
+                failed |= result != 0;
+            }
+            if (failed) {
+                for (int i = 0; i < results.length; i++) {
+                    if (results[i] == 0 && config.get(i).startsWith(FIREWALL_SCRIPT)) {
+                        results[i] = -1;
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    private Answer createAnswer(Command cmd, int[] results, int from, int to) {
+        String[] details = new String[to - from];
+        boolean success = true;
+        for (int i = from; i < to; i++) {
+            if (results[i] != 0) {
+                details[i - from] = "Failed";
+                success = false;
+            }
+        }
+        if (cmd instanceof SetPortForwardingRulesCommand) {
+            return new SetPortForwardingRulesAnswer((SetPortForwardingRulesCommand)cmd, details, success);
+        } else if (cmd instanceof SetStaticNatRulesCommand) {
+            return new SetStaticNatRulesAnswer((SetStaticNatRulesCommand)cmd, details, success);
+        }
+        return new Answer(cmd, success, success ? null : "Unable to configure router");
+    }
+
+    protected Object getRouterLock(String routerIp) {
+        int hash = routerIp == null ? 0 : routerIp.hashCode();
+        return _routerLocks[(hash & Integer.MAX_VALUE) % _routerLocks.length];
+    }
 
     private Answer execute(LoadBalancerConfigCommand cmd) {
         String routerIp = cmd.getAccessDetail(NetworkElementCommand.ROUTER_IP);
@@ -435,7 +707,7 @@ public class VirtualRoutingResource implements Manager {
         return command.execute();
     }
 
-    protected synchronized Answer execute(final SavePasswordCommand cmd) {
+    protected Answer execute(final SavePasswordCommand cmd) {
         final String password = cmd.getPassword();
         final String routerPrivateIPAddress = cmd.getAccessDetail(NetworkElementCommand.ROUTER_IP);
         final String vmName = cmd.getVmName();
@@ -451,7 +723,7 @@ public class VirtualRoutingResource implements Manager {
         }
     }
 
-    protected synchronized Answer execute (final DhcpEntryCommand cmd) {
+    protected Answer execute (final DhcpEntryCommand cmd) {
         final Script command  = new Script(_dhcpEntryPath, _timeout, s_logger);
         command.add("-r", cmd.getAccessDetail(NetworkElementCommand.ROUTER_IP));
         command.add("-v", cmd.getVmIpAddress());
@@ -469,7 +741,10 @@ public class VirtualRoutingResource implements Manager {
         	command.add("-N", cmd.getDefaultDns());
         }
 
-        final String result = command.execute();
+        final String result;
+        synchronized (getRouterLock(cmd.getAccessDetail(NetworkElementCommand.ROUTER_IP))) {
+            result = command.execute();
+        }
         return new Answer(cmd, result==null, result);
     }
 
@@ -580,14 +855,16 @@ public class VirtualRoutingResource implements Manager {
 
 
 
-    public synchronized String savePassword(final String privateIpAddress, final String vmIpAddress, final String password, final String localPath) {
+    public String savePassword(final String privateIpAddress, final String vmIpAddress, final String password, final String localPath) {
         final Script command  = new Script(_savepasswordPath, _startTimeout, s_logger);
         command.add("-r", privateIpAddress);
         command.add("-v", vmIpAddress);
         command.add("-p", password);
         command.add(localPath);
 
-        return command.execute();
+        synchronized (getRouterLock(privateIpAddress)) {
+            return command.execute();
+        }
     }
 
 
@@ -868,6 +1145,11 @@ public class VirtualRoutingResource implements Manager {
         if(_getDomRVersionPath == null) {
             throw new ConfigurationException("Unable to find getDomRVersion.sh");
         }
+
+        _routerConfigPath = findScript("router_config.sh");
+        if (_routerConfigPath == null) {
+            throw new ConfigurationException("Unable to find router_config.sh");
+        }
         
         return true;
     }
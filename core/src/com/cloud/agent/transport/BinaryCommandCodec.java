@@ -0,0 +1,667 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.agent.transport;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.GetHostStatsAnswer;
+import com.cloud.agent.api.GetHostStatsCommand;
+import com.cloud.agent.api.GetVmStatsAnswer;
+import com.cloud.agent.api.GetVmStatsCommand;
+import com.cloud.agent.api.PingAnswer;
+import com.cloud.agent.api.PingCommand;
+import com.cloud.agent.api.PingRoutingCommand;
+import com.cloud.agent.api.PingRoutingWithNwGroupsCommand;
+import com.cloud.agent.api.PingRoutingWithOvsCommand;
+import com.cloud.agent.api.StartupAnswer;
+import com.cloud.agent.api.StartupRoutingCommand;
+import com.cloud.serializer.GsonHelper;
+import com.cloud.utils.exception.CloudRuntimeException;
+import com.google.gson.Gson;
+import com.google.gson.annotations.Since;
+import com.google.gson.annotations.Until;
+
+/**
+ * BinaryCommandCodec is a compact encoding for the commands that make up
+ * most of the agent traffic: pings, startup and stats.  The schema of a
+ * class is its non-static, non-transient fields, superclass first and
+ * sorted by name within each class.  The schemas of these commands and of
+ * every class reachable through their fields are fingerprinted, and the
+ * fingerprint is the tag peers announce, so two builds with different
+ * commands never talk binary to each other.  Commands that are not in the
+ * schema, or that carry values the schema can't describe, are embedded as
+ * Gson.
+ *
+ * A data package looks as follows:
+ * 1. Fingerprint - 4 bytes;
+ * 2. Number of commands - varint;
+ * 3. For each command, ENTRY_BINARY followed by the encoded object or
+ *    ENTRY_JSON followed by the Gson array holding just that command.
+ */
+public class BinaryCommandCodec implements CommandCodec {
+    private static final Logger s_logger = Logger.getLogger(BinaryCommandCodec.class);
+
+    protected static final Gson s_gson = GsonHelper.getGson();
+    protected static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Same as the version GsonHelper configures, so both codecs see the same fields.
+    protected static final double GSON_VERSION = 1.5;
+
+    protected static final Class<?>[] s_commands = new Class<?>[] {
+        Answer.class,
+        PingCommand.class,
+        PingRoutingCommand.class,
+        PingRoutingWithNwGroupsCommand.class,
+        PingRoutingWithOvsCommand.class,
+        PingAnswer.class,
+        StartupRoutingCommand.class,
+        StartupAnswer.class,
+        GetVmStatsCommand.class,
+        GetVmStatsAnswer.class,
+        GetHostStatsCommand.class,
+        GetHostStatsAnswer.class
+    };
+
+    protected static final byte ENTRY_JSON = 0;
+    protected static final byte ENTRY_BINARY = 1;
+
+    protected static final byte NULL = 0;
+    protected static final byte TRUE = 1;
+    protected static final byte FALSE = 2;
+    protected static final byte INT = 3;
+    protected static final byte LONG = 4;
+    protected static final byte DOUBLE = 5;
+    protected static final byte FLOAT = 6;
+    protected static final byte SHORT = 7;
+    protected static final byte BYTE = 8;
+    protected static final byte CHAR = 9;
+    protected static final byte STRING = 10;
+    protected static final byte ENUM = 11;
+    protected static final byte OBJECT = 12;
+    protected static final byte ARRAY_LIST = 13;
+    protected static final byte LINKED_LIST = 14;
+    protected static final byte HASH_SET = 15;
+    protected static final byte LINKED_HASH_SET = 16;
+    protected static final byte TREE_SET = 17;
+    protected static final byte HASH_MAP = 18;
+    protected static final byte LINKED_HASH_MAP = 19;
+    protected static final byte TREE_MAP = 20;
+
+    private static final BinaryCommandCodec s_codec = new BinaryCommandCodec(s_commands);
+
+    protected final Set<Class<?>> _commands = new HashSet<Class<?>>();
+    protected final Map<Class<?>, Schema> _schemas = new HashMap<Class<?>, Schema>();
+    protected final List<Schema> _schemasById = new ArrayList<Schema>();
+    protected final int _fingerprint;
+    protected final byte _tag;
+
+    public static BinaryCommandCodec getInstance() {
+        return s_codec;
+    }
+
+    protected BinaryCommandCodec(Class<?>[] commands) {
+        Map<String, Class<?>> reachable = new TreeMap<String, Class<?>>();
+        for (Class<?> clazz : commands) {
+            _commands.add(clazz);
+            collect(clazz, reachable);
+        }
+
+        CRC32 crc = new CRC32();
+        for (Class<?> clazz : reachable.values()) {
+            Schema schema = new Schema(_schemasById.size(), clazz);
+            _schemas.put(clazz, schema);
+            _schemasById.add(schema);
+            crc.update(schema.describe().getBytes(UTF8));
+        }
+        _fingerprint = (int)crc.getValue();
+        _tag = (byte)(((_fingerprint & 0x7fffffff) % 255) + 1);
+
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Binary command schema " + Integer.toHexString(_fingerprint) + " covers " + _schemasById.size() + " classes");
+        }
+    }
+
+    @Override
+    public byte getTag() {
+        return _tag;
+    }
+
+    public int getFingerprint() {
+        return _fingerprint;
+    }
+
+    @Override
+    public boolean accepts(Command[] cmds) {
+        for (Command cmd : cmds) {
+            if (_commands.contains(cmd.getClass())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public ByteBuffer encode(Command[] cmds) {
+        Output out = new Output(512);
+        out.putInt(_fingerprint);
+        out.putVarint(cmds.length);
+        for (Command cmd : cmds) {
+            int mark = out.position();
+            if (_commands.contains(cmd.getClass())) {
+                try {
+                    out.put(ENTRY_BINARY);
+                    writeObject(out, cmd);
+                    continue;
+                } catch (UnsupportedValueException e) {
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("Falling back to json for " + cmd.getClass().getSimpleName() + ": " + e.getMessage());
+                    }
+                    out.position(mark);
+                }
+            }
+            Command[] single = (Command[])Array.newInstance(cmds.getClass().getComponentType(), 1);
+            single[0] = cmd;
+            out.put(ENTRY_JSON);
+            out.putString(s_gson.toJson(single, single.getClass()));
+        }
+        return out.toByteBuffer();
+    }
+
+    @Override
+    public Command[] decode(ByteBuffer buffer, boolean answers) {
+        int fingerprint = buffer.getInt();
+        if (fingerprint != _fingerprint) {
+            throw new CloudRuntimeException("Binary command schema " + Integer.toHexString(fingerprint) + " does not match ours " + Integer.toHexString(_fingerprint));
+        }
+
+        int count = getVarint(buffer);
+        Command[] cmds = answers ? new Answer[count] : new Command[count];
+        for (int i = 0; i < count; i++) {
+            byte entry = buffer.get();
+            if (entry == ENTRY_BINARY) {
+                cmds[i] = (Command)readObject(buffer);
+            } else if (entry == ENTRY_JSON) {
+                Command[] single = s_gson.fromJson(getString(buffer), answers ? Answer[].class : Command[].class);
+                cmds[i] = single[0];
+            } else {
+                throw new CloudRuntimeException("Unknown entry " + entry + " in binary data package");
+            }
+        }
+        return cmds;
+    }
+
+    protected void writeObject(Output out, Object obj) {
+        Schema schema = _schemas.get(obj.getClass());
+        if (schema == null || schema._constructor == null) {
+            throw new UnsupportedValueException(obj.getClass());
+        }
+        out.putVarint(schema._id);
+        try {
+            for (Field field : schema._fields) {
+                writeValue(out, field.get(obj));
+            }
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException("Unable to read " + obj.getClass().getName(), e);
+        }
+    }
+
+    protected void writeValue(Output out, Object value) {
+        if (value == null) {
+            out.put(NULL);
+            return;
+        }
+
+        Class<?> clazz = value.getClass();
+        if (clazz == String.class) {
+            out.put(STRING);
+            out.putString((String)value);
+        } else if (clazz == Long.class) {
+            out.put(LONG);
+            out.putVarlong(zigzag((Long)value));
+        } else if (clazz == Integer.class) {
+            out.put(INT);
+            out.putVarlong(zigzag((Integer)value));
+        } else if (clazz == Boolean.class) {
+            out.put(((Boolean)value) ? TRUE : FALSE);
+        } else if (clazz == Double.class) {
+            out.put(DOUBLE);
+            out.putLong(Double.doubleToRawLongBits((Double)value));
+        } else if (clazz == Float.class) {
+            out.put(FLOAT);
+            out.putInt(Float.floatToRawIntBits((Float)value));
+        } else if (clazz == Short.class) {
+            out.put(SHORT);
+            out.putVarlong(zigzag((Short)value));
+        } else if (clazz == Byte.class) {
+            out.put(BYTE);
+            out.put((Byte)value);
+        } else if (clazz == Character.class) {
+            out.put(CHAR);
+            out.putVarint((Character)value);
+        } else if (value instanceof Enum) {
+            Enum<?> e = (Enum<?>)value;
+            Schema schema = _schemas.get(e.getDeclaringClass());
+            if (schema == null) {
+                throw new UnsupportedValueException(clazz);
+            }
+            out.put(ENUM);
+            out.putVarint(schema._id);
+            out.putVarint(e.ordinal());
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>)value;
+            byte tag;
+            if (clazz == HashMap.class) {
+                tag = HASH_MAP;
+            } else if (value instanceof SortedMap) {
+                if (((SortedMap<?, ?>)value).comparator() != null) {
+                    throw new UnsupportedValueException(clazz);
+                }
+                tag = TREE_MAP;
+            } else {
+                tag = LINKED_HASH_MAP;
+            }
+            out.put(tag);
+            out.putVarint(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeValue(out, entry.getKey());
+                writeValue(out, entry.getValue());
+            }
+        } else if (value instanceof Collection) {
+            Collection<?> collection = (Collection<?>)value;
+            byte tag;
+            if (clazz == LinkedList.class) {
+                tag = LINKED_LIST;
+            } else if (clazz == HashSet.class) {
+                tag = HASH_SET;
+            } else if (value instanceof SortedSet) {
+                if (((SortedSet<?>)value).comparator() != null) {
+                    throw new UnsupportedValueException(clazz);
+                }
+                tag = TREE_SET;
+            } else if (value instanceof Set) {
+                tag = LINKED_HASH_SET;
+            } else {
+                tag = ARRAY_LIST;
+            }
+            out.put(tag);
+            out.putVarint(collection.size());
+            for (Object element : collection) {
+                writeValue(out, element);
+            }
+        } else {
+            out.put(OBJECT);
+            writeObject(out, value);
+        }
+    }
+
+    protected Object readObject(ByteBuffer buffer) {
+        Schema schema = getSchema(getVarint(buffer));
+        try {
+            Object obj = schema._constructor.newInstance();
+            for (Field field : schema._fields) {
+                Object value = readValue(buffer);
+                // Same as Gson, nulls leave whatever the constructor put there.
+                if (value != null) {
+                    field.set(obj, value);
+                }
+            }
+            return obj;
+        } catch (CloudRuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CloudRuntimeException("Unable to create " + schema._clazz.getName(), e);
+        }
+    }
+
+    protected Object readValue(ByteBuffer buffer) {
+        byte tag = buffer.get();
+        switch (tag) {
+        case NULL:
+            return null;
+        case TRUE:
+            return Boolean.TRUE;
+        case FALSE:
+            return Boolean.FALSE;
+        case INT:
+            return (int)unzigzag(getVarlong(buffer));
+        case LONG:
+            return unzigzag(getVarlong(buffer));
+        case DOUBLE:
+            return Double.longBitsToDouble(buffer.getLong());
+        case FLOAT:
+            return Float.intBitsToFloat(buffer.getInt());
+        case SHORT:
+            return (short)unzigzag(getVarlong(buffer));
+        case BYTE:
+            return buffer.get();
+        case CHAR:
+            return (char)getVarint(buffer);
+        case STRING:
+            return getString(buffer);
+        case ENUM: {
+            Schema schema = getSchema(getVarint(buffer));
+            int ordinal = getVarint(buffer);
+            if (schema._constants == null || ordinal >= schema._constants.length) {
+                throw new CloudRuntimeException("Bad enum constant " + ordinal + " for " + schema._clazz.getName());
+            }
+            return schema._constants[ordinal];
+        }
+        case OBJECT:
+            return readObject(buffer);
+        case ARRAY_LIST:
+        case LINKED_LIST:
+        case HASH_SET:
+        case LINKED_HASH_SET:
+        case TREE_SET: {
+            int size = getVarint(buffer);
+            Collection<Object> collection;
+            if (tag == ARRAY_LIST) {
+                collection = new ArrayList<Object>(size);
+            } else if (tag == LINKED_LIST) {
+                collection = new LinkedList<Object>();
+            } else if (tag == HASH_SET) {
+                collection = new HashSet<Object>();
+            } else if (tag == LINKED_HASH_SET) {
+                collection = new LinkedHashSet<Object>();
+            } else {
+                collection = new TreeSet<Object>();
+            }
+            for (int i = 0; i < size; i++) {
+                collection.add(readValue(buffer));
+            }
+            return collection;
+        }
+        case HASH_MAP:
+        case LINKED_HASH_MAP:
+        case TREE_MAP: {
+            int size = getVarint(buffer);
+            Map<Object, Object> map;
+            if (tag == HASH_MAP) {
+                map = new HashMap<Object, Object>();
+            } else if (tag == LINKED_HASH_MAP) {
+                map = new LinkedHashMap<Object, Object>();
+            } else {
+                map = new TreeMap<Object, Object>();
+            }
+            for (int i = 0; i < size; i++) {
+                Object key = readValue(buffer);
+                map.put(key, readValue(buffer));
+            }
+            return map;
+        }
+        default:
+            throw new CloudRuntimeException("Unknown value tag " + tag + " in binary data package");
+        }
+    }
+
+    protected Schema getSchema(int id) {
+        if (id < 0 || id >= _schemasById.size()) {
+            throw new CloudRuntimeException("Unknown class " + id + " in binary data package");
+        }
+        return _schemasById.get(id);
+    }
+
+    /**
+     * Walks the declared field types to find every class that can show up
+     * in the commands.  Only our own classes are followed; type variables
+     * and interfaces are resolved at runtime and fall back to json if the
+     * actual class isn't known.
+     */
+    protected static void collect(Type type, Map<String, Class<?>> reachable) {
+        if (type instanceof ParameterizedType) {
+            ParameterizedType parameterized = (ParameterizedType)type;
+            collect(parameterized.getRawType(), reachable);
+            for (Type argument : parameterized.getActualTypeArguments()) {
+                collect(argument, reachable);
+            }
+            return;
+        }
+        if (!(type instanceof Class)) {
+            return;
+        }
+
+        Class<?> clazz = (Class<?>)type;
+        if (clazz.isArray() || clazz.isPrimitive() || clazz.isInterface() || !clazz.getName().startsWith("com.cloud.") || reachable.containsKey(clazz.getName())) {
+            return;
+        }
+
+        if (!Modifier.isAbstract(clazz.getModifiers()) || clazz.isEnum()) {
+            reachable.put(clazz.getName(), clazz);
+        }
+        if (clazz.isEnum()) {
+            return;
+        }
+        for (Field field : getFields(clazz)) {
+            collect(field.getGenericType(), reachable);
+        }
+    }
+
+    protected static List<Field> getFields(Class<?> clazz) {
+        List<Class<?>> hierarchy = new ArrayList<Class<?>>();
+        for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+            hierarchy.add(0, c);
+        }
+
+        List<Field> fields = new ArrayList<Field>();
+        for (Class<?> c : hierarchy) {
+            Field[] declared = c.getDeclaredFields();
+            Arrays.sort(declared, new Comparator<Field>() {
+                @Override
+                public int compare(Field f1, Field f2) {
+                    return f1.getName().compareTo(f2.getName());
+                }
+            });
+            for (Field field : declared) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+                    continue;
+                }
+                Since since = field.getAnnotation(Since.class);
+                Until until = field.getAnnotation(Until.class);
+                if ((since != null && since.value() > GSON_VERSION) || (until != null && until.value() <= GSON_VERSION)) {
+                    continue;
+                }
+                field.setAccessible(true);
+                fields.add(field);
+            }
+        }
+        return fields;
+    }
+
+    protected static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    protected static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    protected static long getVarlong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long)(b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new CloudRuntimeException("Malformed varint in binary data package");
+    }
+
+    protected static int getVarint(ByteBuffer buffer) {
+        return (int)getVarlong(buffer);
+    }
+
+    protected static String getString(ByteBuffer buffer) {
+        int length = getVarint(buffer);
+        String str;
+        if (buffer.hasArray()) {
+            str = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF8);
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            str = new String(bytes, UTF8);
+        }
+        return str;
+    }
+
+    protected static class Schema {
+        final int _id;
+        final Class<?> _clazz;
+        final Field[] _fields;
+        final Constructor<?> _constructor;
+        final Object[] _constants;
+
+        Schema(int id, Class<?> clazz) {
+            _id = id;
+            _clazz = clazz;
+            if (clazz.isEnum()) {
+                _fields = new Field[0];
+                _constructor = null;
+                _constants = clazz.getEnumConstants();
+                return;
+            }
+
+            _constants = null;
+            List<Field> fields = getFields(clazz);
+            _fields = fields.toArray(new Field[fields.size()]);
+            Constructor<?> constructor = null;
+            if (clazz.getEnclosingClass() == null || Modifier.isStatic(clazz.getModifiers())) {
+                try {
+                    constructor = clazz.getDeclaredConstructor();
+                    constructor.setAccessible(true);
+                } catch (NoSuchMethodException e) {
+                    s_logger.debug(clazz.getName() + " has no default constructor so it will be sent as json");
+                }
+            }
+            _constructor = constructor;
+        }
+
+        String describe() {
+            StringBuilder buf = new StringBuilder(_clazz.getName());
+            if (_constants != null) {
+                for (Object constant : _constants) {
+                    buf.append(',').append(((Enum<?>)constant).name());
+                }
+            } else {
+                for (Field field : _fields) {
+                    Type type = field.getGenericType();
+                    buf.append(',').append(field.getName()).append(':').append(type instanceof Class ? ((Class<?>)type).getName() : type.toString());
+                }
+            }
+            return buf.append(';').toString();
+        }
+    }
+
+    protected static class Output {
+        byte[] _bytes;
+        int _position;
+
+        Output(int capacity) {
+            _bytes = new byte[capacity];
+        }
+
+        int position() {
+            return _position;
+        }
+
+        void position(int position) {
+            _position = position;
+        }
+
+        void ensure(int length) {
+            if (_position + length > _bytes.length) {
+                _bytes = Arrays.copyOf(_bytes, Math.max(_bytes.length * 2, _position + length));
+            }
+        }
+
+        void put(byte b) {
+            ensure(1);
+            _bytes[_position++] = b;
+        }
+
+        void putInt(int value) {
+            ensure(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                _bytes[_position++] = (byte)(value >>> shift);
+            }
+        }
+
+        void putLong(long value) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                _bytes[_position++] = (byte)(value >>> shift);
+            }
+        }
+
+        void putVarlong(long value) {
+            ensure(10);
+            while ((value & ~0x7fL) != 0) {
+                _bytes[_position++] = (byte)((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            _bytes[_position++] = (byte)value;
+        }
+
+        void putVarint(int value) {
+            putVarlong(value & 0xffffffffL);
+        }
+
+        void putString(String str) {
+            byte[] bytes = str.getBytes(UTF8);
+            putVarint(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, _bytes, _position, bytes.length);
+            _position += bytes.length;
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(_bytes, 0, _position);
+        }
+    }
+
+    protected static class UnsupportedValueException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedValueException(Class<?> clazz) {
+            super("No binary schema for " + clazz.getName());
+        }
+    }
+}
@@ -0,0 +1,40 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.agent.transport;
+
+import java.nio.ByteBuffer;
+
+import com.cloud.agent.api.Command;
+
+/**
+ * CommandCodec marshalls the data package of a Request.  Which codec was
+ * used is carried by the Request version, so a codec other than the default
+ * Gson one is only used when the peer has announced that it can decode it.
+ */
+public interface CommandCodec {
+    /**
+     * @return tag announced in the request header by peers that can decode this codec; never 0.
+     */
+    byte getTag();
+
+    /**
+     * @return true if this codec can encode the commands better than Gson.
+     */
+    boolean accepts(Command[] cmds);
+
+    ByteBuffer encode(Command[] cmds);
+
+    /**
+     * @param buffer data package.
+     * @param answers true if the package holds Answers.
+     */
+    Command[] decode(ByteBuffer buffer, boolean answers);
+}
@@ -19,10 +19,14 @@ import java.io.StringReader;
 import java.lang.reflect.Type;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -55,12 +59,14 @@ import com.google.gson.stream.JsonReader;
  * 
  * A request looks as follows:
  * 1. Version - 1 byte;
- * 2. Flags - 3 bytes;
- * 3. Sequence - 8 bytes;
- * 4. Length - 4 bytes;
- * 5. ManagementServerId - 8 bytes;
- * 6. AgentId - 8 bytes;
- * 7. Data Package.
+ * 2. Capabilities - 1 byte, tag of the binary codec the sender can decode or 0;
+ * 3. Flags - 2 bytes;
+ * 4. Sequence - 8 bytes;
+ * 5. Length - 4 bytes;
+ * 6. ManagementServerId - 8 bytes;
+ * 7. AgentId - 8 bytes;
+ * 8. Via - 8 bytes;
+ * 9. Data Package.
  * 
  */
 public class Request {
@@ -69,11 +75,29 @@ public class Request {
     protected static final Gson s_gson = GsonHelper.getGson();
     protected static final Gson s_gogger = GsonHelper.getGsonLogger();
     protected static final Logger s_gsonLogger = GsonHelper.getLogger();
+    protected static final CommandCodec s_codec = BinaryCommandCodec.getInstance();
+
+    private static volatile int s_compressionThreshold = NumbersUtil.parseInt(System.getProperty("cloud.request.compression.threshold"), 8192);
+
+    private static final ThreadLocal<Deflater> s_deflater = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> s_inflater = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
 
     public enum Version {
         v1, // using gson to marshall
         v2, // now using gson as marshalled.
-        v3; // Adding routing information into the Request data structure.
+        v3, // Adding routing information into the Request data structure.
+        v4; // Data package marshalled by the binary codec the receiver announced.
 
         public static Version get(final byte ver) throws UnsupportedVersionException {
             for (final Version version : Version.values()) {
@@ -92,6 +116,7 @@ public class Request {
     protected static final short       FLAG_FROM_SERVER     = 0x20;
     protected static final short       FLAG_CONTROL         = 0x40;
     protected static final short       FLAG_COMPRESSED      = 0x80;
+    protected static final short       FLAG_DEFLATED        = 0x100;  // zlib at best speed, only sent to peers with our capabilities.
 
 
     protected Version   _ver;
@@ -242,10 +267,14 @@ public class Request {
     }
 
     protected ByteBuffer serializeHeader(final int contentSize) {
+        return serializeHeader(getVersionInByte(), getFlags(), contentSize);
+    }
+
+    protected ByteBuffer serializeHeader(final byte version, final short flags, final int contentSize) {
         final ByteBuffer buffer = ByteBuffer.allocate(40);
-        buffer.put(getVersionInByte());
-        buffer.put((byte) 0);
-        buffer.putShort(getFlags());
+        buffer.put(version);
+        buffer.put(s_codec.getTag());
+        buffer.putShort(flags);
         buffer.putLong(_seq);
         // The size here is uncompressed size, if the data is compressed.
         buffer.putInt(contentSize);
@@ -257,8 +286,18 @@ public class Request {
         return buffer;
     }
 
+    /**
+     * @return size in bytes of the data package above which it is compressed.
+     */
+    public static int getCompressionThreshold() {
+        return s_compressionThreshold;
+    }
+
+    public static void setCompressionThreshold(int threshold) {
+        s_compressionThreshold = threshold;
+    }
+
     public static ByteBuffer doDecompress(ByteBuffer buffer, int length) {
-        byte[] byteArrayIn = new byte[1024];
         ByteArrayInputStream byteIn;
         if (buffer.hasArray()) {
             byteIn = new ByteArrayInputStream(buffer.array(),
@@ -269,39 +308,111 @@ public class Request {
             buffer.get(array);
             byteIn = new ByteArrayInputStream(array);
         }
-        ByteBuffer retBuff = ByteBuffer.allocate(length);
+        // The length is known from the header so inflate straight into the result.
+        byte[] retArray = new byte[length];
+        int pos = 0;
         int len = 0;
         try {
             GZIPInputStream in = new GZIPInputStream(byteIn);
-            while ((len = in.read(byteArrayIn)) > 0) {
-                retBuff.put(byteArrayIn, 0, len);
+            while (pos < length && (len = in.read(retArray, pos, length - pos)) > 0) {
+                pos += len;
             }
             in.close();
         } catch (IOException e) {
             s_logger.error("Fail to decompress the request!", e);
         }
-        retBuff.flip();
-        return retBuff;
+        return ByteBuffer.wrap(retArray, 0, pos);
     }
     
     public static ByteBuffer doCompress(ByteBuffer buffer, int length) {
-        ByteArrayOutputStream byteOut = new ByteArrayOutputStream(length);
+        PackageOutputStream byteOut = new PackageOutputStream(length / 4 + 64);
         byte[] array;
+        int offset = 0;
         if (buffer.hasArray()) {
             array = buffer.array();
+            offset = buffer.arrayOffset() + buffer.position();
         } else {
-            array = new byte[buffer.capacity()];
+            array = new byte[buffer.remaining()];
             buffer.get(array);
         }
         try {
             GZIPOutputStream out = new GZIPOutputStream(byteOut, length);
-            out.write(array);
+            out.write(array, offset, length);
             out.finish();
             out.close();
         } catch (IOException e) {
             s_logger.error("Fail to compress the request!", e);
         }
-        return ByteBuffer.wrap(byteOut.toByteArray());
+        return byteOut.toByteBuffer();
+    }
+
+    /**
+     * Same as doCompress() but with a zlib stream at best speed.  The
+     * Deflater is kept per thread so its native state is not allocated for
+     * every request.
+     */
+    public static ByteBuffer doDeflate(ByteBuffer buffer, int length) {
+        byte[] array;
+        int offset = 0;
+        if (buffer.hasArray()) {
+            array = buffer.array();
+            offset = buffer.arrayOffset() + buffer.position();
+        } else {
+            array = new byte[buffer.remaining()];
+            buffer.get(array);
+        }
+
+        Deflater deflater = s_deflater.get();
+        try {
+            deflater.setInput(array, offset, length);
+            deflater.finish();
+            byte[] output = new byte[length / 4 + 64];
+            int size = 0;
+            while (!deflater.finished()) {
+                if (size == output.length) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                size += deflater.deflate(output, size, output.length - size);
+            }
+            return ByteBuffer.wrap(output, 0, size);
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    public static ByteBuffer doInflate(ByteBuffer buffer, int length) {
+        byte[] array;
+        int offset = 0;
+        int remaining = buffer.remaining();
+        if (buffer.hasArray()) {
+            array = buffer.array();
+            offset = buffer.arrayOffset() + buffer.position();
+        } else {
+            array = new byte[remaining];
+            buffer.get(array);
+        }
+
+        Inflater inflater = s_inflater.get();
+        try {
+            inflater.setInput(array, offset, remaining);
+            byte[] output = new byte[length];
+            int size = 0;
+            while (size < length && !inflater.finished()) {
+                int len = inflater.inflate(output, size, length - size);
+                if (len == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                size += len;
+            }
+            if (size != length) {
+                throw new CloudRuntimeException("Data package should have been " + length + " bytes but it inflated to " + size);
+            }
+            return ByteBuffer.wrap(output);
+        } catch (DataFormatException e) {
+            throw new CloudRuntimeException("Unable to inflate the data package", e);
+        } finally {
+            inflater.reset();
+        }
     }
     
     public ByteBuffer[] toBytes() {
@@ -313,13 +424,50 @@ public class Request {
         }
         tmp = ByteBuffer.wrap(_content.getBytes());
         int capacity = tmp.capacity();
-        /* Check if we need to compress the data */
-        if (capacity >= 8192) {
+        /* Check if we need to compress the data; the threshold can change between resends */
+        short flags = (short)(getFlags() & ~(FLAG_COMPRESSED | FLAG_DEFLATED));
+        if (capacity >= s_compressionThreshold) {
             tmp = doCompress(tmp, capacity);
-            _flags |= FLAG_COMPRESSED;
+            flags |= FLAG_COMPRESSED;
+        }
+        buffers[1] = tmp;
+        buffers[0] = serializeHeader(getVersionInByte(), flags, capacity);
+
+        return buffers;
+    }
+
+    /**
+     * Same as toBytes() but uses the binary codec and the faster compression
+     * if the peer announced that it can decode them.
+     * 
+     * @param peerCapabilities capabilities byte last received from the peer.
+     */
+    public ByteBuffer[] toBytes(final byte peerCapabilities) {
+        if (peerCapabilities != s_codec.getTag()) {
+            return toBytes();
+        }
+
+        final ByteBuffer[] buffers = new ByteBuffer[2];
+        ByteBuffer tmp;
+        byte version;
+        if (_cmds != null && s_codec.accepts(_cmds)) {
+            tmp = s_codec.encode(_cmds);
+            version = (byte)Version.v4.ordinal();
+        } else {
+            if (_content == null) {
+                _content = s_gson.toJson(_cmds, _cmds.getClass());
+            }
+            tmp = ByteBuffer.wrap(_content.getBytes());
+            version = getVersionInByte();
+        }
+        int size = tmp.remaining();
+        short flags = (short)(getFlags() & ~(FLAG_COMPRESSED | FLAG_DEFLATED));
+        if (size >= s_compressionThreshold) {
+            tmp = doDeflate(tmp, size);
+            flags |= FLAG_DEFLATED;
         }
         buffers[1] = tmp;
-        buffers[0] = serializeHeader(capacity);
+        buffers[0] = serializeHeader(version, flags, size);
 
         return buffers;
     }
@@ -440,10 +588,10 @@ public class Request {
         ByteBuffer buff = ByteBuffer.wrap(bytes);
         final byte ver = buff.get();
         final Version version = Version.get(ver);
-        if (version.ordinal() != Version.v1.ordinal() && version.ordinal() != Version.v3.ordinal()) {
+        if (version.ordinal() != Version.v1.ordinal() && version.ordinal() != Version.v3.ordinal() && version.ordinal() != Version.v4.ordinal()) {
             throw new UnsupportedVersionException("This version is no longer supported: " + version.toString(), UnsupportedVersionException.IncompatibleVersion);
         }
-        final byte reserved = buff.get(); // tossed away for now.
+        buff.get(); // capabilities, see getCapabilities().
         final short flags = buff.getShort();
         final boolean isRequest = (flags & FLAG_REQUEST) > 0;
 
@@ -454,15 +602,26 @@ public class Request {
         final long agentId = buff.getLong();
         
         long via;
-        if (version.ordinal() == Version.v1.ordinal()) {
+        if (version.ordinal() == Version.v1.ordinal() || version.ordinal() == Version.v4.ordinal()) {
             via = buff.getLong();
         } else {
             via = agentId;
         }
 
-        if ((flags & FLAG_COMPRESSED) != 0) {
+        if ((flags & FLAG_DEFLATED) != 0) {
+            buff = doInflate(buff, size);
+        } else if ((flags & FLAG_COMPRESSED) != 0) {
             buff = doDecompress(buff, size);
         }
+
+        if (version.ordinal() == Version.v4.ordinal()) {
+            Command[] cmds = s_codec.decode(buff, !isRequest);
+            if (isRequest) {
+                return new Request(version, seq, agentId, mgmtId, via, flags, cmds);
+            } else {
+                return new Response(version, seq, agentId, mgmtId, via, flags, (Answer[])cmds);
+            }
+        }
         
         byte[] command = null;
         int offset = 0;
@@ -504,6 +663,13 @@ public class Request {
         }
     }
 
+    /**
+     * @return tag of the binary codec the sender can decode; 0 if it only speaks json.
+     */
+    public static byte getCapabilities(final byte[] bytes) {
+        return bytes[1];
+    }
+
     public static long getManagementServerId(final byte[] bytes) {
         return NumbersUtil.bytesToLong(bytes, 16);
     }
@@ -610,4 +776,17 @@ public class Request {
             return pcs;
         }
     }
+
+    /**
+     * Hands out the compressed bytes without copying them again.
+     */
+    protected static class PackageOutputStream extends ByteArrayOutputStream {
+        public PackageOutputStream(int size) {
+            super(size);
+        }
+
+        public ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
 }
@@ -84,6 +84,7 @@ import com.cloud.agent.api.ModifyStoragePoolAnswer;
 import com.cloud.agent.api.ModifyStoragePoolCommand;
 import com.cloud.agent.api.NetworkUsageAnswer;
 import com.cloud.agent.api.NetworkUsageCommand;
+import com.cloud.agent.api.PingAnswer;
 import com.cloud.agent.api.PingCommand;
 import com.cloud.agent.api.PingRoutingCommand;
 import com.cloud.agent.api.PingTestCommand;
@@ -171,7 +172,9 @@ import com.cloud.network.HAProxyConfigurator;
 import com.cloud.network.LoadBalancerConfigurator;
 import com.cloud.network.Networks;
 import com.cloud.network.Networks.BroadcastDomainType;
+import com.cloud.resource.PingAnswerListener;
 import com.cloud.resource.ServerResource;
+import com.cloud.resource.VmStateDeltaTracker;
 import com.cloud.serializer.GsonHelper;
 import com.cloud.storage.Storage;
 import com.cloud.storage.Storage.StoragePoolType;
@@ -179,6 +182,7 @@ import com.cloud.storage.Volume;
 import com.cloud.storage.resource.StoragePoolResource;
 import com.cloud.storage.template.TemplateInfo;
 import com.cloud.utils.DateUtil;
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.Pair;
 import com.cloud.utils.StringUtils;
 import com.cloud.utils.component.ComponentLocator;
@@ -231,7 +235,7 @@ import com.vmware.vim25.VirtualMachinePowerState;
 import com.vmware.vim25.VirtualMachineRuntimeInfo;
 import com.vmware.vim25.VirtualSCSISharing;
 
-public class VmwareResource implements StoragePoolResource, ServerResource, VmwareHostService {
+public class VmwareResource implements StoragePoolResource, ServerResource, VmwareHostService, PingAnswerListener {
     private static final Logger s_logger = Logger.getLogger(VmwareResource.class);
 
     protected String _name;
@@ -271,6 +275,7 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
     protected String _hostName;
 
     protected HashMap<String, State> _vms = new HashMap<String, State>(71);
+    protected VmStateDeltaTracker _vmStateTracker = new VmStateDeltaTracker(VmStateDeltaTracker.DEFAULT_FULL_SYNC_INTERVAL);
     protected List<PropertyMapDynamicBean> _cmdMBeans = new ArrayList<PropertyMapDynamicBean>();
 
     protected Gson _gson;
@@ -3214,7 +3219,23 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
             }
         }
 
-        return new PingRoutingCommand(getType(), id, newStates);
+        _vmStateTracker.addChanges(newStates);
+
+        HashMap<String, State> fullStates = null;
+        if (_vmStateTracker.isFullSyncDue()) {
+            synchronized (_vms) {
+                fullStates = new HashMap<String, State>(_vms);
+            }
+        }
+
+        PingRoutingCommand ping = new PingRoutingCommand(getType(), id, null);
+        _vmStateTracker.fillPing(ping, fullStates);
+        return ping;
+    }
+
+    @Override
+    public void processPingAnswer(PingAnswer answer) {
+        _vmStateTracker.processPingAnswer(answer);
     }
 
     @Override
@@ -3252,6 +3273,7 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
             _vms.clear();
             changes = sync();
         }
+        _vmStateTracker.reset();
 
         cmd.setHypervisorType(HypervisorType.VMware);
         cmd.setStateChanges(changes);
@@ -4007,6 +4029,10 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
         if(value != null)
             _cpuOverprovisioningFactor = Float.parseFloat(value);
 
+        value = (String) params.get("vm.fullsync.interval");
+        if(value != null)
+            _vmStateTracker = new VmStateDeltaTracker(NumbersUtil.parseInt(value, VmStateDeltaTracker.DEFAULT_FULL_SYNC_INTERVAL));
+
         value = (String) params.get("vmware.reserve.cpu");
         if(value != null && value.equalsIgnoreCase("true"))
             _reserveCpu = true;
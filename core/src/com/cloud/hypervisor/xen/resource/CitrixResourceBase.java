@@ -111,6 +111,8 @@ import com.cloud.agent.api.ReadyCommand;
 import com.cloud.agent.api.RebootAnswer;
 import com.cloud.agent.api.RebootCommand;
 import com.cloud.agent.api.RebootRouterCommand;
+import com.cloud.agent.api.SecurityGroupMembersAnswer;
+import com.cloud.agent.api.SecurityGroupMembersCmd;
 import com.cloud.agent.api.SecurityGroupRuleAnswer;
 import com.cloud.agent.api.SecurityGroupRulesCmd;
 import com.cloud.agent.api.SetupAnswer;
@@ -185,6 +187,7 @@ import com.cloud.network.ovs.OvsSetTagAndFlowAnswer;
 import com.cloud.network.ovs.OvsSetTagAndFlowCommand;
 import com.cloud.network.ovs.OvsSetupBridgeCommand;
 import com.cloud.resource.ServerResource;
+import com.cloud.resource.VmStateDeltaTracker;
 import com.cloud.resource.hypervisor.HypervisorResource;
 import com.cloud.storage.Storage;
 import com.cloud.storage.Storage.ImageFormat;
@@ -271,6 +274,9 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
 
     final int _maxWeight = 256;
     protected int _heartbeatInterval = 60;
+    // milliseconds between two cluster syncs that carry the state of every vm
+    protected long _fullSyncInterval = VmStateDeltaTracker.DEFAULT_FULL_SYNC_INTERVAL * 1000L;
+    protected long _lastFullSync = System.currentTimeMillis();
     protected final XsHost _host = new XsHost();
 
     // Guest and Host Performance Statistics
@@ -482,6 +488,8 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
             return execute((CheckSshCommand)cmd);
         } else if (clazz == SecurityGroupRulesCmd.class) {
             return execute((SecurityGroupRulesCmd) cmd);
+        } else if (clazz == SecurityGroupMembersCmd.class) {
+            return execute((SecurityGroupMembersCmd) cmd);
         } else if (clazz == OvsFetchInterfaceCommand.class) {
             return execute((OvsFetchInterfaceCommand)cmd);
         } else if (clazz == OvsCreateGreTunnelCommand.class) {
@@ -5045,6 +5053,26 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
         }
     }
     
+    private Answer execute(SecurityGroupMembersCmd cmd) {
+        Connection conn = getConnection();
+        if (!_canBridgeFirewall) {
+            s_logger.warn("Host " + _host.ip + " cannot do bridge firewalling");
+            return new SecurityGroupMembersAnswer(cmd, false, "Host " + _host.ip + " cannot do bridge firewalling");
+        }
+
+        String result = callHostPlugin(conn, "vmops", "security_group_members",
+                "deflated", "true",
+                "sets", cmd.compressStringifiedSets());
+
+        if (result == null || result.isEmpty() || !Boolean.parseBoolean(result)) {
+            s_logger.warn("Failed to program member sets into host " + _host.ip);
+            return new SecurityGroupMembersAnswer(cmd, false, "programming member sets failed");
+        } else {
+            s_logger.info("Programmed " + cmd.getSets().length + " member sets, " + cmd.getTotalNumAddresses() + " addresses");
+            return new SecurityGroupMembersAnswer(cmd);
+        }
+    }
+
     protected Answer execute(DeleteStoragePoolCommand cmd) {
         Connection conn = getConnection();
         StorageFilerTO poolTO = cmd.getPool();
@@ -5215,6 +5243,9 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
         value = (String) params.get("migratewait");
         _migratewait = NumbersUtil.parseInt(value, 3600);
 
+        value = (String) params.get("vm.fullsync.interval");
+        _fullSyncInterval = NumbersUtil.parseInt(value, VmStateDeltaTracker.DEFAULT_FULL_SYNC_INTERVAL) * 1000L;
+
         if (_pod == null) {
             throw new ConfigurationException("Unable to get the pod");
         }
@@ -6810,7 +6841,17 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
             return  new Answer(cmd);
         } 
         HashMap<String, Pair<String, State>> newStates = deltaClusterSync(conn);
-        return new ClusterSyncAnswer(cmd.getClusterId(), newStates);
+
+        // every so often also send the state of every vm, to catch what the deltas missed
+        HashMap<String, Pair<String, State>> allStates = null;
+        long now = System.currentTimeMillis();
+        if (newStates != null && _fullSyncInterval > 0 && now - _lastFullSync >= _fullSyncInterval) {
+            synchronized (_cluster.intern()) {
+                allStates = new HashMap<String, Pair<String, State>>(s_vms.getClusterVmState(_cluster));
+            }
+            _lastFullSync = now;
+        }
+        return new ClusterSyncAnswer(cmd.getClusterId(), newStates, allStates);
     }
 
 
@@ -14,6 +14,7 @@ package com.cloud.info;
 
 public class ConsoleProxyStatus {
 	private ConsoleProxyConnectionInfo[] connections;
+	private ConsoleProxyThreadPoolInfo threadPool;
 	
 	public ConsoleProxyStatus() {
 	}
@@ -21,4 +22,8 @@ public class ConsoleProxyStatus {
 	public ConsoleProxyConnectionInfo[] getConnections() {
 		return connections;
 	}
+	
+	public ConsoleProxyThreadPoolInfo getThreadPool() {
+		return threadPool;
+	}
 }
@@ -0,0 +1,21 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.resource;
+
+import com.cloud.agent.api.PingAnswer;
+
+/**
+ * Implemented by a ServerResource that wants to know when the management
+ * server has processed one of its pings.
+ */
+public interface PingAnswerListener {
+    void processPingAnswer(PingAnswer answer);
+}
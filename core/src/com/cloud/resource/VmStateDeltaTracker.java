@@ -0,0 +1,106 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.resource;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.cloud.agent.api.PingAnswer;
+import com.cloud.agent.api.PingRoutingCommand;
+import com.cloud.utils.Pair;
+import com.cloud.vm.VirtualMachine.State;
+
+/**
+ * VmStateDeltaTracker keeps the VM state changes a resource has found until
+ * the management server acknowledges them, so that pings carry only what
+ * changed and a change is sent again if the ping carrying it is lost.  Every
+ * so often it asks for the full state of the host instead, to catch anything
+ * the deltas missed.
+ */
+public class VmStateDeltaTracker {
+    public static final int DEFAULT_FULL_SYNC_INTERVAL = 600; // seconds
+
+    // vm name -> sequence of the change and the new state
+    private final Map<String, Pair<Long, State>> _unacked = new HashMap<String, Pair<Long, State>>();
+    private long _sequence = 0;
+    // sequence the management server last acknowledged
+    private long _acked = 0;
+    private final long _fullSyncInterval;
+    private long _lastFullSync;
+
+    public VmStateDeltaTracker(int fullSyncIntervalSeconds) {
+        _fullSyncInterval = fullSyncIntervalSeconds * 1000L;
+        _lastFullSync = System.currentTimeMillis();
+    }
+
+    public synchronized void addChanges(Map<String, State> changes) {
+        if (changes == null) {
+            return;
+        }
+        for (Map.Entry<String, State> change : changes.entrySet()) {
+            _unacked.put(change.getKey(), new Pair<Long, State>(++_sequence, change.getValue()));
+        }
+    }
+
+    /**
+     * @return true if the next ping should carry the full state of the host
+     */
+    public synchronized boolean isFullSyncDue() {
+        if (_fullSyncInterval <= 0) {
+            return false;
+        }
+        return System.currentTimeMillis() - _lastFullSync >= _fullSyncInterval;
+    }
+
+    /**
+     * Fills in the ping with the changes not acknowledged yet, or with the
+     * full states of the host when given.  A full sync doesn't acknowledge
+     * the changes: the management server only resyncs the VMs it has running
+     * from it, so the changes go out again with the next ping.
+     */
+    public synchronized void fillPing(PingRoutingCommand ping, Map<String, State> fullStates) {
+        if (fullStates != null) {
+            ping.setNewStates(new HashMap<String, State>(fullStates));
+            ping.setFullSync(true);
+            ping.setStateSequence(_acked);
+            _lastFullSync = System.currentTimeMillis();
+        } else {
+            HashMap<String, State> states = new HashMap<String, State>(_unacked.size());
+            for (Map.Entry<String, Pair<Long, State>> entry : _unacked.entrySet()) {
+                states.put(entry.getKey(), entry.getValue().second());
+            }
+            ping.setNewStates(states);
+            ping.setStateSequence(_sequence);
+        }
+    }
+
+    /**
+     * Drops the changes the management server has processed.
+     */
+    public synchronized void processPingAnswer(PingAnswer answer) {
+        long acked = answer.getStateSequence();
+        if (acked > _acked) {
+            _acked = acked;
+        }
+        Iterator<Pair<Long, State>> it = _unacked.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().first() <= acked) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void reset() {
+        _unacked.clear();
+        _lastFullSync = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,209 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.storage.template;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * DigestingFileWriter writes a download to a file and computes its MD5 and
+ * SHA-256 as it goes, so the file doesn't have to be read back to checksum it.
+ *
+ * Writes are not synced as they are made.  Instead the file is forced to
+ * disk every checkpoint bytes, and the digests at that point are kept, so an
+ * interrupted download can resume from the last checkpoint with the digests
+ * it had there.
+ */
+public class DigestingFileWriter {
+    public static final long DEFAULT_CHECKPOINT_SIZE = 64L * 1024 * 1024;
+
+    private final File _file;
+    private final long _checkpointSize;
+
+    private RandomAccessFile _raf;
+    private FileChannel _channel;
+    private MessageDigest _md5;
+    private MessageDigest _sha256;
+    private long _position;
+
+    private MessageDigest _checkpointMd5;
+    private MessageDigest _checkpointSha256;
+    private long _checkpoint;
+
+    public DigestingFileWriter(File file, long checkpointSize) {
+        _file = file;
+        _checkpointSize = checkpointSize;
+        _md5 = createDigest("MD5");
+        _sha256 = createDigest("SHA-256");
+    }
+
+    protected static MessageDigest createDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new CloudRuntimeException("Unable to get " + algorithm, e);
+        }
+    }
+
+    /**
+     * Opens the file to write from the last checkpoint.  Anything written
+     * after the checkpoint is dropped.  If there's no checkpoint but the file
+     * has content, that content is read once to bring the digests up to date.
+     *
+     * @param resume false to start over with an empty file.
+     * @return the offset writing continues from.
+     */
+    public long open(boolean resume) throws IOException {
+        _raf = new RandomAccessFile(_file, "rw");
+        _channel = _raf.getChannel();
+
+        if (!resume) {
+            _channel.truncate(0);
+            _md5.reset();
+            _sha256.reset();
+            _position = 0;
+        } else if (_checkpointMd5 != null) {
+            _md5 = clone(_checkpointMd5);
+            _sha256 = clone(_checkpointSha256);
+            _position = _checkpoint;
+            _channel.truncate(_checkpoint);
+        } else {
+            _md5.reset();
+            _sha256.reset();
+            _position = 0;
+            ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+            long size = _channel.size();
+            while (_position < size) {
+                buffer.clear();
+                int read = _channel.read(buffer, _position);
+                if (read < 0) {
+                    break;
+                }
+                _md5.update(buffer.array(), 0, read);
+                _sha256.update(buffer.array(), 0, read);
+                _position += read;
+            }
+            checkpoint();
+        }
+        return _position;
+    }
+
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+        while (buffer.hasRemaining()) {
+            _position += _channel.write(buffer, _position);
+        }
+        _md5.update(bytes, offset, length);
+        _sha256.update(bytes, offset, length);
+
+        if (_position - _checkpoint >= _checkpointSize) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Digests length bytes at the current position that were written to the
+     * file by something else, such as the segments of a ranged download.
+     */
+    public void digestWritten(long length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+        long end = _position + length;
+        while (_position < end) {
+            buffer.clear();
+            buffer.limit((int)Math.min(buffer.capacity(), end - _position));
+            int read = _channel.read(buffer, _position);
+            if (read < 0) {
+                throw new IOException("Expected " + length + " bytes to have been written but " + _file + " ends at " + _position);
+            }
+            _md5.update(buffer.array(), 0, read);
+            _sha256.update(buffer.array(), 0, read);
+            _position += read;
+        }
+
+        if (_position - _checkpoint >= _checkpointSize) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Forces what's been written to disk and remembers the digests at this point.
+     */
+    public void checkpoint() throws IOException {
+        _channel.force(false);
+        _checkpoint = _position;
+        _checkpointMd5 = clone(_md5);
+        _checkpointSha256 = clone(_sha256);
+    }
+
+    protected static MessageDigest clone(MessageDigest digest) {
+        try {
+            return (MessageDigest)digest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new CloudRuntimeException("Unable to checkpoint " + digest.getAlgorithm(), e);
+        }
+    }
+
+    /**
+     * Closes the file.  It is checkpointed first if complete is true.
+     */
+    public void close(boolean complete) throws IOException {
+        if (_channel == null) {
+            return;
+        }
+        try {
+            if (complete) {
+                checkpoint();
+            }
+        } finally {
+            _raf.close();
+            _raf = null;
+            _channel = null;
+        }
+    }
+
+    public long getPosition() {
+        return _position;
+    }
+
+    public long getCheckpoint() {
+        return _checkpoint;
+    }
+
+    /**
+     * @return MD5 of everything written up to the last checkpoint, in hex.
+     */
+    public String getMd5() {
+        return _checkpointMd5 == null ? null : toHex(clone(_checkpointMd5).digest());
+    }
+
+    /**
+     * @return SHA-256 of everything written up to the last checkpoint, in hex.
+     */
+    public String getSha256() {
+        return _checkpointSha256 == null ? null : toHex(clone(_checkpointSha256).digest());
+    }
+
+    protected static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -96,6 +96,7 @@ public class DownloadManagerImpl implements DownloadManager {
         private String tmpltPath;
         private String description;
         private String checksum;
+        private String sha256Checksum;
         private Long accountId;
         private String installPathPrefix;
         private long templatesize;
@@ -209,6 +210,14 @@ public class DownloadManagerImpl implements DownloadManager {
         public void setCheckSum(String checksum) {
         	this.checksum = checksum;
         }
+
+        public String getSha256Checksum() {
+            return sha256Checksum;
+        }
+
+        public void setSha256Checksum(String sha256Checksum) {
+            this.sha256Checksum = sha256Checksum;
+        }
     }
 
     public static final Logger s_logger = Logger.getLogger(DownloadManagerImpl.class);
@@ -225,6 +234,8 @@ public class DownloadManagerImpl implements DownloadManager {
     private String listVolScr;
     private int installTimeoutPerGig = 180 * 60 * 1000;
     private boolean _sslCopy;
+    private int _downloadParallelism = 4;
+    private long _downloadSegmentSize = 64L * 1024 * 1024;
 
     /**
      * Get notified of change of job status. Executed in context of downloader thread
@@ -242,7 +253,7 @@ public class DownloadManagerImpl implements DownloadManager {
         }
         TemplateDownloader td = dj.getTemplateDownloader();
         s_logger.info("Download Completion for jobId: " + jobId + ", status=" + status);
-        s_logger.info("local: " + td.getDownloadLocalPath() + ", bytes=" + td.getDownloadedBytes() + ", error=" + td.getDownloadError() + ", pct=" + td.getDownloadPercent());
+        s_logger.info("local: " + td.getDownloadLocalPath() + ", bytes=" + td.getDownloadedBytes() + ", error=" + td.getDownloadError() + ", pct=" + td.getDownloadPercent() + ", rate=" + getDownloadRate(jobId) + " bytes/s");
 
         switch (status) {
         case ABORTED:
@@ -334,12 +345,18 @@ public class DownloadManagerImpl implements DownloadManager {
         _storage.mkdirs(resourcePath);
         dnld.setTmpltPath(finalResourcePath);
 
-        File originalTemplate = new File(td.getDownloadLocalPath());
-        String checkSum = computeCheckSum(originalTemplate);
+        // use the checksum computed while downloading if there is one, rather than reading the whole file again
+        String checkSum = td.getMd5Checksum();
+        boolean computedInline = checkSum != null;
+        if (checkSum == null) {
+            File originalTemplate = new File(td.getDownloadLocalPath());
+            checkSum = computeCheckSum(originalTemplate);
+        }
         if (checkSum == null) {
             s_logger.warn("Something wrong happened when try to calculate the checksum of downloaded template!");
         }
         dnld.setCheckSum(checkSum);
+        dnld.setSha256Checksum(td.getSha256Checksum());
 
         int imgSizeGigs = (int) Math.ceil(_storage.getSize(td.getDownloadLocalPath()) * 1.0d / (1024 * 1024 * 1024));
         imgSizeGigs++; // add one just in case
@@ -373,6 +390,9 @@ public class DownloadManagerImpl implements DownloadManager {
         scr.add("-f", td.getDownloadLocalPath());
         if (dnld.getChecksum() != null && dnld.getChecksum().length() > 1) {
             scr.add("-c", dnld.getChecksum());
+            if (computedInline) {
+                scr.add("-k");
+            }
         }
         scr.add("-u"); // cleanup
         String result;
@@ -482,7 +502,9 @@ public class DownloadManagerImpl implements DownloadManager {
             TemplateDownloader td;
             if ((uri != null) && (uri.getScheme() != null)) {
                 if (uri.getScheme().equalsIgnoreCase("http") || uri.getScheme().equalsIgnoreCase("https")) {
-                    td = new HttpTemplateDownloader(_storage, url, tmpDir, new Completion(jobId), maxTemplateSizeInBytes, user, password, proxy, resourceType);
+                    HttpTemplateDownloader httpDownloader = new HttpTemplateDownloader(_storage, url, tmpDir, new Completion(jobId), maxTemplateSizeInBytes, user, password, proxy, resourceType);
+                    httpDownloader.setSegmentation(_downloadParallelism, _downloadSegmentSize);
+                    td = httpDownloader;
                 } else if (uri.getScheme().equalsIgnoreCase("file")) {
                     td = new LocalTemplateDownloader(_storage, url, tmpDir, maxTemplateSizeInBytes, new Completion(jobId));
                 } else if (uri.getScheme().equalsIgnoreCase("scp")) {
@@ -533,6 +555,28 @@ public class DownloadManagerImpl implements DownloadManager {
         return null;
     }
 
+    public String getDownloadSha256CheckSum(String jobId) {
+        DownloadJob dj = jobs.get(jobId);
+        if (dj != null) {
+            return dj.getSha256Checksum();
+        }
+        return null;
+    }
+
+    /**
+     * @return bytes per second the job has downloaded at so far.
+     */
+    public long getDownloadRate(String jobId) {
+        DownloadJob dj = jobs.get(jobId);
+        if (dj != null) {
+            TemplateDownloader td = dj.getTemplateDownloader();
+            if (td.getDownloadTime() > 0) {
+                return td.getDownloadedBytes() * 1000 / td.getDownloadTime();
+            }
+        }
+        return 0;
+    }
+
     public long getDownloadTemplatePhysicalSize(String jobId) {
         DownloadJob dj = jobs.get(jobId);
         if (dj != null) {
@@ -622,8 +666,19 @@ public class DownloadManagerImpl implements DownloadManager {
         if (jobId == null) {
             return new DownloadAnswer("Internal Error", VMTemplateStorageResourceAssoc.Status.DOWNLOAD_ERROR);
         }
-        return new DownloadAnswer(jobId, getDownloadPct(jobId), getDownloadError(jobId), getDownloadStatus2(jobId), getDownloadLocalPath(jobId), getInstallPath(jobId),
+        DownloadAnswer answer = new DownloadAnswer(jobId, getDownloadPct(jobId), getDownloadError(jobId), getDownloadStatus2(jobId), getDownloadLocalPath(jobId), getInstallPath(jobId),
                 getDownloadTemplateSize(jobId), getDownloadTemplateSize(jobId), getDownloadCheckSum(jobId));
+        setDownloadStats(answer, jobId);
+        return answer;
+    }
+
+    private void setDownloadStats(DownloadAnswer answer, String jobId) {
+        answer.setSha256CheckSum(getDownloadSha256CheckSum(jobId));
+        answer.setDownloadRate(getDownloadRate(jobId));
+        DownloadJob dj = jobs.get(jobId);
+        if (dj != null && dj.getTemplateDownloader() instanceof HttpTemplateDownloader) {
+            answer.setSegmentPcts(((HttpTemplateDownloader)dj.getTemplateDownloader()).getSegmentPercents());
+        }
     }
 
     private void sleep() {
@@ -666,13 +721,16 @@ public class DownloadManagerImpl implements DownloadManager {
             td.stopDownload();
             answer = new DownloadAnswer(jobId, getDownloadPct(jobId), getDownloadError(jobId), getDownloadStatus2(jobId), getDownloadLocalPath(jobId),
                     getInstallPath(jobId), getDownloadTemplateSize(jobId), getDownloadTemplatePhysicalSize(jobId), getDownloadCheckSum(jobId));
+            setDownloadStats(answer, jobId);
             jobs.remove(jobId);
             return answer;
         default:
             break; // TODO
         }
-        return new DownloadAnswer(jobId, getDownloadPct(jobId), getDownloadError(jobId), getDownloadStatus2(jobId), getDownloadLocalPath(jobId),
+        answer = new DownloadAnswer(jobId, getDownloadPct(jobId), getDownloadError(jobId), getDownloadStatus2(jobId), getDownloadLocalPath(jobId),
                 getInstallPath(jobId), getDownloadTemplateSize(jobId), getDownloadTemplatePhysicalSize(jobId), getDownloadCheckSum(jobId));
+        setDownloadStats(answer, jobId);
+        return answer;
     }
 
     private String getInstallPath(String jobId) {
@@ -911,6 +969,21 @@ public class DownloadManagerImpl implements DownloadManager {
         value = (String) params.get("install.timeout.pergig");
         this.installTimeoutPerGig = NumbersUtil.parseInt(value, 15 * 60) * 1000;
 
+        value = (String) params.get("download.parallelism");
+        _downloadParallelism = NumbersUtil.parseInt(value, 4);
+        if (_downloadParallelism < 1) {
+            s_logger.warn("Invalid download.parallelism " + value + ", using 4");
+            _downloadParallelism = 4;
+        }
+
+        value = (String) params.get("download.segment.size");
+        long segmentSizeInMB = NumbersUtil.parseLong(value, 64);
+        if (segmentSizeInMB <= 0) {
+            s_logger.warn("Invalid download.segment.size " + value + ", using 64");
+            segmentSizeInMB = 64;
+        }
+        _downloadSegmentSize = segmentSizeInMB * 1024 * 1024;
+
         value = (String) params.get("install.numthreads");
         final int numInstallThreads = NumbersUtil.parseInt(value, 10);
 
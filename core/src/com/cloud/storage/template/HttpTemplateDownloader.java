@@ -23,7 +23,19 @@ import java.net.InetAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.httpclient.ChunkedInputStream;
 import org.apache.commons.httpclient.Credentials;
@@ -33,10 +45,12 @@ import org.apache.commons.httpclient.HttpException;
 import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.HttpMethodRetryHandler;
 import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.NoHttpResponseException;
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
 import org.apache.commons.httpclient.auth.AuthScope;
 import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.HeadMethod;
 import org.apache.commons.httpclient.params.HttpMethodParams;
 import org.apache.log4j.Logger;
 import org.jnetpcap.util.resolver.Resolver.ResolverType;
@@ -44,6 +58,7 @@ import org.jnetpcap.util.resolver.Resolver.ResolverType;
 import com.cloud.agent.api.storage.DownloadCommand.Proxy;
 import com.cloud.agent.api.storage.DownloadCommand.ResourceType;
 import com.cloud.storage.StorageLayer;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.Pair;
 
@@ -56,6 +71,7 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 	public static final Logger s_logger = Logger.getLogger(HttpTemplateDownloader.class.getName());
 
 	private static final int CHUNK_SIZE = 1024*1024; //1M
+	private static final int SEGMENT_RETRIES = 3;
 	private String downloadUrl;
 	private String toFile;
 	public TemplateDownloader.Status status= TemplateDownloader.Status.NOT_STARTED;
@@ -74,6 +90,11 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 	private long MAX_TEMPLATE_SIZE_IN_BYTES;
 	private ResourceType resourceType = ResourceType.TEMPLATE;
 	private final HttpMethodRetryHandler myretryhandler;
+	private DigestingFileWriter writer;
+	private int parallelism = 1;
+	private long segmentSize = 64L*1024*1024;
+	private volatile Segment[] segments;
+	private final Set<GetMethod> segmentRequests = Collections.newSetFromMap(new ConcurrentHashMap<GetMethod, Boolean>());
 
 	
 
@@ -86,7 +107,7 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 		this.MAX_TEMPLATE_SIZE_IN_BYTES = maxTemplateSizeInBytes;
 		
 		this.totalBytes = 0;
-		this.client = new HttpClient();
+		this.client = new HttpClient(new MultiThreadedHttpConnectionManager());
 
 		myretryhandler = new HttpMethodRetryHandler() {
 		    public boolean retryMethod(
@@ -124,6 +145,7 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 			}
 			
 			toFile = f.getAbsolutePath();
+			writer = new DigestingFileWriter(f, DigestingFileWriter.DEFAULT_CHECKPOINT_SIZE);
 			Pair<String, Integer> hostAndPort = validateUrl(downloadUrl);
 			
 			if (proxy != null) {
@@ -206,21 +228,38 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 		}
         int bytes=0;
 		File file = new File(toFile);
+		boolean opened = false;
 		try {
 			
-			long localFileSize = 0;
-			if (file.exists() && resume) {
-				localFileSize = file.length();
-				s_logger.info("Resuming download to file (current size)=" + localFileSize);
+			// resumes from the last point the file was forced to disk, what came after may not have made it
+			long localFileSize = writer.open(file.exists() && resume);
+			opened = true;
+			if (localFileSize > 0) {
+				s_logger.info("Resuming download to file (checkpointed size)=" + localFileSize);
 			}
+			totalBytes = localFileSize;
 			
             Date start = new Date();
 
+            if (localFileSize == 0 && parallelism > 1) {
+                long length = getRangedLength();
+                if (status == Status.UNRECOVERABLE_ERROR) {
+                    return 0;
+                }
+                if (length > segmentSize) {
+                    downloadSegments(file, length);
+                    writer.close(status == TemplateDownloader.Status.DOWNLOAD_FINISHED);
+                    opened = false;
+                    downloadTime += new Date().getTime() - start.getTime();
+                    return status == TemplateDownloader.Status.DOWNLOAD_FINISHED ? totalBytes : 0;
+                }
+            }
+
 			int responseCode=0;
 			
 			if (localFileSize > 0 ) {
 				// require partial content support for resume
-				request.addRequestHeader("Range", "bytes=" + localFileSize + "-");
+				request.setRequestHeader("Range", "bytes=" + localFileSize + "-");
 				if (client.executeMethod(request) != HttpStatus.SC_PARTIAL_CONTENT) {
 					errorString = "HTTP Server does not support partial get";
 					status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
@@ -266,8 +305,6 @@ public class HttpTemplateDownloader implements TemplateDownloader {
             InputStream in = !chunked?new BufferedInputStream(request.getResponseBodyAsStream())
             						: new ChunkedInputStream(request.getResponseBodyAsStream());
             
-            RandomAccessFile out = new RandomAccessFile(file, "rwd");
-            out.seek(localFileSize);
 
             s_logger.info("Starting download from " + getDownloadUrl() + " to " + toFile + " remoteSize=" + remoteSize + " , max size=" + MAX_TEMPLATE_SIZE_IN_BYTES);
             
@@ -277,9 +314,8 @@ public class HttpTemplateDownloader implements TemplateDownloader {
             status = TemplateDownloader.Status.IN_PROGRESS;
             while (!done && status != Status.ABORTED && offset <= remoteSize) {
             	if ( (bytes = in.read(block, 0, CHUNK_SIZE)) > -1) {
-            		out.write(block, 0, bytes);
+            		writer.write(block, 0, bytes);
             		offset +=bytes;
-            		out.seek(offset);
             		totalBytes += bytes;
             	} else {
             		done = true;
@@ -291,9 +327,10 @@ public class HttpTemplateDownloader implements TemplateDownloader {
             	status = TemplateDownloader.Status.DOWNLOAD_FINISHED;
             	downloaded = "(download complete remote=" + remoteSize + "bytes)";
             }
+            writer.close(status == TemplateDownloader.Status.DOWNLOAD_FINISHED);
+            opened = false;
             errorString = "Downloaded " + totalBytes + " bytes " + downloaded;
             downloadTime += finish.getTime() - start.getTime();
-            out.close();
             
             return totalBytes;
 		}catch (HttpException hte) {
@@ -303,6 +340,13 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 			status = TemplateDownloader.Status.UNRECOVERABLE_ERROR; //probably a file write error?
 			errorString = ioe.getMessage();
 		} finally {
+			if (opened) {
+				try {
+					writer.close(false);
+				} catch (IOException e) {
+					s_logger.warn("Unable to close " + toFile, e);
+				}
+			}
 			if (status == Status.UNRECOVERABLE_ERROR && file.exists() && !file.isDirectory()) {
 				file.delete();
 			}
@@ -314,6 +358,182 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 		return 0;
 	}
 
+	/**
+	 * @return the size of the download if the server can serve it in ranges, -1 if it can't.
+	 */
+	private long getRangedLength() throws IOException {
+		HeadMethod head = new HeadMethod(downloadUrl);
+		try {
+			if (client.executeMethod(head) != HttpStatus.SC_OK) {
+				return -1;
+			}
+			Header acceptRanges = head.getResponseHeader("Accept-Ranges");
+			Header contentLength = head.getResponseHeader("Content-Length");
+			if (acceptRanges == null || !acceptRanges.getValue().toLowerCase().contains("bytes") || contentLength == null) {
+				s_logger.info("Server doesn't serve " + downloadUrl + " in ranges, downloading it in one stream");
+				return -1;
+			}
+			long length = Long.parseLong(contentLength.getValue());
+			if (length > MAX_TEMPLATE_SIZE_IN_BYTES) {
+				s_logger.info("Remote size is too large: " + length + " , max=" + MAX_TEMPLATE_SIZE_IN_BYTES);
+				status = Status.UNRECOVERABLE_ERROR;
+				errorString = "Download file size is too large";
+				return -1;
+			}
+			return length;
+		} catch (NumberFormatException e) {
+			return -1;
+		} finally {
+			head.releaseConnection();
+		}
+	}
+
+	/**
+	 * Downloads the file in segments fetched in parallel, each written at its
+	 * offset.  The segments are digested in order as they complete, so the
+	 * checksum is ready when the last one is.
+	 */
+	private void downloadSegments(File file, long length) throws IOException {
+		remoteSize = length;
+		int count = (int)((length + segmentSize - 1) / segmentSize);
+		Segment[] segs = new Segment[count];
+		for (int i = 0; i < count; i++) {
+			long start = i * segmentSize;
+			segs[i] = new Segment(start, Math.min(segmentSize, length - start));
+		}
+		segments = segs;
+
+		s_logger.info("Starting download from " + getDownloadUrl() + " to " + toFile + " in " + count + " segments of " + segmentSize + " bytes, " + parallelism + " at a time");
+		status = TemplateDownloader.Status.IN_PROGRESS;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, count), new NamedThreadFactory("TemplateSegment"));
+		try {
+			FileChannel channel = raf.getChannel();
+			List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(count);
+			for (Segment seg : segs) {
+				futures.add(executor.submit(new SegmentTask(seg, channel)));
+			}
+
+			for (int i = 0; i < count; i++) {
+				boolean done = false;
+				try {
+					done = futures.get(i).get();
+				} catch (InterruptedException e) {
+					s_logger.warn("Interrupted while waiting for segment " + i);
+				} catch (ExecutionException e) {
+					s_logger.warn("Unable to download segment " + i, e.getCause());
+				}
+				if (!done) {
+					if (status != Status.ABORTED) {
+						status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
+						errorString = "Unable to download bytes " + segs[i].start + "-" + (segs[i].start + segs[i].length - 1) + " after " + SEGMENT_RETRIES + " attempts";
+					}
+					return;
+				}
+				writer.digestWritten(segs[i].length);
+			}
+
+			status = TemplateDownloader.Status.DOWNLOAD_FINISHED;
+			errorString = "Downloaded " + totalBytes + " bytes (download complete remote=" + remoteSize + "bytes)";
+		} finally {
+			executor.shutdownNow();
+			raf.close();
+		}
+	}
+
+	private synchronized void addDownloadedBytes(long bytes) {
+		totalBytes += bytes;
+	}
+
+	private static class Segment {
+		final long start;
+		final long length;
+		volatile long received;
+
+		Segment(long start, long length) {
+			this.start = start;
+			this.length = length;
+		}
+	}
+
+	private class SegmentTask implements Callable<Boolean> {
+		private final Segment seg;
+		private final FileChannel channel;
+
+		SegmentTask(Segment seg, FileChannel channel) {
+			this.seg = seg;
+			this.channel = channel;
+		}
+
+		@Override
+		public Boolean call() {
+			byte[] block = new byte[64 * 1024];
+			for (int attempt = 1; attempt <= SEGMENT_RETRIES && status == Status.IN_PROGRESS && seg.received < seg.length; attempt++) {
+				// a retry asks for what the previous attempt didn't get
+				GetMethod get = new GetMethod(downloadUrl);
+				get.getParams().setParameter(HttpMethodParams.RETRY_HANDLER, myretryhandler);
+				get.setRequestHeader("Range", "bytes=" + (seg.start + seg.received) + "-" + (seg.start + seg.length - 1));
+				segmentRequests.add(get);
+				try {
+					int responseCode = client.executeMethod(get);
+					if (responseCode != HttpStatus.SC_PARTIAL_CONTENT) {
+						s_logger.info("HTTP Server returned " + responseCode + " (expected 206 Partial Content) for bytes " + seg.start + "-" + (seg.start + seg.length - 1) + ", attempt " + attempt);
+						continue;
+					}
+					InputStream in = get.getResponseBodyAsStream();
+					while (seg.received < seg.length && status == Status.IN_PROGRESS) {
+						int bytes = in.read(block, 0, (int)Math.min(block.length, seg.length - seg.received));
+						if (bytes < 0) {
+							break;
+						}
+						ByteBuffer buffer = ByteBuffer.wrap(block, 0, bytes);
+						long position = seg.start + seg.received;
+						while (buffer.hasRemaining()) {
+							position += channel.write(buffer, position);
+						}
+						seg.received += bytes;
+						addDownloadedBytes(bytes);
+					}
+				} catch (IOException e) {
+					s_logger.info("Unable to download bytes " + seg.start + "-" + (seg.start + seg.length - 1) + ", attempt " + attempt + ": " + e.getMessage());
+				} finally {
+					segmentRequests.remove(get);
+					get.releaseConnection();
+				}
+			}
+			return seg.received == seg.length;
+		}
+	}
+
+	/**
+	 * Download in segments fetched over parallel connections when the server supports ranges.
+	 * @param parallelism connections to use, 1 downloads in one stream.
+	 * @param segmentSize bytes in each segment, smaller downloads are done in one stream.
+	 */
+	public void setSegmentation(int parallelism, long segmentSize) {
+		this.parallelism = parallelism;
+		this.segmentSize = segmentSize;
+		MultiThreadedHttpConnectionManager connections = (MultiThreadedHttpConnectionManager)client.getHttpConnectionManager();
+		connections.getParams().setDefaultMaxConnectionsPerHost(Math.max(parallelism, 2));
+		connections.getParams().setMaxTotalConnections(Math.max(parallelism, 2) * 2);
+	}
+
+	/**
+	 * @return percent downloaded of each segment, null if the download isn't segmented.
+	 */
+	public int[] getSegmentPercents() {
+		Segment[] segs = segments;
+		if (segs == null) {
+			return null;
+		}
+		int[] pcts = new int[segs.length];
+		for (int i = 0; i < segs.length; i++) {
+			pcts[i] = (int)(100.0 * segs[i].received / segs[i].length);
+		}
+		return pcts;
+	}
+
 	public String getDownloadUrl() {
 		return downloadUrl;
 	}
@@ -338,15 +558,28 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 		return totalBytes;
 	}
 
+	@Override
+	public String getMd5Checksum() {
+		return status == Status.DOWNLOAD_FINISHED || status == Status.POST_DOWNLOAD_FINISHED ? writer.getMd5() : null;
+	}
+
+	@Override
+	public String getSha256Checksum() {
+		return status == Status.DOWNLOAD_FINISHED || status == Status.POST_DOWNLOAD_FINISHED ? writer.getSha256() : null;
+	}
+
 	@Override
 	@SuppressWarnings("fallthrough")
 	public boolean stopDownload() {
 		switch (getStatus()) {
 		case IN_PROGRESS:
+			status = TemplateDownloader.Status.ABORTED;
 			if (request != null) {
 				request.abort();
 			}
-			status = TemplateDownloader.Status.ABORTED;
+			for (GetMethod segmentRequest : segmentRequests) {
+				segmentRequest.abort();
+			}
 			return true;
 		case UNKNOWN:
 		case NOT_STARTED:
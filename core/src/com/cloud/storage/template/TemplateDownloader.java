@@ -70,6 +70,18 @@ public interface TemplateDownloader extends Runnable{
 	 */
 	public long getDownloadedBytes();
 
+	/**
+	 * Get the MD5 computed while downloading
+	 * @return MD5 of the downloaded file in hex, null if the download isn't finished or the downloader doesn't compute it
+	 */
+	public String getMd5Checksum();
+
+	/**
+	 * Get the SHA-256 computed while downloading
+	 * @return SHA-256 of the downloaded file in hex, null if the download isn't finished or the downloader doesn't compute it
+	 */
+	public String getSha256Checksum();
+
 	/**
 	 * Get the error if any
 	 * @return error string if any
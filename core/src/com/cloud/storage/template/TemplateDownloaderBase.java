@@ -76,6 +76,16 @@ public abstract class TemplateDownloaderBase implements TemplateDownloader {
         return _totalBytes;
     }
 
+    @Override
+    public String getMd5Checksum() {
+        return null;
+    }
+
+    @Override
+    public String getSha256Checksum() {
+        return null;
+    }
+
     @Override
     public Status getStatus() {
         return _status;
@@ -0,0 +1,122 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.agent.resource.virtualnetwork;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.cloud.agent.api.GetDomRVersionCmd;
+import com.cloud.agent.api.routing.DhcpEntryCommand;
+import com.cloud.agent.api.routing.SavePasswordCommand;
+import com.cloud.agent.api.routing.SetPortForwardingRulesCommand;
+import com.cloud.agent.api.routing.SetStaticNatRulesCommand;
+import com.cloud.agent.api.to.PortForwardingRuleTO;
+import com.cloud.agent.api.to.StaticNatRuleTO;
+import com.cloud.network.rules.FirewallRule.Purpose;
+import com.cloud.network.rules.FirewallRule.State;
+import com.cloud.network.rules.PortForwardingRule;
+import com.cloud.utils.net.Ip;
+
+public class VirtualRoutingResourceTest extends TestCase {
+    private final VirtualRoutingResource _resource = new VirtualRoutingResource();
+
+    public void testPortForwardingConfig() {
+        PortForwardingRuleTO add = new PortForwardingRuleTO(rule("TCP", 22, 22, "10.1.1.5", 2222, 2222, State.Add), null, "10.0.0.5");
+        PortForwardingRuleTO revoke = new PortForwardingRuleTO(rule("UDP", 80, 81, "10.1.1.6", 8080, 8081, State.Revoke), null, "10.0.0.5");
+        List<String> lines = _resource.getRouterConfig(new SetPortForwardingRulesCommand(Arrays.asList(add, revoke)));
+        assertEquals(Arrays.asList(
+                "firewall.sh -A -P tcp -l 10.0.0.5 -p 22:22 -r 10.1.1.5 -d 2222:2222",
+                "firewall.sh -D -P udp -l 10.0.0.5 -p 80:81 -r 10.1.1.6 -d 8080:8081"), lines);
+    }
+
+    public void testStaticNatConfig() {
+        StaticNatRuleTO withProtocol = new StaticNatRuleTO(1, "10.0.0.5", 22, 22, "10.1.1.5", 22, 22, "TCP", false, true);
+        StaticNatRuleTO withoutProtocol = new StaticNatRuleTO(2, "10.0.0.6", null, null, "10.1.1.6", null, null, null, true, false);
+        List<String> lines = _resource.getRouterConfig(new SetStaticNatRulesCommand(Arrays.asList(withProtocol, withoutProtocol)));
+        assertEquals(Arrays.asList(
+                "firewall.sh -A -l 10.0.0.5 -r 10.1.1.5 -P tcp -d 22:22 -G",
+                "firewall.sh -D -l 10.0.0.6 -r 10.1.1.6 -d 0:0 -G"), lines);
+    }
+
+    public void testDhcpAndPasswordConfig() {
+        DhcpEntryCommand dhcp = new DhcpEntryCommand("02:00:00:00:00:01", "10.1.1.5", "vm-1");
+        assertEquals(Arrays.asList("edithosts.sh 02:00:00:00:00:01 10.1.1.5 vm-1"), _resource.getRouterConfig(dhcp));
+        dhcp.setDefaultRouter("10.1.1.1");
+        dhcp.setDefaultDns("10.1.1.2");
+        assertEquals(Arrays.asList("edithosts.sh 02:00:00:00:00:01 10.1.1.5 vm-1 10.1.1.1 10.1.1.2"), _resource.getRouterConfig(dhcp));
+
+        SavePasswordCommand password = new SavePasswordCommand("frperg", "10.1.1.5", "vm-1");
+        assertEquals(Arrays.asList("savepassword.sh -v 10.1.1.5 -p frperg"), _resource.getRouterConfig(password));
+    }
+
+    public void testUnbatchableCommand() {
+        assertNull(_resource.getRouterConfig(new GetDomRVersionCmd()));
+    }
+
+    public void testParseResults() {
+        List<String> config = Arrays.asList("edithosts.sh a", "edithosts.sh b", "savepassword.sh c", "edithosts.sh d");
+        int[] results = VirtualRoutingResource.parseRouterConfigResults(config, "noise\n1:0\n 2:3 \n4:0\n9:0\n0:1\nx:1\n", false);
+        // the third line never ran, out of range line numbers are ignored
+        assertTrue(Arrays.toString(results), Arrays.equals(new int[] { 0, 3, -1, 0 }, results));
+
+        results = VirtualRoutingResource.parseRouterConfigResults(config, null, false);
+        assertTrue(Arrays.toString(results), Arrays.equals(new int[] { -1, -1, -1, -1 }, results));
+    }
+
+    public void testParseAtomicResults() {
+        List<String> config = Arrays.asList("firewall.sh -A a", "edithosts.sh b", "firewall.sh -A c");
+        int[] results = VirtualRoutingResource.parseRouterConfigResults(config, "1:0\n2:0\n3:0\n", true);
+        assertTrue(Arrays.toString(results), Arrays.equals(new int[] { 0, 0, 0 }, results));
+
+        // a failed line undoes the rules that were applied, but not the rest
+        results = VirtualRoutingResource.parseRouterConfigResults(config, "1:0\n2:0\n3:1\n", true);
+        assertTrue(Arrays.toString(results), Arrays.equals(new int[] { -1, 0, 1 }, results));
+
+        results = VirtualRoutingResource.parseRouterConfigResults(config, "1:0\n2:0\n3:1\n", false);
+        assertTrue(Arrays.toString(results), Arrays.equals(new int[] { 0, 0, 1 }, results));
+    }
+
+    private static PortForwardingRule rule(final String protocol, final int srcStart, final int srcEnd, final String dstIp, final int dstStart,
+            final int dstEnd, final State state) {
+        return (PortForwardingRule)Proxy.newProxyInstance(PortForwardingRule.class.getClassLoader(), new Class<?>[] { PortForwardingRule.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if (name.equals("getProtocol")) {
+                            return protocol;
+                        } else if (name.equals("getSourcePortStart")) {
+                            return srcStart;
+                        } else if (name.equals("getSourcePortEnd")) {
+                            return srcEnd;
+                        } else if (name.equals("getDestinationIpAddress")) {
+                            return new Ip(dstIp);
+                        } else if (name.equals("getDestinationPortStart")) {
+                            return dstStart;
+                        } else if (name.equals("getDestinationPortEnd")) {
+                            return dstEnd;
+                        } else if (name.equals("getState")) {
+                            return state;
+                        } else if (name.equals("getPurpose")) {
+                            return Purpose.PortForwarding;
+                        } else if (name.equals("getId")) {
+                            return 1L;
+                        }
+                        return null;
+                    }
+                });
+    }
+}
@@ -0,0 +1,80 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.agent.transport;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.PingRoutingWithNwGroupsCommand;
+import com.cloud.host.Host;
+import com.cloud.utils.Pair;
+import com.cloud.vm.VirtualMachine.State;
+
+/**
+ * Compares encoding and decoding a ping from a busy host with gson and with
+ * the binary codec.  Run it by hand:
+ *   java com.cloud.agent.transport.RequestCodecBenchmark [vms] [iterations]
+ */
+public class RequestCodecBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int vms = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+        HashMap<String, State> states = new HashMap<String, State>();
+        HashMap<String, Pair<Long, Long>> groups = new HashMap<String, Pair<Long, Long>>();
+        for (int i = 0; i < vms; i++) {
+            states.put("i-2-" + i + "-VM", i % 3 == 0 ? State.Stopped : State.Running);
+            groups.put("i-2-" + i + "-VM", new Pair<Long, Long>((long)i, (long)i * 7));
+        }
+        Command ping = new PingRoutingWithNwGroupsCommand(Host.Type.Routing, 5, states, groups);
+
+        run("gson", ping, (byte)0, iterations);
+        run("binary", ping, BinaryCommandCodec.getInstance().getTag(), iterations);
+    }
+
+    protected static void run(String name, Command cmd, byte capabilities, int iterations) throws Exception {
+        // Warm up before measuring.
+        for (int i = 0; i < iterations / 10; i++) {
+            roundTrip(cmd, capabilities);
+        }
+
+        long bytes = 0;
+        long encodeTime = 0;
+        long decodeTime = 0;
+        for (int i = 0; i < iterations; i++) {
+            Request req = new Request(2, 3, new Command[] { cmd }, true, false);
+            long start = System.nanoTime();
+            byte[] data = toBytes(req.toBytes(capabilities));
+            long encoded = System.nanoTime();
+            Request.parse(data).getCommands();
+            decodeTime += System.nanoTime() - encoded;
+            encodeTime += encoded - start;
+            bytes += data.length;
+        }
+
+        System.out.println(name + ": " + (bytes / iterations) + " bytes, encode " + (encodeTime / 1000 / iterations) + " us, decode " + (decodeTime / 1000 / iterations) + " us");
+    }
+
+    protected static void roundTrip(Command cmd, byte capabilities) throws Exception {
+        Request req = new Request(2, 3, new Command[] { cmd }, true, false);
+        Request.parse(toBytes(req.toBytes(capabilities))).getCommands();
+    }
+
+    protected static byte[] toBytes(ByteBuffer[] buffers) {
+        byte[] bytes = new byte[buffers[0].remaining() + buffers[1].remaining()];
+        int len = buffers[0].remaining();
+        buffers[0].get(bytes, 0, len);
+        buffers[1].get(bytes, len, bytes.length - len);
+        return bytes;
+    }
+}
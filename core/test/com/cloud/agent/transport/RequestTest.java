@@ -13,6 +13,7 @@
 package com.cloud.agent.transport;
 
 import java.nio.ByteBuffer;
+import java.util.HashMap;
 
 import junit.framework.TestCase;
 
@@ -22,18 +23,24 @@ import org.junit.Assert;
 
 import com.cloud.agent.api.Answer;
 import com.cloud.agent.api.Command;
+import com.cloud.agent.api.GetHostStatsAnswer;
 import com.cloud.agent.api.GetHostStatsCommand;
+import com.cloud.agent.api.PingRoutingWithNwGroupsCommand;
 import com.cloud.agent.api.SecStorageFirewallCfgCommand;
 import com.cloud.agent.api.UpdateHostPasswordCommand;
 import com.cloud.agent.api.storage.DownloadAnswer;
 import com.cloud.agent.api.storage.DownloadCommand;
 import com.cloud.exception.UnsupportedVersionException;
+import com.cloud.host.Host;
 import com.cloud.hypervisor.Hypervisor.HypervisorType;
 import com.cloud.serializer.GsonHelper;
 import com.cloud.storage.Storage.ImageFormat;
 import com.cloud.storage.Storage.TemplateType;
 import com.cloud.storage.VMTemplateStorageResourceAssoc.Status;
 import com.cloud.storage.VMTemplateVO;
+import com.cloud.utils.Pair;
+import com.cloud.vm.VirtualMachine.State;
+import com.google.gson.Gson;
 
 /**
  * 
@@ -44,6 +51,7 @@ import com.cloud.storage.VMTemplateVO;
 
 public class RequestTest extends TestCase {
     private static final Logger s_logger = Logger.getLogger(RequestTest.class);
+    private static final Gson s_gson = GsonHelper.getGson();
 
     public void testSerDeser() {
         s_logger.info("Testing serializing and deserializing works as expected");
@@ -122,6 +130,38 @@ public class RequestTest extends TestCase {
         compareRequest(cresp, sresp);
     }
 
+    public void testBinaryCodec() throws Exception {
+        s_logger.info("Testing the binary codec gives back the same commands as gson");
+        HashMap<String, State> states = new HashMap<String, State>();
+        states.put("i-2-3-VM", State.Running);
+        states.put("r-4-VM", State.Stopped);
+        HashMap<String, Pair<Long, Long>> groups = new HashMap<String, Pair<Long, Long>>();
+        groups.put("i-2-3-VM", new Pair<Long, Long>(7L, null));
+        PingRoutingWithNwGroupsCommand ping = new PingRoutingWithNwGroupsCommand(Host.Type.Routing, 5, states, groups);
+        UpdateHostPasswordCommand password = new UpdateHostPasswordCommand("abc", "def");
+        Request sreq = new Request(2, 3, new Command[] { ping, password }, true, false);
+        sreq.setSequence(892403717);
+
+        byte tag = BinaryCommandCodec.getInstance().getTag();
+        Request creq = Request.parse(getBytes(sreq.toBytes(tag)));
+        assertEquals(Request.Version.v4, creq.getVersion());
+        assertEquals(sreq.getSequence(), creq.getSequence());
+        assertEquals(sreq.getManagementServerId(), creq.getManagementServerId());
+        assertEquals(sreq.getViaAgentId(), creq.getViaAgentId());
+        assertEquals(sreq.stopOnError(), creq.stopOnError());
+        for (int i = 0; i < sreq.getCommands().length; i++) {
+            assertEquals(s_gson.toJson(sreq.getCommands()[i]), s_gson.toJson(creq.getCommands()[i]));
+        }
+
+        assertEquals("Peers that didn't announce the codec get json", Request.Version.v1, Request.parse(getBytes(sreq.toBytes((byte)0))).getVersion());
+
+        GetHostStatsCommand stats = new GetHostStatsCommand("hostguid", "hostname", 101);
+        Response sresp = new Response(creq, new Answer[] { new GetHostStatsAnswer(stats, 0.5, 1024, 2048, 3, 4, "host"), new Answer(password, true, "No Problem") });
+        Response cresp = Response.parse(getBytes(sresp.toBytes(tag)));
+        assertEquals(sresp.getSequence(), cresp.getSequence());
+        assertEquals(s_gson.toJson(sresp.getAnswers()), s_gson.toJson(cresp.getAnswers()));
+    }
+
     public void testDownload() {
         s_logger.info("Testing Download answer");
         VMTemplateVO template = new VMTemplateVO(1, "templatename", ImageFormat.QCOW2, true, true, true, TemplateType.USER, "url", true, 32, 1, "chksum", "displayText", true, 30, true,
@@ -158,6 +198,36 @@ public class RequestTest extends TestCase {
         }
     }
     
+    public void testDeflate() throws Exception {
+        s_logger.info("testDeflate");
+        int len = 800000;
+        ByteBuffer inputBuffer = ByteBuffer.allocate(len);
+        for (int i = 0; i < len; i++) {
+            inputBuffer.array()[i] = (byte)(i % 7);
+        }
+        ByteBuffer deflated = Request.doDeflate(inputBuffer, len);
+        assertTrue(deflated.remaining() < len);
+        ByteBuffer inflated = Request.doInflate(deflated, len);
+        assertEquals(inputBuffer, inflated);
+
+        s_logger.info("Peers with our capabilities get deflated requests, others gzipped ones");
+        GetHostStatsCommand cmd = new GetHostStatsCommand("hostguid", "hostname", 101);
+        Request sreq = new Request(2, 3, new Command[] { cmd }, true, true);
+        int threshold = Request.getCompressionThreshold();
+        Request.setCompressionThreshold(16);
+        try {
+            byte[] bytes = getBytes(sreq.toBytes(BinaryCommandCodec.getInstance().getTag()));
+            assertTrue((bytes[2] & 0x01) != 0);
+            assertEquals(s_gson.toJson(sreq.getCommands()), s_gson.toJson(Request.parse(bytes).getCommands()));
+
+            bytes = getBytes(sreq.toBytes());
+            assertTrue((bytes[3] & 0x80) != 0);
+            assertEquals(s_gson.toJson(sreq.getCommands()), s_gson.toJson(Request.parse(bytes).getCommands()));
+        } finally {
+            Request.setCompressionThreshold(threshold);
+        }
+    }
+
     public void testLogging() {
         s_logger.info("Testing Logging");
         GetHostStatsCommand cmd3 = new GetHostStatsCommand("hostguid", "hostname", 101);
@@ -181,6 +251,14 @@ public class RequestTest extends TestCase {
         logger.setLevel(level);
     }
 
+    protected byte[] getBytes(ByteBuffer[] buffers) {
+        byte[] bytes = new byte[buffers[0].remaining() + buffers[1].remaining()];
+        int len = buffers[0].remaining();
+        buffers[0].get(bytes, 0, len);
+        buffers[1].get(bytes, len, bytes.length - len);
+        return bytes;
+    }
+
     protected void compareRequest(Request req1, Request req2) {
         assert req1.getSequence() == req2.getSequence();
         assert req1.getAgentId() == req2.getAgentId();
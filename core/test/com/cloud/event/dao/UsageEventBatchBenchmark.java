@@ -0,0 +1,98 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.event.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.cloud.event.UsageEventVO;
+import com.cloud.utils.component.ComponentLocator;
+import com.cloud.utils.db.SearchCriteria;
+import com.cloud.utils.db.Transaction;
+
+/**
+ * Compares the per row cost of persist() and update() against persistBatch()
+ * and updateBatch() on the usage_event table.  It needs the database set up
+ * in db.properties; add rewriteBatchedStatements=true to db.cloud.url.params
+ * to see the full effect.  Run it by hand:
+ *   java com.cloud.event.dao.UsageEventBatchBenchmark [rows]
+ */
+public class UsageEventBatchBenchmark {
+    private static final String TYPE = "BATCH.BENCHMARK";
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        UsageEventDaoImpl dao = ComponentLocator.inject(UsageEventDaoImpl.class);
+
+        // Warm up the connection and statement caches before measuring.
+        runSingle(dao, rows / 10);
+        runBatch(dao, rows / 10);
+
+        long single = runSingle(dao, rows);
+        long batch = runBatch(dao, rows);
+        System.out.println("single: " + (single / rows) + " us/row, batch: " + (batch / rows) + " us/row");
+    }
+
+    protected static long runSingle(UsageEventDaoImpl dao, int rows) {
+        List<UsageEventVO> events = createEvents(rows);
+        Transaction txn = Transaction.open(Transaction.CLOUD_DB);
+        try {
+            long start = System.nanoTime();
+            txn.start();
+            List<UsageEventVO> persisted = new ArrayList<UsageEventVO>(rows);
+            for (UsageEventVO event : events) {
+                persisted.add(dao.persist(event));
+            }
+            for (UsageEventVO event : persisted) {
+                event.setProcessed(true);
+                dao.update(event.getId(), event);
+            }
+            txn.commit();
+            return (System.nanoTime() - start) / 1000;
+        } finally {
+            cleanup(dao);
+            txn.close();
+        }
+    }
+
+    protected static long runBatch(UsageEventDaoImpl dao, int rows) {
+        List<UsageEventVO> events = createEvents(rows);
+        Transaction txn = Transaction.open(Transaction.CLOUD_DB);
+        try {
+            long start = System.nanoTime();
+            txn.start();
+            List<UsageEventVO> persisted = dao.persistBatch(events);
+            for (UsageEventVO event : persisted) {
+                event.setProcessed(true);
+            }
+            dao.updateBatch(persisted);
+            txn.commit();
+            return (System.nanoTime() - start) / 1000;
+        } finally {
+            cleanup(dao);
+            txn.close();
+        }
+    }
+
+    protected static List<UsageEventVO> createEvents(int rows) {
+        List<UsageEventVO> events = new ArrayList<UsageEventVO>(rows);
+        for (int i = 0; i < rows; i++) {
+            events.add(new UsageEventVO(TYPE, 1, 1, i, "benchmark-" + i));
+        }
+        return events;
+    }
+
+    protected static void cleanup(UsageEventDaoImpl dao) {
+        SearchCriteria<UsageEventVO> sc = dao.createSearchCriteria();
+        sc.addAnd("type", SearchCriteria.Op.EQ, TYPE);
+        dao.expunge(sc);
+    }
+}
@@ -0,0 +1,109 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.storage.template;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class DigestingFileWriterTest extends TestCase {
+    protected static byte[] data(int size) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte)(i * 31);
+        }
+        return bytes;
+    }
+
+    protected static String digest(String algorithm, byte[] bytes) throws Exception {
+        return DigestingFileWriter.toHex(MessageDigest.getInstance(algorithm).digest(bytes));
+    }
+
+    @Test
+    public void testDigestsMatchTheFile() throws Exception {
+        File file = File.createTempFile("digest", ".tmp");
+        try {
+            byte[] bytes = data(10000);
+            DigestingFileWriter writer = new DigestingFileWriter(file, 4096);
+            assertEquals(0, writer.open(false));
+            writer.write(bytes, 0, 3000);
+            writer.write(bytes, 3000, 7000);
+            writer.close(true);
+
+            assertEquals(10000, file.length());
+            assertEquals(digest("MD5", bytes), writer.getMd5());
+            assertEquals(digest("SHA-256", bytes), writer.getSha256());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testDigestWrittenBySegments() throws Exception {
+        File file = File.createTempFile("digest", ".tmp");
+        try {
+            byte[] bytes = data(10000);
+            DigestingFileWriter writer = new DigestingFileWriter(file, 4096);
+            writer.open(false);
+
+            // segments written out of order through another channel
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.getChannel().write(ByteBuffer.wrap(bytes, 6000, 4000), 6000);
+            raf.getChannel().write(ByteBuffer.wrap(bytes, 0, 6000), 0);
+            raf.close();
+
+            writer.digestWritten(6000);
+            assertEquals(6000, writer.getCheckpoint());
+            writer.digestWritten(4000);
+            writer.close(true);
+
+            assertEquals(digest("MD5", bytes), writer.getMd5());
+            assertEquals(digest("SHA-256", bytes), writer.getSha256());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testResumeFromCheckpoint() throws Exception {
+        File file = File.createTempFile("digest", ".tmp");
+        try {
+            byte[] bytes = data(10000);
+            DigestingFileWriter writer = new DigestingFileWriter(file, 4096);
+            writer.open(false);
+            writer.write(bytes, 0, 5000);
+            writer.write(bytes, 5000, 1000);
+            // interrupted, what came after the checkpoint at 5000 is written again
+            writer.close(false);
+
+            long offset = writer.open(true);
+            assertEquals(5000, offset);
+            writer.write(bytes, 5000, 5000);
+            writer.close(true);
+
+            assertEquals(10000, file.length());
+            assertEquals(digest("MD5", bytes), writer.getMd5());
+
+            // a new writer has no checkpoint so it digests what's in the file
+            DigestingFileWriter again = new DigestingFileWriter(file, 4096);
+            assertEquals(10000, again.open(true));
+            again.close(true);
+            assertEquals(digest("SHA-256", bytes), again.getSha256());
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+#!/usr/bin/env bash
+# Copyright 2012 Citrix Systems, Inc. Licensed under the
+# Apache License, Version 2.0 (the "License"); you may not use this
+# file except in compliance with the License.  Citrix Systems, Inc.
+# reserves all rights not expressly granted by the License.
+# You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+# 
+# Automatically generated by addcopyright.py at 04/03/2012
+
+
+
+ 
+
+# apply_config.sh -- apply a batch of configuration to the router at once
+# Each line of the config file is a script of /root and its arguments, e.g.
+#   firewall.sh -A -P tcp -l 10.1.1.10 -p 22:22 -r 10.1.1.2 -d 22:22
+# The lines run under one hold of the lock.  Prints "<line number>:<exit code>"
+# for every line.  With -a, the iptables rules are put back as they were if a
+# line fails.
+
+source /root/func.sh
+
+usage() {
+  printf "Usage: %s: [-a] <config file>\n" $(basename $0) >&2
+  exit 2
+}
+
+aflag=
+while getopts 'a' OPTION
+do
+  case $OPTION in
+  a)    aflag=1
+        ;;
+  ?)    usage
+        ;;
+  esac
+done
+shift $(($OPTIND - 1))
+
+cfg=$1
+[ -f "$cfg" ] || usage
+
+lock="biglock"
+locked=$(getLockFile $lock)
+if [ "$locked" != "1" ]
+then
+    exit 1
+fi
+
+export CLOUD_LOCK_HELD=$lock
+export CLOUD_DEFER_DNSMASQ_RESTART=1
+
+saved=$(mktemp)
+[ "$aflag" == "1" ] && sudo iptables-save > $saved
+
+n=0
+failed=0
+dhcp=0
+while read line
+do
+  n=$((n+1))
+  [ -z "$line" ] && continue
+  script=$(echo $line | awk '{print $1}')
+  case $script in
+    firewall.sh|savepassword.sh)
+        ;;
+    edithosts.sh)
+        dhcp=1
+        ;;
+    *)
+        logger -t cloud "$(basename $0): unknown script $script on line $n"
+        echo "$n:2"
+        failed=1
+        continue
+        ;;
+  esac
+  /root/$line 1>&2 < /dev/null
+  ret=$?
+  echo "$n:$ret"
+  [ $ret -ne 0 ] && failed=1
+done < $cfg
+
+if [ "$aflag" == "1" ] && [ $failed -ne 0 ]
+then
+  logger -t cloud "$(basename $0): a line of $cfg failed, restoring the iptables rules"
+  sudo iptables-restore < $saved
+fi
+rm -f $saved
+
+if [ $dhcp -eq 1 ] && [ "$(pidof dnsmasq)" != "" ]
+then
+  service dnsmasq restart 1>&2
+fi
+
+logger -t cloud "$(basename $0): applied $n lines, failed=$failed"
+unset CLOUD_LOCK_HELD
+unlock_exit 0 $lock $locked
@@ -116,6 +116,12 @@ then
   echo "$mac,set:$tag,$ip,$host,infinite" >>$DHCP_HOSTS
 fi
 
+# a batch of entries restarts dnsmasq once, after the last one
+if [ -n "$CLOUD_DEFER_DNSMASQ_RESTART" ]
+then
+  unlock_exit 0 $lock $locked
+fi
+
 # make dnsmasq re-read files
 pid=$(pidof dnsmasq)
 if [ "$pid" != "" ]
@@ -13,11 +13,18 @@
 # Automatically generated by addcopyright.py at 04/03/2012
 
 # Only one lock is allowed: biglock
+# A script run by a script holding the lock, with CLOUD_LOCK_HELD set to the
+# name of the lock, runs under the lock of its parent.
 
 # getLockFile() parameters
 # $1 lock filename
 # $2 timeout seconds
 getLockFile() {
+    if [ "$CLOUD_LOCK_HELD" == "$1" ]
+    then
+        echo 1
+        return
+    fi
     __locked=0
     __LOCKFILE="/tmp/$1-$$.lock"
     if [ $2 ]
@@ -69,6 +76,10 @@ getLockFile() {
 # $1 lock filename
 # $2 locked(1) or not(0)
 releaseLockFile() {
+    if [ "$CLOUD_LOCK_HELD" == "$1" ]
+    then
+        return
+    fi
     __LOCKFILE="/tmp/$1-$$.lock"
     __locked=$2
     if [ "$__locked" == "1" ]
@@ -0,0 +1,74 @@
+#!/usr/bin/env bash
+# Copyright 2012 Citrix Systems, Inc. Licensed under the
+# Apache License, Version 2.0 (the "License"); you may not use this
+# file except in compliance with the License.  Citrix Systems, Inc.
+# reserves all rights not expressly granted by the License.
+# You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+# 
+# Automatically generated by addcopyright.py at 04/03/2012
+
+
+
+ 
+
+# router_config.sh -- apply a batch of configuration to domr in one ssh session
+# Prints "<line number>:<exit code>" for every line of the config file; exits
+# with a non zero code only if the batch could not be applied at all, 127 if
+# the router can't apply batches.
+
+usage() {
+  printf "Usage: %s: -r <domr-ip> -f <config file> [-a]\n" $(basename $0) >&2
+  exit 2
+}
+
+check_gw() {
+  ping -c 1 -n -q $1 > /dev/null
+  if [ $? -gt 0 ]
+  then
+    sleep 1
+    ping -c 1 -n -q $1 > /dev/null
+  fi
+  return $?;
+}
+
+cert="/root/.ssh/id_rsa.cloud"
+
+domrIp=
+cfg=
+aflag=
+
+while getopts 'r:f:a' OPTION
+do
+  case $OPTION in
+  r)	domrIp="$OPTARG"
+		;;
+  f)	cfg="$OPTARG"
+		;;
+  a)	aflag="-a"
+		;;
+  ?)	usage
+		;;
+  esac
+done
+
+if [ -z "$domrIp" ] || [ ! -f "$cfg" ]
+then
+  usage
+fi
+
+check_gw "$domrIp"
+if [ $? -gt 0 ]
+then
+  exit 1
+fi
+
+# the config is shipped on stdin of the ssh session that applies it; routers
+# from before apply_config.sh exit with 127 so that the rules are applied one
+# by one instead
+ssh -p 3922 -q -o StrictHostKeyChecking=no -i $cert root@$domrIp "[ -x /root/apply_config.sh ] || exit 127; cfg=\$(mktemp); cat > \$cfg; /root/apply_config.sh $aflag \$cfg; ret=\$?; rm -f \$cfg; exit \$ret" < $cfg
+exit $?
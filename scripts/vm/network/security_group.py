@@ -25,6 +25,7 @@ bash = Command("/bin/bash")
 virsh = Command("virsh")
 ebtablessave = Command("ebtables-save")
 ebtables = Command("ebtables")
+ipset_keyword = None
 def execute(cmd):
     logging.debug(cmd)
     return bash("-c", cmd).stdout
@@ -617,30 +618,39 @@ def add_network_rules(vm_name, vm_id, vm_ip, signature, seqno, vmMac, rules, vif
         if ruletype == 'E':
             vmchain = egress_chain_name(vm_name)
             direction = "-d"
+            set_direction = "dst"
             action = "RETURN"
             egressrule = egressrule + 1
         else:
             vmchain = vm_name
             action = "ACCEPT"
             direction = "-s"
+            set_direction = "src"
         if  '0.0.0.0/0' in ips:
             i = ips.index('0.0.0.0/0')
             del ips[i]
             allow_any = True
         range = start + ":" + end
-        if ips:    
+        # "@name" is the member set of a security group
+        matches = []
+        for ip in ips:
+            if ip.startswith('@'):
+                matches.append("-m set " + get_ipset_keyword() + " " + ip[1:] + " " + set_direction)
+            else:
+                matches.append(direction + " " + ip)
+        if matches:    
             if protocol == 'all':
-                for ip in ips:
-                    execute("iptables -I " + vmchain + " -m state --state NEW " + direction + " " + ip + " -j "+action)
+                for match in matches:
+                    execute("iptables -I " + vmchain + " -m state --state NEW " + match + " -j "+action)
             elif protocol != 'icmp':
-                for ip in ips:
-                    execute("iptables -I " + vmchain + " -p " + protocol + " -m " + protocol + " --dport " + range + " -m state --state NEW " + direction + " " + ip + " -j "+ action)
+                for match in matches:
+                    execute("iptables -I " + vmchain + " -p " + protocol + " -m " + protocol + " --dport " + range + " -m state --state NEW " + match + " -j "+ action)
             else:
                 range = start + "/" + end
                 if start == "-1":
                     range = "any"
-                    for ip in ips:
-                        execute("iptables -I " + vmchain + " -p icmp --icmp-type " + range + " " + direction + "  " + ip + " -j "+ action)
+                    for match in matches:
+                        execute("iptables -I " + vmchain + " -p icmp --icmp-type " + range + " " + match + " -j "+ action)
         
         if allow_any and protocol != 'all':
             if protocol != 'icmp':
@@ -670,6 +680,61 @@ def add_network_rules(vm_name, vm_id, vm_ip, signature, seqno, vmMac, rules, vif
   except:
     logging.debug("Failed to network rule !: " + sys.exc_type)
 
+def get_ipset_keyword():
+    global ipset_keyword
+    if ipset_keyword is None:
+        try:
+            execute("iptables -m set --help | grep -q -- --match-set")
+            ipset_keyword = "--match-set"
+        except:
+            ipset_keyword = "--set"
+    return ipset_keyword
+
+def in_member_set(set_name, ip):
+    try:
+        execute("ipset -T " + set_name + " " + ip)
+        return True
+    except:
+        return False
+
+def update_member_set(set_name, full, continued, more, added, removed):
+    added = [ip for ip in (added or "").split(",") if ip]
+    removed = [ip for ip in (removed or "").split(",") if ip]
+    try:
+        if full:
+            # the set is built aside, over as many calls as it takes, and swapped in once it is
+            # complete, so the rules using it never see it partly filled
+            tmp_name = set_name + "_tmp"
+            if not continued:
+                try:
+                    execute("ipset -N " + set_name + " iphash")
+                except:
+                    logging.debug("ipset " + set_name + " already exists")
+                try:
+                    execute("ipset -X " + tmp_name)
+                except:
+                    pass
+                execute("ipset -N " + tmp_name + " iphash")
+            for ip in added:
+                execute("ipset -A " + tmp_name + " " + ip)
+            if not more:
+                execute("ipset -W " + tmp_name + " " + set_name)
+                execute("ipset -X " + tmp_name)
+        else:
+            # a set this host doesn't have fails the update, and is then sent in full
+            execute("ipset -L " + set_name + " > /dev/null")
+            for ip in added:
+                if not in_member_set(set_name, ip):
+                    execute("ipset -A " + set_name + " " + ip)
+            for ip in removed:
+                if in_member_set(set_name, ip):
+                    execute("ipset -D " + set_name + " " + ip)
+        logging.debug("Programmed member set " + set_name + " full=" + str(full) + " more=" + str(more) + " added=" + str(len(added)) + " removed=" + str(len(removed)))
+        return True
+    except:
+        logging.debug("Failed to program member set " + set_name)
+        return False
+
 def getVifs(vmName):
     vifs = []
     try:
@@ -756,6 +821,12 @@ if __name__ == '__main__':
     parser.add_option("--dhcpSvr", dest="dhcpSvr")
     parser.add_option("--hostIp", dest="hostIp")
     parser.add_option("--hostMacAddr", dest="hostMacAddr")
+    parser.add_option("--setname", dest="setName")
+    parser.add_option("--full", dest="full", action="store_true", default=False)
+    parser.add_option("--continued", dest="continued", action="store_true", default=False)
+    parser.add_option("--more", dest="more", action="store_true", default=False)
+    parser.add_option("--added", dest="added")
+    parser.add_option("--removed", dest="removed")
     (option, args) = parser.parse_args()
     cmd = args[0]
     if cmd == "can_bridge_firewall":
@@ -772,5 +843,8 @@ if __name__ == '__main__':
         add_network_rules(option.vmName, option.vmID, option.vmIP, option.sig, option.seq, option.vmMAC, option.rules, option.vif, option.brname)
     elif cmd == "cleanup_rules":
         cleanup_rules()
+    elif cmd == "update_member_set":
+        if not update_member_set(option.setName, option.full, option.continued, option.more, option.added, option.removed):
+            sys.exit(1)
     elif cmd == "post_default_network_rules":
         post_default_network_rules(option.vmName, option.vmID, option.vmIP, option.vmMAC, option.vif, option.brname, option.dhcpSvr, option.hostIp, option.hostMacAddr)
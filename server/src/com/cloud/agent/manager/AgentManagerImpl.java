@@ -271,9 +271,12 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
 
         _executor = new ThreadPoolExecutor(threads, threads, 60l, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("AgentTaskPool"));
 
-        _connection = new NioServer("AgentManager", _port, workers + 10, this);
+        final int selectors = NumbersUtil.parseInt(configs.get(Config.AgentSelectors.key()), 0);
+        final int queueSize = NumbersUtil.parseInt(configs.get(Config.AgentHandlerQueueSize.key()), 0);
+        Request.setCompressionThreshold(NumbersUtil.parseInt(configs.get(Config.AgentCompressionThreshold.key()), Request.getCompressionThreshold()));
+        _connection = new NioServer("AgentManager", _port, workers + 10, queueSize, selectors, this);
 
-        s_logger.info("Listening on " + _port + " with " + workers + " workers");
+        s_logger.info("Listening on " + _port + " with " + workers + " workers and " + selectors + " selectors");
         return true;
     }
 
@@ -1135,7 +1138,7 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
         }
         
         try {
-        	link.send(response.toBytes());
+        	link.send(response.toBytes(link.getPeerCapabilities()));
         } catch (ClosedChannelException e) {
         	s_logger.debug("Failed to send startupanswer: " + e.toString());
         	return null;
@@ -1333,7 +1336,7 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
                 }
             }
             try {
-                link.send(response.toBytes());
+                link.send(response.toBytes(link.getPeerCapabilities()));
             } catch (final ClosedChannelException e) {
                 s_logger.warn("Unable to send response because connection is closed: " + response);
             }
@@ -1358,6 +1361,7 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
                 if (type == Task.Type.DATA) {
                     final byte[] data = task.getData();
                     try {
+                        task.getLink().setPeerCapabilities(Request.getCapabilities(data));
                         final Request event = Request.parse(data);
                         if (event instanceof Response) {
                             processResponse(task.getLink(), (Response) event);
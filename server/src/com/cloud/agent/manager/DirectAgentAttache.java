@@ -25,6 +25,7 @@ import com.cloud.agent.AgentManager;
 import com.cloud.agent.api.Answer;
 import com.cloud.agent.api.Command;
 import com.cloud.agent.api.CronCommand;
+import com.cloud.agent.api.PingAnswer;
 import com.cloud.agent.api.PingCommand;
 import com.cloud.agent.api.StartupAnswer;
 import com.cloud.agent.transport.Request;
@@ -32,6 +33,7 @@ import com.cloud.agent.transport.Response;
 import com.cloud.exception.AgentUnavailableException;
 import com.cloud.host.Status;
 import com.cloud.host.Status.Event;
+import com.cloud.resource.PingAnswerListener;
 import com.cloud.resource.ServerResource;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 
@@ -151,6 +153,9 @@ public class DirectAgentAttache extends AgentAttache {
                     }
 
                     _mgr.handleCommands(DirectAgentAttache.this, seq, new Command[]{cmd});
+                    if (resource instanceof PingAnswerListener) {
+                        ((PingAnswerListener) resource).processPingAnswer(new PingAnswer(cmd));
+                    }
                 } else {
                     s_logger.debug("Unable to send ping because agent is disconnected " + _id);
                 }
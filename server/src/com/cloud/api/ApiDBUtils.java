@@ -12,6 +12,8 @@
 // Automatically generated by addcopyright.py at 04/03/2012
 package com.cloud.api;
 
+import java.io.Serializable;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
@@ -64,6 +66,7 @@ import com.cloud.network.dao.LoadBalancerDao;
 import com.cloud.network.dao.NetworkDao;
 import com.cloud.network.dao.NetworkDomainDao;
 import com.cloud.network.dao.NetworkRuleConfigDao;
+import com.cloud.network.router.VirtualRouter;
 import com.cloud.network.security.SecurityGroup;
 import com.cloud.network.security.SecurityGroupManager;
 import com.cloud.network.security.SecurityGroupVO;
@@ -91,6 +94,7 @@ import com.cloud.storage.UploadVO;
 import com.cloud.storage.VMTemplateHostVO;
 import com.cloud.storage.VMTemplateSwiftVO;
 import com.cloud.storage.VMTemplateVO;
+import com.cloud.storage.Volume;
 import com.cloud.storage.VolumeHostVO;
 import com.cloud.storage.Storage.ImageFormat;
 import com.cloud.storage.Volume.Type;
@@ -121,6 +125,7 @@ import com.cloud.uservm.UserVm;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.Pair;
 import com.cloud.utils.component.ComponentLocator;
+import com.cloud.utils.db.GenericDao;
 import com.cloud.vm.ConsoleProxyVO;
 import com.cloud.vm.DomainRouterVO;
 import com.cloud.vm.InstanceGroupVO;
@@ -246,12 +251,109 @@ public class ApiDBUtils {
         _statsCollector = StatsCollector.getInstance();
     }
 
+    /**
+     * Looks the entity up through the ApiLookupContext of the request, if there is one.
+     */
+    private static <T, ID extends Serializable> T find(GenericDao<T, ID> dao, ID id, boolean includingRemoved) {
+        ApiLookupContext ctx = ApiLookupContext.current();
+        if (ctx != null) {
+            return ctx.find(dao, id, includingRemoved);
+        }
+        return includingRemoved ? dao.findByIdIncludingRemoved(id) : dao.findById(id);
+    }
+
+    // ///////////////////////////////////////////////////////////
+    // Prefetch methods, load what a page of responses looks up with one query per table //
+    // ///////////////////////////////////////////////////////////
+
+    public static void prefetchForVms(List<? extends UserVm> vms) {
+        ApiLookupContext ctx = ApiLookupContext.current();
+        if (ctx == null || vms.isEmpty()) {
+            return;
+        }
+        Set<Long> accountIds = new HashSet<Long>();
+        Set<Long> domainIds = new HashSet<Long>();
+        Set<Long> zoneIds = new HashSet<Long>();
+        Set<Long> hostIds = new HashSet<Long>();
+        Set<Long> templateIds = new HashSet<Long>();
+        Set<Long> offeringIds = new HashSet<Long>();
+        for (UserVm vm : vms) {
+            accountIds.add(vm.getAccountId());
+            domainIds.add(vm.getDomainId());
+            zoneIds.add(vm.getDataCenterIdToDeployIn());
+            hostIds.add(vm.getHostId());
+            templateIds.add(vm.getTemplateId());
+            offeringIds.add(vm.getServiceOfferingId());
+        }
+        ctx.prefetch(_accountDao, accountIds, true);
+        ctx.prefetch(_domainDao, domainIds, true);
+        ctx.prefetch(_zoneDao, zoneIds, false);
+        ctx.prefetch(_hostDao, hostIds, true);
+        ctx.prefetch(_templateDao, templateIds, true);
+        ctx.prefetch(_serviceOfferingDao, offeringIds, true);
+    }
+
+    public static void prefetchForVolumes(List<? extends Volume> volumes) {
+        ApiLookupContext ctx = ApiLookupContext.current();
+        if (ctx == null || volumes.isEmpty()) {
+            return;
+        }
+        Set<Long> accountIds = new HashSet<Long>();
+        Set<Long> domainIds = new HashSet<Long>();
+        Set<Long> zoneIds = new HashSet<Long>();
+        Set<Long> vmIds = new HashSet<Long>();
+        Set<Long> offeringIds = new HashSet<Long>();
+        Set<Long> poolIds = new HashSet<Long>();
+        Set<Long> templateIds = new HashSet<Long>();
+        for (Volume volume : volumes) {
+            accountIds.add(volume.getAccountId());
+            domainIds.add(volume.getDomainId());
+            zoneIds.add(volume.getDataCenterId());
+            vmIds.add(volume.getInstanceId());
+            offeringIds.add(volume.getDiskOfferingId());
+            poolIds.add(volume.getPoolId());
+            templateIds.add(volume.getTemplateId());
+        }
+        ctx.prefetch(_accountDao, accountIds, true);
+        ctx.prefetch(_domainDao, domainIds, true);
+        ctx.prefetch(_zoneDao, zoneIds, false);
+        ctx.prefetch(_vmDao, vmIds, false);
+        ctx.prefetch(_userVmDao, vmIds, false);
+        ctx.prefetch(_diskOfferingDao, offeringIds, true);
+        ctx.prefetch(_storagePoolDao, poolIds, true);
+        ctx.prefetch(_templateDao, templateIds, true);
+    }
+
+    public static void prefetchForRouters(List<? extends VirtualRouter> routers) {
+        ApiLookupContext ctx = ApiLookupContext.current();
+        if (ctx == null || routers.isEmpty()) {
+            return;
+        }
+        Set<Long> accountIds = new HashSet<Long>();
+        Set<Long> domainIds = new HashSet<Long>();
+        Set<Long> zoneIds = new HashSet<Long>();
+        Set<Long> hostIds = new HashSet<Long>();
+        Set<Long> offeringIds = new HashSet<Long>();
+        for (VirtualRouter router : routers) {
+            accountIds.add(router.getAccountId());
+            domainIds.add(router.getDomainId());
+            zoneIds.add(router.getDataCenterIdToDeployIn());
+            hostIds.add(router.getHostId());
+            offeringIds.add(router.getServiceOfferingId());
+        }
+        ctx.prefetch(_accountDao, accountIds, true);
+        ctx.prefetch(_domainDao, domainIds, true);
+        ctx.prefetch(_zoneDao, zoneIds, false);
+        ctx.prefetch(_hostDao, hostIds, true);
+        ctx.prefetch(_serviceOfferingDao, offeringIds, true);
+    }
+
     // ///////////////////////////////////////////////////////////
     // ManagementServer methods //
     // ///////////////////////////////////////////////////////////
 
     public static VMInstanceVO findVMInstanceById(long vmId) {
-        return _vmDao.findById(vmId);
+        return find(_vmDao, vmId, false);
     }
 
     public static long getMemoryOrCpuCapacitybyHost(Long hostId, short capacityType) {
@@ -385,11 +487,11 @@ public class ApiDBUtils {
     // ///////////////////////////////////////////////////////////
 
     public static Account findAccountById(Long accountId) {
-        return _accountDao.findByIdIncludingRemoved(accountId);
+        return find(_accountDao, accountId, true);
     }
 
     public static Account findAccountByIdIncludingRemoved(Long accountId) {
-        return _accountDao.findByIdIncludingRemoved(accountId);
+        return find(_accountDao, accountId, true);
     }
 
     public static Account findAccountByNameDomain(String accountName, Long domainId) {
@@ -401,15 +503,15 @@ public class ApiDBUtils {
     }
 
     public static DiskOfferingVO findDiskOfferingById(Long diskOfferingId) {
-        return _diskOfferingDao.findByIdIncludingRemoved(diskOfferingId);
+        return find(_diskOfferingDao, diskOfferingId, true);
     }
 
     public static DomainVO findDomainById(Long domainId) {
-        return _domainDao.findByIdIncludingRemoved(domainId);
+        return find(_domainDao, domainId, true);
     }
 
     public static DomainVO findDomainByIdIncludingRemoved(Long domainId) {
-        return _domainDao.findByIdIncludingRemoved(domainId);
+        return find(_domainDao, domainId, true);
     }
 
     public static DomainRouterVO findDomainRouterById(Long routerId) {
@@ -425,7 +527,7 @@ public class ApiDBUtils {
     }
     
     public static HostVO findHostById(Long hostId) {
-        return _hostDao.findByIdIncludingRemoved(hostId);
+        return find(_hostDao, hostId, true);
     }
 
     public static IPAddressVO findIpAddressById(long addressId) {
@@ -459,7 +561,7 @@ public class ApiDBUtils {
     }
 
     public static HostPodVO findPodById(Long podId) {
-        return _podDao.findById(podId);
+        return find(_podDao, podId, false);
     }
 
     public static VolumeVO findRootVolume(long vmId) {
@@ -472,7 +574,7 @@ public class ApiDBUtils {
     }
 
     public static ServiceOffering findServiceOfferingById(Long serviceOfferingId) {
-        return _serviceOfferingDao.findByIdIncludingRemoved(serviceOfferingId);
+        return find(_serviceOfferingDao, serviceOfferingId, true);
     }
 
     public static Snapshot findSnapshotById(long snapshotId) {
@@ -485,12 +587,13 @@ public class ApiDBUtils {
     }
 
     public static StoragePoolVO findStoragePoolById(Long storagePoolId) {
-        return _storagePoolDao.findByIdIncludingRemoved(storagePoolId);
+        return find(_storagePoolDao, storagePoolId, true);
     }
 
     public static VMTemplateVO findTemplateById(Long templateId) {
-    	VMTemplateVO template = _templateDao.findByIdIncludingRemoved(templateId);
-    	if(template != null) {
+    	VMTemplateVO template = find(_templateDao, templateId, true);
+    	ApiLookupContext ctx = ApiLookupContext.current();
+    	if(template != null && (ctx == null || !ctx.mark("templateDetails", templateId))) {
     		Map details = _templateDetailsDao.findDetails(templateId);
     		if(details != null && !details.isEmpty())
     			template.setDetails(details);
@@ -530,7 +633,7 @@ public class ApiDBUtils {
     }
 
     public static UserVm findUserVmById(Long vmId) {
-        return _userVmDao.findById(vmId);
+        return find(_userVmDao, vmId, false);
     }
 
     public static VlanVO findVlanById(long vlanDbId) {
@@ -546,7 +649,7 @@ public class ApiDBUtils {
     }
 
     public static DataCenterVO findZoneById(Long zoneId) {
-        return _zoneDao.findById(zoneId);
+        return find(_zoneDao, zoneId, false);
     }
 
     public static Long getAccountIdForVlan(long vlanDbId) {
@@ -610,7 +713,7 @@ public class ApiDBUtils {
     }
 
     public static NetworkOfferingVO findNetworkOfferingById(long networkOfferingId) {
-        return _networkOfferingDao.findByIdIncludingRemoved(networkOfferingId);
+        return find(_networkOfferingDao, networkOfferingId, true);
     }
 
     public static List<? extends Vlan> listVlanByNetworkId(long networkId) {
@@ -618,7 +721,7 @@ public class ApiDBUtils {
     }
 
     public static NetworkVO findNetworkById(long id) {
-        return _networkDao.findById(id);
+        return find(_networkDao, id, false);
     }
 
     public static Map<Service, Map<Capability, String>> getNetworkCapabilities(long networkId, long zoneId) {
@@ -639,7 +742,14 @@ public class ApiDBUtils {
     }
 
     public static Integer getNetworkRate(long networkOfferingId) {
-        return _configMgr.getNetworkOfferingNetworkRate(networkOfferingId);
+        ApiLookupContext ctx = ApiLookupContext.current();
+        if (ctx == null) {
+            return _configMgr.getNetworkOfferingNetworkRate(networkOfferingId);
+        }
+        if (!ctx.contains("networkRate", networkOfferingId)) {
+            ctx.put("networkRate", networkOfferingId, _configMgr.getNetworkOfferingNetworkRate(networkOfferingId));
+        }
+        return (Integer)ctx.get("networkRate", networkOfferingId);
     }
 
     public static Account getVlanAccount(long vlanId) {
@@ -692,7 +802,14 @@ public class ApiDBUtils {
     }
     
     public static Project findProjectByProjectAccountId(long projectAccountId) {
-        return _projectMgr.findByProjectAccountId(projectAccountId);
+        ApiLookupContext ctx = ApiLookupContext.current();
+        if (ctx == null) {
+            return _projectMgr.findByProjectAccountId(projectAccountId);
+        }
+        if (!ctx.contains("projectByAccount", projectAccountId)) {
+            ctx.put("projectByAccount", projectAccountId, _projectMgr.findByProjectAccountId(projectAccountId));
+        }
+        return (Project)ctx.get("projectByAccount", projectAccountId);
     }
     
     public static Project findProjectById(long projectId) {
@@ -0,0 +1,138 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.api;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cloud.utils.db.GenericDao;
+
+/**
+ * ApiLookupContext remembers what ApiDBUtils looked up while the responses
+ * of one api request are built, so each entity is read once per request
+ * rather than once per response.  The entities of a whole page can be
+ * loaded up front with prefetch(), which reads each type with one IN query.
+ *
+ *   ApiLookupContext ctx = ApiLookupContext.start();
+ *   try {
+ *       ...
+ *   } finally {
+ *       if (ctx != null) {
+ *           ctx.end();
+ *       }
+ *   }
+ */
+public class ApiLookupContext {
+    private static final ThreadLocal<ApiLookupContext> s_current = new ThreadLocal<ApiLookupContext>();
+
+    // what was looked up -> key -> value, where the value can be null if nothing was found.
+    protected final Map<String, Map<Object, Object>> _values = new HashMap<String, Map<Object, Object>>();
+
+    public static ApiLookupContext current() {
+        return s_current.get();
+    }
+
+    /**
+     * Starts a context for the thread if it doesn't have one yet.
+     * @return the context if this started it, null if there already was one.
+     */
+    public static ApiLookupContext start() {
+        if (s_current.get() != null) {
+            return null;
+        }
+        ApiLookupContext ctx = new ApiLookupContext();
+        s_current.set(ctx);
+        return ctx;
+    }
+
+    public void end() {
+        if (s_current.get() == this) {
+            s_current.remove();
+        }
+    }
+
+    protected Map<Object, Object> getValues(String what) {
+        Map<Object, Object> values = _values.get(what);
+        if (values == null) {
+            values = new HashMap<Object, Object>();
+            _values.put(what, values);
+        }
+        return values;
+    }
+
+    public boolean contains(String what, Object key) {
+        return getValues(what).containsKey(key);
+    }
+
+    public Object get(String what, Object key) {
+        return getValues(what).get(key);
+    }
+
+    public void put(String what, Object key, Object value) {
+        getValues(what).put(key, value);
+    }
+
+    /**
+     * @return true if key was already marked for what, so the work was done earlier in the request.
+     */
+    public boolean mark(String what, Object key) {
+        Map<Object, Object> values = getValues(what);
+        if (values.containsKey(key)) {
+            return true;
+        }
+        values.put(key, Boolean.TRUE);
+        return false;
+    }
+
+    protected static String getName(GenericDao<?, ?> dao, boolean includingRemoved) {
+        return dao.getClass().getName() + (includingRemoved ? ".includingRemoved" : "");
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T, ID extends Serializable> T find(GenericDao<T, ID> dao, ID id, boolean includingRemoved) {
+        if (id == null) {
+            return includingRemoved ? dao.findByIdIncludingRemoved(id) : dao.findById(id);
+        }
+
+        Map<Object, Object> found = getValues(getName(dao, includingRemoved));
+        if (found.containsKey(id)) {
+            return (T)found.get(id);
+        }
+        T entity = includingRemoved ? dao.findByIdIncludingRemoved(id) : dao.findById(id);
+        found.put(id, entity);
+        return entity;
+    }
+
+    /**
+     * Loads the entities that haven't been looked up yet with one query.
+     */
+    public <T, ID extends Serializable> void prefetch(GenericDao<T, ID> dao, Collection<ID> ids, boolean includingRemoved) {
+        Map<Object, Object> found = getValues(getName(dao, includingRemoved));
+        List<ID> missing = new ArrayList<ID>();
+        for (ID id : ids) {
+            if (id != null && !found.containsKey(id)) {
+                missing.add(id);
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+
+        Map<ID, T> entities = includingRemoved ? dao.findByIdsIncludingRemoved(missing) : dao.findByIds(missing);
+        for (ID id : missing) {
+            found.put(id, entities.get(id));
+        }
+    }
+}
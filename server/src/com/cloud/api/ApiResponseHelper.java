@@ -14,6 +14,7 @@ package com.cloud.api;
 
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.HashMap;
@@ -32,6 +33,7 @@ import com.cloud.acl.ControlledEntity.ACLType;
 import com.cloud.api.ApiConstants.HostDetails;
 import com.cloud.api.ApiConstants.VMDetails;
 import com.cloud.api.commands.QueryAsyncJobResultCmd;
+import com.cloud.api.commands.QueryAsyncJobResultsCmd;
 import com.cloud.api.response.AccountResponse;
 import com.cloud.api.response.ApiResponseSerializer;
 import com.cloud.api.response.AsyncJobResponse;
@@ -1117,6 +1119,16 @@ public class ApiResponseHelper implements ResponseGenerator {
         return volResponse;
     }
 
+    @Override
+    public List<VolumeResponse> createVolumeResponses(List<? extends Volume> volumes) {
+        ApiDBUtils.prefetchForVolumes(volumes);
+        List<VolumeResponse> volResponses = new ArrayList<VolumeResponse>();
+        for (Volume volume : volumes) {
+            volResponses.add(createVolumeResponse(volume));
+        }
+        return volResponses;
+    }
+
     @Override
     public InstanceGroupResponse createInstanceGroupResponse(InstanceGroup group) {
         InstanceGroupResponse groupResponse = new InstanceGroupResponse();
@@ -1308,6 +1320,7 @@ public class ApiResponseHelper implements ResponseGenerator {
         Map<Long, VMTemplateVO> templates = new HashMap<Long, VMTemplateVO>();
         Map<Long, ServiceOffering> serviceOfferings = new HashMap<Long, ServiceOffering>();
         Map<Long, Network> networks = new HashMap<Long, Network>();
+        ApiDBUtils.prefetchForVms(Arrays.asList(userVms));
 
         List<UserVmResponse> vmResponses = new ArrayList<UserVmResponse>();
 
@@ -1662,6 +1675,16 @@ public class ApiResponseHelper implements ResponseGenerator {
         return routerResponse;
     }
 
+    @Override
+    public List<DomainRouterResponse> createDomainRouterResponses(List<? extends VirtualRouter> routers) {
+        ApiDBUtils.prefetchForRouters(routers);
+        List<DomainRouterResponse> routerResponses = new ArrayList<DomainRouterResponse>();
+        for (VirtualRouter router : routers) {
+            routerResponses.add(createDomainRouterResponse(router));
+        }
+        return routerResponses;
+    }
+
     @Override
     public SystemVmResponse createSystemVmResponse(VirtualMachine vm) {
         SystemVmResponse vmResponse = new SystemVmResponse();
@@ -2609,6 +2632,15 @@ public class ApiResponseHelper implements ResponseGenerator {
         return createAsyncJobResponse(result);
     }
 
+    @Override
+    public List<AsyncJobResponse> queryJobResults(QueryAsyncJobResultsCmd cmd) {
+        List<AsyncJobResponse> responses = new ArrayList<AsyncJobResponse>();
+        for (AsyncJob job : ApiDBUtils._asyncMgr.queryAsyncJobResults(cmd)) {
+            responses.add(createAsyncJobResponse(job));
+        }
+        return responses;
+    }
+
     @Override
     public SecurityGroupResponse createSecurityGroupResponseFromSecurityGroupRule(List<? extends SecurityRule> securityRules) {
         SecurityGroupResponse response = new SecurityGroupResponse();
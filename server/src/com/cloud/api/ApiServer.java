@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
@@ -107,9 +108,11 @@ import com.cloud.utils.component.ComponentLocator;
 import com.cloud.utils.component.PluggableService;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.SearchCriteria;
+import com.cloud.utils.db.SearchCursor;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.encoding.Base64;
 import com.cloud.utils.exception.CSExceptionErrorCode;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.uuididentity.dao.IdentityDao;
 
 public class ApiServer implements HttpRequestHandler {
@@ -141,6 +144,7 @@ public class ApiServer implements HttpRequestHandler {
     private static List<String> s_pluggableServiceCommands = null;
     private static final DateFormat _dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
 
+    private static final ApiStats s_stats = new ApiStats();
     private static ExecutorService _executor = new ThreadPoolExecutor(10, 150, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("ApiServer"));
 
     static {
@@ -271,6 +275,12 @@ public class ApiServer implements HttpRequestHandler {
         _systemAccount = _accountMgr.getSystemAccount();
         _systemUser = _accountMgr.getSystemUser();
         _dispatcher = ApiDispatcher.getInstance();
+
+        try {
+            JmxUtil.registerMBean("ApiServer", "Statistics", s_stats);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register the api statistics mbean", e);
+        }
         _domainMgr = locator.getManager(DomainManager.class);
 
         Integer apiPort = null; // api port, null by default
@@ -366,6 +376,16 @@ public class ApiServer implements HttpRequestHandler {
 
     @SuppressWarnings("rawtypes")
     public String handleRequest(Map params, boolean decode, String responseType, StringBuffer auditTrailSb) throws ServerApiException {
+        return handleRequest(params, decode, responseType, auditTrailSb, null);
+    }
+
+    /**
+     * Handles the request like handleRequest(params, decode, responseType, auditTrailSb)
+     * but list responses that are read from a cursor are written to out as
+     * they are read, and null is returned for them.
+     */
+    @SuppressWarnings("rawtypes")
+    public String handleRequest(Map params, boolean decode, String responseType, StringBuffer auditTrailSb, Writer out) throws ServerApiException {
         String response = null;
         String[] command = null;
         try {
@@ -415,8 +435,12 @@ public class ApiServer implements HttpRequestHandler {
                     cmdObj.setFullUrlParams(paramMap);
                     cmdObj.setResponseType(responseType);
                     // This is where the command is either serialized, or directly dispatched
-                    response = queueCommand(cmdObj, paramMap);
-                    buildAuditTrail(auditTrailSb, command[0], response);
+                    response = queueCommand(cmdObj, paramMap, out);
+                    if (response == null && out != null) {
+                        auditTrailSb.append(" " + HttpServletResponse.SC_OK + " (streamed)");
+                    } else {
+                        buildAuditTrail(auditTrailSb, command[0], response);
+                    }
                 } else {
                     if (!command[0].equalsIgnoreCase("login") && !command[0].equalsIgnoreCase("logout")) {
                         String errorString = "Unknown API command: " + ((command == null) ? "null" : command[0]);
@@ -468,7 +492,7 @@ public class ApiServer implements HttpRequestHandler {
         return response;
     }
 
-    private String queueCommand(BaseCmd cmdObj, Map<String, String> params) {
+    private String queueCommand(BaseCmd cmdObj, Map<String, String> params, Writer out) throws IOException {
         UserContext ctx = UserContext.current();
         Long callerUserId = ctx.getCallerUserId();
         Account caller = ctx.getCaller();
@@ -534,17 +558,57 @@ public class ApiServer implements HttpRequestHandler {
 
             SerializationContext.current().setUuidTranslation(true);
             return ApiResponseSerializer.toSerializedString(asyncCmd.getResponse(jobId), asyncCmd.getResponseType());
-        } else {
-            _dispatcher.dispatch(cmdObj, params);
+        } else if (cmdObj instanceof BaseListCmd) {
+            // list commands only read, so let them read from the read replica if there's one
+            Transaction txn = Transaction.openReadOnly(cmdObj.getCommandName());
+            // the responses of a page look up the same accounts, zones, offerings... so only look them up once
+            ApiLookupContext lookups = ApiLookupContext.start();
+            long statements = Transaction.getStatementCount();
+            try {
+                _dispatcher.dispatch(cmdObj, params);
 
-            // if the command is of the listXXXCommand, we will need to also return the
-            // the job id and status if possible
-            if (cmdObj instanceof BaseListCmd) {
+                // if the command is of the listXXXCommand, we will need to also return the
+                // the job id and status if possible
                 buildAsyncListResponse((BaseListCmd) cmdObj, caller);
+
+                SerializationContext.current().setUuidTranslation(true);
+                ResponseObject response = (ResponseObject) cmdObj.getResponseObject();
+                if (out != null && response instanceof ListResponse && ((ListResponse<?>) response).getResponseCursor() != null) {
+                    ApiResponseSerializer.writeSerializedString(response, cmdObj.getResponseType(), out);
+                    return null;
+                }
+                return ApiResponseSerializer.toSerializedString(response, cmdObj.getResponseType());
+            } finally {
+                // the cursor is closed once it's serialized, this is in case it never got that far
+                if (cmdObj.getResponseObject() instanceof ListResponse) {
+                    SearchCursor<?> cursor = ((ListResponse<?>) cmdObj.getResponseObject()).getResponseCursor();
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                }
+                if (lookups != null) {
+                    lookups.end();
+                }
+                txn.close();
+                recordStatements(cmdObj, Transaction.getStatementCount() - statements);
             }
+        } else {
+            long statements = Transaction.getStatementCount();
+            try {
+                _dispatcher.dispatch(cmdObj, params);
 
-            SerializationContext.current().setUuidTranslation(true);
-            return ApiResponseSerializer.toSerializedString((ResponseObject) cmdObj.getResponseObject(), cmdObj.getResponseType());
+                SerializationContext.current().setUuidTranslation(true);
+                return ApiResponseSerializer.toSerializedString((ResponseObject) cmdObj.getResponseObject(), cmdObj.getResponseType());
+            } finally {
+                recordStatements(cmdObj, Transaction.getStatementCount() - statements);
+            }
+        }
+    }
+
+    private void recordStatements(BaseCmd cmdObj, long statements) {
+        s_stats.record(cmdObj.getCommandName(), statements);
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug(cmdObj.getCommandName() + " ran " + statements + " db statements");
         }
     }
 
@@ -297,9 +297,18 @@ public class ApiServlet extends HttpServlet {
                                 + ")");
 
                 try {
-                    String response = _apiServer.handleRequest(params, false, responseType, auditTrailSb);
+                    // the content type has to be set before the writer is taken for a streamed response to be UTF-8
+                    setContentType(resp, responseType);
+                    String response = _apiServer.handleRequest(params, false, responseType, auditTrailSb, resp.getWriter());
                     writeResponse(resp, response != null ? response : "", HttpServletResponse.SC_OK, responseType);
                 } catch (ServerApiException se) {
+                    if (resp.isCommitted()) {
+                        // part of a streamed list already went out with a 200, an error body would only be appended to it
+                        auditTrailSb.append(" " + se.getErrorCode() + " " + se.getDescription() + " (stream aborted)");
+                        throw new AbortedResponseException("Aborting streamed api response: " + se.getDescription(), se);
+                    }
+                    // drop the part of a streamed list that is still buffered
+                    resp.resetBuffer();
                     String serializedResponseText = _apiServer.getSerializedApiError(se.getErrorCode(), se.getDescription(), params, responseType, null);
                     resp.setHeader("X-Description", se.getDescription());
                     writeResponse(resp, serializedResponseText, se.getErrorCode(), responseType);
@@ -318,6 +327,9 @@ public class ApiServlet extends HttpServlet {
                 writeResponse(resp, serializedResponse, HttpServletResponse.SC_UNAUTHORIZED, responseType);
 
             }
+        } catch (AbortedResponseException ex) {
+            // let the container drop the connection so the client sees a truncated response rather than a complete one
+            throw ex;
         } catch (Exception ex) {
             if (ex instanceof ServerApiException && ((ServerApiException) ex).getErrorCode() == BaseCmd.UNSUPPORTED_ACTION_ERROR) {
                 ServerApiException se = (ServerApiException) ex;
@@ -336,6 +348,18 @@ public class ApiServlet extends HttpServlet {
         }
     }
 
+    /**
+     * Thrown out of the servlet when a streamed response fails after part of
+     * it was sent.
+     */
+    private static class AbortedResponseException extends CloudRuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public AbortedResponseException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
     /*
      * private void updateUserContext(Map<String, Object[]> requestParameters, String sessionId) { String userIdStr =
      * (String)(requestParameters.get(BaseCmd.Properties.USER_ID.getName())[0]); Account accountObj =
@@ -347,13 +371,17 @@ public class ApiServlet extends HttpServlet {
      */
 
     // FIXME: rather than isError, we might was to pass in the status code to give more flexibility
+    private void setContentType(HttpServletResponse resp, String responseType) {
+        if (BaseCmd.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
+            resp.setContentType(ApiServer.jsonContentType + "; charset=UTF-8");
+        } else {
+            resp.setContentType("text/xml; charset=UTF-8");
+        }
+    }
+
     private void writeResponse(HttpServletResponse resp, String response, int responseCode, String responseType) {
         try {
-            if (BaseCmd.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
-                resp.setContentType(ApiServer.jsonContentType + "; charset=UTF-8");
-            } else {
-                resp.setContentType("text/xml; charset=UTF-8");
-            }
+            setContentType(resp, responseType);
 
             resp.setStatus(responseCode);
             resp.getWriter().print(response);
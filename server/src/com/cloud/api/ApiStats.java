@@ -0,0 +1,79 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.api;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+/**
+ * ApiStats counts the db statements each api command runs, so a command that
+ * starts running a statement per row shows up.
+ */
+public class ApiStats extends StandardMBean implements ApiStatsMBean {
+    protected final ConcurrentHashMap<String, CommandStats> _stats = new ConcurrentHashMap<String, CommandStats>();
+
+    public ApiStats() {
+        super(ApiStatsMBean.class, false);
+    }
+
+    public void record(String command, long statements) {
+        CommandStats stats = _stats.get(command);
+        if (stats == null) {
+            stats = new CommandStats();
+            CommandStats existing = _stats.putIfAbsent(command, stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        stats.record(statements);
+    }
+
+    @Override
+    public List<Map<String, String>> getCommandStats() {
+        List<Map<String, String>> list = new ArrayList<Map<String, String>>();
+        for (Map.Entry<String, CommandStats> entry : _stats.entrySet()) {
+            CommandStats stats = entry.getValue();
+            Map<String, String> map = new HashMap<String, String>();
+            map.put("command", entry.getKey());
+            map.put("calls", Long.toString(stats._calls.get()));
+            map.put("statements", Long.toString(stats._statements.get()));
+            map.put("maxStatements", Long.toString(stats._maxStatements.get()));
+            list.add(map);
+        }
+        return list;
+    }
+
+    @Override
+    public void resetCommandStats() {
+        _stats.clear();
+    }
+
+    protected static class CommandStats {
+        final AtomicLong _calls = new AtomicLong();
+        final AtomicLong _statements = new AtomicLong();
+        final AtomicLong _maxStatements = new AtomicLong();
+
+        void record(long statements) {
+            _calls.incrementAndGet();
+            _statements.addAndGet(statements);
+            long max = _maxStatements.get();
+            while (statements > max && !_maxStatements.compareAndSet(max, statements)) {
+                max = _maxStatements.get();
+            }
+        }
+    }
+}
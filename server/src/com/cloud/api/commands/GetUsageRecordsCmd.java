@@ -71,6 +71,9 @@ public class GetUsageRecordsCmd extends BaseListCmd {
     @Parameter(name=ApiConstants.TYPE, type=CommandType.LONG, description="List usage records for the specified usage type")
     private Long usageType;
 
+    @Parameter(name=ApiConstants.START_ID, type=CommandType.LONG, description="list the usage records older than the usage record with this ID, newest first; use the last ID of the previous page instead of page to page through the records quickly")
+    private Long startId;
+
     /////////////////////////////////////////////////////
     /////////////////// Accessors ///////////////////////
     /////////////////////////////////////////////////////
@@ -102,6 +105,10 @@ public class GetUsageRecordsCmd extends BaseListCmd {
     public Long getProjectId() {
         return projectId;
     }
+
+    public Long getStartId() {
+        return startId;
+    }
     
     /////////////////////////////////////////////////////
     ///////////////  Misc parameters  ///////////////////
@@ -221,6 +228,7 @@ public class GetUsageRecordsCmd extends BaseListCmd {
             UsageRecordResponse usageRecResponse = new UsageRecordResponse();
             if (usageRecordGeneric instanceof UsageVO) {
                 UsageVO usageRecord = (UsageVO)usageRecordGeneric;
+                usageRecResponse.setId(usageRecord.getId());
       
                 Account account = ApiDBUtils.findAccountByIdIncludingRemoved(usageRecord.getAccountId()); 
                 if (account.getType() == Account.ACCOUNT_TYPE_PROJECT) {
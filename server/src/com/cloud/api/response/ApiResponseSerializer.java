@@ -12,6 +12,9 @@
 // Automatically generated by addcopyright.py at 04/03/2012
 package com.cloud.api.response;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
@@ -31,6 +34,7 @@ import com.cloud.api.ApiServer;
 import com.cloud.api.BaseCmd;
 import com.cloud.utils.IdentityProxy;
 import com.cloud.api.ResponseObject;
+import com.cloud.utils.db.SearchCursor;
 import com.cloud.utils.encoding.URLEncoder;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.uuididentity.dao.IdentityDao;
@@ -42,6 +46,15 @@ public class ApiResponseSerializer {
     private static final Logger s_logger = Logger.getLogger(ApiResponseSerializer.class.getName());
 
     public static String toSerializedString(ResponseObject result, String responseType) {
+        if (result instanceof ListResponse && ((ListResponse<?>) result).getResponseCursor() != null) {
+            StringWriter out = new StringWriter();
+            try {
+                writeSerializedString(result, responseType, out);
+            } catch (IOException e) {
+                throw new CloudRuntimeException("StringWriter doesn't throw", e);
+            }
+            return out.toString();
+        }
         if (BaseCmd.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
             return toJSONSerializedString(result);
         } else {
@@ -49,6 +62,76 @@ public class ApiResponseSerializer {
         }
     }
 
+    /**
+     * Writes the serialized response to out.  A list response with a cursor is
+     * written as the cursor is read, so the list is never all in memory, and
+     * its count comes after the responses.
+     */
+    public static void writeSerializedString(ResponseObject result, String responseType, Writer out) throws IOException {
+        SearchCursor<? extends ResponseObject> cursor = null;
+        if (result instanceof ListResponse) {
+            cursor = ((ListResponse<?>) result).getResponseCursor();
+        }
+        if (cursor == null) {
+            String str = toSerializedString(result, responseType);
+            if (str != null) {
+                out.write(str);
+            }
+            return;
+        }
+
+        try {
+            if (BaseCmd.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
+                writeJSONList(result.getResponseName(), cursor, out);
+            } else {
+                writeXMLList(result.getResponseName(), cursor, out);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void writeJSONList(String responseName, SearchCursor<? extends ResponseObject> cursor, Writer out) throws IOException {
+        Gson gson = ApiResponseGsonHelper.getBuilder().excludeFieldsWithModifiers(Modifier.TRANSIENT).create();
+
+        out.write("{ \"" + responseName + "\" : ");
+        int count = 0;
+        while (cursor.hasNext()) {
+            ResponseObject response = cursor.next();
+            if (count == 0) {
+                out.write("{ \"" + response.getObjectName() + "\" : [  ");
+            } else {
+                out.write(", ");
+            }
+            out.write(unescape(gson.toJson(response)));
+            count++;
+        }
+        if (count == 0) {
+            out.write("{ }");
+        } else {
+            out.write(" ], \"" + ApiConstants.COUNT + "\":" + count + " }");
+        }
+        out.write(" }");
+    }
+
+    private static void writeXMLList(String responseName, SearchCursor<? extends ResponseObject> cursor, Writer out) throws IOException {
+        out.write("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>");
+        out.write("<" + responseName + " cloud-stack-version=\"" + ApiDBUtils.getVersion() + "\">");
+
+        StringBuilder sb = new StringBuilder();
+        int count = 0;
+        while (cursor.hasNext()) {
+            sb.setLength(0);
+            serializeResponseObjXML(sb, cursor.next());
+            out.write(sb.toString());
+            count++;
+        }
+        if (count != 0) {
+            out.write("<" + ApiConstants.COUNT + ">" + count + "</" + ApiConstants.COUNT + ">");
+        }
+        out.write("</" + responseName + ">");
+    }
+
     private static final Pattern s_unicodeEscapePattern = Pattern.compile("\\\\u([0-9A-Fa-f]{4})");
 
     public static String unescape(String escaped) {
@@ -15,6 +15,7 @@ package com.cloud.async;
 import java.util.List;
 
 import com.cloud.api.commands.QueryAsyncJobResultCmd;
+import com.cloud.api.commands.QueryAsyncJobResultsCmd;
 import com.cloud.utils.component.Manager;
 
 public interface AsyncJobManager extends Manager {
@@ -43,4 +44,11 @@ public interface AsyncJobManager extends Manager {
      * @return an async-call result object
      */
     public AsyncJob queryAsyncJobResult(QueryAsyncJobResultCmd cmd);
+
+    /**
+     * Queries for the status or final result of a number of async jobs.
+     * @param cmd the command that specifies the job ids
+     * @return the jobs that exist
+     */
+    public List<? extends AsyncJob> queryAsyncJobResults(QueryAsyncJobResultsCmd cmd);
 }
@@ -21,6 +21,7 @@ package com.cloud.async;
 import java.io.File;
 import java.io.FileInputStream;
 import java.lang.reflect.Type;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -45,6 +46,7 @@ import com.cloud.api.BaseAsyncCmd;
 import com.cloud.api.BaseCmd;
 import com.cloud.api.ServerApiException;
 import com.cloud.api.commands.QueryAsyncJobResultCmd;
+import com.cloud.api.commands.QueryAsyncJobResultsCmd;
 import com.cloud.api.response.ExceptionResponse;
 import com.cloud.async.dao.AsyncJobDao;
 import com.cloud.cluster.ClusterManager;
@@ -83,6 +85,7 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     private static final int MAX_ONETIME_SCHEDULE_SIZE = 50;
     private static final int HEARTBEAT_INTERVAL = 2000;
     private static final int GC_INTERVAL = 10000;				// 10 seconds
+    private static final long WAIT_RECHECK_INTERVAL = 5000;
     
     private String _name;
     
@@ -99,6 +102,8 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     private final ScheduledExecutorService _heartbeatScheduler =
         Executors.newScheduledThreadPool(1, new NamedThreadFactory("AsyncJobMgr-Heartbeat"));
     private ExecutorService _executor;
+    private AsyncJobStatusCache _statusCache;
+    private int _maxWaitSeconds = 60;
 
     @Override
 	public AsyncJobExecutorContext getExecutorContext() {
@@ -184,6 +189,7 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
 
     		job.setLastUpdated(DateUtil.currentGMTTime());
     		_jobDao.update(jobId, job);
+    		cacheAfterCommit(txt, job);
     		txt.commit();
     	} catch(Exception e) {
     		s_logger.error("Unexpected exception while completing async job-" + jobId, e);
@@ -217,6 +223,7 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
             }
     		job.setLastUpdated(DateUtil.currentGMTTime());
     		_jobDao.update(jobId, job);
+    		cacheAfterCommit(txt, job);
     		txt.commit();
     	} catch(Exception e) {
     		s_logger.error("Unexpected exception while updating async job-" + jobId + " status: ", e);
@@ -240,6 +247,7 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
 	    	job.setInstanceId(instanceId);
 			job.setLastUpdated(DateUtil.currentGMTTime());
 			_jobDao.update(jobId, job);
+			invalidateAfterCommit(txt, jobId);
 
     		txt.commit();
     	} catch(Exception e) {
@@ -292,14 +300,52 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     public AsyncJob queryAsyncJobResult(QueryAsyncJobResultCmd cmd) {
         Account caller = UserContext.current().getCaller();
 
-        AsyncJobVO job = _jobDao.findById(cmd.getId());
+        AsyncJobVO job = findJob(cmd.getId());
         if (job == null) {
             throw new InvalidParameterValueException("Unable to find a job by id " + cmd.getId());
         }
-       
+        checkJobAccess(caller, job);
+
+        if (cmd.getWait() != null && cmd.getWait() > 0) {
+            List<Long> jobIds = new ArrayList<Long>();
+            jobIds.add(job.getId());
+            AsyncJobVO waited = waitForJobs(jobIds, cmd.getWait()).get(0);
+            if (waited != null) {
+                job = waited;
+            }
+        }
+        return job;
+    }
+
+    @Override
+    public List<? extends AsyncJob> queryAsyncJobResults(QueryAsyncJobResultsCmd cmd) {
+        Account caller = UserContext.current().getCaller();
+
+        List<Long> jobIds = new ArrayList<Long>();
+        for (Long jobId : cmd.getIds()) {
+            AsyncJobVO job = findJob(jobId);
+            if (job != null) {
+                checkJobAccess(caller, job);
+                jobIds.add(jobId);
+            }
+        }
+
+        int wait = cmd.getWait() != null ? cmd.getWait() : 0;
+        List<AsyncJobVO> jobs = waitForJobs(jobIds, wait);
+        List<AsyncJobVO> found = new ArrayList<AsyncJobVO>(jobs.size());
+        for (AsyncJobVO job : jobs) {
+            // left out if it was expunged while waiting
+            if (job != null) {
+                found.add(job);
+            }
+        }
+        return found;
+    }
+
+    private void checkJobAccess(Account caller, AsyncJob job) {
         User userJobOwner = _accountMgr.getUserIncludingRemoved(job.getUserId());
         Account jobOwner = _accountMgr.getAccount(userJobOwner.getAccountId());
-        
+
         //check permissions
         if (caller.getType() == Account.ACCOUNT_TYPE_NORMAL) {
             //regular user can see only jobs he owns
@@ -309,10 +355,85 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
         } else if (caller.getType() == Account.ACCOUNT_TYPE_DOMAIN_ADMIN) {
             _accountMgr.checkAccess(caller, null, true, jobOwner);
         }
-        
-        //poll the job
-        queryAsyncJobResult(cmd.getId());
-        return _jobDao.findById(cmd.getId());
+    }
+
+    /**
+     * Waits until one of the jobs is done or the wait is over, without
+     * going to the database for the jobs that are cached.
+     *
+     * @param waitSeconds how long to wait; capped at job.max.wait.seconds.
+     * @return the jobs as they are at the end, null for the ones that no
+     *         longer exist.
+     */
+    protected List<AsyncJobVO> waitForJobs(List<Long> jobIds, int waitSeconds) {
+        long deadline = System.currentTimeMillis() + Math.min(waitSeconds, _maxWaitSeconds) * 1000L;
+        while (true) {
+            long generation = _statusCache.getGeneration();
+
+            List<AsyncJobVO> jobs = new ArrayList<AsyncJobVO>(jobIds.size());
+            boolean done = jobIds.isEmpty();
+            for (Long jobId : jobIds) {
+                AsyncJobVO job = findJob(jobId);
+                jobs.add(job);
+                if (job == null || AsyncJobStatusCache.isDone(job)) {
+                    done = true;
+                }
+            }
+
+            long remaining = deadline - System.currentTimeMillis();
+            if (done || remaining <= 0) {
+                return jobs;
+            }
+            try {
+                // look again now and then in case a change was not broadcast
+                _statusCache.awaitChange(generation, Math.min(remaining, WAIT_RECHECK_INTERVAL));
+            } catch (InterruptedException e) {
+                return jobs;
+            }
+        }
+    }
+
+    /**
+     * @return the job from the status cache, or from the database if it is
+     *         not cached.  The job must not be changed.
+     */
+    protected AsyncJobVO findJob(long jobId) {
+        AsyncJobVO job = _statusCache.getJob(jobId);
+        if (job != null) {
+            return job;
+        }
+
+        long version = _statusCache.getVersion();
+        job = _jobDao.findById(jobId);
+        if (job == null) {
+            return null;
+        }
+        _statusCache.putRead(job, version);
+
+        if (!AsyncJobStatusCache.isDone(job)) {
+            AsyncJobVO polled = _jobDao.createForUpdate();
+            polled.setLastPolled(DateUtil.currentGMTTime());
+            _jobDao.update(jobId, polled);
+        }
+        return job;
+    }
+
+    private void cacheAfterCommit(Transaction txn, final AsyncJobVO job) {
+        txn.runAfterCommit(new Runnable() {
+            @Override
+            public void run() {
+                _statusCache.putWritten(job);
+            }
+        });
+    }
+
+    private void invalidateAfterCommit(Transaction txn, final long jobId) {
+        txn.runAfterCommit(new Runnable() {
+            @Override
+            public void run() {
+                _statusCache.invalidateWritten(jobId);
+            }
+        });
     }
 
     @Override @DB
@@ -326,7 +447,7 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     	
     	try {
     		txt.start();
-    		AsyncJobVO job = _jobDao.findById(jobId);
+    		AsyncJobVO job = findJob(jobId);
     		if(job != null) {
     			jobResult.setCmdOriginator(job.getCmdOriginator());
     			jobResult.setJobStatus(job.getStatus());
@@ -341,9 +462,6 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     		    	if(s_logger.isDebugEnabled()) {
                         s_logger.debug("Async job-" + jobId + " completed");
                     }
-    			} else {
-    				job.setLastPolled(DateUtil.currentGMTTime());
-    				_jobDao.update(jobId, job);
     			}
     		} else {
     	    	if(s_logger.isDebugEnabled()) {
@@ -519,6 +637,7 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
             
             job.setCompleteMsid(getMsid());
             _jobDao.update(job.getId(), job);
+            _statusCache.invalidateWritten(job.getId());
             
             try {
             	scheduleExecution(job);
@@ -624,6 +743,7 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
 					if(l != null && l.size() > 0) {
 						for(AsyncJobVO job : l) {
 							_jobDao.expunge(job.getId());
+							_statusCache.remove(job.getId());
 						}
 					}
 					
@@ -697,6 +817,10 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
 		       configDao.getValue(Config.JobCancelThresholdMinutes.key()), 60);
 		_jobCancelThresholdSeconds *= 60;
 
+		int cacheSize = NumbersUtil.parseInt(configDao.getValue(Config.JobStatusCacheSize.key()), 10000);
+		_statusCache = new AsyncJobStatusCache(cacheSize, (int)Math.min(_jobExpireSeconds, Integer.MAX_VALUE));
+		_maxWaitSeconds = NumbersUtil.parseInt(configDao.getValue(Config.JobMaxWaitSeconds.key()), 60);
+
 		_accountDao = locator.getDao(AccountDao.class);
 		if (_accountDao == null) {
             throw new ConfigurationException("Unable to get " + AccountDao.class.getName());
@@ -759,6 +883,7 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
         		_queueMgr.resetQueueProcess(msHost.getId());
         		_jobDao.resetJobProcess(msHost.getId(), BaseCmd.INTERNAL_ERROR, getSerializedErrorMessage("job cancelled because of management server restart"));
     			txn.commit();
+    			_statusCache.invalidateAll();
     		} catch(Throwable e) {
     			s_logger.warn("Unexpected exception ", e);
     			txn.rollback();
@@ -779,6 +904,8 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     		cleanupPendingJobs(l);
     		_queueMgr.resetQueueProcess(getMsid());
     		_jobDao.resetJobProcess(getMsid(), BaseCmd.INTERNAL_ERROR, getSerializedErrorMessage("job cancelled because of management server restart"));
+    		_statusCache.invalidateAll();
+    		_statusCache.broadcast(null);
     	} catch(Throwable e) {
     		s_logger.error("Unexpected exception " + e.getMessage(), e);
     	}
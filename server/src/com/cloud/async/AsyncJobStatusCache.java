@@ -0,0 +1,152 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.async;
+
+import com.cloud.utils.db.EntityCache;
+
+/**
+ * AsyncJobStatusCache keeps the last known state of the async jobs that are
+ * being queried, so that polling a job does not read async_job every time.
+ *
+ * The management server running a job puts its state in the cache as it
+ * writes it and broadcasts an invalidation to the other management servers,
+ * which read the job again the next time it is queried.  Jobs that are done
+ * never change again and are kept until they are evicted; the state of a
+ * running job read from the database is only trusted for a few seconds in
+ * case an invalidation was lost.
+ *
+ * Threads waiting for jobs to change are woken up by every put and
+ * invalidation.
+ */
+public class AsyncJobStatusCache extends EntityCache {
+    public static final String REGION = "async_job_status";
+
+    protected static final long PENDING_TTL = 10000;
+
+    protected final Object _changes = new Object();
+    protected long _generation;
+
+    protected static class CachedJob {
+        final AsyncJobVO job;
+        final long cachedAt;
+
+        CachedJob(AsyncJobVO job) {
+            this.job = job;
+            this.cachedAt = System.currentTimeMillis();
+        }
+    }
+
+    public AsyncJobStatusCache(int maxJobs, int live) {
+        super(REGION, Long.class, maxJobs, 0, live, live);
+    }
+
+    public static boolean isDone(AsyncJob job) {
+        return job.getStatus() == AsyncJobResult.STATUS_SUCCEEDED || job.getStatus() == AsyncJobResult.STATUS_FAILED;
+    }
+
+    /**
+     * @return the job, or null if it is not cached or may be out of date.
+     *         The job must not be changed.
+     */
+    public AsyncJobVO getJob(long jobId) {
+        CachedJob cached = (CachedJob)get(jobId);
+        if (cached == null) {
+            return null;
+        }
+        if (!isDone(cached.job) && System.currentTimeMillis() - cached.cachedAt > PENDING_TTL) {
+            remove(jobId);
+            return null;
+        }
+        return cached.job;
+    }
+
+    /**
+     * Caches a job read from the database.
+     *
+     * @param version version of the cache before the job was read.
+     */
+    public synchronized void putRead(AsyncJobVO job, long version) {
+        // a job that is done can't have been changed since
+        if (isDone(job) || version == getVersion()) {
+            put(job.getId(), new CachedJob(job));
+        }
+    }
+
+    /**
+     * Caches a job that this management server has just written, and tells
+     * the other management servers.
+     */
+    public void putWritten(AsyncJobVO job) {
+        synchronized (this) {
+            // moves the version so that reads that started before the write are not cached
+            super.invalidate(job.getId());
+            put(job.getId(), new CachedJob(job));
+        }
+        broadcast(new Object[] { job.getId() });
+        signal();
+    }
+
+    /**
+     * Drops a job that this management server has written without having it
+     * all, and tells the other management servers.
+     */
+    public void invalidateWritten(long jobId) {
+        invalidate(jobId);
+        broadcast(new Object[] { jobId });
+    }
+
+    @Override
+    public void invalidate(Object id) {
+        synchronized (this) {
+            super.invalidate(id);
+        }
+        signal();
+    }
+
+    @Override
+    public void invalidateAll() {
+        synchronized (this) {
+            super.invalidateAll();
+        }
+        signal();
+    }
+
+    /**
+     * @return a stamp to pass to awaitChange, taken before looking at the jobs.
+     */
+    public long getGeneration() {
+        synchronized (_changes) {
+            return _generation;
+        }
+    }
+
+    /**
+     * Waits for a job to be put or invalidated after the generation was
+     * taken, or for the timeout to pass.
+     */
+    public void awaitChange(long generation, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (_changes) {
+            long remaining = timeout;
+            while (_generation == generation && remaining > 0) {
+                _changes.wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+    }
+
+    protected void signal() {
+        synchronized (_changes) {
+            _generation++;
+            _changes.notifyAll();
+        }
+    }
+}
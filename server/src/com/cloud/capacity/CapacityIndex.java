@@ -0,0 +1,372 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.capacity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.cloud.capacity.dao.CapacityDaoImpl.SummedCapacity;
+import com.cloud.utils.Pair;
+
+/**
+ * CapacityIndex is an in-memory copy of the cpu and memory rows of
+ * op_host_capacity, so the deployment planners can pick and order the pods
+ * and clusters to try without running aggregate queries for every vm.
+ *
+ * The database stays the record.  Each management server loads its own
+ * index from it, updates the index as it allocates and releases capacity,
+ * and reloads it every so often to pick up what the other management
+ * servers did.  The planners only use the index to narrow down and order
+ * the candidates; the host allocators and allocateVmCapacity still go to
+ * the rows themselves.
+ */
+public class CapacityIndex {
+    private static final int MEMORY = Capacity.CAPACITY_TYPE_MEMORY;
+    private static final int CPU = Capacity.CAPACITY_TYPE_CPU;
+
+    /**
+     * The capacities of a host, guarded by the lock of its cluster.
+     */
+    protected static class HostCapacity {
+        final long hostId;
+        ClusterCapacity cluster;
+        // indexed by capacity type
+        final long[] total = new long[2];
+        final long[] used = new long[2];
+        final long[] reserved = new long[2];
+        final boolean[] present = new boolean[2];
+
+        HostCapacity(long hostId) {
+            this.hostId = hostId;
+        }
+
+        /**
+         * Same test as the LIST_*_BY_HOST_CAPACITIES queries in
+         * CapacityDaoImpl, so the planners pick the same candidates.
+         */
+        boolean hasCapacity(int type, long required, float factor) {
+            return present[type] && (total[type] * factor) - used[type] + reserved[type] >= required;
+        }
+    }
+
+    /**
+     * The hosts of a cluster and their summed capacities, kept up to date as
+     * the hosts change so that the planners never have to add them up.
+     */
+    protected static class ClusterCapacity {
+        final long clusterId;
+        volatile Long zoneId;
+        volatile Long podId;
+        final List<HostCapacity> hosts = new ArrayList<HostCapacity>();
+        final long[] total = new long[2];
+        final long[] used = new long[2];
+        final long[] reserved = new long[2];
+        final boolean[] present = new boolean[2];
+
+        ClusterCapacity(long clusterId) {
+            this.clusterId = clusterId;
+        }
+
+        synchronized void set(HostCapacity host, CapacityVO row) {
+            int type = row.getCapacityType();
+            if (host.cluster != this) {
+                hosts.add(host);
+                host.cluster = this;
+            }
+            zoneId = row.getDataCenterId();
+            podId = row.getPodId();
+            if (host.present[type]) {
+                subtract(host, type);
+            }
+            host.total[type] = row.getTotalCapacity();
+            host.used[type] = row.getUsedCapacity();
+            host.reserved[type] = row.getReservedCapacity();
+            host.present[type] = true;
+            total[type] += host.total[type];
+            used[type] += host.used[type];
+            reserved[type] += host.reserved[type];
+            present[type] = true;
+        }
+
+        synchronized void remove(HostCapacity host) {
+            if (host.cluster != this) {
+                return;
+            }
+            for (int type = 0; type < 2; type++) {
+                if (host.present[type]) {
+                    subtract(host, type);
+                }
+            }
+            hosts.remove(host);
+            host.cluster = null;
+        }
+
+        private void subtract(HostCapacity host, int type) {
+            total[type] -= host.total[type];
+            used[type] -= host.used[type];
+            reserved[type] -= host.reserved[type];
+        }
+
+        synchronized boolean isEmpty() {
+            return hosts.isEmpty();
+        }
+
+        synchronized boolean hasHostWithCapacity(int type, long required, float factor) {
+            for (HostCapacity host : hosts) {
+                if (host.hasCapacity(type, required, factor)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        synchronized void addTo(Aggregate aggregate, int type) {
+            aggregate.used += used[type];
+            aggregate.reserved += reserved[type];
+            aggregate.total += total[type];
+        }
+
+        boolean isIn(long id, boolean isZone) {
+            Long parent = isZone ? zoneId : podId;
+            return parent != null && parent.longValue() == id;
+        }
+    }
+
+    protected static class Aggregate {
+        long used;
+        long reserved;
+        long total;
+        Long podId;
+
+        double ratio(float factor) {
+            return total == 0 ? 0 : (used + reserved) / (total * (double) factor);
+        }
+    }
+
+    protected final ConcurrentHashMap<Long, HostCapacity> _hosts = new ConcurrentHashMap<Long, HostCapacity>();
+    protected final ConcurrentHashMap<Long, ClusterCapacity> _clusters = new ConcurrentHashMap<Long, ClusterCapacity>();
+    protected volatile Set<Long> _removedClusterIds = Collections.emptySet();
+    protected volatile Set<Long> _removedPodIds = Collections.emptySet();
+
+    /**
+     * Replaces the content of the index with the given rows.
+     */
+    public void load(List<CapacityVO> rows) {
+        Set<Long> none = Collections.emptySet();
+        load(rows, none, none);
+    }
+
+    /**
+     * Replaces the content of the index with the given rows, leaving out the
+     * hosts of removed clusters and pods until the next load.
+     */
+    public void load(List<CapacityVO> rows, Set<Long> removedClusterIds, Set<Long> removedPodIds) {
+        _removedClusterIds = removedClusterIds;
+        _removedPodIds = removedPodIds;
+        Set<Long> hostIds = new HashSet<Long>();
+        for (CapacityVO row : rows) {
+            if (update(row)) {
+                hostIds.add(row.getHostOrPoolId());
+            }
+        }
+        for (Long hostId : new ArrayList<Long>(_hosts.keySet())) {
+            if (!hostIds.contains(hostId)) {
+                remove(hostId);
+            }
+        }
+    }
+
+    /**
+     * Takes in the row of a host after it has been written.
+     *
+     * @return false if the row is not the cpu or memory of a host in a
+     *         cluster, or if the cluster or the pod has been removed.
+     */
+    public boolean update(CapacityVO row) {
+        if (row.getHostOrPoolId() == null || row.getClusterId() == null || (row.getCapacityType() != MEMORY && row.getCapacityType() != CPU)) {
+            return false;
+        }
+        if (_removedClusterIds.contains(row.getClusterId()) || (row.getPodId() != null && _removedPodIds.contains(row.getPodId()))) {
+            return false;
+        }
+        HostCapacity host = _hosts.get(row.getHostOrPoolId());
+        if (host == null) {
+            host = new HostCapacity(row.getHostOrPoolId());
+            HostCapacity existing = _hosts.putIfAbsent(row.getHostOrPoolId(), host);
+            if (existing != null) {
+                host = existing;
+            }
+        }
+        ClusterCapacity cluster = _clusters.get(row.getClusterId());
+        if (cluster == null) {
+            cluster = new ClusterCapacity(row.getClusterId());
+            ClusterCapacity existing = _clusters.putIfAbsent(row.getClusterId(), cluster);
+            if (existing != null) {
+                cluster = existing;
+            }
+        }
+
+        synchronized (host) {
+            ClusterCapacity previous = host.cluster;
+            if (previous != null && previous != cluster) {
+                previous.remove(host);
+            }
+            cluster.set(host, row);
+        }
+        return true;
+    }
+
+    public void remove(long hostId) {
+        HostCapacity host = _hosts.remove(hostId);
+        if (host != null) {
+            synchronized (host) {
+                ClusterCapacity cluster = host.cluster;
+                if (cluster != null) {
+                    cluster.remove(host);
+                    if (cluster.isEmpty()) {
+                        _clusters.remove(cluster.clusterId, cluster);
+                    }
+                }
+            }
+        }
+    }
+
+    public int size() {
+        return _hosts.size();
+    }
+
+    /**
+     * @return clusters in the zone or pod with a host that has the cpu and a
+     *         host that has the memory requested.
+     */
+    public List<Long> listClustersByHostCapacities(long id, int requiredCpu, long requiredRam, boolean isZone, float cpuOverprovisioningFactor) {
+        List<Long> clusterIds = new ArrayList<Long>();
+        for (ClusterCapacity cluster : _clusters.values()) {
+            if (cluster.isIn(id, isZone) && cluster.hasHostWithCapacity(CPU, requiredCpu, cpuOverprovisioningFactor)
+                    && cluster.hasHostWithCapacity(MEMORY, requiredRam, 1)) {
+                clusterIds.add(cluster.clusterId);
+            }
+        }
+        return clusterIds;
+    }
+
+    /**
+     * @return the clusters in the zone or pod, least used first, with how
+     *         much of each is used.
+     */
+    public Pair<List<Long>, Map<Long, Double>> orderClustersByAggregateCapacity(long id, short capacityType, boolean isZone, float cpuOverprovisioningFactor) {
+        Map<Long, Aggregate> clusters = new HashMap<Long, Aggregate>();
+        for (ClusterCapacity cluster : _clusters.values()) {
+            if (cluster.isIn(id, isZone)) {
+                add(clusters, cluster.clusterId, cluster, capacityType);
+            }
+        }
+        return order(clusters, capacityType == CPU ? cpuOverprovisioningFactor : 1);
+    }
+
+    /**
+     * @return pods in the zone with a host that has the cpu and a host that
+     *         has the memory requested.
+     */
+    public List<Long> listPodsByHostCapacities(long zoneId, int requiredCpu, long requiredRam, float cpuOverprovisioningFactor) {
+        Set<Long> withCpu = new HashSet<Long>();
+        Set<Long> withRam = new HashSet<Long>();
+        for (ClusterCapacity cluster : _clusters.values()) {
+            Long podId = cluster.podId;
+            if (!cluster.isIn(zoneId, true) || podId == null) {
+                continue;
+            }
+            if (!withCpu.contains(podId) && cluster.hasHostWithCapacity(CPU, requiredCpu, cpuOverprovisioningFactor)) {
+                withCpu.add(podId);
+            }
+            if (!withRam.contains(podId) && cluster.hasHostWithCapacity(MEMORY, requiredRam, 1)) {
+                withRam.add(podId);
+            }
+        }
+        withCpu.retainAll(withRam);
+        return new ArrayList<Long>(withCpu);
+    }
+
+    /**
+     * @return the pods in the zone, least used first, with how much of each
+     *         is used.
+     */
+    public Pair<List<Long>, Map<Long, Double>> orderPodsByAggregateCapacity(long zoneId, short capacityType, float cpuOverprovisioningFactor) {
+        Map<Long, Aggregate> pods = new HashMap<Long, Aggregate>();
+        for (ClusterCapacity cluster : _clusters.values()) {
+            Long podId = cluster.podId;
+            if (cluster.isIn(zoneId, true) && podId != null) {
+                add(pods, podId, cluster, capacityType);
+            }
+        }
+        return order(pods, capacityType == CPU ? cpuOverprovisioningFactor : 1);
+    }
+
+    /**
+     * @return the summed capacity of a type of each cluster with hosts.
+     */
+    public Map<Long, SummedCapacity> listClusterCapacities(short capacityType) {
+        Map<Long, SummedCapacity> capacities = new HashMap<Long, SummedCapacity>(_clusters.size());
+        for (ClusterCapacity cluster : _clusters.values()) {
+            Aggregate aggregate = new Aggregate();
+            if (add(aggregate, cluster, capacityType)) {
+                capacities.put(cluster.clusterId, new SummedCapacity(aggregate.used, aggregate.reserved, aggregate.total, capacityType, cluster.clusterId, cluster.podId));
+            }
+        }
+        return capacities;
+    }
+
+    private static void add(Map<Long, Aggregate> aggregates, Long key, ClusterCapacity cluster, short capacityType) {
+        Aggregate aggregate = aggregates.get(key);
+        if (aggregate == null) {
+            aggregate = new Aggregate();
+            if (!add(aggregate, cluster, capacityType)) {
+                return;
+            }
+            aggregates.put(key, aggregate);
+        } else {
+            add(aggregate, cluster, capacityType);
+        }
+    }
+
+    private static boolean add(Aggregate aggregate, ClusterCapacity cluster, short capacityType) {
+        synchronized (cluster) {
+            if (!cluster.present[capacityType] || cluster.hosts.isEmpty()) {
+                return false;
+            }
+            cluster.addTo(aggregate, capacityType);
+            return true;
+        }
+    }
+
+    private static Pair<List<Long>, Map<Long, Double>> order(Map<Long, Aggregate> aggregates, float factor) {
+        final Map<Long, Double> ratios = new HashMap<Long, Double>(aggregates.size());
+        for (Map.Entry<Long, Aggregate> entry : aggregates.entrySet()) {
+            ratios.put(entry.getKey(), entry.getValue().ratio(factor));
+        }
+        List<Long> ids = new ArrayList<Long>(ratios.keySet());
+        Collections.sort(ids, new Comparator<Long>() {
+            @Override
+            public int compare(Long a, Long b) {
+                int result = Double.compare(ratios.get(a), ratios.get(b));
+                return result != 0 ? result : a.compareTo(b);
+            }
+        });
+        return new Pair<List<Long>, Map<Long, Double>>(ids, ratios);
+    }
+}
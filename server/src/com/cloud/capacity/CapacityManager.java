@@ -44,4 +44,10 @@ public interface CapacityManager extends Manager {
      * @return total allocated capacity for the storage pool
      */
     long getAllocatedPoolCapacity(StoragePoolVO pool, VMTemplateVO templateForVmCreation);
+
+    /**
+     * @return the in-memory copy of the host cpu and memory capacities the
+     *         deployment planners read.
+     */
+    CapacityIndex getCapacityIndex();
 }
@@ -13,11 +13,15 @@
 package com.cloud.capacity;
 
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
@@ -37,6 +41,10 @@ import com.cloud.capacity.dao.CapacityDao;
 import com.cloud.configuration.Config;
 import com.cloud.configuration.ConfigurationManager;
 import com.cloud.configuration.dao.ConfigurationDao;
+import com.cloud.dc.ClusterVO;
+import com.cloud.dc.HostPodVO;
+import com.cloud.dc.dao.ClusterDao;
+import com.cloud.dc.dao.HostPodDao;
 import com.cloud.exception.ConnectionException;
 import com.cloud.host.HostVO;
 import com.cloud.host.Status;
@@ -91,6 +99,10 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
     @Inject 
     VMTemplatePoolDao _templatePoolDao;
     @Inject
+    ClusterDao _clusterDao;
+    @Inject
+    HostPodDao _podDao;
+    @Inject
     AgentManager _agentManager;
     @Inject
     ResourceManager _resourceMgr;
@@ -107,6 +119,8 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
     long _extraBytesPerVolume = 0;
     private float _storageOverProvisioningFactor = 1.0f;
     private float _cpuOverProvisioningFactor = 1.0f;
+    private int _capacityIndexRefreshInterval;
+    private final CapacityIndex _capacityIndex = new CapacityIndex();
 
     @Override
     public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
@@ -118,6 +132,7 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
         if (_cpuOverProvisioningFactor < 1.0f) {
             _cpuOverProvisioningFactor = 1.0f;
         }
+        _capacityIndexRefreshInterval = NumbersUtil.parseInt(_configDao.getValue(Config.CapacityIndexRefreshInterval.key()), 10);
         _executor = Executors.newScheduledThreadPool(1, new NamedThreadFactory("HostCapacity-Checker"));
         VirtualMachine.State.getStateMachine().registerListener(this);
         _agentManager.registerForHostEvents(new StorageCapacityListener(_capacityDao, _storageOverProvisioningFactor), true, false, false);
@@ -130,9 +145,52 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
     public boolean start() {
     	_resourceMgr.registerResourceEvent(ResourceListener.EVENT_PREPARE_MAINTENANCE_AFTER, this);
     	_resourceMgr.registerResourceEvent(ResourceListener.EVENT_CANCEL_MAINTENANCE_AFTER, this);
+    	loadCapacityIndex();
+    	_executor.scheduleWithFixedDelay(new CapacityIndexRefresher(), _capacityIndexRefreshInterval, _capacityIndexRefreshInterval, TimeUnit.SECONDS);
         return true;
     }
 
+    protected void loadCapacityIndex() {
+        SearchCriteria<CapacityVO> sc = _capacityDao.createSearchCriteria();
+        sc.addAnd("capacityType", SearchCriteria.Op.IN, CapacityVO.CAPACITY_TYPE_CPU, CapacityVO.CAPACITY_TYPE_MEMORY);
+        List<CapacityVO> rows = _capacityDao.search(sc, null);
+
+        // like the queries the index stands in for, leave out removed clusters and pods
+        Set<Long> removedClusterIds = new HashSet<Long>();
+        for (ClusterVO cluster : _clusterDao.listAllIncludingRemoved()) {
+            if (cluster.getRemoved() != null) {
+                removedClusterIds.add(cluster.getId());
+            }
+        }
+        Set<Long> removedPodIds = new HashSet<Long>();
+        for (HostPodVO pod : _podDao.listAllIncludingRemoved()) {
+            if (pod.getRemoved() != null) {
+                removedPodIds.add(pod.getId());
+            }
+        }
+        _capacityIndex.load(rows, removedClusterIds, removedPodIds);
+    }
+
+    /**
+     * Reloads the capacity index, to pick up the capacity allocated and
+     * released by the other management servers.
+     */
+    protected class CapacityIndexRefresher implements Runnable {
+        @Override
+        public void run() {
+            try {
+                loadCapacityIndex();
+            } catch (Throwable e) {
+                s_logger.warn("Unable to refresh the capacity index", e);
+            }
+        }
+    }
+
+    @Override
+    public CapacityIndex getCapacityIndex() {
+        return _capacityIndex;
+    }
+
     @Override
     public boolean stop() {
         _executor.shutdownNow();
@@ -216,6 +274,8 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
             _capacityDao.update(capacityCpu.getId(), capacityCpu);
             _capacityDao.update(capacityMemory.getId(), capacityMemory);
             txn.commit();
+            _capacityIndex.update(capacityCpu);
+            _capacityIndex.update(capacityMemory);
             return true;
         } catch (Exception e) {
             s_logger.debug("Failed to transit vm's state, due to " + e.getMessage());
@@ -306,6 +366,8 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
             _capacityDao.update(capacityCpu.getId(), capacityCpu);
             _capacityDao.update(capacityMem.getId(), capacityMem);
             txn.commit();
+            _capacityIndex.update(capacityCpu);
+            _capacityIndex.update(capacityMem);
         } catch (Exception e) {
             txn.rollback();
             return;
@@ -555,8 +617,12 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
 	        }
 	
 	        try {
-	            _capacityDao.update(cpuCap.getId(), cpuCap);
-	            _capacityDao.update(memCap.getId(), memCap);
+	            List<CapacityVO> capacities = new ArrayList<CapacityVO>(2);
+	            capacities.add(cpuCap);
+	            capacities.add(memCap);
+	            _capacityDao.updateBatch(capacities);
+	            _capacityIndex.update(cpuCap);
+	            _capacityIndex.update(memCap);
 	        } catch (Exception e) {
 	        	s_logger.error("Caught exception while updating cpu/memory capacity for the host " +host.getId(), e);
 	        }
@@ -571,7 +637,8 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
                     CapacityVO.CAPACITY_TYPE_MEMORY);
             capacity.setReservedCapacity(reservedMemory);
             capacity.setCapacityState(capacityState);
-            _capacityDao.persist(capacity);
+            List<CapacityVO> capacities = new ArrayList<CapacityVO>(2);
+            capacities.add(capacity);
         	
             capacity = new CapacityVO(
                     host.getId(),
@@ -583,8 +650,12 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
                     CapacityVO.CAPACITY_TYPE_CPU);
             capacity.setReservedCapacity(reservedCpu);
             capacity.setCapacityState(capacityState);
-            _capacityDao.persist(capacity);
+            capacities.add(capacity);
+            _capacityDao.persistBatch(capacities);
             txn.commit();
+            for (CapacityVO created : capacities) {
+                _capacityIndex.update(created);
+            }
             
         }
         
@@ -45,6 +45,7 @@ import com.cloud.agent.AgentManager.OnError;
 import com.cloud.agent.api.Answer;
 import com.cloud.agent.api.ChangeAgentAnswer;
 import com.cloud.agent.api.ChangeAgentCommand;
+import com.cloud.agent.api.InvalidateEntityCacheCommand;
 import com.cloud.agent.api.Command;
 import com.cloud.agent.api.PropagateResourceEventCommand;
 import com.cloud.agent.api.TransferAgentCommand;
@@ -73,6 +74,7 @@ import com.cloud.utils.component.Inject;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.ConnectionConcierge;
 import com.cloud.utils.db.DB;
+import com.cloud.utils.db.EntityCache;
 import com.cloud.utils.db.SearchCriteria.Op;
 import com.cloud.utils.db.SearchCriteria2;
 import com.cloud.utils.db.SearchCriteriaService;
@@ -402,6 +404,10 @@ public class ClusterManagerImpl implements ClusterManager {
             Answer[] answers = new Answer[1];
             answers[0] = new Answer(cmd, result, null);
             return _gson.toJson(answers);
+        } else if (cmds.length == 1 && cmds[0] instanceof InvalidateEntityCacheCommand) {
+            InvalidateEntityCacheCommand cmd = (InvalidateEntityCacheCommand)cmds[0];
+            EntityCache.onRemoteInvalidation(pdu.getSourcePeer(), cmd.getRegion(), cmd.getVersion(), cmd.getIds());
+            return null;
         }
 
         try {
@@ -511,6 +517,29 @@ public class ClusterManagerImpl implements ClusterManager {
         }
     }
 
+    /**
+     * Forwards invalidations of the DAO caches to the other management servers.
+     */
+    protected class EntityCacheBroadcaster implements EntityCache.Broadcaster {
+        @Override
+        public void broadcast(String region, long version, String[] ids) {
+            final Command[] cmds = new Command[] { new InvalidateEntityCacheCommand(region, version, ids) };
+            _executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Transaction txn = Transaction.open(Transaction.CLOUD_DB);
+                    try {
+                        ClusterManagerImpl.this.broadcast(0, cmds);
+                    } catch (Exception e) {
+                        s_logger.warn("Unable to broadcast the cache invalidation", e);
+                    } finally {
+                        txn.close();
+                    }
+                }
+            });
+        }
+    }
+
     @Override
     public void executeAsync(String strPeer, long agentId, Command [] cmds, boolean stopOnError) {
         ClusterServicePdu pdu = new ClusterServicePdu();
@@ -1182,6 +1211,7 @@ public class ClusterManagerImpl implements ClusterManager {
             _heartbeatScheduler.scheduleAtFixedRate(getHeartbeatTask(), _heartbeatInterval, _heartbeatInterval, TimeUnit.MILLISECONDS);
             _notificationExecutor.submit(getNotificationTask());
 
+            EntityCache.setBroadcaster(new EntityCacheBroadcaster());
         } catch (Throwable e) {
             s_logger.error("Unexpected exception : ", e);
             txn.rollback();
@@ -1198,6 +1228,7 @@ public class ClusterManagerImpl implements ClusterManager {
 
     @Override @DB
     public boolean stop() {
+        EntityCache.setBroadcaster(null);
         if(_mshostId != null) {
             ManagementServerHostVO mshost = _mshostDao.findByMsid(_msId);
             mshost.setState(ManagementServerHost.State.Down);
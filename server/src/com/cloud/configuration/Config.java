@@ -92,12 +92,15 @@ public enum Config {
 	OvsTunnelNetworkDefaultLabel("Network", ManagementServer.class, String.class, "sdn.ovs.controller.default.label", "cloud-public", "Default network label to be used when fetching interface for GRE endpoints", null),
 	VmNetworkThrottlingRate("Network", ManagementServer.class, Integer.class, "vm.network.throttling.rate", "200", "Default data transfer rate in megabits per second allowed in User vm's default network.", null),
 	NetworkLockTimeout("Network", ManagementServer.class, Integer.class, "network.lock.timeout", "600", "Lock wait timeout (seconds) while implementing network", null),
+	NetworkGuestIpCacheSize("Network", ManagementServer.class, Integer.class, "network.guest.ip.cache.size", "1000", "The number of guest networks whose address allocation each management server keeps in memory", null),
 
 
 	SecurityGroupWorkCleanupInterval("Network", ManagementServer.class, Integer.class, "network.securitygroups.work.cleanup.interval", "120", "Time interval (seconds) in which finished work is cleaned up from the work table", null),
 	SecurityGroupWorkerThreads("Network", ManagementServer.class, Integer.class, "network.securitygroups.workers.pool.size", "50", "Number of worker threads processing the security group update work queue", null),
 	SecurityGroupWorkGlobalLockTimeout("Network", ManagementServer.class, Integer.class, "network.securitygroups.work.lock.timeout", "300", "Lock wait timeout (seconds) while updating the security group work queue", null),
 	SecurityGroupWorkPerAgentMaxQueueSize("Network", ManagementServer.class, Integer.class, "network.securitygroups.work.per.agent.queue.size", "100", "The number of outstanding security group work items that can be queued to a host. If exceeded, work items will get dropped to conserve memory. Security Group Sync will take care of ensuring that the host gets updated eventually", null),
+	SecurityGroupWorkBatchSize("Network", ManagementServer.class, Integer.class, "network.securitygroups.work.batch.size", "50", "The maximum number of vms of a host whose security group rules are sent to the host at once", null),
+	SecurityGroupMemberSets("Network", ManagementServer.class, Boolean.class, "network.securitygroups.member.sets", "true", "If true, rules allowing a security group refer to a set of the group members kept on the KVM and XenServer hosts and updated as vms start and stop, instead of listing the members in the rules of every vm", null),
 	
 	SecurityGroupDefaultAdding("Network", ManagementServer.class, Boolean.class, "network.securitygroups.defaultadding", "true", "If true, the user VM would be added to the default security group by default", null),
 	
@@ -133,6 +136,8 @@ public enum Config {
 	// Advanced
     JobExpireMinutes("Advanced", ManagementServer.class, String.class, "job.expire.minutes", "1440", "Time (in minutes) for async-jobs to be kept in system", null),
     JobCancelThresholdMinutes("Advanced", ManagementServer.class, String.class, "job.cancel.threshold.minutes", "60", "Time (in minutes) for async-jobs to be forcely cancelled if it has been in process for long", null),
+    JobStatusCacheSize("Advanced", ManagementServer.class, Integer.class, "job.status.cache.size", "10000", "The number of async-jobs whose status each management server keeps in memory for queryAsyncJobResult", null),
+    JobMaxWaitSeconds("Advanced", ManagementServer.class, Integer.class, "job.max.wait.seconds", "60", "The longest time (in seconds) queryAsyncJobResult and queryAsyncJobResults may wait for jobs to complete", null),
  SwiftEnable(
             "Advanced", ManagementServer.class, Boolean.class, "swift.enable", "false", "enable swift ", null),
 	
@@ -142,6 +147,7 @@ public enum Config {
 	ExpungeDelay("Advanced", UserVmManager.class, Integer.class, "expunge.delay", "86400", "Determines how long (in seconds) to wait before actually expunging destroyed vm. The default value = the default value of expunge.interval", null),
 	ExpungeInterval("Advanced", UserVmManager.class, Integer.class, "expunge.interval", "86400", "The interval (in seconds) to wait before running the expunge thread.", null),
 	ExpungeWorkers("Advanced", UserVmManager.class, Integer.class, "expunge.workers",  "1", "Number of workers performing expunge ", null),
+	VmDeployBatchWorkers("Advanced", UserVmManager.class, Integer.class, "vm.deploy.batch.workers", "16", "The number of threads that start the vms of deployVirtualMachines calls in parallel.", null),
 	ExtractURLCleanUpInterval("Advanced", ManagementServer.class, Integer.class, "extract.url.cleanup.interval",  "7200", "The interval (in seconds) to wait before cleaning up the extract URL's ", null),
 	DisableExtraction("Advanced", ManagementServer.class, Boolean.class, "disable.extraction",  "false", "Flag for disabling extraction of template, isos and volumes", null),
 	ExtractURLExpirationInterval("Advanced", ManagementServer.class, Integer.class, "extract.url.expiration.interval",  "14400", "The life of an extract URL after which it is deleted ", null),
@@ -170,6 +176,9 @@ public enum Config {
 	XapiWait("Advanced", AgentManager.class, Integer.class, "xapiwait", "600", "Time (in seconds) to wait for XAPI to return", null),
 	MigrateWait("Advanced", AgentManager.class, Integer.class, "migratewait", "3600", "Time (in seconds) to wait for VM migrate finish", null),
 	Workers("Advanced", AgentManager.class, Integer.class, "workers", "5", "Number of worker threads.", null),
+	AgentSelectors("Advanced", AgentManager.class, Integer.class, "agent.selectors", "0", "Number of selector threads that share the agent connections; 0 means one thread accepts, reads and writes for all agents.", null),
+	AgentHandlerQueueSize("Advanced", AgentManager.class, Integer.class, "agent.handler.queue.size", "0", "Number of agent requests that can wait for a handler thread before reads from agents are throttled; 0 means no limit.", null),
+	AgentCompressionThreshold("Advanced", AgentManager.class, Integer.class, "agent.compression.threshold", "8192", "Size in bytes above which commands and answers sent to agents are compressed.", null),
 	MountParent("Advanced", ManagementServer.class, String.class, "mount.parent", "/var/lib/cloud/management/mnt", "The mount point on the Management Server for Secondary Storage.", null),
 //	UpgradeURL("Advanced", ManagementServer.class, String.class, "upgrade.url", "http://example.com:8080/client/agent/update.zip", "The upgrade URL is the URL of the management server that agents will connect to in order to automatically upgrade.", null),
 	SystemVMUseLocalStorage("Advanced", ManagementServer.class, Boolean.class, "system.vm.use.local.storage", "false", "Indicates whether to use local storage pools or shared storage pools for system VMs.", null),
@@ -201,7 +210,11 @@ public enum Config {
 	NetworkGcWait("Advanced", ManagementServer.class, Integer.class, "network.gc.wait", "600", "Time (in seconds) to wait before shutting down a network that's not in used", null),
 	NetworkGcInterval("Advanced", ManagementServer.class, Integer.class, "network.gc.interval", "600", "Seconds to wait before checking for networks to shutdown", null),	
 	CapacitySkipcountingHours("Advanced", ManagementServer.class, Integer.class, "capacity.skipcounting.hours", "3600", "Time (in seconds) to wait before release VM's cpu and memory when VM in stopped state", null),
+	CapacityIndexRefreshInterval("Advanced", ManagementServer.class, Integer.class, "capacity.index.refresh.interval", "10", "Time (in seconds) between reloads of the host capacities the deployment planners read from memory.", null),
 	VmStatsInterval("Advanced", ManagementServer.class, Integer.class, "vm.stats.interval", "60000", "The interval (in milliseconds) when vm stats are retrieved from agents.", null),
+	VmStatsSamples("Advanced", ManagementServer.class, Integer.class, "vm.stats.samples", "10", "The number of recent stats samples kept for each vm.", null),
+	StatsCollectorWorkers("Advanced", ManagementServer.class, Integer.class, "stats.collector.workers", "16", "The number of threads that collect host, vm and volume stats in parallel.", null),
+	StatsCollectorHostTimeout("Advanced", ManagementServer.class, Integer.class, "stats.collector.host.timeout", "30", "Time (in seconds) to wait for the stats of one host or storage pool before skipping it for the cycle.", null),
 	VmTransitionWaitInterval("Advanced", ManagementServer.class, Integer.class, "vm.tranisition.wait.interval", "3600", "Time (in seconds) to wait before taking over a VM in transition state", null),
 	VmDestroyForcestop("Advanced", ManagementServer.class, Boolean.class, "vm.destroy.forcestop", "false", "On destroy, force-stop takes this value ", null),
 	
@@ -37,6 +37,7 @@ import javax.naming.directory.InitialDirContext;
 import org.apache.log4j.Logger;
 
 import com.cloud.acl.SecurityChecker;
+import com.cloud.agent.transport.Request;
 import com.cloud.alert.AlertManager;
 import com.cloud.api.ApiConstants.LDAPParams;
 import com.cloud.api.ApiDBUtils;
@@ -380,6 +381,9 @@ public class ConfigurationManagerImpl implements ConfigurationManager, Configura
             } catch (Throwable e) {
                 throw new CloudRuntimeException("Failed to update storage.network.device2 in host_details due to exception ", e);
             }
+        } else if (Config.AgentCompressionThreshold.key().equalsIgnoreCase(name)) {
+            // Only this management server picks it up right away, the others on restart.
+            Request.setCompressionThreshold(NumbersUtil.parseInt(value, Request.getCompressionThreshold()));
         } else if (Config.SystemVMUseLocalStorage.key().equalsIgnoreCase(name)) {
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("Config 'system.vm.use.local.storage' changed to value:" + value + ", need to update System VM offerings");
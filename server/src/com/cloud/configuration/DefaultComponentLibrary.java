@@ -202,15 +202,18 @@ public class DefaultComponentLibrary extends ComponentLibraryBase implements Com
         addDao("UserVmDao", UserVmDaoImpl.class);
         ComponentInfo<? extends GenericDao<?, ? extends Serializable>> info = addDao("ServiceOfferingDao", ServiceOfferingDaoImpl.class);
         info.addParameter("cache.size", "50");
+        info.addParameter("cache.query.size", "100");
         info.addParameter("cache.time.to.live", "600");
         info = addDao("DiskOfferingDao", DiskOfferingDaoImpl.class);
         info.addParameter("cache.size", "50");
         info.addParameter("cache.time.to.live", "600");
         info = addDao("DataCenterDao", DataCenterDaoImpl.class);
         info.addParameter("cache.size", "50");
+        info.addParameter("cache.query.size", "100");
         info.addParameter("cache.time.to.live", "600");
         info = addDao("HostPodDao", HostPodDaoImpl.class);
         info.addParameter("cache.size", "50");
+        info.addParameter("cache.query.size", "100");
         info.addParameter("cache.time.to.live", "600");
         addDao("IPAddressDao", IPAddressDaoImpl.class);
         info = addDao("VlanDao", VlanDaoImpl.class);
@@ -250,9 +253,13 @@ public class DefaultComponentLibrary extends ComponentLibraryBase implements Com
         addDao("UploadDao", UploadDaoImpl.class);
         addDao("VMTemplatePoolDao", VMTemplatePoolDaoImpl.class);
         addDao("LaunchPermissionDao", LaunchPermissionDaoImpl.class);
-        addDao("ConfigurationDao", ConfigurationDaoImpl.class);
+        info = addDao("ConfigurationDao", ConfigurationDaoImpl.class);
+        info.addParameter("cache.size", "500");
+        info.addParameter("cache.query.size", "100");
+        info.addParameter("cache.time.to.live", "600");
         info = addDao("VMTemplateDao", VMTemplateDaoImpl.class);
         info.addParameter("cache.size", "100");
+        info.addParameter("cache.query.size", "200");
         info.addParameter("cache.time.to.live", "600");
         info.addParameter("routing.uniquename", "routing");
         addDao("HighAvailabilityDao", HighAvailabilityDaoImpl.class);
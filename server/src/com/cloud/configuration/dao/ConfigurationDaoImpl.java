@@ -125,6 +125,7 @@ public class ConfigurationDaoImpl extends GenericDaoBase<ConfigurationVO, String
 			stmt.setString(1, value);
 			stmt.setString(2, name);
 			stmt.executeUpdate();
+			invalidateCache(name);
 			return true;
 		} catch (Exception e) {
 			s_logger.warn("Unable to update Configuration Value", e);
@@ -141,6 +142,7 @@ public class ConfigurationDaoImpl extends GenericDaoBase<ConfigurationVO, String
 			stmt.setString(1, value);
 			stmt.setString(2, name);
 			stmt.executeUpdate();
+			invalidateCache(name);
 			return true;
 		} catch (Exception e) {
 			s_logger.warn("Unable to update Configuration Value", e);
@@ -193,6 +195,7 @@ public class ConfigurationDaoImpl extends GenericDaoBase<ConfigurationVO, String
 			if(stmtInsert.executeUpdate() < 1) {
 				throw new CloudRuntimeException("Unable to init configuration variable: " + name); 
 			}
+			invalidateCache(name);
 			txn.commit();
 			return returnValue;
 		} catch (Exception e) {
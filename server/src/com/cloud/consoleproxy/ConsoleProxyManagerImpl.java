@@ -75,6 +75,7 @@ import com.cloud.info.ConsoleProxyConnectionInfo;
 import com.cloud.info.ConsoleProxyInfo;
 import com.cloud.info.ConsoleProxyLoadInfo;
 import com.cloud.info.ConsoleProxyStatus;
+import com.cloud.info.ConsoleProxyThreadPoolInfo;
 import com.cloud.info.RunningHostCountInfo;
 import com.cloud.info.RunningHostInfoAgregator;
 import com.cloud.info.RunningHostInfoAgregator.ZoneHostInfo;
@@ -791,6 +792,30 @@ public class ConsoleProxyManagerImpl implements ConsoleProxyManager, ConsoleProx
         return null;
     }
 
+    /**
+     * @return the session count of a proxy, or more when its HTTP threads are
+     *         saturated, so that new sessions go to proxies with real room
+     */
+    private int getProxyLoad(ConsoleProxyStatus status) {
+        int count = 0;
+        if (status.getConnections() != null) {
+            count = status.getConnections().length;
+        }
+
+        ConsoleProxyThreadPoolInfo threadPool = status.getThreadPool();
+        if (threadPool != null) {
+            int saturatedLoad = (int) Math.round(threadPool.saturation * _capacityPerProxy);
+            if (saturatedLoad > count) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Console proxy threads are " + Math.round(threadPool.saturation * 100) + "% saturated, count load as " + saturatedLoad
+                            + " instead of " + count + " sessions");
+                }
+                count = saturatedLoad;
+            }
+        }
+        return count;
+    }
+
     public void onLoadAnswer(ConsoleProxyLoadAnswer answer) {
         if (answer.getDetails() == null) {
             return;
@@ -807,10 +832,7 @@ public class ConsoleProxyManagerImpl implements ConsoleProxyManager, ConsoleProx
         }
 
         if (status != null) {
-            int count = 0;
-            if (status.getConnections() != null) {
-                count = status.getConnections().length;
-            }
+            int count = getProxyLoad(status);
 
             byte[] details = null;
             if (answer.getDetails() != null) {
@@ -844,10 +866,7 @@ public class ConsoleProxyManagerImpl implements ConsoleProxyManager, ConsoleProx
         }
 
         if (status != null) {
-            int count = 0;
-            if (status.getConnections() != null) {
-                count = status.getConnections().length;
-            }
+            int count = getProxyLoad(status);
 
             byte[] details = null;
             if (cmd.getLoadInfo() != null) {
@@ -0,0 +1,100 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.deploy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.cloud.capacity.Capacity;
+import com.cloud.capacity.CapacityIndex;
+import com.cloud.capacity.dao.CapacityDaoImpl.SummedCapacity;
+
+/**
+ * BatchPlanner spreads a batch of vms of the same offering over the clusters
+ * of a zone in one pass, so that each vm can then be started with a plan
+ * that only looks at its cluster.  The clusters are only a hint: the
+ * planner and host allocators still check the hosts when the vm starts.
+ */
+public class BatchPlanner {
+    public enum Policy {
+        /**
+         * Each vm goes to the cluster with the most room left.
+         */
+        Spread,
+        /**
+         * The vms fill the clusters with the least room first.
+         */
+        Pack;
+
+        public static Policy getPolicy(String name) {
+            if (name == null) {
+                return Spread;
+            }
+            for (Policy policy : values()) {
+                if (policy.name().equalsIgnoreCase(name)) {
+                    return policy;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final CapacityIndex _index;
+
+    public BatchPlanner(CapacityIndex index) {
+        _index = index;
+    }
+
+    /**
+     * @return the cluster of each of the count vms, null for the vms that do
+     *         not fit in what the index knows of.
+     */
+    public List<Long> assignClusters(long zoneId, int count, int cpu, long ram, float cpuOverprovisioningFactor, Policy policy) {
+        List<Long> clusterIds = _index.listClustersByHostCapacities(zoneId, cpu, ram, true, cpuOverprovisioningFactor);
+        Map<Long, SummedCapacity> cpuCapacities = _index.listClusterCapacities(Capacity.CAPACITY_TYPE_CPU);
+        Map<Long, SummedCapacity> ramCapacities = _index.listClusterCapacities(Capacity.CAPACITY_TYPE_MEMORY);
+
+        long[] slots = new long[clusterIds.size()];
+        for (int i = 0; i < slots.length; i++) {
+            SummedCapacity cpuCapacity = cpuCapacities.get(clusterIds.get(i));
+            SummedCapacity ramCapacity = ramCapacities.get(clusterIds.get(i));
+            if (cpuCapacity != null && ramCapacity != null) {
+                slots[i] = Math.min(slots(cpuCapacity, cpu, cpuOverprovisioningFactor), slots(ramCapacity, ram, 1));
+            }
+        }
+
+        List<Long> assigned = new ArrayList<Long>(count);
+        for (int n = 0; n < count; n++) {
+            int chosen = -1;
+            for (int i = 0; i < slots.length; i++) {
+                if (slots[i] <= 0) {
+                    continue;
+                }
+                if (chosen < 0 || (policy == Policy.Pack ? slots[i] < slots[chosen] : slots[i] > slots[chosen])) {
+                    chosen = i;
+                }
+            }
+            if (chosen < 0) {
+                assigned.add(null);
+            } else {
+                slots[chosen]--;
+                assigned.add(clusterIds.get(chosen));
+            }
+        }
+        return assigned;
+    }
+
+    private static long slots(SummedCapacity capacity, long required, float factor) {
+        long free = (long) (capacity.getTotalCapacity() * factor) - capacity.getUsedCapacity() - capacity.getReservedCapacity();
+        return required <= 0 ? Long.MAX_VALUE : Math.max(0, free / required);
+    }
+}
@@ -26,6 +26,7 @@ import org.apache.log4j.Logger;
 import com.cloud.agent.manager.allocator.HostAllocator;
 import com.cloud.api.ApiDBUtils;
 import com.cloud.capacity.Capacity;
+import com.cloud.capacity.CapacityIndex;
 import com.cloud.capacity.CapacityManager;
 import com.cloud.capacity.CapacityVO;
 import com.cloud.capacity.dao.CapacityDao;
@@ -457,15 +458,20 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
         int cpu_requested = offering.getCpu() * offering.getSpeed();
         long ram_requested = offering.getRamSize() * 1024L * 1024L;
     	
+    	Map<Short, Map<Long, SummedCapacity>> capacitiesByType = new HashMap<Short, Map<Long, SummedCapacity>>();
+    	for (short capacity : capacityList) {
+    	    capacitiesByType.put(capacity, _capacityMgr.getCapacityIndex().listClusterCapacities(capacity));
+    	}
+    	
     	// Iterate over the cluster List and check for each cluster whether it breaks disable threshold for any of the capacity types
     	for (Long clusterId : clusterList){
     		for(short capacity : capacityList){
     			
-    			List<SummedCapacity> summedCapacityList = _capacityDao.findCapacityBy(new Integer(capacity), null, null, clusterId);    			
-    	    	if (summedCapacityList != null && summedCapacityList.size() != 0  && summedCapacityList.get(0).getTotalCapacity() != 0){
+    			SummedCapacity summedCapacity = capacitiesByType.get(capacity).get(clusterId);
+    	    	if (summedCapacity != null && summedCapacity.getTotalCapacity() != 0){
     	    		
-    	    		double used = (double)(summedCapacityList.get(0).getUsedCapacity() + summedCapacityList.get(0).getReservedCapacity());
-    	    		double total = summedCapacityList.get(0).getTotalCapacity();
+    	    		double used = (double)(summedCapacity.getUsedCapacity() + summedCapacity.getReservedCapacity());
+    	    		double total = summedCapacity.getTotalCapacity();
     	    		
     	    		if (capacity == Capacity.CAPACITY_TYPE_CPU){
     	    			total = total * ApiDBUtils.getCpuOverprovisioningFactor();
@@ -572,11 +578,12 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("CPUOverprovisioningFactor considered: " + cpuOverprovisioningFactor);
         }
-        List<Long> clusterIdswithEnoughCapacity = _capacityDao.listClustersInZoneOrPodByHostCapacities(id, requiredCpu, requiredRam, capacityType, isZone, cpuOverprovisioningFactor);
+        CapacityIndex capacityIndex = _capacityMgr.getCapacityIndex();
+        List<Long> clusterIdswithEnoughCapacity = capacityIndex.listClustersByHostCapacities(id, requiredCpu, requiredRam, isZone, cpuOverprovisioningFactor);
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("ClusterId List having enough CPU and RAM capacity: " + clusterIdswithEnoughCapacity);
         }
-        Pair<List<Long>, Map<Long, Double>> result = _capacityDao.orderClustersByAggregateCapacity(id, capacityType, isZone, cpuOverprovisioningFactor);
+        Pair<List<Long>, Map<Long, Double>> result = capacityIndex.orderClustersByAggregateCapacity(id, capacityType, isZone, cpuOverprovisioningFactor);
         List<Long> clusterIdsOrderedByAggregateCapacity = result.first();
         //only keep the clusters that have enough capacity to host this VM
         if (s_logger.isTraceEnabled()) {
@@ -609,11 +616,12 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("CPUOverprovisioningFactor considered: " + cpuOverprovisioningFactor);
         }
-        List<Long> podIdswithEnoughCapacity = _capacityDao.listPodsByHostCapacities(zoneId, requiredCpu, requiredRam, capacityType, cpuOverprovisioningFactor);
+        CapacityIndex capacityIndex = _capacityMgr.getCapacityIndex();
+        List<Long> podIdswithEnoughCapacity = capacityIndex.listPodsByHostCapacities(zoneId, requiredCpu, requiredRam, cpuOverprovisioningFactor);
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("PodId List having enough CPU and RAM capacity: " + podIdswithEnoughCapacity);
         }
-        Pair<List<Long>, Map<Long, Double>> result = _capacityDao.orderPodsByAggregateCapacity(zoneId, capacityType, cpuOverprovisioningFactor);
+        Pair<List<Long>, Map<Long, Double>> result = capacityIndex.orderPodsByAggregateCapacity(zoneId, capacityType, cpuOverprovisioningFactor);
         List<Long> podIdsOrderedByAggregateCapacity = result.first();
         //only keep the clusters that have enough capacity to host this VM
         if (s_logger.isTraceEnabled()) {
@@ -716,6 +716,26 @@ public abstract class ExternalLoadBalancerDeviceManagerImpl extends AdapterBase
         return _nicDao.persist(nic);
     }
 
+    /**
+     * Acquires a guest IP address and saves it in a placeholder nic, in one
+     * transaction so the network stays locked until the nic is persisted.
+     *
+     * @return the nic, or null if there's no guest IP address left.
+     */
+    @DB
+    protected NicVO allocatePlaceholderNic(Network network) {
+        Transaction txn = Transaction.currentTxn();
+        txn.start();
+        String ipAddress = _networkMgr.acquireGuestIpAddress(network, null);
+        if (ipAddress == null) {
+            txn.rollback();
+            return null;
+        }
+        NicVO nic = savePlaceholderNic(network, ipAddress);
+        txn.commit();
+        return nic;
+    }
+
     private NicVO getPlaceholderNic(Network network) {
         List<NicVO> guestIps = _nicDao.listByNetworkId(network.getId());
         for (NicVO guestIp : guestIps) {
@@ -812,20 +832,14 @@ public abstract class ExternalLoadBalancerDeviceManagerImpl extends AdapterBase
                 if (!revoked) {
                     if (mapping == null) {
                         // Acquire a new guest IP address and save it as the load balancing IP address
-                        String loadBalancingIpAddress = _networkMgr.acquireGuestIpAddress(network, null);
+                        loadBalancingIpNic = allocatePlaceholderNic(network);
 
-                        if (loadBalancingIpAddress == null) {
+                        if (loadBalancingIpNic == null) {
                             String msg = "Ran out of guest IP addresses.";
                             s_logger.error(msg);
                             throw new ResourceUnavailableException(msg, DataCenter.class, network.getDataCenterId());
                         }
 
-                        // If a NIC doesn't exist for the load balancing IP address, create one
-                        loadBalancingIpNic = _nicDao.findByIp4AddressAndNetworkId(loadBalancingIpAddress, network.getId());
-                        if (loadBalancingIpNic == null) {
-                            loadBalancingIpNic = savePlaceholderNic(network, loadBalancingIpAddress);
-                        }
-
                         // Save a mapping between the source IP address and the load balancing IP address NIC
                         mapping = new InlineLoadBalancerNicMapVO(rule.getId(), srcIp, loadBalancingIpNic.getId());
                         _inlineLoadBalancerNicMapDao.persist(mapping);
@@ -923,17 +937,19 @@ public abstract class ExternalLoadBalancerDeviceManagerImpl extends AdapterBase
         String guestVlanNetmask = NetUtils.cidr2Netmask(guestConfig.getCidr());
         Integer networkRate = _networkMgr.getNetworkRate(guestConfig.getId(), null);
 
+        NicVO selfipNic = null;
         if (add) {
-            // Acquire a self-ip address from the guest network IP address range
-            selfIp = _networkMgr.acquireGuestIpAddress(guestConfig, null);
-            if (selfIp == null) {
+            // Acquire a self-ip address from the guest network IP address range, and insert a new NIC to reserve it
+            selfipNic = allocatePlaceholderNic(guestConfig);
+            if (selfipNic == null) {
                 String msg = "failed to acquire guest IP address so not implementing the network on the external load balancer ";
                 s_logger.error(msg);
                 throw new InsufficientNetworkCapacityException(msg, Network.class, guestConfig.getId());
             }
+            selfIp = selfipNic.getIp4Address();
         } else {
             // get the self-ip used by the load balancer
-            NicVO selfipNic = getPlaceholderNic(guestConfig);
+            selfipNic = getPlaceholderNic(guestConfig);
             if (selfipNic == null) {
                 s_logger.warn("Network shutdwon requested on external load balancer element, which did not implement the network." +
                         " Either network implement failed half way through or already network shutdown is completed. So just returning.");
@@ -953,15 +969,15 @@ public abstract class ExternalLoadBalancerDeviceManagerImpl extends AdapterBase
             String answerDetails = (answer != null) ? answer.getDetails() : "answer was null";
             String msg = "External load balancer was unable to " + action + " the guest network on the external load balancer in zone " + zone.getName() + " due to " + answerDetails;
             s_logger.error(msg);
+            if (add) {
+                // give the self IP back
+                _nicDao.remove(selfipNic.getId());
+            }
             throw new ResourceUnavailableException(msg, Network.class, guestConfig.getId());
         }
 
-        if (add) {
-            // Insert a new NIC for this guest network to reserve the self IP
-            savePlaceholderNic(guestConfig, selfIp);
-        } else {
+        if (!add) {
             // release the self-ip obtained from guest network
-            NicVO selfipNic = getPlaceholderNic(guestConfig);
             _nicDao.remove(selfipNic.getId());
 
             // release the load balancer allocated for the network
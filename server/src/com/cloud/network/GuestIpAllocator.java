@@ -0,0 +1,141 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.network;
+
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.db.EntityCache;
+import com.cloud.utils.net.NetUtils;
+import com.cloud.vm.dao.NicDao;
+
+/**
+ * GuestIpAllocator hands out the guest addresses of the networks that don't
+ * specify ip ranges.  It keeps a GuestIpBitmap per network, built from the
+ * nics of the network the first time the network is used.
+ *
+ * The bitmaps are only a hint when there's more than one management server:
+ * every address picked is checked against the nics table, and a network
+ * whose bitmap is full is rebuilt before giving up, so addresses allocated
+ * or released by the other management servers are found out as they are
+ * met.  The caller must hold the lock of the network row until the nic is
+ * persisted for two management servers not to pick the same address.
+ */
+public class GuestIpAllocator extends EntityCache {
+    private static final Logger s_logger = Logger.getLogger(GuestIpAllocator.class);
+
+    public static final String REGION = "guest_ip_bitmap";
+
+    protected final NicDao _nicDao;
+    protected final Random _rand = new Random(System.currentTimeMillis());
+
+    /**
+     * @param maxNetworks number of networks to keep the bitmap of.
+     * @param live seconds to keep a bitmap before it's rebuilt.
+     */
+    public GuestIpAllocator(NicDao nicDao, int maxNetworks, int live) {
+        super(REGION, Long.class, maxNetworks, 0, live, live);
+        _nicDao = nicDao;
+    }
+
+    /**
+     * @return the address, or null if the requested address can't be used or
+     *         there's no address left.
+     */
+    public String allocate(Network network, String requestedIp) {
+        GuestIpBitmap bitmap = getBitmap(network);
+        if (requestedIp != null) {
+            return allocateRequested(network, bitmap, requestedIp);
+        }
+
+        boolean rebuilt = false;
+        while (true) {
+            long ip;
+            synchronized (bitmap) {
+                ip = bitmap.takeRandom(_rand);
+            }
+            if (ip >= 0) {
+                String address = NetUtils.long2Ip(ip);
+                if (_nicDao.findByIp4AddressAndNetworkId(address, network.getId()) == null) {
+                    return address;
+                }
+                // the bit stays set; another management server has taken the address
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Guest ip address " + address + " was taken from another management server in network " + network);
+                }
+            } else if (rebuilt) {
+                return null;
+            } else {
+                // the addresses released from the other management servers are only seen when rebuilding
+                bitmap = rebuild(network);
+                rebuilt = true;
+            }
+        }
+    }
+
+    protected String allocateRequested(Network network, GuestIpBitmap bitmap, String requestedIp) {
+        if (requestedIp.equals(network.getGateway())) {
+            s_logger.warn("Requested ip address " + requestedIp + " is used as a gateway address in network " + network);
+            return null;
+        }
+
+        String[] cidr = network.getCidr().split("/");
+        if (!NetUtils.sameSubnetCIDR(requestedIp, cidr[0], Integer.parseInt(cidr[1]))) {
+            s_logger.warn("Requested ip address " + requestedIp + " doesn't belong to the network " + network + " cidr");
+            return null;
+        }
+
+        // the bitmap may not have seen the address released, so the nics table decides
+        boolean inUse = _nicDao.findByIp4AddressAndNetworkId(requestedIp, network.getId()) != null;
+        synchronized (bitmap) {
+            bitmap.take(NetUtils.ip2Long(requestedIp));
+        }
+        if (inUse) {
+            s_logger.warn("Requested ip address " + requestedIp + " is already in use in network " + network);
+            return null;
+        }
+        return requestedIp;
+    }
+
+    /**
+     * Frees an address once the nic holding it is removed.
+     */
+    public void release(Network network, String address) {
+        GuestIpBitmap bitmap = (GuestIpBitmap)get(network.getId());
+        if (bitmap == null) {
+            return;
+        }
+        synchronized (bitmap) {
+            bitmap.release(NetUtils.ip2Long(address));
+        }
+    }
+
+    protected GuestIpBitmap getBitmap(Network network) {
+        GuestIpBitmap bitmap = (GuestIpBitmap)get(network.getId());
+        if (bitmap == null || !bitmap.getCidr().equals(network.getCidr())) {
+            bitmap = rebuild(network);
+        }
+        return bitmap;
+    }
+
+    protected GuestIpBitmap rebuild(Network network) {
+        GuestIpBitmap bitmap = new GuestIpBitmap(network.getCidr(), network.getGateway());
+        for (String address : _nicDao.listIpAddressInNetwork(network.getId())) {
+            bitmap.take(NetUtils.ip2Long(address));
+        }
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Built the guest ip bitmap of network " + network + ": " + bitmap.getFreeCount() + " of " + bitmap.getSize() + " addresses free");
+        }
+        put(network.getId(), bitmap);
+        return bitmap;
+    }
+}
@@ -0,0 +1,199 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.network;
+
+import java.util.Random;
+
+import com.cloud.utils.net.NetUtils;
+
+/**
+ * GuestIpBitmap tracks the guest addresses of a cidr with one bit per
+ * address, from the second address after the network address up to the one
+ * before the broadcast address like NetUtils.getAllIpsFromCidr.  The gateway
+ * and the addresses ending in .1 are reserved and never handed out.
+ *
+ * A second level of bits, one per word, marks the words that are full so
+ * that finding a free address skips 4096 used addresses at a time.
+ *
+ * GuestIpBitmap is not thread safe.
+ */
+public class GuestIpBitmap {
+    private final String _cidr;
+    private final long _gateway;
+    private final long _first;
+    private final int _size;
+    private final long[] _words;
+    private final long[] _fullWords;
+    private int _free;
+    private int _next;
+
+    public GuestIpBitmap(String cidr, String gateway) {
+        String[] parts = cidr.split("/");
+        long size = Long.parseLong(parts[1]);
+        long netmask = NetUtils.ip2Long(NetUtils.getCidrNetmask(size));
+        long network = NetUtils.ip2Long(parts[0]) & netmask;
+        long broadcast = network | (~netmask & 0xffffffffL);
+
+        _cidr = cidr;
+        _gateway = gateway == null ? -1 : NetUtils.ip2Long(gateway);
+        _first = network + 2;
+        _size = (int)Math.max(0, broadcast - 1 - _first + 1);
+        _words = new long[Math.max(1, (_size + 63) >>> 6)];
+        _fullWords = new long[(_words.length + 63) >>> 6];
+        _free = _size;
+
+        // the bits past the end are used so that the searches don't need to check the size
+        for (int i = _size; i < _words.length << 6; i++) {
+            _words[i >>> 6] |= 1L << i;
+        }
+        for (int w = _words.length; w < _fullWords.length << 6; w++) {
+            _fullWords[w >>> 6] |= 1L << w;
+        }
+        for (int w = 0; w < _words.length; w++) {
+            if (_words[w] == -1L) {
+                _fullWords[w >>> 6] |= 1L << w;
+            }
+        }
+
+        for (int i = 0; i < _size; i++) {
+            if (isReserved(_first + i)) {
+                set(i);
+            }
+        }
+    }
+
+    public String getCidr() {
+        return _cidr;
+    }
+
+    /**
+     * @return the number of addresses in the range, reserved ones included.
+     */
+    public int getSize() {
+        return _size;
+    }
+
+    public int getFreeCount() {
+        return _free;
+    }
+
+    public boolean contains(long ip) {
+        return ip >= _first && ip < _first + _size;
+    }
+
+    public boolean isReserved(long ip) {
+        return ip == _gateway || (ip & 0xff) == 1;
+    }
+
+    public boolean isFree(long ip) {
+        if (!contains(ip)) {
+            return false;
+        }
+        int i = (int)(ip - _first);
+        return (_words[i >>> 6] & (1L << i)) == 0;
+    }
+
+    /**
+     * Marks an address as used.
+     *
+     * @return false if the address was not free.
+     */
+    public boolean take(long ip) {
+        if (!isFree(ip)) {
+            return false;
+        }
+        set((int)(ip - _first));
+        return true;
+    }
+
+    /**
+     * Marks an address as free again.  Reserved addresses and addresses out
+     * of the range are ignored.
+     */
+    public void release(long ip) {
+        if (!contains(ip) || isReserved(ip)) {
+            return;
+        }
+        int i = (int)(ip - _first);
+        int w = i >>> 6;
+        if ((_words[w] & (1L << i)) != 0) {
+            _words[w] &= ~(1L << i);
+            _fullWords[w >>> 6] &= ~(1L << w);
+            _free++;
+        }
+    }
+
+    /**
+     * Takes the first free address after a random one.
+     *
+     * @return the address, or -1 if there's none left.
+     */
+    public long takeRandom(Random random) {
+        if (_free == 0) {
+            return -1;
+        }
+        return takeFrom(random.nextInt(_size));
+    }
+
+    /**
+     * Takes the first free address after the last one taken by takeNext.
+     *
+     * @return the address, or -1 if there's none left.
+     */
+    public long takeNext() {
+        if (_free == 0) {
+            return -1;
+        }
+        long ip = takeFrom(_next);
+        _next = (int)(ip - _first + 1) % _size;
+        return ip;
+    }
+
+    private long takeFrom(int start) {
+        int i = nextClear(start);
+        if (i < 0) {
+            i = nextClear(0);
+        }
+        assert i >= 0 : "The free count of " + _cidr + " is " + _free + " but there's no free address";
+        set(i);
+        return _first + i;
+    }
+
+    private int nextClear(int from) {
+        int w = from >>> 6;
+        long bits = ~_words[w] & (-1L << from);
+        if (bits != 0) {
+            return (w << 6) + Long.numberOfTrailingZeros(bits);
+        }
+
+        w++;
+        for (int s = w >>> 6; s < _fullWords.length; s++) {
+            long words = ~_fullWords[s];
+            if (s == w >>> 6) {
+                words &= -1L << w;
+            }
+            if (words != 0) {
+                int found = (s << 6) + Long.numberOfTrailingZeros(words);
+                return (found << 6) + Long.numberOfTrailingZeros(~_words[found]);
+            }
+        }
+        return -1;
+    }
+
+    private void set(int i) {
+        int w = i >>> 6;
+        _words[w] |= 1L << i;
+        if (_words[w] == -1L) {
+            _fullWords[w >>> 6] |= 1L << w;
+        }
+        _free--;
+    }
+}
@@ -210,6 +210,13 @@ public interface NetworkManager extends NetworkService {
 
     IPAddressVO markIpAsUnavailable(long addrId);
 
+    /**
+     * Locks the network row and picks a free guest address.  Call it in the
+     * transaction that persists the nic taking the address: the lock is then
+     * held until the nic is persisted, and the address is freed again if the
+     * transaction rolls back.  Called outside a transaction, the lock is
+     * released when the method returns.
+     */
     public String acquireGuestIpAddress(Network network, String requestedIp);
 
     String getGlobalGuestDomainSuffix();
@@ -25,9 +25,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
-import java.util.TreeSet;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -211,6 +209,9 @@ import edu.emory.mathcs.backport.java.util.Collections;
 public class NetworkManagerImpl implements NetworkManager, NetworkService, Manager, Listener {
     private static final Logger s_logger = Logger.getLogger(NetworkManagerImpl.class);
 
+    // seconds a guest ip bitmap is used before it is rebuilt from the nics
+    private static final int GUEST_IP_BITMAP_LIVE = 3600;
+
     String _name;
     @Inject
     DataCenterDao _dcDao = null;
@@ -319,6 +320,7 @@ public class NetworkManagerImpl implements NetworkManager, NetworkService, Manag
     int _cidrLimit;
     boolean _allowSubdomainNetworkAccess;
     int _networkLockTimeout;
+    GuestIpAllocator _guestIpAllocator;
 
     private Map<String, String> _configs;
 
@@ -393,11 +395,19 @@ public class NetworkManagerImpl implements NetworkManager, NetworkService, Manag
             errorMessage.append(": requested ip " + requestedIp + " is not available");
         }
 
-        Filter filter = new Filter(IPAddressVO.class, "vlanId", true, 0l, 1l);
-
-        List<IPAddressVO> addrs = _ipAddressDao.lockRows(sc, filter, true);
+        // every allocation used to lock the first free address of the first vlan, so they
+        // waited on each other; a random free address lets them go on in parallel
+        IPAddressVO addr;
+        if (requestedIp != null) {
+            Filter filter = new Filter(IPAddressVO.class, "vlanId", true, 0l, 1l);
+            List<IPAddressVO> addrs = _ipAddressDao.lockRows(sc, filter, true);
+            assert (addrs.size() <= 1) : "Return size is incorrect: " + addrs.size();
+            addr = addrs.isEmpty() ? null : addrs.get(0);
+        } else {
+            addr = _ipAddressDao.lockOneRandomRow(sc, true);
+        }
 
-        if (addrs.size() == 0) {
+        if (addr == null) {
             if (podId != null) {
                 throw new InsufficientAddressCapacityException("Insufficient address capacity", Pod.class, podId);
             }
@@ -405,9 +415,6 @@ public class NetworkManagerImpl implements NetworkManager, NetworkService, Manag
             throw new InsufficientAddressCapacityException("Insufficient address capacity", DataCenter.class, dcId);
         }
 
-        assert (addrs.size() == 1) : "Return size is incorrect: " + addrs.size();
-
-        IPAddressVO addr = addrs.get(0);
         addr.setSourceNat(sourceNat);
         addr.setAllocatedTime(new Date());
         addr.setAllocatedInDomainId(owner.getDomainId());
@@ -1195,6 +1202,9 @@ public class NetworkManagerImpl implements NetworkManager, NetworkService, Manag
         _cidrLimit = NumbersUtil.parseInt(_configs.get(Config.NetworkGuestCidrLimit.key()), 22);
         _networkLockTimeout = NumbersUtil.parseInt(_configs.get(Config.NetworkLockTimeout.key()), 600);
 
+        int guestIpCacheSize = NumbersUtil.parseInt(_configs.get(Config.NetworkGuestIpCacheSize.key()), 1000);
+        _guestIpAllocator = new GuestIpAllocator(_nicDao, guestIpCacheSize, GUEST_IP_BITMAP_LIVE);
+
         NetworkOfferingVO publicNetworkOffering = new NetworkOfferingVO(NetworkOfferingVO.SystemPublicNetwork, TrafficType.Public, true);
         publicNetworkOffering = _networkOfferingDao.persistDefaultNetworkOffering(publicNetworkOffering);
         _systemNetworks.put(NetworkOfferingVO.SystemPublicNetwork, publicNetworkOffering);
@@ -1865,6 +1875,7 @@ public class NetworkManagerImpl implements NetworkManager, NetworkService, Manag
     }
 
     @Override
+    @DB
     public void prepare(VirtualMachineProfile<? extends VMInstanceVO> vmProfile, DeployDestination dest, ReservationContext context) throws InsufficientCapacityException,
             ConcurrentOperationException, ResourceUnavailableException {
         List<NicVO> nics = _nicDao.listByVmId(vmProfile.getId());
@@ -1902,6 +1913,9 @@ public class NetworkManagerImpl implements NetworkManager, NetworkService, Manag
                 URI isolationUri = nic.getIsolationUri();
 
                 profile = new NicProfile(nic, network, broadcastUri, isolationUri, networkRate, isSecurityGroupSupportedInNetwork(network), getNetworkTag(vmProfile.getHypervisorType(), network));
+                // the guest address a guru acquires is held until the nic is updated with it
+                Transaction txn = Transaction.currentTxn();
+                txn.start();
                 guru.reserve(profile, network, vmProfile, dest, context);
                 nic.setIp4Address(profile.getIp4Address());
                 nic.setAddressFormat(profile.getFormat());
@@ -1919,6 +1933,7 @@ public class NetworkManagerImpl implements NetworkManager, NetworkService, Manag
                 }
 
                 updateNic(nic, network.getId(), 1);
+                txn.commit();
             } else {
                 profile = new NicProfile(nic, network, nic.getBroadcastUri(), nic.getIsolationUri(), networkRate, isSecurityGroupSupportedInNetwork(network), getNetworkTag(vmProfile.getHypervisorType(), network));
                 guru.updateNicProfile(profile, network);
@@ -2141,9 +2156,21 @@ public class NetworkManagerImpl implements NetworkManager, NetworkService, Manag
             NetworkGuru guru = _networkGurus.get(network.getGuruName());
             guru.deallocate(network, profile, vm);
             _nicDao.remove(nic.getId());
+            if (nic.getIp4Address() != null && network.getTrafficType() == TrafficType.Guest && !network.getSpecifyIpRanges()) {
+                releaseGuestIpAfterCommit(network, nic.getIp4Address());
+            }
         }
     }
 
+    private void releaseGuestIpAfterCommit(final Network network, final String ip) {
+        Transaction.currentTxn().runAfterCommit(new Runnable() {
+            @Override
+            public void run() {
+                _guestIpAllocator.release(network, ip);
+            }
+        });
+    }
+
     @Override
     public void expungeNics(VirtualMachineProfile<? extends VMInstanceVO> vm) {
         List<NicVO> nics = _nicDao.listByVmIdIncludingRemoved(vm.getId());
@@ -4302,54 +4329,25 @@ public class NetworkManagerImpl implements NetworkManager, NetworkService, Manag
         }
     }
 
-    Random _rand = new Random(System.currentTimeMillis());
-
     @Override
     @DB
-    public String acquireGuestIpAddress(Network network, String requestedIp) {
-        List<String> ips = _nicDao.listIpAddressInNetwork(network.getId());
-        String[] cidr = network.getCidr().split("/");
-        Set<Long> allPossibleIps = NetUtils.getAllIpsFromCidr(cidr[0], Integer.parseInt(cidr[1]));
-        Set<Long> usedIps = new TreeSet<Long>();
-
-        if (requestedIp != null && requestedIp.equals(network.getGateway())) {
-            s_logger.warn("Requested ip address " + requestedIp + " is used as a gateway address in network " + network);
-            return null;
-        }
-
-        for (String ip : ips) {
-            if (requestedIp != null && requestedIp.equals(ip)) {
-                s_logger.warn("Requested ip address " + requestedIp + " is already in use in network " + network);
-                return null;
-            }
-
-            usedIps.add(NetUtils.ip2Long(ip));
-        }
-        if (usedIps.size() != 0) {
-            allPossibleIps.removeAll(usedIps);
-        }
-        if (allPossibleIps.isEmpty()) {
-            return null;
-        }
-
-        Long[] array = allPossibleIps.toArray(new Long[allPossibleIps.size()]);
-
-        if (requestedIp != null) {
-            // check that requested ip has the same cidr
-            boolean isSameCidr = NetUtils.sameSubnetCIDR(requestedIp, NetUtils.long2Ip(array[0]), Integer.parseInt(cidr[1]));
-            if (!isSameCidr) {
-                s_logger.warn("Requested ip address " + requestedIp + " doesn't belong to the network " + network + " cidr");
-                return null;
-            } else {
-                return requestedIp;
-            }
+    public String acquireGuestIpAddress(final Network network, String requestedIp) {
+        Transaction txn = Transaction.currentTxn();
+        // in the caller's transaction, the lock of the network row holds the other management servers off until the nic is persisted
+        txn.start();
+        _networksDao.lockRow(network.getId(), true);
+        final String ip = _guestIpAllocator.allocate(network, requestedIp);
+        if (ip != null) {
+            // the address is free again if the nic isn't persisted after all
+            txn.runAfterRollback(new Runnable() {
+                @Override
+                public void run() {
+                    _guestIpAllocator.release(network, ip);
+                }
+            });
         }
-
-        String result;
-        do {
-            result = NetUtils.long2Ip(array[_rand.nextInt(array.length)]);
-        } while (result.split("\\.")[3].equals("1"));
-        return result;
+        txn.commit();
+        return ip;
     }
 
     private String getZoneNetworkDomain(long zoneId) {
@@ -58,6 +58,7 @@ import com.cloud.agent.api.routing.IpAssocCommand;
 import com.cloud.agent.api.routing.LoadBalancerConfigCommand;
 import com.cloud.agent.api.routing.NetworkElementCommand;
 import com.cloud.agent.api.routing.RemoteAccessVpnCfgCommand;
+import com.cloud.agent.api.routing.RouterConfigBatchCommand;
 import com.cloud.agent.api.routing.SavePasswordCommand;
 import com.cloud.agent.api.routing.SetFirewallRulesCommand;
 import com.cloud.agent.api.routing.SetPortForwardingRulesCommand;
@@ -1287,9 +1288,8 @@ public class VirtualNetworkApplianceManagerImpl implements VirtualNetworkApplian
 
                 NicProfile gatewayNic = new NicProfile(defaultNetworkStartIp);
                 if (publicNetwork) {
-                    if (isRedundant) {
-                        gatewayNic.setIp4Address(_networkMgr.acquireGuestIpAddress(guestNetwork, null));
-                    } else {
+                    // a redundant router gets its guest address from the guru, in the transaction persisting the nic
+                    if (!isRedundant) {
                         gatewayNic.setIp4Address(guestNetwork.getGateway());
                     }
                     gatewayNic.setBroadcastUri(guestNetwork.getBroadcastUri());
@@ -1862,10 +1862,13 @@ public class VirtualNetworkApplianceManagerImpl implements VirtualNetworkApplian
                     createFirewallRulesCommands(firewallRules, router, cmds);
                 }
 
+                // the kvm agent applies the port forwarding and static nat rules in one ssh session to the router
+                Commands ruleCmds = profile.getHypervisorType() == HypervisorType.KVM ? new Commands(OnError.Continue) : cmds;
+
                 // Re-apply port forwarding rules
                 s_logger.debug("Found " + pfRules.size() + " port forwarding rule(s) to apply as a part of domR " + router + " start.");
                 if (!pfRules.isEmpty()) {
-                    createApplyPortForwardingRulesCommands(pfRules, router, cmds);
+                    createApplyPortForwardingRulesCommands(pfRules, router, ruleCmds);
                 }
 
                 // Re-apply static nat rules
@@ -1875,7 +1878,11 @@ public class VirtualNetworkApplianceManagerImpl implements VirtualNetworkApplian
                     for (FirewallRule rule : staticNatFirewallRules) {
                         staticNatRules.add(_rulesMgr.buildStaticNatRule(rule, false));
                     }
-                    createApplyStaticNatRulesCommands(staticNatRules, router, cmds);
+                    createApplyStaticNatRulesCommands(staticNatRules, router, ruleCmds);
+                }
+
+                if (ruleCmds != cmds && ruleCmds.size() > 0) {
+                    createRouterConfigBatchCommand(router, ruleCmds, "rules", cmds);
                 }
 
                 // Re-apply vpn rules
@@ -1908,7 +1915,17 @@ public class VirtualNetworkApplianceManagerImpl implements VirtualNetworkApplian
         if (_networkMgr.isProviderSupportServiceInNetwork(router.getNetworkId(), Service.Dhcp, provider)) {
             // Resend dhcp
             s_logger.debug("Reapplying dhcp entries as a part of domR " + router + " start...");
-            createDhcpEntryCommandsForVMs(router, cmds);
+            if (profile.getHypervisorType() == HypervisorType.KVM) {
+                // the kvm agent applies a batch in one ssh session to the router, restarting dnsmasq once;
+                // not in the batch of rules, which is atomic, so a failed entry doesn't undo the rules
+                Commands dhcpCmds = new Commands(OnError.Continue);
+                createDhcpEntryCommandsForVMs(router, dhcpCmds);
+                if (dhcpCmds.size() > 0) {
+                    createRouterConfigBatchCommand(router, dhcpCmds, "dhcp", cmds);
+                }
+            } else {
+                createDhcpEntryCommandsForVMs(router, cmds);
+            }
         }
 
         if (_networkMgr.isProviderSupportServiceInNetwork(router.getNetworkId(), Service.UserData, provider)) {
@@ -2567,6 +2584,20 @@ public class VirtualNetworkApplianceManagerImpl implements VirtualNetworkApplian
         }
     }
 
+    private void createRouterConfigBatchCommand(VirtualRouter router, Commands batched, String id, Commands cmds) {
+        List<NetworkElementCommand> commands = new ArrayList<NetworkElementCommand>();
+        for (Command cmd : batched) {
+            commands.add((NetworkElementCommand)cmd);
+        }
+        RouterConfigBatchCommand cmd = new RouterConfigBatchCommand(commands);
+        cmd.setAccessDetail(NetworkElementCommand.ROUTER_IP, getRouterControlIp(router.getId()));
+        cmd.setAccessDetail(NetworkElementCommand.ROUTER_GUEST_IP, router.getGuestIpAddress());
+        cmd.setAccessDetail(NetworkElementCommand.ROUTER_NAME, router.getInstanceName());
+        DataCenterVO dcVo = _dcDao.findById(router.getDataCenterIdToDeployIn());
+        cmd.setAccessDetail(NetworkElementCommand.ZONE_NETWORK_TYPE, dcVo.getNetworkType().toString());
+        cmds.addCommand(id, cmd);
+    }
+
     private boolean sendCommandsToRouter(final VirtualRouter router, Commands cmds) throws AgentUnavailableException {
         Answer[] answers = null;
         try {
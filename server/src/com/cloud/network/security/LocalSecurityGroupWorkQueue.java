@@ -13,12 +13,14 @@
 package com.cloud.network.security;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -30,21 +32,40 @@ import com.cloud.network.security.SecurityGroupWork.Step;
 /**
  * Security Group Work Queue that is not shared with other management servers
  *
+ * The work is queued per host and handed out one host at a time, so that a
+ * worker can send the rules of several vms of a host at once.  Work
+ * submitted for a vm that already has work queued is coalesced with it, and
+ * urgent work is handed out before the rest.
  */
 public class LocalSecurityGroupWorkQueue implements SecurityGroupWorkQueue {
     protected static Logger s_logger = Logger.getLogger(LocalSecurityGroupWorkQueue.class);
 
-    //protected Set<SecurityGroupWork> _currentWork = new HashSet<SecurityGroupWork>(); 
-    protected Set<SecurityGroupWork> _currentWork = new TreeSet<SecurityGroupWork>();    
+    // host of the work submitted without one
+    public static final long UNKNOWN_HOST = 0;
+
+    // vm id -> work queued for the vm
+    protected Map<Long, LocalSecurityGroupWork> _currentWork = new HashMap<Long, LocalSecurityGroupWork>();
+    // host id -> vms of the host with work queued
+    protected Map<Long, HostWork> _hostWork = new HashMap<Long, HostWork>();
+    // hosts with work queued, in the order they are served; the ones with urgent work come first
+    protected Set<Long> _hosts = new LinkedHashSet<Long>();
+    protected Set<Long> _urgentHosts = new LinkedHashSet<Long>();
+    // host id -> ms the oldest work last handed out for the host waited in the queue
+    protected Map<Long, Long> _hostWaits = new HashMap<Long, Long>();
 
     private final ReentrantLock _lock = new ReentrantLock();
     private final Condition _notEmpty = _lock.newCondition(); 
     private final AtomicInteger _count = new AtomicInteger(0);
+    private final AtomicLong _submitted = new AtomicLong(0);
+    private final AtomicLong _coalesced = new AtomicLong(0);
     
     public static class LocalSecurityGroupWork implements SecurityGroupWork, Comparable<LocalSecurityGroupWork> {
         Long _logSequenceNumber;
         Long _instanceId;
         Step _step;
+        long _hostId = UNKNOWN_HOST;
+        boolean _urgent;
+        long _queued;
         
         public LocalSecurityGroupWork(Long instanceId, Long logSequence, Step step){
             this._instanceId = instanceId;
@@ -78,6 +99,14 @@ public class LocalSecurityGroupWorkQueue implements SecurityGroupWorkQueue {
             
         }
 
+        public long getHostId() {
+            return _hostId;
+        }
+
+        public boolean isUrgent() {
+            return _urgent;
+        }
+
         @Override
         public int compareTo(LocalSecurityGroupWork o) {
             //return this._instanceId.compareTo(o.getInstanceId());
@@ -98,18 +127,29 @@ public class LocalSecurityGroupWorkQueue implements SecurityGroupWorkQueue {
         public int hashCode() {
             return getInstanceId().hashCode();
         }
+
+        @Override
+        public String toString() {
+            return "vm " + _instanceId + " host " + _hostId + (_urgent ? " urgent" : "");
+        }
         
     }
+
+    protected static class HostWork {
+        final Set<Long> _urgent = new LinkedHashSet<Long>();
+        final Set<Long> _normal = new LinkedHashSet<Long>();
+
+        boolean isEmpty() {
+            return _urgent.isEmpty() && _normal.isEmpty();
+        }
+    }
     
     
     @Override
     public void submitWorkForVm(long vmId, long sequenceNumber) {
         _lock.lock(); 
         try {
-            SecurityGroupWork work = new LocalSecurityGroupWork(vmId, sequenceNumber, Step.Scheduled);
-            boolean added = _currentWork.add(work);
-            if (added)
-                _count.incrementAndGet();
+            queue(vmId, null, false, sequenceNumber, System.currentTimeMillis());
         } finally {
             _lock.unlock();
         }
@@ -120,23 +160,127 @@ public class LocalSecurityGroupWorkQueue implements SecurityGroupWorkQueue {
    
     @Override
     public int submitWorkForVms(Set<Long> vmIds) {
+        Map<Long, Long> vmHosts = new HashMap<Long, Long>(vmIds.size() * 2);
+        for (Long vmId : vmIds) {
+            vmHosts.put(vmId, null);
+        }
+        return submitWorkForVms(vmHosts, false);
+    }
+
+    @Override
+    public int submitWorkForVms(Map<Long, Long> vmHosts, boolean urgent) {
+        int newWork = 0;
+        long now = System.currentTimeMillis();
         _lock.lock(); 
-        int newWork = _count.get();
         try {
-            for (Long vmId: vmIds) {
-                SecurityGroupWork work = new LocalSecurityGroupWork(vmId, null, SecurityGroupWork.Step.Scheduled);
-                boolean added = _currentWork.add(work);
-                if (added)
-                    _count.incrementAndGet();
+            for (Map.Entry<Long, Long> entry : vmHosts.entrySet()) {
+                if (queue(entry.getKey(), entry.getValue(), urgent, null, now)) {
+                    newWork++;
+                }
             }
         } finally {
-            newWork = _count.get() - newWork;
             _lock.unlock();
         }
         signalNotEmpty();
         return newWork;
     }
 
+    /**
+     * @return true if the vm had no work queued.
+     */
+    private boolean queue(long vmId, Long hostId, boolean urgent, Long sequenceNumber, long now) {
+        _submitted.incrementAndGet();
+        long host = hostId == null ? UNKNOWN_HOST : hostId;
+        LocalSecurityGroupWork work = _currentWork.get(vmId);
+        if (work != null) {
+            _coalesced.incrementAndGet();
+            if (sequenceNumber != null) {
+                work.setLogsequenceNumber(sequenceNumber);
+            }
+            boolean moved = host != UNKNOWN_HOST && host != work._hostId;
+            if (moved || (urgent && !work._urgent)) {
+                unqueue(work);
+                if (moved) {
+                    work._hostId = host;
+                }
+                work._urgent |= urgent;
+                enqueue(work);
+            }
+            return false;
+        }
+        work = new LocalSecurityGroupWork(vmId, sequenceNumber, Step.Scheduled);
+        work._hostId = host;
+        work._urgent = urgent;
+        work._queued = now;
+        _currentWork.put(vmId, work);
+        enqueue(work);
+        _count.incrementAndGet();
+        return true;
+    }
+
+    private void enqueue(LocalSecurityGroupWork work) {
+        HostWork hostWork = _hostWork.get(work._hostId);
+        if (hostWork == null) {
+            hostWork = new HostWork();
+            _hostWork.put(work._hostId, hostWork);
+        }
+        if (work._urgent) {
+            hostWork._urgent.add(work._instanceId);
+            _urgentHosts.add(work._hostId);
+        } else {
+            hostWork._normal.add(work._instanceId);
+        }
+        _hosts.add(work._hostId);
+    }
+
+    private void unqueue(LocalSecurityGroupWork work) {
+        HostWork hostWork = _hostWork.get(work._hostId);
+        hostWork._urgent.remove(work._instanceId);
+        hostWork._normal.remove(work._instanceId);
+        if (hostWork._urgent.isEmpty()) {
+            _urgentHosts.remove(work._hostId);
+        }
+        if (hostWork.isEmpty()) {
+            _hostWork.remove(work._hostId);
+            _hosts.remove(work._hostId);
+        }
+    }
+
+    /**
+     * Takes up to n items of the next host in line, its urgent work first,
+     * and puts the host back at the end of the line if it has work left.
+     */
+    private int take(int n, List<SecurityGroupWork> work, long now) {
+        Long host = _urgentHosts.isEmpty() ? _hosts.iterator().next() : _urgentHosts.iterator().next();
+        HostWork hostWork = _hostWork.get(host);
+        long oldest = now;
+        int i = 0;
+        while (i < n && !hostWork.isEmpty()) {
+            Iterator<Long> iter = hostWork._urgent.isEmpty() ? hostWork._normal.iterator() : hostWork._urgent.iterator();
+            LocalSecurityGroupWork w = _currentWork.remove(iter.next());
+            iter.remove();
+            w.setStep(Step.Processing);
+            work.add(w);
+            oldest = Math.min(oldest, w._queued);
+            ++i;
+        }
+        if (host != UNKNOWN_HOST) {
+            _hostWaits.put(host, now - oldest);
+        }
+
+        _urgentHosts.remove(host);
+        _hosts.remove(host);
+        if (!hostWork._urgent.isEmpty()) {
+            _urgentHosts.add(host);
+        }
+        if (hostWork.isEmpty()) {
+            _hostWork.remove(host);
+        } else {
+            _hosts.add(host);
+        }
+        return i;
+    }
+
     
     @Override
     public List<SecurityGroupWork> getWork(int numberOfWorkItems) throws InterruptedException {
@@ -148,13 +292,9 @@ public class LocalSecurityGroupWorkQueue implements SecurityGroupWorkQueue {
                 _notEmpty.await();
             }
             int n = Math.min(numberOfWorkItems, _count.get());
-            Iterator<SecurityGroupWork> iter = _currentWork.iterator();
+            long now = System.currentTimeMillis();
             while (i < n ) {
-                SecurityGroupWork w = iter.next();
-                w.setStep(Step.Processing);
-                work.add(w);
-                iter.remove();
-                ++i;
+                i += take(n - i, work, now);
             }
         } finally {
             int c = _count.addAndGet(-i);
@@ -165,6 +305,25 @@ public class LocalSecurityGroupWorkQueue implements SecurityGroupWorkQueue {
         return work;
 
     }
+
+    @Override
+    public List<SecurityGroupWork> getWorkForHost(int numberOfWorkItems) throws InterruptedException {
+        List<SecurityGroupWork> work = new ArrayList<SecurityGroupWork>();
+        _lock.lock();
+        int i = 0;
+        try {
+            while (_count.get() == 0) {
+                _notEmpty.await();
+            }
+            i = take(numberOfWorkItems, work, System.currentTimeMillis());
+        } finally {
+            int c = _count.addAndGet(-i);
+            if (c > 0)
+                _notEmpty.signal();
+            _lock.unlock();
+        }
+        return work;
+    }
     
     private void signalNotEmpty() {
         _lock.lock();
@@ -187,6 +346,9 @@ public class LocalSecurityGroupWorkQueue implements SecurityGroupWorkQueue {
         _lock.lock();
         try {
             _currentWork.clear();
+            _hostWork.clear();
+            _hosts.clear();
+            _urgentHosts.clear();
             _count.set(0);
         } finally {
             _lock.unlock();
@@ -200,15 +362,35 @@ public class LocalSecurityGroupWorkQueue implements SecurityGroupWorkQueue {
         List<Long> vmIds = new ArrayList<Long>();
         _lock.lock();
         try {
-           Iterator<SecurityGroupWork> iter = _currentWork.iterator();
-           while (iter.hasNext()) {
-               vmIds.add(iter.next().getInstanceId());
-           }
+            for (Long host : _hosts) {
+                HostWork hostWork = _hostWork.get(host);
+                vmIds.addAll(hostWork._urgent);
+                vmIds.addAll(hostWork._normal);
+            }
         } finally {
             _lock.unlock();
         }
         return vmIds;
     }
-        
+
+    @Override
+    public long getSubmittedCount() {
+        return _submitted.get();
+    }
+
+    @Override
+    public long getCoalescedCount() {
+        return _coalesced.get();
+    }
+
+    @Override
+    public Map<Long, Long> getQueueWaits() {
+        _lock.lock();
+        try {
+            return new HashMap<Long, Long>(_hostWaits);
+        } finally {
+            _lock.unlock();
+        }
+    }
 
 }
@@ -28,6 +28,7 @@ import com.cloud.agent.api.Answer;
 import com.cloud.agent.api.CleanupNetworkRulesCmd;
 import com.cloud.agent.api.Command;
 import com.cloud.agent.api.PingRoutingWithNwGroupsCommand;
+import com.cloud.agent.api.SecurityGroupMembersAnswer;
 import com.cloud.agent.api.SecurityGroupRuleAnswer;
 import com.cloud.agent.api.StartupCommand;
 import com.cloud.agent.api.StartupRoutingCommand;
@@ -82,6 +83,7 @@ public class SecurityGroupListener implements Listener {
     @Override
     public boolean processAnswers(long agentId, long seq, Answer[] answers) {
         List<Long> affectedVms = new ArrayList<Long>();
+        boolean membersFailed = false;
         int commandNum = 0;
         for (Answer ans: answers) {
             if (ans instanceof SecurityGroupRuleAnswer) {
@@ -109,6 +111,19 @@ public class SecurityGroupListener implements Listener {
                 commandNum++;
                 if (_workTracker != null)
                     _workTracker.processAnswers(agentId, seq, answers);
+            } else if (ans instanceof SecurityGroupMembersAnswer && !ans.getResult()) {
+                s_logger.debug("Failed to program member sets into host " + agentId + " due to " + ans.getDetails());
+                _securityGroupManager.forgetMemberSets(agentId);
+                membersFailed = true;
+            }
+        }
+
+        if (membersFailed) {
+            // the rules of the vms on the host are sent again, with the full sets they refer to
+            for (Long vmId : _securityGroupManager.listSecurityGroupVmsOnHost(agentId)) {
+                if (!affectedVms.contains(vmId) && checkShouldRetryOnFailure(vmId)) {
+                    affectedVms.add(vmId);
+                }
             }
         }
 
@@ -173,6 +188,7 @@ public class SecurityGroupListener implements Listener {
             if (_workTracker != null) {
                 _workTracker.processConnect(host.getId());
             }
+            _securityGroupManager.forgetMemberSets(host.getId());
         }
     }
 
@@ -189,6 +205,7 @@ public class SecurityGroupListener implements Listener {
         if (_workTracker != null) {
             _workTracker.processDisconnect(agentId);
         }
+        _securityGroupManager.forgetMemberSets(agentId);
         return true;
     }
 
@@ -13,6 +13,7 @@
 package com.cloud.network.security;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.Date;
@@ -36,7 +37,10 @@ import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.log4j.Logger;
 
 import com.cloud.agent.AgentManager;
+import com.cloud.agent.AgentManager.OnError;
 import com.cloud.agent.api.NetworkRulesSystemVmCommand;
+import com.cloud.agent.api.SecurityGroupMembersCmd;
+import com.cloud.agent.api.SecurityGroupMembersCmd.MemberSet;
 import com.cloud.agent.api.SecurityGroupRulesCmd;
 import com.cloud.agent.api.SecurityGroupRulesCmd.IpPortAndProto;
 import com.cloud.agent.manager.Commands;
@@ -88,6 +92,7 @@ import com.cloud.utils.component.Manager;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.Filter;
+import com.cloud.utils.db.GenericSearchBuilder;
 import com.cloud.utils.db.GlobalLock;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
@@ -167,6 +172,10 @@ public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityG
 
     SecurityGroupListener _answerListener;
 
+    // null if the rules list the members of the groups they allow
+    SecurityGroupMemberSets _memberSets;
+    GenericSearchBuilder<VMInstanceVO, Long> VmsWithoutMemberSetsSearch;
+
     private final class SecurityGroupVOComparator implements Comparator<SecurityGroupVO> {
         @Override
         public int compare(SecurityGroupVO o1, SecurityGroupVO o2) {
@@ -328,19 +337,40 @@ public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityG
     }
 
     protected Map<PortAndProto, Set<String>> generateRulesForVM(Long userVmId, SecurityRuleType type) {
+        return generateRulesForVM(userVmId, type, null);
+    }
+
+    /**
+     * @param allowedGroups if not null, receives the groups allowed by the
+     *        rules instead of the addresses of their members.
+     */
+    protected Map<PortAndProto, Set<String>> generateRulesForVM(Long userVmId, SecurityRuleType type, Map<PortAndProto, Set<Long>> allowedGroups) {
+        List<Long> groupIds = new ArrayList<Long>();
+        for (SecurityGroupVMMapVO mapVO : _securityGroupVMMapDao.listByInstanceId(userVmId)) {
+            groupIds.add(mapVO.getSecurityGroupId());
+        }
+        return generateRulesForGroups(groupIds, type, allowedGroups);
+    }
+
+    /**
+     * @return the rules of a vm in the groups given, which are the same for
+     *         every vm in those groups.
+     */
+    protected Map<PortAndProto, Set<String>> generateRulesForGroups(Collection<Long> groupIds, SecurityRuleType type, Map<PortAndProto, Set<Long>> allowedGroups) {
 
         Map<PortAndProto, Set<String>> allowed = new TreeMap<PortAndProto, Set<String>>();
 
-        List<SecurityGroupVMMapVO> groupsForVm = _securityGroupVMMapDao.listByInstanceId(userVmId);
-        for (SecurityGroupVMMapVO mapVO : groupsForVm) {
-            List<SecurityGroupRuleVO> rules = _securityGroupRuleDao.listBySecurityGroupId(mapVO.getSecurityGroupId(), type);
+        for (Long groupId : groupIds) {
+            List<SecurityGroupRuleVO> rules = _securityGroupRuleDao.listBySecurityGroupId(groupId, type);
             for (SecurityGroupRuleVO rule : rules) {
                 PortAndProto portAndProto = new PortAndProto(rule.getProtocol(), rule.getStartPort(), rule.getEndPort());
                 Set<String> cidrs = allowed.get(portAndProto);
                 if (cidrs == null) {
                     cidrs = new TreeSet<String>(new CidrComparator());
                 }
-                if (rule.getAllowedNetworkId() != null) {
+                if (rule.getAllowedNetworkId() != null && allowedGroups != null) {
+                    addAllowedGroup(allowedGroups, portAndProto, rule.getAllowedNetworkId());
+                } else if (rule.getAllowedNetworkId() != null) {
                     List<SecurityGroupVMMapVO> allowedInstances = _securityGroupVMMapDao.listBySecurityGroup(rule.getAllowedNetworkId(), State.Running);
                     for (SecurityGroupVMMapVO ngmapVO : allowedInstances) {
                         Nic defaultNic = _networkMgr.getDefaultNic(ngmapVO.getInstanceId());
@@ -362,6 +392,15 @@ public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityG
         return allowed;
     }
 
+    protected void addAllowedGroup(Map<PortAndProto, Set<Long>> allowedGroups, PortAndProto portAndProto, long groupId) {
+        Set<Long> groupIds = allowedGroups.get(portAndProto);
+        if (groupIds == null) {
+            groupIds = new TreeSet<Long>();
+            allowedGroups.put(portAndProto, groupIds);
+        }
+        groupIds.add(groupId);
+    }
+
     protected String generateRulesetSignature(Map<PortAndProto, Set<String>> ingress, Map<PortAndProto, Set<String>> egress) {
         String ruleset = ingress.toString();
         ruleset.concat(egress.toString());
@@ -372,9 +411,223 @@ public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityG
         if (vm.getType() != VirtualMachine.Type.User || !isVmSecurityGroupEnabled(vm.getId()))
             return;
         List<Long> affectedVms = getAffectedVmsForVmStart(vm);
+        affectedVms.removeAll(Arrays.asList(vm.getId()));
+        if (_memberSets != null) {
+            // the others see the vm through the member sets of its groups
+            List<Long> groupIds = scheduleMemberSetUpdates(vm);
+            affectedVms = filterVmsWithoutMemberSets(affectedVms, groupIds);
+        }
+        // the vm drops all traffic until it gets its rules
+        List<Long> startedVms = new ArrayList<Long>();
+        startedVms.add(vm.getId());
+        scheduleRulesetUpdateToHosts(startedVms, true, null, true);
         scheduleRulesetUpdateToHosts(affectedVms, true, null);
     }
 
+    /**
+     * @return true if the rules of the vm can refer to member sets.
+     */
+    protected boolean useMemberSets(VirtualMachine vm) {
+        if (_memberSets == null) {
+            return false;
+        }
+        HypervisorType hypervisorType = vm.getHypervisorType();
+        return hypervisorType == HypervisorType.KVM || hypervisorType == HypervisorType.XenServer || hypervisorType == HypervisorType.Simulator;
+    }
+
+    /**
+     * @return the vms, out of the ones given, that don't see the groups given
+     *         through member sets: the vms whose rules list the addresses of
+     *         the groups they allow, and the vms on hosts this management
+     *         server doesn't know to hold the sets, which may be held from
+     *         another management server or not at all.
+     */
+    protected List<Long> filterVmsWithoutMemberSets(List<Long> vmIds, List<Long> groupIds) {
+        List<Long> result = new ArrayList<Long>();
+        if (vmIds.isEmpty()) {
+            return result;
+        }
+        SearchCriteria<Long> sc = VmsWithoutMemberSetsSearch.create();
+        sc.setParameters("ids", vmIds.toArray());
+        sc.setParameters("hypervisorTypes", HypervisorType.KVM, HypervisorType.XenServer, HypervisorType.Simulator);
+        Set<Long> listed = new HashSet<Long>(_vmDao.customSearch(sc, null));
+        for (VMInstanceVO vm : _vmDao.findByIds(vmIds).values()) {
+            if (listed.contains(vm.getId()) || vm.getHostId() == null || !_memberSets.getMissing(vm.getHostId(), groupIds).isEmpty()) {
+                result.add(vm.getId());
+            }
+        }
+        return result;
+    }
+
+    protected List<String> listMemberAddresses(long groupId) {
+        List<String> addresses = new ArrayList<String>();
+        for (SecurityGroupVMMapVO mapVO : _securityGroupVMMapDao.listBySecurityGroup(groupId, State.Running)) {
+            if (mapVO.getGuestIpAddress() != null) {
+                addresses.add(mapVO.getGuestIpAddress());
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Sends the address of a vm, added to or removed from the member sets of
+     * its groups, to the hosts holding the sets once the vm state is
+     * committed.
+     *
+     * @return the groups of the vm.
+     */
+    protected List<Long> scheduleMemberSetUpdates(VMInstanceVO vm) {
+        final List<Long> groupIds = new ArrayList<Long>();
+        String address = null;
+        for (SecurityGroupVMMapVO mapVO : _securityGroupVMMapDao.listByInstanceId(vm.getId())) {
+            groupIds.add(mapVO.getSecurityGroupId());
+            address = mapVO.getGuestIpAddress();
+        }
+        if (address != null) {
+            final String vmAddress = address;
+            Transaction.currentTxn().runAfterCommit(new Runnable() {
+                @Override
+                public void run() {
+                    sendMemberSetUpdates(vmAddress, groupIds);
+                }
+            });
+        }
+        return groupIds;
+    }
+
+    /**
+     * Sends whether the address is a member of each of the groups to the
+     * hosts holding their sets.  The membership is read from the database
+     * rather than taken from the event, as the updates of vms starting and
+     * stopping, or reusing an address, can run in any order.
+     */
+    protected void sendMemberSetUpdates(String address, List<Long> groupIds) {
+        synchronized (_memberSets) {
+            Set<Long> memberOf = new HashSet<Long>();
+            for (SecurityGroupVMMapVO mapVO : _securityGroupVMMapDao.listByIp(address)) {
+                if (mapVO.getVmState() == State.Running) {
+                    memberOf.add(mapVO.getSecurityGroupId());
+                }
+            }
+            Map<Long, List<MemberSet>> updates = new HashMap<Long, List<MemberSet>>();
+            for (Long groupId : groupIds) {
+                MemberSet change = _memberSets.change(groupId, address, memberOf.contains(groupId));
+                if (change == null) {
+                    continue;
+                }
+                for (Long hostId : _memberSets.getHolders(groupId)) {
+                    List<MemberSet> sets = updates.get(hostId);
+                    if (sets == null) {
+                        sets = new ArrayList<MemberSet>();
+                        updates.put(hostId, sets);
+                    }
+                    sets.add(change);
+                }
+            }
+            for (Map.Entry<Long, List<MemberSet>> entry : updates.entrySet()) {
+                SecurityGroupMembersCmd cmd = new SecurityGroupMembersCmd(entry.getValue().toArray(new MemberSet[entry.getValue().size()]));
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Security Group Mgr: sending " + cmd.getSets().length + " member set updates, " + cmd.getTotalNumAddresses() + " addresses to host " + entry.getKey());
+                }
+                try {
+                    _agentMgr.send(entry.getKey(), new Commands(cmd), _answerListener);
+                } catch (AgentUnavailableException e) {
+                    s_logger.debug("Unable to send member set updates to host " + entry.getKey());
+                    _memberSets.forgetHost(entry.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the rules of a vm, preceded by the full member sets the rules
+     * refer to that the host doesn't hold yet.
+     */
+    protected void sendRulesetCommands(long agentId, SecurityGroupRulesCmd cmd, Map<PortAndProto, Set<Long>> ingressGroups, Map<PortAndProto, Set<Long>> egressGroups) throws AgentUnavailableException {
+        Set<Long> groupIds = new TreeSet<Long>();
+        addAllowedGroupIds(groupIds, ingressGroups);
+        addAllowedGroupIds(groupIds, egressGroups);
+        if (groupIds.isEmpty()) {
+            _agentMgr.send(agentId, new Commands(cmd), _answerListener);
+            return;
+        }
+        List<SecurityGroupRulesCmd> rulesCmds = new ArrayList<SecurityGroupRulesCmd>();
+        rulesCmds.add(cmd);
+        sendRulesetCommands(agentId, rulesCmds, groupIds);
+    }
+
+    protected void addAllowedGroupIds(Set<Long> groupIds, Map<PortAndProto, Set<Long>> allowedGroups) {
+        if (allowedGroups != null) {
+            for (Set<Long> ids : allowedGroups.values()) {
+                groupIds.addAll(ids);
+            }
+        }
+    }
+
+    /**
+     * Sends the rules of several vms of a host in one send, preceded by the
+     * full member sets of the groups given that the host doesn't hold yet.
+     */
+    protected void sendRulesetCommands(long agentId, List<SecurityGroupRulesCmd> rulesCmds, Set<Long> groupIds) throws AgentUnavailableException {
+        // the rules are programmed even if a set or the rules of another vm fail, and fail in turn to be retried
+        Commands cmds = new Commands(OnError.Continue);
+        if (groupIds.isEmpty()) {
+            for (SecurityGroupRulesCmd cmd : rulesCmds) {
+                cmds.addCommand(cmd);
+            }
+            _agentMgr.send(agentId, cmds, _answerListener);
+            return;
+        }
+
+        synchronized (_memberSets) {
+            // the members are read under the lock, so that no change sent meanwhile is missed
+            List<MemberSet> sets = new ArrayList<MemberSet>();
+            for (Long groupId : _memberSets.getMissing(agentId, groupIds)) {
+                sets.add(_memberSets.hold(agentId, groupId, listMemberAddresses(groupId)));
+            }
+            if (!sets.isEmpty()) {
+                cmds.addCommand(new SecurityGroupMembersCmd(sets.toArray(new MemberSet[sets.size()])));
+            }
+            for (SecurityGroupRulesCmd cmd : rulesCmds) {
+                cmds.addCommand(cmd);
+            }
+            try {
+                _agentMgr.send(agentId, cmds, _answerListener);
+            } catch (AgentUnavailableException e) {
+                _memberSets.forgetHost(agentId);
+                throw e;
+            }
+        }
+    }
+
+    protected List<Long> listSecurityGroupVmsOnHost(long hostId) {
+        List<Long> vmIds = new ArrayList<Long>();
+        for (UserVmVO vm : _userVMDao.listRunningByHostId(hostId)) {
+            if (!_securityGroupVMMapDao.listByInstanceId(vm.getId()).isEmpty()) {
+                vmIds.add(vm.getId());
+            }
+        }
+        return vmIds;
+    }
+
+    /**
+     * Forgets the member sets of a host, when it connects or disconnects or
+     * fails to program a set.
+     */
+    public void forgetMemberSets(long hostId) {
+        if (_memberSets != null) {
+            _memberSets.forgetHost(hostId);
+        }
+    }
+
+    /**
+     * @param urgent true for the rules of vms that just started or migrated,
+     *        which queues ordering the work hand out first.
+     */
+    public void scheduleRulesetUpdateToHosts(List<Long> affectedVms, boolean updateSeqno, Long delayMs, boolean urgent) {
+        scheduleRulesetUpdateToHosts(affectedVms, updateSeqno, delayMs);
+    }
+
     @DB
     public void scheduleRulesetUpdateToHosts(List<Long> affectedVms, boolean updateSeqno, Long delayMs) {
         if (affectedVms.size() == 0) {
@@ -490,29 +743,48 @@ public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityG
     }
 
     protected SecurityGroupRulesCmd generateRulesetCmd(String vmName, String guestIp, String guestMac, Long vmId, String signature, long seqnum, Map<PortAndProto, Set<String>> ingressRules, Map<PortAndProto, Set<String>> egressRules) {
-        List<IpPortAndProto> ingressResult = new ArrayList<IpPortAndProto>();
-        List<IpPortAndProto> egressResult = new ArrayList<IpPortAndProto>();
-        for (PortAndProto pAp : ingressRules.keySet()) {
-            Set<String> cidrs = ingressRules.get(pAp);
-            if (cidrs.size() > 0) {
-                IpPortAndProto ipPortAndProto = new SecurityGroupRulesCmd.IpPortAndProto(pAp.getProto(), pAp.getStartPort(), pAp.getEndPort(), cidrs.toArray(new String[cidrs.size()]));
-                ingressResult.add(ipPortAndProto);
-            }
+        return generateRulesetCmd(vmName, guestIp, guestMac, vmId, signature, seqnum, ingressRules, egressRules, null, null);
+    }
+
+    protected SecurityGroupRulesCmd generateRulesetCmd(String vmName, String guestIp, String guestMac, Long vmId, String signature, long seqnum, Map<PortAndProto, Set<String>> ingressRules, Map<PortAndProto, Set<String>> egressRules,
+            Map<PortAndProto, Set<Long>> ingressGroups, Map<PortAndProto, Set<Long>> egressGroups) {
+        IpPortAndProto[] ingressResult = generateIpPortAndProtos(ingressRules, ingressGroups);
+        IpPortAndProto[] egressResult = generateIpPortAndProtos(egressRules, egressGroups);
+        return new SecurityGroupRulesCmd(guestIp, guestMac, vmName, vmId, signature, seqnum, ingressResult, egressResult);
+    }
+
+    protected IpPortAndProto[] generateIpPortAndProtos(Map<PortAndProto, Set<String>> rules, Map<PortAndProto, Set<Long>> groups) {
+        Set<PortAndProto> portAndProtos = new TreeSet<PortAndProto>(rules.keySet());
+        if (groups != null) {
+            portAndProtos.addAll(groups.keySet());
         }
-        for (PortAndProto pAp : egressRules.keySet()) {
-            Set<String> cidrs = egressRules.get(pAp);
-            if (cidrs.size() > 0) {
-                IpPortAndProto ipPortAndProto = new SecurityGroupRulesCmd.IpPortAndProto(pAp.getProto(), pAp.getStartPort(), pAp.getEndPort(), cidrs.toArray(new String[cidrs.size()]));
-                egressResult.add(ipPortAndProto);
+        List<IpPortAndProto> result = new ArrayList<IpPortAndProto>();
+        for (PortAndProto pAp : portAndProtos) {
+            Set<String> cidrs = rules.get(pAp);
+            if (cidrs == null) {
+                cidrs = new TreeSet<String>();
+            }
+            List<String> sets = new ArrayList<String>();
+            if (groups != null && groups.get(pAp) != null) {
+                for (Long groupId : groups.get(pAp)) {
+                    sets.add(SecurityGroupMembersCmd.getSetName(groupId));
+                }
+            }
+            if (cidrs.size() > 0 || sets.size() > 0) {
+                result.add(new IpPortAndProto(pAp.getProto(), pAp.getStartPort(), pAp.getEndPort(), cidrs.toArray(new String[cidrs.size()]), sets.toArray(new String[sets.size()])));
             }
         }
-        return new SecurityGroupRulesCmd(guestIp, guestMac, vmName, vmId, signature, seqnum, ingressResult.toArray(new IpPortAndProto[ingressResult.size()]), egressResult.toArray(new IpPortAndProto[egressResult.size()]));
+        return result.toArray(new IpPortAndProto[result.size()]);
     }
 
     protected void handleVmStopped(VMInstanceVO vm) {
         if (vm.getType() != VirtualMachine.Type.User || !isVmSecurityGroupEnabled(vm.getId()))
             return;
         List<Long> affectedVms = getAffectedVmsForVmStop(vm);
+        if (_memberSets != null) {
+            List<Long> groupIds = scheduleMemberSetUpdates(vm);
+            affectedVms = filterVmsWithoutMemberSets(affectedVms, groupIds);
+        }
         scheduleRulesetUpdateToHosts(affectedVms, true, null);
     }
 
@@ -534,7 +806,7 @@ public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityG
         } else {
             List<Long> affectedVms = new ArrayList<Long>();
             affectedVms.add(vm.getId());
-            scheduleRulesetUpdateToHosts(affectedVms, true, null);
+            scheduleRulesetUpdateToHosts(affectedVms, true, null, true);
         }
     }
     @Override
@@ -845,6 +1117,15 @@ public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityG
         _numWorkerThreads = NumbersUtil.parseInt(configs.get(Config.SecurityGroupWorkerThreads.key()), WORKER_THREAD_COUNT);
         _timeBetweenCleanups = NumbersUtil.parseInt(configs.get(Config.SecurityGroupWorkCleanupInterval.key()), TIME_BETWEEN_CLEANUPS);
         _globalWorkLockTimeout = NumbersUtil.parseInt(configs.get(Config.SecurityGroupWorkGlobalLockTimeout.key()), 300);
+        String value = configs.get(Config.SecurityGroupMemberSets.key());
+        if (value == null || Boolean.parseBoolean(value)) {
+            _memberSets = new SecurityGroupMemberSets();
+        }
+        VmsWithoutMemberSetsSearch = _vmDao.createSearchBuilder(Long.class);
+        VmsWithoutMemberSetsSearch.selectField(VmsWithoutMemberSetsSearch.entity().getId());
+        VmsWithoutMemberSetsSearch.and("ids", VmsWithoutMemberSetsSearch.entity().getId(), SearchCriteria.Op.IN);
+        VmsWithoutMemberSetsSearch.and("hypervisorTypes", VmsWithoutMemberSetsSearch.entity().getHypervisorType(), SearchCriteria.Op.NIN);
+        VmsWithoutMemberSetsSearch.done();
         /* register state listener, no matter security group is enabled or not */
         VirtualMachine.State.getStateMachine().registerListener(this);
 
@@ -855,7 +1136,7 @@ public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityG
         _serverId = ((ManagementServer) ComponentLocator.getComponent(ManagementServer.Name)).getId();
 
         s_logger.info("SecurityGroupManager: num worker threads=" + _numWorkerThreads + 
-                       ", time between cleanups=" + _timeBetweenCleanups + " global lock timeout=" + _globalWorkLockTimeout);
+                       ", time between cleanups=" + _timeBetweenCleanups + " global lock timeout=" + _globalWorkLockTimeout + " member sets=" + (_memberSets != null));
         createThreadPools();
 
         return true;
@@ -944,15 +1225,22 @@ public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityG
             seqnum = log.getLogsequence();
 
             if (vm != null && vm.getState() == State.Running) {
-                Map<PortAndProto, Set<String>> ingressRules = generateRulesForVM(userVmId, SecurityRuleType.IngressRule);
-                Map<PortAndProto, Set<String>> egressRules = generateRulesForVM(userVmId, SecurityRuleType.EgressRule);
+                Map<PortAndProto, Set<Long>> ingressGroups = null;
+                Map<PortAndProto, Set<Long>> egressGroups = null;
+                if (useMemberSets(vm)) {
+                    ingressGroups = new TreeMap<PortAndProto, Set<Long>>();
+                    egressGroups = new TreeMap<PortAndProto, Set<Long>>();
+                }
+                Map<PortAndProto, Set<String>> ingressRules = generateRulesForVM(userVmId, SecurityRuleType.IngressRule, ingressGroups);
+                Map<PortAndProto, Set<String>> egressRules = generateRulesForVM(userVmId, SecurityRuleType.EgressRule, egressGroups);
                 agentId = vm.getHostId();
                 if (agentId != null) {
-                    SecurityGroupRulesCmd cmd = generateRulesetCmd( vm.getInstanceName(), vm.getPrivateIpAddress(), vm.getPrivateMacAddress(), vm.getId(), generateRulesetSignature(ingressRules, egressRules), seqnum,
-                            ingressRules, egressRules);
-                    Commands cmds = new Commands(cmd);
+                    // with member sets the signature is the one of the stringified rules, which name the sets
+                    String signature = ingressGroups == null ? generateRulesetSignature(ingressRules, egressRules) : null;
+                    SecurityGroupRulesCmd cmd = generateRulesetCmd( vm.getInstanceName(), vm.getPrivateIpAddress(), vm.getPrivateMacAddress(), vm.getId(), signature, seqnum,
+                            ingressRules, egressRules, ingressGroups, egressGroups);
                     try {
-                        _agentMgr.send(agentId, cmds, _answerListener);
+                        sendRulesetCommands(agentId, cmd, ingressGroups, egressGroups);
                     } catch (AgentUnavailableException e) {
                         s_logger.debug("Unable to send ingress rules updates for vm: " + userVmId + "(agentid=" + agentId + ")");
                         _workDao.updateStep(work.getInstanceId(), seqnum, Step.Done);
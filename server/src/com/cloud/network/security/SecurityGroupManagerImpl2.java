@@ -12,7 +12,10 @@
 // Automatically generated by addcopyright.py at 04/03/2012
 package com.cloud.network.security;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -24,27 +27,32 @@ import javax.ejb.Local;
 import javax.naming.ConfigurationException;
 
 import com.cloud.agent.api.SecurityGroupRulesCmd;
-import com.cloud.agent.manager.Commands;
 import com.cloud.configuration.Config;
 import com.cloud.exception.AgentUnavailableException;
 import com.cloud.network.security.SecurityGroupWork.Step;
-import com.cloud.uservm.UserVm;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.Profiler;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.mgmt.JmxUtil;
+import com.cloud.vm.UserVmVO;
+import com.cloud.vm.VMInstanceVO;
 import com.cloud.vm.VirtualMachine.State;
 import com.cloud.network.security.SecurityRule.SecurityRuleType;
 
 /**
- * Same as the base class -- except it uses the abstracted security group work queue
+ * Same as the base class -- except it uses the abstracted security group work queue,
+ * and the workers send the rules of the vms of a host in batches
  *
  */
 @Local(value={ SecurityGroupManager.class, SecurityGroupService.class })
 public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
+    static final int WORK_BATCH_SIZE = 50;
+
     SecurityGroupWorkQueue _workQueue = new LocalSecurityGroupWorkQueue();
     SecurityGroupWorkTracker _workTracker;
     SecurityManagerMBeanImpl _mBean;
+    // max number of vms of a host whose rules a worker sends at once
+    int _workBatchSize = WORK_BATCH_SIZE;
     
     WorkerThread[] _workers;
     private Set<Long> _disabledVms = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
@@ -77,8 +85,13 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
     }
 
     @Override
-    //@DB
     public void scheduleRulesetUpdateToHosts(List<Long> affectedVms, boolean updateSeqno, Long delayMs) {
+        scheduleRulesetUpdateToHosts(affectedVms, updateSeqno, delayMs, false);
+    }
+
+    @Override
+    //@DB
+    public void scheduleRulesetUpdateToHosts(List<Long> affectedVms, boolean updateSeqno, Long delayMs, boolean urgent) {
         if (affectedVms.size() == 0) {
             return;
         }
@@ -103,12 +116,20 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
                 throw new CloudRuntimeException("Failed to create ruleset log entries");
             }
         }
-        int newJobs = _workQueue.submitWorkForVms(workItems);
+        // the work is queued per host for the workers to send the rules of a host at once
+        Map<Long, Long> vmHosts = new HashMap<Long, Long>(workItems.size() * 2);
+        for (Long vmId : workItems) {
+            vmHosts.put(vmId, null);
+        }
+        for (VMInstanceVO vm : _vmDao.findByIds(workItems).values()) {
+            vmHosts.put(vm.getId(), vm.getHostId());
+        }
+        int newJobs = _workQueue.submitWorkForVms(vmHosts, urgent);
         _mBean.logScheduledDetails(workItems);
         p.stop();
         if (s_logger.isDebugEnabled()){
             s_logger.debug("Security Group Mgr v2: done scheduling ruleset updates for " + workItems.size() + " vms: num new jobs=" + 
-                           newJobs + " num rows insert or updated=" + updated + " time taken=" + p.getDuration());
+                           newJobs + " num rows insert or updated=" + updated + " urgent=" + urgent + " time taken=" + p.getDuration());
         }
     } 
 
@@ -125,23 +146,36 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
         s_logger.trace("Checking the work queue");
         List<SecurityGroupWork> workItems;
         try {
-            workItems = _workQueue.getWork(1);
-            for (SecurityGroupWork work: workItems) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Processing " + work.getInstanceId());
+            workItems = _workQueue.getWorkForHost(_workBatchSize);
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("Processing " + workItems);
+            }
+            try {
+                List<Long> vmIds = new ArrayList<Long>();
+                for (SecurityGroupWork work : workItems) {
+                    vmIds.add(work.getInstanceId());
                 }
-
-                try {
-                    VmRulesetLogVO rulesetLog = _rulesetLogDao.findByVmId(work.getInstanceId());
+                Map<Long, VmRulesetLogVO> rulesetLogs = _rulesetLogDao.findByVmIds(vmIds);
+                List<SecurityGroupWork> logged = new ArrayList<SecurityGroupWork>();
+                for (SecurityGroupWork work : workItems) {
+                    VmRulesetLogVO rulesetLog = rulesetLogs.get(work.getInstanceId());
                     if (rulesetLog == null) {
                         s_logger.warn("Could not find ruleset log for vm " + work.getInstanceId());
                         continue;
                     }
                     work.setLogsequenceNumber(rulesetLog.getLogsequence());
-                    sendRulesetUpdates(work);
-                    _mBean.logUpdateDetails(work.getInstanceId(), work.getLogsequenceNumber());
-                }catch (Exception e) {
-                    s_logger.error("Problem during SG work " + work, e);
+                    logged.add(work);
+                }
+                sendRulesetUpdates(logged);
+                for (SecurityGroupWork work : logged) {
+                    if (work.getStep() != Step.Error) {
+                        _mBean.logUpdateDetails(work.getInstanceId(), work.getLogsequenceNumber());
+                    }
+                }
+            } catch (Exception e) {
+                // only what the whole batch shares can fail here, the vms fail on their own in sendRulesetUpdates
+                s_logger.error("Problem during SG work " + workItems, e);
+                for (SecurityGroupWork work : workItems) {
                     work.setStep(Step.Error);
                 }
             }
@@ -149,44 +183,128 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
            s_logger.warn("SG work: caught InterruptException", e1);
         }
     }
-    
+
+    // rules of the vms of a batch in the same groups
+    protected static class VmRules {
+        Map<PortAndProto, Set<String>> _ingressRules;
+        Map<PortAndProto, Set<String>> _egressRules;
+        Map<PortAndProto, Set<Long>> _ingressGroups;
+        Map<PortAndProto, Set<Long>> _egressGroups;
+    }
+
     public void sendRulesetUpdates(SecurityGroupWork work){
-        Long userVmId = work.getInstanceId();
-        UserVm vm = _userVMDao.findById(userVmId);
+        List<SecurityGroupWork> workItems = new ArrayList<SecurityGroupWork>();
+        workItems.add(work);
+        sendRulesetUpdates(workItems);
+    }
 
-        if (vm != null && vm.getState() == State.Running) {
+    /**
+     * Sends the rules of a batch of vms, in one send per host.  The rules
+     * are generated once for the vms of the batch in the same groups.  A vm
+     * whose rules can't be generated or sent is marked in error without
+     * holding back the rest of the batch.
+     */
+    public void sendRulesetUpdates(List<SecurityGroupWork> workItems) {
+        List<Long> vmIds = new ArrayList<Long>();
+        for (SecurityGroupWork work : workItems) {
+            vmIds.add(work.getInstanceId());
+        }
+        Map<Long, UserVmVO> vms = _userVMDao.findByIds(vmIds);
+        Map<Long, Set<Long>> groupsForVms = new HashMap<Long, Set<Long>>();
+        for (SecurityGroupVMMapVO mapVO : _securityGroupVMMapDao.listByInstanceIds(vmIds)) {
+            Set<Long> groupIds = groupsForVms.get(mapVO.getInstanceId());
+            if (groupIds == null) {
+                groupIds = new TreeSet<Long>();
+                groupsForVms.put(mapVO.getInstanceId(), groupIds);
+            }
+            groupIds.add(mapVO.getSecurityGroupId());
+        }
+
+        // host id -> rules of the vms of the host, and the groups they refer to
+        Map<Long, List<SecurityGroupRulesCmd>> hostCmds = new HashMap<Long, List<SecurityGroupRulesCmd>>();
+        Map<Long, List<SecurityGroupWork>> hostWork = new HashMap<Long, List<SecurityGroupWork>>();
+        Map<Long, Set<Long>> hostGroups = new HashMap<Long, Set<Long>>();
+        Map<String, VmRules> generated = new HashMap<String, VmRules>();
+        for (SecurityGroupWork work : workItems) {
+            Long userVmId = work.getInstanceId();
+            UserVmVO vm = vms.get(userVmId);
+            if (vm == null || vm.getState() != State.Running) {
+                if (s_logger.isDebugEnabled()) {
+                    if (vm != null)
+                        s_logger.debug("No rules sent to vm " + vm + "state=" + vm.getState());
+                    else
+                        s_logger.debug("Could not find vm: No rules sent to vm " + userVmId );
+                }
+                continue;
+            }
             if (s_logger.isTraceEnabled()) { 
                 s_logger.trace("SecurityGroupManager v2: found vm, " + userVmId + " state=" + vm.getState());
             }
-            Map<PortAndProto, Set<String>> ingressRules = generateRulesForVM(userVmId, SecurityRuleType.IngressRule);
-            Map<PortAndProto, Set<String>> egressRules = generateRulesForVM(userVmId, SecurityRuleType.EgressRule);
             Long agentId = vm.getHostId();
-            if (agentId != null) {
+            if (agentId == null) {
+                continue;
+            }
+
+            try {
+                Set<Long> groupIds = groupsForVms.get(userVmId);
+                if (groupIds == null) {
+                    groupIds = new TreeSet<Long>();
+                }
+                boolean useSets = useMemberSets(vm);
+                String key = (useSets ? "sets" : "cidrs") + groupIds;
+                VmRules rules = generated.get(key);
+                if (rules == null) {
+                    rules = new VmRules();
+                    if (useSets) {
+                        rules._ingressGroups = new TreeMap<PortAndProto, Set<Long>>();
+                        rules._egressGroups = new TreeMap<PortAndProto, Set<Long>>();
+                    }
+                    rules._ingressRules = generateRulesForGroups(groupIds, SecurityRuleType.IngressRule, rules._ingressGroups);
+                    rules._egressRules = generateRulesForGroups(groupIds, SecurityRuleType.EgressRule, rules._egressGroups);
+                    generated.put(key, rules);
+                }
                 SecurityGroupRulesCmd cmd = generateRulesetCmd(vm.getInstanceName(), vm.getPrivateIpAddress(), 
                         vm.getPrivateMacAddress(), vm.getId(), null, 
-                        work.getLogsequenceNumber(), ingressRules, egressRules);
+                        work.getLogsequenceNumber(), rules._ingressRules, rules._egressRules, rules._ingressGroups, rules._egressGroups);
                 cmd.setMsId(_serverId);
                 if (s_logger.isDebugEnabled()) {
                     s_logger.debug("SecurityGroupManager v2: sending ruleset update for vm " + vm.getInstanceName() + 
-                                   ":ingress num rules=" + cmd.getIngressRuleSet().length + ":egress num rules=" + cmd.getEgressRuleSet().length + " num cidrs=" + cmd.getTotalNumCidrs() + " sig=" + cmd.getSignature());
+                                   ":ingress num rules=" + cmd.getIngressRuleSet().length + ":egress num rules=" + cmd.getEgressRuleSet().length + " num cidrs=" + cmd.getTotalNumCidrs() + " num sets=" + cmd.getTotalNumSets() + " sig=" + cmd.getSignature());
                 }
-                Commands cmds = new Commands(cmd);
-                try {
-                    _agentMgr.send(agentId, cmds, _answerListener);
-                    if (s_logger.isTraceEnabled()) {
-                        s_logger.trace("SecurityGroupManager v2: sent ruleset updates for " + vm.getInstanceName() + " curr queue size=" + _workQueue.size());
-                    }
-                } catch (AgentUnavailableException e) {
-                    s_logger.debug("Unable to send updates for vm: " + userVmId + "(agentid=" + agentId + ")");
-                    _workTracker.handleException(agentId);
+
+                List<SecurityGroupRulesCmd> cmds = hostCmds.get(agentId);
+                if (cmds == null) {
+                    cmds = new ArrayList<SecurityGroupRulesCmd>();
+                    hostCmds.put(agentId, cmds);
+                    hostWork.put(agentId, new ArrayList<SecurityGroupWork>());
+                    hostGroups.put(agentId, new TreeSet<Long>());
                 }
+                cmds.add(cmd);
+                hostWork.get(agentId).add(work);
+                addAllowedGroupIds(hostGroups.get(agentId), rules._ingressGroups);
+                addAllowedGroupIds(hostGroups.get(agentId), rules._egressGroups);
+            } catch (RuntimeException e) {
+                s_logger.warn("Unable to generate the rules of vm " + userVmId, e);
+                work.setStep(Step.Error);
             }
-        } else {
-            if (s_logger.isDebugEnabled()) {
-                if (vm != null)
-                    s_logger.debug("No rules sent to vm " + vm + "state=" + vm.getState());
-                else
-                    s_logger.debug("Could not find vm: No rules sent to vm " + userVmId );
+        }
+
+        for (Map.Entry<Long, List<SecurityGroupRulesCmd>> entry : hostCmds.entrySet()) {
+            Long agentId = entry.getKey();
+            try {
+                sendRulesetCommands(agentId, entry.getValue(), hostGroups.get(agentId));
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("SecurityGroupManager v2: sent ruleset updates for " + entry.getValue().size() + " vms to host " + agentId + 
+                                   " (rules generated " + generated.size() + " times), curr queue size=" + _workQueue.size());
+                }
+            } catch (AgentUnavailableException e) {
+                s_logger.debug("Unable to send updates for " + entry.getValue().size() + " vms to host " + agentId);
+                _workTracker.handleException(agentId);
+            } catch (RuntimeException e) {
+                s_logger.warn("Unable to send updates for " + entry.getValue().size() + " vms to host " + agentId, e);
+                for (SecurityGroupWork work : hostWork.get(agentId)) {
+                    work.setStep(Step.Error);
+                }
             }
         }
     }
@@ -203,20 +321,21 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
      * then we get all ips, including the default nic ip. This is also probably the correct behavior.
      */
     @Override
-    protected Map<PortAndProto, Set<String>> generateRulesForVM(Long userVmId, SecurityRuleType type) {
+    protected Map<PortAndProto, Set<String>> generateRulesForGroups(Collection<Long> groupIds, SecurityRuleType type, Map<PortAndProto, Set<Long>> allowedGroups) {
 
         Map<PortAndProto, Set<String>> allowed = new TreeMap<PortAndProto, Set<String>>();
 
-        List<SecurityGroupVMMapVO> groupsForVm = _securityGroupVMMapDao.listByInstanceId(userVmId);
-        for (SecurityGroupVMMapVO mapVO : groupsForVm) {
-            List<SecurityGroupRuleVO> rules = _securityGroupRuleDao.listBySecurityGroupId(mapVO.getSecurityGroupId(), type);
+        for (Long groupId : groupIds) {
+            List<SecurityGroupRuleVO> rules = _securityGroupRuleDao.listBySecurityGroupId(groupId, type);
             for (SecurityGroupRuleVO rule : rules) {
                 PortAndProto portAndProto = new PortAndProto(rule.getProtocol(), rule.getStartPort(), rule.getEndPort());
                 Set<String> cidrs = allowed.get(portAndProto);
                 if (cidrs == null) {
                     cidrs = new TreeSet<String>(new CidrComparator());
                 }
-                if (rule.getAllowedNetworkId() != null) {
+                if (rule.getAllowedNetworkId() != null && allowedGroups != null) {
+                    addAllowedGroup(allowedGroups, portAndProto, rule.getAllowedNetworkId());
+                } else if (rule.getAllowedNetworkId() != null) {
                     List<SecurityGroupVMMapVO> allowedInstances = _securityGroupVMMapDao.listBySecurityGroup(rule.getAllowedNetworkId(), State.Running);
                     for (SecurityGroupVMMapVO ngmapVO : allowedInstances) {
                         //here, we differ from the superclass: instead of creating N more queries to the
@@ -246,6 +365,15 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
         return _workQueue;
     }
 
+    /**
+     * @return the share of the vms work was submitted for whose work was
+     *         coalesced with work already queued.
+     */
+    public double getCoalescingRatio() {
+        long submitted = _workQueue.getSubmittedCount();
+        return submitted == 0 ? 0 : (double)_workQueue.getCoalescedCount() / submitted;
+    }
+
 
     @Override
     public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
@@ -258,6 +386,7 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
         boolean result = super.configure(name, params);
         Map<String, String> configs = _configDao.getConfiguration("Network", params);
         int bufferLength = NumbersUtil.parseInt(configs.get(Config.SecurityGroupWorkPerAgentMaxQueueSize.key()), 100);
+        _workBatchSize = NumbersUtil.parseInt(configs.get(Config.SecurityGroupWorkBatchSize.key()), WORK_BATCH_SIZE);
         _workTracker =  new SecurityGroupWorkTracker(_agentMgr, _answerListener, bufferLength);
         _answerListener.setWorkDispatcher(_workTracker);
         return result;
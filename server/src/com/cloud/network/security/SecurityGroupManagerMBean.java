@@ -36,6 +36,12 @@ public interface SecurityGroupManagerMBean {
     Map<Long, Date> getLastUpdateSentTimestamps();
     
     int getQueueSize();
+
+    long getSubmittedWorkCount();
+
+    double getCoalescingRatio();
+
+    Map<Long, Long> getQueueWaitMsPerHost();
     
     List<Long> getVmsInQueue();
     
@@ -0,0 +1,123 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.network.security;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.cloud.agent.api.SecurityGroupMembersCmd.MemberSet;
+
+/**
+ * SecurityGroupMemberSets remembers which hosts hold the member set of which
+ * security group, so that a vm starting or stopping costs one address added
+ * to or removed from the hosts holding the sets of its groups instead of the
+ * full rules of every vm allowing the groups.
+ *
+ * A host gets the full set the first time rules referring to it are sent to
+ * the host; the sets of a host are forgotten when it connects, disconnects
+ * or fails to program a set, and are sent in full again with the next rules.
+ *
+ * Only the sets sent by this management server are known here; the vms on
+ * hosts that don't hold a set as far as this server knows get their rules,
+ * and the full set, sent again instead of a change.
+ *
+ * The caller has to read the members from the database and send the sets
+ * returned while synchronized on this object for the hosts to see them in
+ * the order the members changed.
+ */
+public class SecurityGroupMemberSets {
+    // group id -> hosts holding the set
+    private final Map<Long, Set<Long>> _holders = new HashMap<Long, Set<Long>>();
+
+    public synchronized boolean isHeld(long groupId) {
+        return _holders.containsKey(groupId);
+    }
+
+    /**
+     * @return the groups, out of the ones given, whose set the host doesn't hold.
+     */
+    public synchronized List<Long> getMissing(long hostId, Collection<Long> groupIds) {
+        List<Long> missing = new ArrayList<Long>();
+        for (Long groupId : groupIds) {
+            Set<Long> hosts = _holders.get(groupId);
+            if (hosts == null || !hosts.contains(hostId)) {
+                missing.add(groupId);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Records that the host is sent the full set of the group.
+     *
+     * @param members the current members of the group.
+     * @return the full set to send to the host.
+     */
+    public synchronized MemberSet hold(long hostId, long groupId, Collection<String> members) {
+        Set<Long> hosts = _holders.get(groupId);
+        if (hosts == null) {
+            hosts = new HashSet<Long>();
+            _holders.put(groupId, hosts);
+        }
+        hosts.add(hostId);
+        Set<String> sorted = new TreeSet<String>(members);
+        return new MemberSet(groupId, true, sorted.toArray(new String[sorted.size()]), new String[0]);
+    }
+
+    /**
+     * @param member true if the address is a member of the group, false if it
+     *        no longer is.
+     * @return the change to send to the hosts holding the set of the group,
+     *         or null if no host holds the set.
+     */
+    public synchronized MemberSet change(long groupId, String address, boolean member) {
+        if (!_holders.containsKey(groupId)) {
+            return null;
+        }
+        String[] addresses = new String[] { address };
+        String[] none = new String[0];
+        return new MemberSet(groupId, false, member ? addresses : none, member ? none : addresses);
+    }
+
+    /**
+     * @return the hosts holding the set of the group.
+     */
+    public synchronized List<Long> getHolders(long groupId) {
+        Set<Long> hosts = _holders.get(groupId);
+        return hosts == null ? new ArrayList<Long>() : new ArrayList<Long>(hosts);
+    }
+
+    /**
+     * Forgets the sets held by a host; they are sent in full the next time
+     * rules referring to them are sent to the host.
+     */
+    public synchronized void forgetHost(long hostId) {
+        Iterator<Map.Entry<Long, Set<Long>>> it = _holders.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Set<Long>> entry = it.next();
+            entry.getValue().remove(hostId);
+            if (entry.getValue().isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized int getHeldCount() {
+        return _holders.size();
+    }
+}
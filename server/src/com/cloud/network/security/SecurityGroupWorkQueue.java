@@ -13,6 +13,7 @@
 package com.cloud.network.security;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 
@@ -26,12 +27,42 @@ public interface SecurityGroupWorkQueue {
     void submitWorkForVm(long vmId, long sequenceNumber);
     
     int submitWorkForVms(Set<Long> vmIds);
+
+    /**
+     * Queues work for vms; work for a vm that already has work queued is
+     * coalesced with it.
+     *
+     * @param vmHosts vm id -> host of the vm, null if it isn't known.
+     * @param urgent true to hand the work out before the work that isn't.
+     * @return the number of vms that had no work queued.
+     */
+    int submitWorkForVms(Map<Long, Long> vmHosts, boolean urgent);
     
     List<SecurityGroupWork> getWork(int numberOfWorkItems) throws InterruptedException;
+
+    /**
+     * Waits for work and takes up to numberOfWorkItems items queued for the
+     * same host, the urgent ones first.  The hosts are served in turn.
+     */
+    List<SecurityGroupWork> getWorkForHost(int numberOfWorkItems) throws InterruptedException;
     
     int size();
     
     void clear();
     
     List<Long> getVmsInQueue();
+
+    /**
+     * @return the number of vms work was submitted for, including the ones
+     *         coalesced with work already queued.
+     */
+    long getSubmittedCount();
+
+    long getCoalescedCount();
+
+    /**
+     * @return host id -> ms the oldest work last handed out for the host
+     *         waited in the queue.
+     */
+    Map<Long, Long> getQueueWaits();
 }
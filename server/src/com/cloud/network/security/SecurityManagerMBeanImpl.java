@@ -48,6 +48,21 @@ public class SecurityManagerMBeanImpl extends StandardMBean implements SecurityG
     public int getQueueSize() {
        return this._sgMgr.getQueueSize();
     }
+
+    @Override
+    public long getSubmittedWorkCount() {
+        return _sgMgr.getWorkQueue().getSubmittedCount();
+    }
+
+    @Override
+    public double getCoalescingRatio() {
+        return _sgMgr.getCoalescingRatio();
+    }
+
+    @Override
+    public Map<Long, Long> getQueueWaitMsPerHost() {
+        return _sgMgr.getWorkQueue().getQueueWaits();
+    }
     
     @Override
     public void logUpdateDetails(Long vmId, Long seqno) {
@@ -12,6 +12,7 @@
 // Automatically generated by addcopyright.py at 04/03/2012
 package com.cloud.network.security.dao;
 
+import java.util.Collection;
 import java.util.List;
 
 import com.cloud.network.security.SecurityGroupVMMapVO;
@@ -21,6 +22,7 @@ import com.cloud.vm.VirtualMachine.State;
 public interface SecurityGroupVMMapDao extends GenericDao<SecurityGroupVMMapVO, Long> {
     List<SecurityGroupVMMapVO> listByIpAndInstanceId(String ipAddress, long instanceId);
     List<SecurityGroupVMMapVO> listByInstanceId(long instanceId);
+    List<SecurityGroupVMMapVO> listByInstanceIds(Collection<Long> instanceIds);
     List<SecurityGroupVMMapVO> listByIp(String ipAddress);
     List<SecurityGroupVMMapVO> listBySecurityGroup(long securityGroupId);
     List<SecurityGroupVMMapVO> listBySecurityGroup(long securityGroupId, State ... vmStates);
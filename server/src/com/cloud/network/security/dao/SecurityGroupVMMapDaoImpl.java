@@ -12,6 +12,7 @@
 // Automatically generated by addcopyright.py at 04/03/2012
 package com.cloud.network.security.dao;
 
+import java.util.Collection;
 import java.util.List;
 
 import javax.ejb.Local;
@@ -33,6 +34,7 @@ import com.cloud.vm.VirtualMachine.State;
 public class SecurityGroupVMMapDaoImpl extends GenericDaoBase<SecurityGroupVMMapVO, Long> implements SecurityGroupVMMapDao {
     private SearchBuilder<SecurityGroupVMMapVO> ListByIpAndVmId;
     private SearchBuilder<SecurityGroupVMMapVO> ListByVmId;
+    private SearchBuilder<SecurityGroupVMMapVO> ListByVmIds;
     private SearchBuilder<SecurityGroupVMMapVO> ListByVmIdGroupId;
     protected GenericSearchBuilder<SecurityGroupVMMapVO, Long> CountSGForVm;
 
@@ -64,6 +66,10 @@ public class SecurityGroupVMMapDaoImpl extends GenericDaoBase<SecurityGroupVMMap
         ListByVmId  = createSearchBuilder();
         ListByVmId.and("instanceId", ListByVmId.entity().getInstanceId(), SearchCriteria.Op.EQ);
         ListByVmId.done();
+
+        ListByVmIds  = createSearchBuilder();
+        ListByVmIds.and("instanceIds", ListByVmIds.entity().getInstanceId(), SearchCriteria.Op.IN);
+        ListByVmIds.done();
         
         ListBySecurityGroupAndStates = createSearchBuilder();
         ListBySecurityGroupAndStates.and("securityGroupId", ListBySecurityGroupAndStates.entity().getSecurityGroupId(), SearchCriteria.Op.EQ);
@@ -110,6 +116,13 @@ public class SecurityGroupVMMapDaoImpl extends GenericDaoBase<SecurityGroupVMMap
         return listBy(sc);
     }
 
+    @Override
+    public List<SecurityGroupVMMapVO> listByInstanceIds(Collection<Long> vmIds) {
+        SearchCriteria<SecurityGroupVMMapVO> sc = ListByVmIds.create();
+        sc.setParameters("instanceIds", vmIds.toArray());
+        return listBy(sc);
+    }
+
     @Override
     public int deleteVM(long instanceId) {
     	SearchCriteria<SecurityGroupVMMapVO> sc = ListByVmId.create();
@@ -12,6 +12,8 @@
 // Automatically generated by addcopyright.py at 04/03/2012
 package com.cloud.network.security.dao;
 
+import java.util.Collection;
+import java.util.Map;
 import java.util.Set;
 
 import com.cloud.network.security.VmRulesetLogVO;
@@ -20,6 +22,11 @@ import com.cloud.utils.db.GenericDao;
 public interface VmRulesetLogDao extends GenericDao<VmRulesetLogVO, Long> {
     VmRulesetLogVO findByVmId(long vmId);
 
+    /**
+     * @return vm id -> log of the vm, for the vms that have one.
+     */
+    Map<Long, VmRulesetLogVO> findByVmIds(Collection<Long> vmIds);
+
     int createOrUpdate(Set<Long> workItems);
     
 }
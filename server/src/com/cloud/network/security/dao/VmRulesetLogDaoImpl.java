@@ -16,9 +16,11 @@ import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.SQLTransactionRollbackException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.ejb.Local;
@@ -35,6 +37,7 @@ import com.cloud.utils.db.Transaction;
 public class VmRulesetLogDaoImpl extends GenericDaoBase<VmRulesetLogVO, Long> implements VmRulesetLogDao {
     protected static Logger s_logger = Logger.getLogger(VmRulesetLogDaoImpl.class);
     private SearchBuilder<VmRulesetLogVO> VmIdSearch;
+    private SearchBuilder<VmRulesetLogVO> VmIdsSearch;
     private String INSERT_OR_UPDATE = "INSERT INTO op_vm_ruleset_log (instance_id, created, logsequence) " +
     		" VALUES(?, now(), 1) ON DUPLICATE KEY UPDATE logsequence=logsequence+1";
     private static HashMap<Integer, String> cachedPrepStmtStrings = new  HashMap<Integer, String>();
@@ -64,6 +67,9 @@ public class VmRulesetLogDaoImpl extends GenericDaoBase<VmRulesetLogVO, Long> im
 
         VmIdSearch.done();    
 
+        VmIdsSearch = createSearchBuilder();
+        VmIdsSearch.and("vmIds", VmIdsSearch.entity().getInstanceId(), SearchCriteria.Op.IN);
+        VmIdsSearch.done();
     }
 
     @Override
@@ -73,6 +79,20 @@ public class VmRulesetLogDaoImpl extends GenericDaoBase<VmRulesetLogVO, Long> im
         return findOneIncludingRemovedBy(sc);
     }
 
+    @Override
+    public Map<Long, VmRulesetLogVO> findByVmIds(Collection<Long> vmIds) {
+        Map<Long, VmRulesetLogVO> logs = new HashMap<Long, VmRulesetLogVO>();
+        if (vmIds.isEmpty()) {
+            return logs;
+        }
+        SearchCriteria<VmRulesetLogVO> sc = VmIdsSearch.create();
+        sc.setParameters("vmIds", vmIds.toArray());
+        for (VmRulesetLogVO log : listIncludingRemovedBy(sc)) {
+            logs.put(log.getInstanceId(), log);
+        }
+        return logs;
+    }
+
     @Override
     public int createOrUpdate(Set<Long> workItems) {
         //return createOrUpdateUsingBatch(workItems);
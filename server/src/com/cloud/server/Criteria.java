@@ -75,6 +75,7 @@ public class Criteria {
     public static final String NETWORKID = "networkId";
     public static final String HYPERVISOR = "hypervisor";
     public static final String STORAGE_ID="storageid";
+    public static final String START_ID = "startId";
 
 	public Criteria(String orderBy, Boolean ascending, Long offset, Long limit) {
 		this.offset = offset;
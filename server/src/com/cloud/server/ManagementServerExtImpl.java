@@ -156,6 +156,9 @@ public class ManagementServerExtImpl extends ManagementServerImpl implements Man
         }
 
         Filter usageFilter = new Filter(UsageVO.class, "startDate", false, cmd.getStartIndex(), cmd.getPageSizeVal());
+        if (cmd.getStartId() != null) {
+            usageFilter.setSeek(UsageVO.class, "id", cmd.getStartId(), false);
+        }
         
         SearchCriteria<UsageVO> sc = _usageDao.createSearchCriteria();
 
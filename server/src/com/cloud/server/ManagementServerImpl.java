@@ -219,6 +219,7 @@ import com.cloud.utils.db.JoinBuilder;
 import com.cloud.utils.db.JoinBuilder.JoinType;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
+import com.cloud.utils.db.SearchCursor;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.net.MacAddress;
@@ -1442,6 +1443,54 @@ public class ManagementServerImpl implements ManagementServer {
 
     @Override
     public List<EventVO> searchForEvents(ListEventsCmd cmd) {
+        Filter searchFilter = createEventFilter(cmd);
+        SearchCriteria<EventVO> sc = createEventSearchCriteria(cmd);
+
+        Integer entryTime = cmd.getEntryTime();
+        Integer duration = cmd.getDuration();
+        if ((entryTime != null) && (duration != null)) {
+            if (entryTime <= duration) {
+                throw new InvalidParameterValueException("Entry time must be greater than duration");
+            }
+            Calendar calMin = Calendar.getInstance();
+            Calendar calMax = Calendar.getInstance();
+            calMin.add(Calendar.SECOND, -entryTime);
+            calMax.add(Calendar.SECOND, -duration);
+            Date minTime = calMin.getTime();
+            Date maxTime = calMax.getTime();
+
+            sc.setParameters("state", com.cloud.event.Event.State.Completed);
+            sc.setParameters("startId", 0);
+            sc.setParameters("createDate", minTime, maxTime);
+            List<EventVO> startedEvents = _eventDao.searchAllEvents(sc, searchFilter);
+            List<EventVO> pendingEvents = new ArrayList<EventVO>();
+            for (EventVO event : startedEvents) {
+                EventVO completedEvent = _eventDao.findCompletedEvent(event.getId());
+                if (completedEvent == null) {
+                    pendingEvents.add(event);
+                }
+            }
+            return pendingEvents;
+        } else {
+            return _eventDao.searchAllEvents(sc, searchFilter);
+        }
+    }
+
+    @Override
+    public SearchCursor<EventVO> searchForEventsCursor(ListEventsCmd cmd) {
+        assert (cmd.getEntryTime() == null || cmd.getDuration() == null) : "Pending events have to be searched with searchForEvents";
+        return _eventDao.searchCursorIncludingRemoved(createEventSearchCriteria(cmd), createEventFilter(cmd));
+    }
+
+    private Filter createEventFilter(ListEventsCmd cmd) {
+        Filter searchFilter = new Filter(EventVO.class, "createDate", false, cmd.getStartIndex(), cmd.getPageSizeVal());
+        if (cmd.getStartId() != null) {
+            searchFilter.setSeek(EventVO.class, "id", cmd.getStartId(), false);
+        }
+        return searchFilter;
+    }
+
+    private SearchCriteria<EventVO> createEventSearchCriteria(ListEventsCmd cmd) {
         Account caller = UserContext.current().getCaller();
         List<Long> permittedAccounts = new ArrayList<Long>();
 
@@ -1451,8 +1500,6 @@ public class ManagementServerImpl implements ManagementServer {
         Date startDate = cmd.getStartDate();
         Date endDate = cmd.getEndDate();
         String keyword = cmd.getKeyword();
-        Integer entryTime = cmd.getEntryTime();
-        Integer duration = cmd.getDuration();
 
         Ternary<Long, Boolean, ListProjectResourcesCriteria> domainIdRecursiveListProject = new Ternary<Long, Boolean, ListProjectResourcesCriteria>(cmd.getDomainId(), cmd.isRecursive(), null);
         _accountMgr.buildACLSearchParameters(caller, id, cmd.getAccountName(), cmd.getProjectId(), permittedAccounts, domainIdRecursiveListProject, cmd.listAll(), false);
@@ -1460,7 +1507,6 @@ public class ManagementServerImpl implements ManagementServer {
         Boolean isRecursive = domainIdRecursiveListProject.second();
         ListProjectResourcesCriteria listProjectResourcesCriteria = domainIdRecursiveListProject.third();
 
-        Filter searchFilter = new Filter(EventVO.class, "createDate", false, cmd.getStartIndex(), cmd.getPageSizeVal());
         SearchBuilder<EventVO> sb = _eventDao.createSearchBuilder();
 
         sb.and("accountIdIN", sb.entity().getAccountId(), SearchCriteria.Op.IN);
@@ -1538,32 +1584,7 @@ public class ManagementServerImpl implements ManagementServer {
             sc.setParameters("createDateL", endDate);
         }
 
-        if ((entryTime != null) && (duration != null)) {
-            if (entryTime <= duration) {
-                throw new InvalidParameterValueException("Entry time must be greater than duration");
-            }
-            Calendar calMin = Calendar.getInstance();
-            Calendar calMax = Calendar.getInstance();
-            calMin.add(Calendar.SECOND, -entryTime);
-            calMax.add(Calendar.SECOND, -duration);
-            Date minTime = calMin.getTime();
-            Date maxTime = calMax.getTime();
-
-            sc.setParameters("state", com.cloud.event.Event.State.Completed);
-            sc.setParameters("startId", 0);
-            sc.setParameters("createDate", minTime, maxTime);
-            List<EventVO> startedEvents = _eventDao.searchAllEvents(sc, searchFilter);
-            List<EventVO> pendingEvents = new ArrayList<EventVO>();
-            for (EventVO event : startedEvents) {
-                EventVO completedEvent = _eventDao.findCompletedEvent(event.getId());
-                if (completedEvent == null) {
-                    pendingEvents.add(event);
-                }
-            }
-            return pendingEvents;
-        } else {
-            return _eventDao.searchAllEvents(sc, searchFilter);
-        }
+        return sc;
     }
 
     @Override
@@ -2452,6 +2473,9 @@ public class ManagementServerImpl implements ManagementServer {
         ListProjectResourcesCriteria listProjectResourcesCriteria = domainIdRecursiveListProject.third();
 
         Filter searchFilter = new Filter(AsyncJobVO.class, "id", true, cmd.getStartIndex(), cmd.getPageSizeVal());
+        if (cmd.getStartId() != null) {
+            searchFilter.setSeek(AsyncJobVO.class, "id", cmd.getStartId(), true);
+        }
         SearchBuilder<AsyncJobVO> sb = _jobDao.createSearchBuilder();
         sb.and("accountIdIN", sb.entity().getAccountId(), SearchCriteria.Op.IN);
         SearchBuilder<AccountVO> accountSearch = null;
@@ -17,11 +17,16 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import com.cloud.resource.ResourceManager;
 
 import org.apache.log4j.Logger;
@@ -30,11 +35,15 @@ import com.cloud.agent.AgentManager;
 import com.cloud.agent.AgentManager.OnError;
 import com.cloud.agent.api.Answer;
 import com.cloud.agent.api.GetFileStatsCommand;
+import com.cloud.agent.api.GetHostStatsAnswer;
+import com.cloud.agent.api.GetHostStatsCommand;
 import com.cloud.agent.api.GetStorageStatsCommand;
-import com.cloud.agent.api.HostStatsEntry;
+import com.cloud.agent.api.GetVmStatsAnswer;
+import com.cloud.agent.api.GetVmStatsCommand;
 import com.cloud.agent.api.VmStatsEntry;
 import com.cloud.agent.manager.Commands;
 import com.cloud.exception.AgentUnavailableException;
+import com.cloud.exception.OperationTimedoutException;
 import com.cloud.exception.StorageUnavailableException;
 import com.cloud.host.Host;
 import com.cloud.host.HostStats;
@@ -56,7 +65,7 @@ import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.component.ComponentLocator;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.SearchCriteria;
-import com.cloud.vm.UserVmManager;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.vm.UserVmVO;
 import com.cloud.vm.VmStats;
 import com.cloud.vm.dao.UserVmDao;
@@ -73,8 +82,9 @@ public class StatsCollector {
 	private static StatsCollector s_instance = null;
 
 	private ScheduledExecutorService _executor = null;
+	private ThreadPoolExecutor _workers = null;
+	private StatsCollectorStats _stats = null;
 	private final AgentManager _agentMgr;
-	private final UserVmManager _userVmMgr;
 	private final HostDao _hostDao;
 	private final UserVmDao _userVmDao;
 	private final VolumeDao _volsDao;
@@ -85,7 +95,7 @@ public class StatsCollector {
     private final ResourceManager _resourceMgr;
 
 	private ConcurrentHashMap<Long, HostStats> _hostStats = new ConcurrentHashMap<Long, HostStats>();
-	private final ConcurrentHashMap<Long, VmStats> _VmStats = new ConcurrentHashMap<Long, VmStats>();
+	private final ConcurrentHashMap<Long, VmStatsSamples> _VmStats = new ConcurrentHashMap<Long, VmStatsSamples>();
 	private ConcurrentHashMap<Long, VolumeStats> _volumeStats = new ConcurrentHashMap<Long, VolumeStats>();
 	private ConcurrentHashMap<Long, StorageStats> _storageStats = new ConcurrentHashMap<Long, StorageStats>();
 	private ConcurrentHashMap<Long, StorageStats> _storagePoolStats = new ConcurrentHashMap<Long, StorageStats>();
@@ -94,6 +104,8 @@ public class StatsCollector {
 	long hostAndVmStatsInterval = -1L;
 	long storageStatsInterval = -1L;
 	long volumeStatsInterval = -1L;
+	int vmStatsSamples = 10;
+	int hostTimeout = 30;
 
 	//private final GlobalLock m_capacityCheckLock = GlobalLock.getInternLock("capacity.check");
 
@@ -110,7 +122,6 @@ public class StatsCollector {
 	private StatsCollector(Map<String, String> configs) {
 		ComponentLocator locator = ComponentLocator.getLocator(ManagementServer.Name);
 		_agentMgr = locator.getManager(AgentManager.class);
-		_userVmMgr = locator.getManager(UserVmManager.class);
 		_ssvmMgr = locator.getManager(SecondaryStorageVmManager.class);
 		_hostDao = locator.getDao(HostDao.class);
 		_userVmDao = locator.getDao(UserVmDao.class);
@@ -126,6 +137,24 @@ public class StatsCollector {
 		 hostAndVmStatsInterval = NumbersUtil.parseLong(configs.get("vm.stats.interval"), 60000L);
 		 storageStatsInterval = NumbersUtil.parseLong(configs.get("storage.stats.interval"), 60000L);
 		 volumeStatsInterval = NumbersUtil.parseLong(configs.get("volume.stats.interval"), -1L);
+		 vmStatsSamples = NumbersUtil.parseInt(configs.get("vm.stats.samples"), 10);
+		 hostTimeout = NumbersUtil.parseInt(configs.get("stats.collector.host.timeout"), 30);
+
+		 // The scheduled collectors only fan the agent round trips out to
+		 // the workers, so one slow host holds up a worker, not the cycle
+		 int workers = NumbersUtil.parseInt(configs.get("stats.collector.workers"), 16);
+		 _workers = new ThreadPoolExecutor(workers, workers, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("StatsCollectorWorker"));
+		 _workers.allowCoreThreadTimeOut(true);
+
+		 _stats = new StatsCollectorStats(_workers);
+		 _stats.register("host", hostStatsInterval);
+		 _stats.register("vm", hostAndVmStatsInterval);
+		 _stats.register("volume", volumeStatsInterval);
+		 try {
+		     JmxUtil.registerMBean("StatsCollector", "Statistics", _stats);
+		 } catch (Exception e) {
+		     s_logger.warn("Unable to register the stats collector mbean", e);
+		 }
 
 		 if (hostStatsInterval > 0) {
 		     _executor.scheduleWithFixedDelay(new HostCollector(), 15000L, hostStatsInterval, TimeUnit.MILLISECONDS);
@@ -147,11 +176,51 @@ public class StatsCollector {
 		}
 	}
 
+	/**
+	 * Runs the tasks on the worker pool and waits for them.  Each task sends
+	 * its commands with the host timeout, so the wait here only guards against
+	 * a task that hangs anyway: whatever is still running past the deadline is
+	 * cancelled and counted as timed out.
+	 *
+	 * @return the number of tasks that timed out.
+	 */
+	private <K, V> int collect(Map<K, Callable<V>> tasks, Map<K, V> results) {
+		int rounds = (tasks.size() + _workers.getMaximumPoolSize() - 1) / _workers.getMaximumPoolSize();
+		long deadline = System.currentTimeMillis() + hostTimeout * 1000L * (rounds + 1);
+
+		Map<K, Future<V>> futures = new HashMap<K, Future<V>>(tasks.size());
+		for (Map.Entry<K, Callable<V>> task : tasks.entrySet()) {
+			futures.put(task.getKey(), _workers.submit(task.getValue()));
+		}
+
+		int timeouts = 0;
+		for (Map.Entry<K, Future<V>> entry : futures.entrySet()) {
+			Future<V> future = entry.getValue();
+			try {
+				V result = future.get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+				if (result != null) {
+					results.put(entry.getKey(), result);
+				}
+			} catch (TimeoutException e) {
+				future.cancel(true);
+				timeouts++;
+				s_logger.warn("Timed out collecting stats for " + entry.getKey());
+			} catch (ExecutionException e) {
+				s_logger.debug("Failed to collect stats for " + entry.getKey() + ": " + e.getCause());
+			} catch (InterruptedException e) {
+				future.cancel(true);
+				timeouts++;
+			}
+		}
+		return timeouts;
+	}
+
 	class HostCollector implements Runnable {
 		@Override
         public void run() {
 			try {
 				s_logger.debug("HostStatsCollector is running...");
+				long start = System.currentTimeMillis();
 				
 				SearchCriteria<HostVO> sc = _hostDao.createSearchCriteria();
 				sc.addAnd("status", SearchCriteria.Op.EQ, Status.Up.toString());
@@ -164,21 +233,22 @@ public class StatsCollector {
 		        sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.SecondaryStorageVM.toString());
 		        sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.ExternalFirewall.toString());
 		        sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.ExternalLoadBalancer.toString());
-				ConcurrentHashMap<Long, HostStats> hostStats = new ConcurrentHashMap<Long, HostStats>();
 				List<HostVO> hosts = _hostDao.search(sc, null);
-				for (HostVO host : hosts)
-				{
-				    HostStatsEntry stats = (HostStatsEntry) _resourceMgr.getHostStatistics(host.getId());
-				    if (stats != null)
-				    {
-                        hostStats.put(host.getId(), stats);
-				    }
-				    else
-				    {
-				        s_logger.warn("Received invalid host stats for host: " + host.getId());
-				    }
+
+				Map<Long, Callable<HostStats>> tasks = new HashMap<Long, Callable<HostStats>>(hosts.size());
+				for (final HostVO host : hosts) {
+					tasks.put(host.getId(), new Callable<HostStats>() {
+						@Override
+						public HostStats call() throws Exception {
+							return getHostStatistics(host);
+						}
+					});
 				}
+
+				ConcurrentHashMap<Long, HostStats> hostStats = new ConcurrentHashMap<Long, HostStats>();
+				int timeouts = collect(tasks, hostStats);
 				_hostStats = hostStats;
+				_stats.record("host", start, System.currentTimeMillis(), timeouts);
 			}
 			catch (Throwable t)
 			{
@@ -186,12 +256,24 @@ public class StatsCollector {
 			}
 		}
 	}
+
+	private HostStats getHostStatistics(HostVO host) throws Exception {
+		GetHostStatsCommand cmd = new GetHostStatsCommand(host.getGuid(), host.getName(), host.getId());
+		cmd.setWait(hostTimeout);
+		Answer answer = _agentMgr.send(host.getId(), cmd);
+		if (answer instanceof GetHostStatsAnswer && answer.getResult()) {
+			return ((GetHostStatsAnswer) answer).getHostStats();
+		}
+		s_logger.warn("Received invalid host stats for host: " + host.getId());
+		return null;
+	}
 	
 	class VmStatsCollector implements Runnable {
 		@Override
         public void run() {
 			try {
 				s_logger.debug("VmStatsCollector is running...");
+				long start = System.currentTimeMillis();
 				
 				SearchCriteria<HostVO> sc = _hostDao.createSearchCriteria();
 				sc.addAnd("status", SearchCriteria.Op.EQ, Status.Up.toString());
@@ -203,52 +285,53 @@ public class StatsCollector {
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.TrafficMonitor.toString());
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.SecondaryStorageVM.toString());
 				List<HostVO> hosts = _hostDao.search(sc, null);
-				
+
+				// One query for the running vms of all the hosts, rather than one per host
+				List<Long> hostIds = new ArrayList<Long>(hosts.size());
 				for (HostVO host : hosts) {
-					List<UserVmVO> vms = _userVmDao.listRunningByHostId(host.getId());
-					List<Long> vmIds = new ArrayList<Long>();
-					
-					for (UserVmVO vm : vms) {
-						vmIds.add(vm.getId());
+					hostIds.add(host.getId());
+				}
+				Map<Long, List<UserVmVO>> vmsByHost = new HashMap<Long, List<UserVmVO>>();
+				for (UserVmVO vm : _userVmDao.listRunningByHostIds(hostIds)) {
+					List<UserVmVO> vms = vmsByHost.get(vm.getHostId());
+					if (vms == null) {
+						vms = new ArrayList<UserVmVO>();
+						vmsByHost.put(vm.getHostId(), vms);
 					}
-					
-					try
-					{
-							HashMap<Long, VmStatsEntry> vmStatsById = _userVmMgr.getVirtualMachineStatistics(host.getId(), host.getName(), vmIds);
-							
-							if(vmStatsById != null)
-							{
-								VmStatsEntry statsInMemory = null;
-								
-								Set<Long> vmIdSet = vmStatsById.keySet();
-								for(Long vmId : vmIdSet)
-								{
-									VmStatsEntry statsForCurrentIteration = vmStatsById.get(vmId);
-									statsInMemory = (VmStatsEntry) _VmStats.get(vmId);
-									
-									if(statsInMemory == null)
-									{
-										//no stats exist for this vm, directly persist
-										_VmStats.put(vmId, statsForCurrentIteration);
-									}
-									else
-									{
-										//update each field
-										statsInMemory.setCPUUtilization(statsForCurrentIteration.getCPUUtilization());
-										statsInMemory.setNumCPUs(statsForCurrentIteration.getNumCPUs());
-										statsInMemory.setNetworkReadKBs(statsInMemory.getNetworkReadKBs() + statsForCurrentIteration.getNetworkReadKBs());
-										statsInMemory.setNetworkWriteKBs(statsInMemory.getNetworkWriteKBs() + statsForCurrentIteration.getNetworkWriteKBs());
-										
-										_VmStats.put(vmId, statsInMemory);
-									}
-								}
-							}
-							
-					} catch (Exception e) {
-						s_logger.debug("Failed to get VM stats for host with ID: " + host.getId());
+					vms.add(vm);
+				}
+
+				Map<Long, Callable<Map<Long, VmStatsEntry>>> tasks = new HashMap<Long, Callable<Map<Long, VmStatsEntry>>>(hosts.size());
+				for (final HostVO host : hosts) {
+					final List<UserVmVO> vms = vmsByHost.get(host.getId());
+					if (vms == null) {
 						continue;
 					}
+					tasks.put(host.getId(), new Callable<Map<Long, VmStatsEntry>>() {
+						@Override
+						public Map<Long, VmStatsEntry> call() throws Exception {
+							return getVmStatistics(host, vms);
+						}
+					});
 				}
+
+				Map<Long, Map<Long, VmStatsEntry>> statsByHost = new HashMap<Long, Map<Long, VmStatsEntry>>();
+				int timeouts = collect(tasks, statsByHost);
+
+				for (Map<Long, VmStatsEntry> vmStatsById : statsByHost.values()) {
+					for (Map.Entry<Long, VmStatsEntry> entry : vmStatsById.entrySet()) {
+						VmStatsSamples samples = _VmStats.get(entry.getKey());
+						if (samples == null) {
+							samples = new VmStatsSamples(vmStatsSamples);
+							VmStatsSamples existing = _VmStats.putIfAbsent(entry.getKey(), samples);
+							if (existing != null) {
+								samples = existing;
+							}
+						}
+						samples.add(entry.getValue());
+					}
+				}
+				_stats.record("vm", start, System.currentTimeMillis(), timeouts);
 				
 			} catch (Throwable t) {
 				s_logger.error("Error trying to retrieve VM stats", t);
@@ -256,8 +339,41 @@ public class StatsCollector {
 		}
 	}
 
+	private Map<Long, VmStatsEntry> getVmStatistics(HostVO host, List<UserVmVO> vms) throws Exception {
+		Map<String, Long> vmIdsByName = new HashMap<String, Long>(vms.size());
+		for (UserVmVO vm : vms) {
+			vmIdsByName.put(vm.getInstanceName(), vm.getId());
+		}
+
+		GetVmStatsCommand cmd = new GetVmStatsCommand(new ArrayList<String>(vmIdsByName.keySet()), host.getGuid(), host.getName());
+		cmd.setWait(hostTimeout);
+		Answer answer = _agentMgr.send(host.getId(), cmd);
+		if (!(answer instanceof GetVmStatsAnswer) || !answer.getResult() || ((GetVmStatsAnswer) answer).getVmStatsMap() == null) {
+			s_logger.debug("Failed to get VM stats for host with ID: " + host.getId());
+			return null;
+		}
+
+		Map<Long, VmStatsEntry> vmStatsById = new HashMap<Long, VmStatsEntry>();
+		for (Map.Entry<String, VmStatsEntry> entry : ((GetVmStatsAnswer) answer).getVmStatsMap().entrySet()) {
+			Long vmId = vmIdsByName.get(entry.getKey());
+			if (vmId != null) {
+				vmStatsById.put(vmId, entry.getValue());
+			}
+		}
+		return vmStatsById;
+	}
+
 	public VmStats getVmStats(long id) {
-		return _VmStats.get(id);
+		VmStatsSamples samples = _VmStats.get(id);
+		return samples == null ? null : samples.getStats();
+	}
+
+	/**
+	 * @return the last vm.stats.samples samples collected for a vm, oldest first.
+	 */
+	public List<VmStatsEntry> getVmStatsHistory(long id) {
+		VmStatsSamples samples = _VmStats.get(id);
+		return samples == null ? new ArrayList<VmStatsEntry>() : samples.getSamples();
 	}
 
 	class StorageCollector implements Runnable {
@@ -344,10 +460,14 @@ public class StatsCollector {
 		@Override
         public void run() {
 			try {
+				long start = System.currentTimeMillis();
 				List<VolumeVO> volumes = _volsDao.listAll();
 				Map<Long, List<VolumeCommand>> commandsByPool = new HashMap<Long, List<VolumeCommand>>();
 				
 				for (VolumeVO volume : volumes) {
+					if (volume.getPoolId() == null) {
+						continue;
+					}
 					List<VolumeCommand> commands = commandsByPool.get(volume.getPoolId());
 					if (commands == null) {
 						commands = new ArrayList<VolumeCommand>();
@@ -358,48 +478,82 @@ public class StatsCollector {
 					vCommand.command = new GetFileStatsCommand(volume);
 					commands.add(vCommand);
 				}
-				ConcurrentHashMap<Long, VolumeStats> volumeStats = new ConcurrentHashMap<Long, VolumeStats>();
+
+				// One query for the hosts of all the pools, rather than one per pool
+				Map<Long, List<Long>> hostsByPool = new HashMap<Long, List<Long>>();
+				for (StoragePoolHostVO poolhost : _storagePoolHostDao.listAll()) {
+					List<Long> hostIds = hostsByPool.get(poolhost.getPoolId());
+					if (hostIds == null) {
+						hostIds = new ArrayList<Long>();
+						hostsByPool.put(poolhost.getPoolId(), hostIds);
+					}
+					hostIds.add(poolhost.getHostId());
+				}
+
+				Map<Long, Callable<Map<Long, VolumeStats>>> tasks = new HashMap<Long, Callable<Map<Long, VolumeStats>>>(commandsByPool.size());
 				for (Iterator<Long> iter = commandsByPool.keySet().iterator(); iter.hasNext();) {
-					Long poolId = iter.next();
-					if(poolId != null) {
-						List<VolumeCommand> commandsList = commandsByPool.get(poolId);
-						
-						long[] volumeIdArray = new long[commandsList.size()];
-						Commands commands = new Commands(OnError.Continue);
-						for (int i = 0; i < commandsList.size(); i++) {
-							VolumeCommand vCommand = commandsList.get(i);
-							volumeIdArray[i] = vCommand.volumeId;
-							commands.addCommand(vCommand.command);
-						}
-						
-			            List<StoragePoolHostVO> poolhosts = _storagePoolHostDao.listByPoolId(poolId);
-			            for(StoragePoolHostVO poolhost : poolhosts) {
-	    					Answer[] answers = _agentMgr.send(poolhost.getHostId(), commands);
-	    					if (answers != null) {
-	    					    long totalBytes = 0L;
-	    						for (int i = 0; i < answers.length; i++) {
-	    							if (answers[i].getResult()) {
-	    							    VolumeStats vStats = (VolumeStats)answers[i];
-	    								volumeStats.put(volumeIdArray[i], vStats);
-	    								totalBytes += vStats.getBytesUsed();
-	    							}
-	    						}
-	    						break;
-	                        }
-			            }
+					final Long poolId = iter.next();
+					final List<VolumeCommand> commandsList = commandsByPool.get(poolId);
+					final List<Long> hostIds = hostsByPool.get(poolId);
+					if (hostIds == null) {
+						continue;
 					}
+					tasks.put(poolId, new Callable<Map<Long, VolumeStats>>() {
+						@Override
+						public Map<Long, VolumeStats> call() throws Exception {
+							return getVolumeStatistics(hostIds, commandsList);
+						}
+					});
+				}
+
+				Map<Long, Map<Long, VolumeStats>> statsByPool = new HashMap<Long, Map<Long, VolumeStats>>();
+				int timeouts = collect(tasks, statsByPool);
+
+				ConcurrentHashMap<Long, VolumeStats> volumeStats = new ConcurrentHashMap<Long, VolumeStats>();
+				for (Map<Long, VolumeStats> poolStats : statsByPool.values()) {
+					volumeStats.putAll(poolStats);
 				}
 
 				// We replace the existing volumeStats so that it does not grow with no bounds
 				_volumeStats = volumeStats;
-			} catch (AgentUnavailableException e) {
-			    s_logger.debug(e.getMessage());
+				_stats.record("volume", start, System.currentTimeMillis(), timeouts);
 			} catch (Throwable t) {
 				s_logger.error("Error trying to retrieve volume stats", t);
 			}
 		}
 	}
 
+	private Map<Long, VolumeStats> getVolumeStatistics(List<Long> hostIds, List<VolumeCommand> commandsList) {
+		long[] volumeIdArray = new long[commandsList.size()];
+		Commands commands = new Commands(OnError.Continue);
+		for (int i = 0; i < commandsList.size(); i++) {
+			VolumeCommand vCommand = commandsList.get(i);
+			volumeIdArray[i] = vCommand.volumeId;
+			commands.addCommand(vCommand.command);
+		}
+
+		Map<Long, VolumeStats> volumeStats = new HashMap<Long, VolumeStats>();
+		for (Long hostId : hostIds) {
+			Answer[] answers = null;
+			try {
+				answers = _agentMgr.send(hostId, commands, hostTimeout);
+			} catch (AgentUnavailableException e) {
+				s_logger.debug(e.getMessage());
+			} catch (OperationTimedoutException e) {
+				s_logger.debug(e.getMessage());
+			}
+			if (answers != null) {
+				for (int i = 0; i < answers.length; i++) {
+					if (answers[i].getResult()) {
+						volumeStats.put(volumeIdArray[i], (VolumeStats)answers[i]);
+					}
+				}
+				break;
+			}
+		}
+		return volumeStats;
+	}
+
 	private class VolumeCommand {
 		public long volumeId;
 		public GetFileStatsCommand command;
@@ -0,0 +1,27 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.server;
+
+import java.util.List;
+import java.util.Map;
+
+public interface StatsCollectorMBean {
+    /**
+     * @return for each collector, the time its last cycle took, the longest
+     *         cycle, how far the last cycle ran past the collection interval,
+     *         how long ago it finished, and the hosts or pools that timed out.
+     */
+    List<Map<String, String>> getCollectorStats();
+
+    int getWorkerActiveCount();
+
+    int getWorkerQueueSize();
+}
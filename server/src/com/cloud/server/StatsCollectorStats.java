@@ -0,0 +1,97 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import javax.management.StandardMBean;
+
+/**
+ * StatsCollectorStats records how long each collection cycle takes, so a
+ * zone that has outgrown its stats intervals shows up.
+ */
+public class StatsCollectorStats extends StandardMBean implements StatsCollectorMBean {
+    protected final ConcurrentHashMap<String, CycleStats> _stats = new ConcurrentHashMap<String, CycleStats>();
+    protected final ThreadPoolExecutor _workers;
+
+    public StatsCollectorStats(ThreadPoolExecutor workers) {
+        super(StatsCollectorMBean.class, false);
+        _workers = workers;
+    }
+
+    public void register(String collector, long interval) {
+        _stats.put(collector, new CycleStats(interval));
+    }
+
+    public void record(String collector, long start, long end, int timeouts) {
+        CycleStats stats = _stats.get(collector);
+        if (stats != null) {
+            stats.record(start, end, timeouts);
+        }
+    }
+
+    @Override
+    public List<Map<String, String>> getCollectorStats() {
+        long now = System.currentTimeMillis();
+        List<Map<String, String>> list = new ArrayList<Map<String, String>>();
+        for (Map.Entry<String, CycleStats> entry : _stats.entrySet()) {
+            CycleStats stats = entry.getValue();
+            synchronized (stats) {
+                Map<String, String> map = new HashMap<String, String>();
+                map.put("collector", entry.getKey());
+                map.put("cycles", Long.toString(stats._cycles));
+                map.put("lastCycleMs", Long.toString(stats._lastDuration));
+                map.put("maxCycleMs", Long.toString(stats._maxDuration));
+                map.put("lagMs", Long.toString(Math.max(0, stats._lastDuration - stats._interval)));
+                map.put("ageMs", stats._lastEnd == 0 ? "" : Long.toString(now - stats._lastEnd));
+                map.put("timeouts", Long.toString(stats._timeouts));
+                list.add(map);
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public int getWorkerActiveCount() {
+        return _workers.getActiveCount();
+    }
+
+    @Override
+    public int getWorkerQueueSize() {
+        return _workers.getQueue().size();
+    }
+
+    protected static class CycleStats {
+        final long _interval;
+        long _cycles;
+        long _lastDuration;
+        long _maxDuration;
+        long _lastEnd;
+        long _timeouts;
+
+        CycleStats(long interval) {
+            _interval = interval;
+        }
+
+        synchronized void record(long start, long end, int timeouts) {
+            _cycles++;
+            _lastDuration = end - start;
+            _maxDuration = Math.max(_maxDuration, _lastDuration);
+            _lastEnd = end;
+            _timeouts += timeouts;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.cloud.agent.api.VmStatsEntry;
+
+/**
+ * VmStatsSamples keeps the last few samples collected for a VM in a ring
+ * buffer.  The network counters the agents report are the KBs moved since the
+ * previous sample, so the totals since the management server started are
+ * kept alongside.  Samples are never modified once added; readers get copies.
+ */
+public class VmStatsSamples {
+    private final VmStatsEntry[] _samples;
+    private int _next = 0;
+    private int _count = 0;
+    private double _networkReadKBs = 0;
+    private double _networkWriteKBs = 0;
+
+    public VmStatsSamples(int size) {
+        _samples = new VmStatsEntry[Math.max(size, 1)];
+    }
+
+    public synchronized void add(VmStatsEntry sample) {
+        _samples[_next] = sample;
+        _next = (_next + 1) % _samples.length;
+        if (_count < _samples.length) {
+            _count++;
+        }
+        _networkReadKBs += sample.getNetworkReadKBs();
+        _networkWriteKBs += sample.getNetworkWriteKBs();
+    }
+
+    /**
+     * @return the latest cpu figures with the network totals, or null if no
+     *         sample has been added yet.
+     */
+    public synchronized VmStatsEntry getStats() {
+        if (_count == 0) {
+            return null;
+        }
+        VmStatsEntry latest = _samples[(_next + _samples.length - 1) % _samples.length];
+        return new VmStatsEntry(latest.getCPUUtilization(), _networkReadKBs, _networkWriteKBs, latest.getNumCPUs(), latest.getEntityType());
+    }
+
+    /**
+     * @return the samples kept, oldest first.
+     */
+    public synchronized List<VmStatsEntry> getSamples() {
+        List<VmStatsEntry> samples = new ArrayList<VmStatsEntry>(_count);
+        for (int i = 0; i < _count; i++) {
+            samples.add(_samples[(_next - _count + i + _samples.length) % _samples.length]);
+        }
+        return samples;
+    }
+}
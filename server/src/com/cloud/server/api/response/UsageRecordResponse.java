@@ -21,6 +21,9 @@ import com.google.gson.annotations.SerializedName;
 
 @SuppressWarnings("unused")
 public class UsageRecordResponse extends BaseResponse implements ControlledEntityResponse{
+    @SerializedName(ApiConstants.ID) @Param(description="the ID of the usage record")
+    private Long id;
+    
     @SerializedName(ApiConstants.ACCOUNT) @Param(description="the user account name")
     private String accountName;
     
@@ -98,6 +101,10 @@ public class UsageRecordResponse extends BaseResponse implements ControlledEntit
         this.accountName = accountName;
     }
 
+    public void setId(Long id) {
+        this.id = id;
+    }
+    
     public void setAccountId(Long accountId) {
         this.accountId.setValue(accountId);
     }
@@ -20,8 +20,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import javax.ejb.Local;
@@ -59,6 +63,7 @@ import com.cloud.api.commands.CreateTemplateCmd;
 import com.cloud.api.commands.CreateVMGroupCmd;
 import com.cloud.api.commands.DeleteVMGroupCmd;
 import com.cloud.api.commands.DeployVMCmd;
+import com.cloud.api.commands.DeployVMsCmd;
 import com.cloud.api.commands.DestroyVMCmd;
 import com.cloud.api.commands.DetachVolumeCmd;
 import com.cloud.api.commands.ListVMsCmd;
@@ -73,17 +78,21 @@ import com.cloud.async.AsyncJobExecutor;
 import com.cloud.async.AsyncJobManager;
 import com.cloud.async.AsyncJobVO;
 import com.cloud.async.BaseAsyncJobExecutor;
+import com.cloud.capacity.CapacityManager;
+import com.cloud.cluster.StackMaid;
 import com.cloud.configuration.Config;
 import com.cloud.configuration.ConfigurationManager;
 import com.cloud.configuration.Resource.ResourceType;
 import com.cloud.configuration.dao.ConfigurationDao;
 import com.cloud.dc.DataCenter;
 import com.cloud.dc.DataCenter.NetworkType;
+import com.cloud.dc.ClusterVO;
 import com.cloud.dc.DataCenterVO;
 import com.cloud.dc.HostPodVO;
 import com.cloud.dc.dao.ClusterDao;
 import com.cloud.dc.dao.DataCenterDao;
 import com.cloud.dc.dao.HostPodDao;
+import com.cloud.deploy.BatchPlanner;
 import com.cloud.deploy.DataCenterDeployment;
 import com.cloud.deploy.DeployDestination;
 import com.cloud.domain.DomainVO;
@@ -94,6 +103,7 @@ import com.cloud.event.UsageEventVO;
 import com.cloud.event.dao.UsageEventDao;
 import com.cloud.exception.ConcurrentOperationException;
 import com.cloud.exception.InsufficientCapacityException;
+import com.cloud.exception.InsufficientServerCapacityException;
 import com.cloud.exception.InvalidParameterValueException;
 import com.cloud.exception.ManagementServerException;
 import com.cloud.exception.OperationTimedoutException;
@@ -338,9 +348,12 @@ public class UserVmManagerImpl implements UserVmManager, UserVmService, Manager
     @Inject
     protected ItWorkDao _workDao;
     VolumeHostDao _volumeHostDao;
+    @Inject
+    protected CapacityManager _capacityMgr;
 
 
     protected ScheduledExecutorService _executor = null;
+    protected ThreadPoolExecutor _deployExecutor = null;
     protected int _expungeInterval;
     protected int _expungeDelay;
 
@@ -1131,6 +1144,10 @@ public class UserVmManagerImpl implements UserVmManager, UserVmService, Manager
 
         _executor = Executors.newScheduledThreadPool(wrks, new NamedThreadFactory("UserVm-Scavenger"));
 
+        int deployWorkers = NumbersUtil.parseInt(_configDao.getValue(Config.VmDeployBatchWorkers.key()), 16);
+        _deployExecutor = new ThreadPoolExecutor(deployWorkers, deployWorkers, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("UserVm-Deployer"));
+        _deployExecutor.allowCoreThreadTimeOut(true);
+
         _itMgr.registerGuru(VirtualMachine.Type.User, this);
 
         VirtualMachine.State.getStateMachine().registerListener(new UserVmStateListener(_usageEventDao, _networkDao, _nicDao));
@@ -1154,6 +1171,7 @@ public class UserVmManagerImpl implements UserVmManager, UserVmService, Manager
     @Override
     public boolean stop() {
         _executor.shutdown();
+        _deployExecutor.shutdown();
         return true;
     }
 
@@ -2533,6 +2551,190 @@ public class UserVmManagerImpl implements UserVmManager, UserVmService, Manager
         return vm;
     }
 
+    @Override
+    @ActionEvent(eventType = EventTypes.EVENT_VM_CREATE, eventDescription = "deploying Vms", async = true)
+    public List<Pair<UserVm, String>> deployVirtualMachines(DeployVMsCmd cmd) throws InsufficientCapacityException, ConcurrentOperationException, ResourceUnavailableException,
+            ResourceAllocationException {
+        int count = cmd.getCount();
+        if (count < 1) {
+            throw new InvalidParameterValueException("The number of vms to deploy must be at least 1");
+        }
+        BatchPlanner.Policy policy = BatchPlanner.Policy.getPolicy(cmd.getSpreadPolicy());
+        if (policy == null) {
+            throw new InvalidParameterValueException("Invalid spread policy " + cmd.getSpreadPolicy() + ", must be one of spread, pack");
+        }
+        if (cmd.getHypervisor() == HypervisorType.BareMetal) {
+            throw new InvalidParameterValueException("Bare metal vms can't be deployed in batches");
+        }
+
+        Account caller = UserContext.current().getCaller();
+        Account owner = _accountService.getActiveAccountById(cmd.getEntityOwnerId());
+
+        DataCenter zone = _dcDao.findById(cmd.getZoneId());
+        if (zone == null) {
+            throw new InvalidParameterValueException("Unable to find zone by id=" + cmd.getZoneId());
+        }
+        ServiceOffering offering = _offeringDao.findById(cmd.getServiceOfferingId());
+        if (offering == null) {
+            throw new InvalidParameterValueException("Unable to find service offering: " + cmd.getServiceOfferingId());
+        }
+        VirtualMachineTemplate template = _templateDao.findById(cmd.getTemplateId());
+        if (template == null) {
+            throw new InvalidParameterValueException("Unable to use template " + cmd.getTemplateId());
+        }
+        if (cmd.getDiskOfferingId() != null && _diskOfferingDao.findById(cmd.getDiskOfferingId()) == null) {
+            throw new InvalidParameterValueException("Unable to find disk offering " + cmd.getDiskOfferingId());
+        }
+
+        // fail before creating any vm if the owner can't have them all
+        _resourceLimitMgr.checkResourceLimit(owner, ResourceType.user_vm, count);
+        _resourceLimitMgr.checkResourceLimit(owner, ResourceType.volume, count);
+
+        List<Long> securityGroupIds = cmd.getSecurityGroupIdList();
+        List<Pair<UserVm, String>> results = new ArrayList<Pair<UserVm, String>>(count);
+
+        // anything wrong with the first vm is wrong with the request
+        UserVm first = createBatchVirtualMachine(cmd, zone, offering, template, owner, securityGroupIds, 0);
+        if (first == null) {
+            throw new CloudRuntimeException("Failed to deploy vm");
+        }
+        results.add(new Pair<UserVm, String>(first, null));
+
+        String createError = null;
+        for (int i = 1; i < count; i++) {
+            if (createError == null) {
+                try {
+                    UserVm vm = createBatchVirtualMachine(cmd, zone, offering, template, owner, securityGroupIds, i);
+                    if (vm != null) {
+                        results.add(new Pair<UserVm, String>(vm, null));
+                        continue;
+                    }
+                    createError = "Failed to create the vm";
+                } catch (Exception e) {
+                    s_logger.warn("Unable to create vm " + i + " of " + count + ", not creating the rest of the batch", e);
+                    createError = e.getMessage() != null ? e.getMessage() : e.toString();
+                }
+            }
+            results.add(new Pair<UserVm, String>(null, createError));
+        }
+
+        if (!cmd.getStartVm()) {
+            return results;
+        }
+
+        // place the whole batch, then start the vms in parallel in the clusters they were given
+        List<UserVm> created = new ArrayList<UserVm>();
+        for (Pair<UserVm, String> result : results) {
+            if (result.first() != null) {
+                created.add(result.first());
+            }
+        }
+        float cpuOverprovisioningFactor = NumbersUtil.parseFloat(_configDao.getValue(Config.CPUOverprovisioningFactor.key()), 1);
+        List<Long> clusterIds = new BatchPlanner(_capacityMgr.getCapacityIndex()).assignClusters(zone.getId(), created.size(), offering.getCpu() * offering.getSpeed(),
+                offering.getRamSize() * 1024L * 1024L, cpuOverprovisioningFactor, policy);
+
+        Map<Long, DataCenterDeployment> plans = new HashMap<Long, DataCenterDeployment>();
+        Map<Long, Future<Pair<UserVm, String>>> starts = new HashMap<Long, Future<Pair<UserVm, String>>>();
+        for (int i = 0; i < created.size(); i++) {
+            Long clusterId = clusterIds.get(i);
+            DataCenterDeployment plan = null;
+            if (clusterId != null) {
+                plan = plans.get(clusterId);
+                if (plan == null) {
+                    ClusterVO cluster = _clusterDao.findById(clusterId);
+                    if (cluster != null) {
+                        plan = new DataCenterDeployment(zone.getId(), cluster.getPodId(), clusterId, null, null, null);
+                        plans.put(clusterId, plan);
+                    }
+                }
+            }
+            long vmId = created.get(i).getId();
+            starts.put(vmId, _deployExecutor.submit(new BatchStartTask(vmId, plan, UserContext.current().getCallerUserId(), caller)));
+        }
+
+        for (int i = 0; i < results.size(); i++) {
+            UserVm vm = results.get(i).first();
+            if (vm == null) {
+                continue;
+            }
+            try {
+                results.set(i, starts.get(vm.getId()).get());
+            } catch (Exception e) {
+                s_logger.warn("Unable to get the result of starting " + vm, e);
+                results.set(i, new Pair<UserVm, String>(vm, e.toString()));
+            }
+        }
+        return results;
+    }
+
+    protected UserVm createBatchVirtualMachine(DeployVMsCmd cmd, DataCenter zone, ServiceOffering offering, VirtualMachineTemplate template, Account owner, List<Long> securityGroupIds, int index)
+            throws InsufficientCapacityException, ResourceUnavailableException, ConcurrentOperationException, StorageUnavailableException, ResourceAllocationException {
+        String hostName = cmd.getName() == null ? null : cmd.getName() + "-" + index;
+        String displayName = cmd.getDisplayName() == null ? null : cmd.getDisplayName() + "-" + index;
+
+        if (zone.getNetworkType() == NetworkType.Basic) {
+            if (cmd.getNetworkIds() != null) {
+                throw new InvalidParameterValueException("Can't specify network Ids in Basic zone");
+            }
+            return createBasicSecurityGroupVirtualMachine(zone, offering, template, securityGroupIds, owner, hostName, displayName, cmd.getDiskOfferingId(), cmd.getSize(),
+                    cmd.getGroup(), cmd.getHypervisor(), cmd.getUserData(), cmd.getSSHKeyPairName(), null, null, cmd.getKeyboard());
+        } else if (zone.isSecurityGroupEnabled()) {
+            return createAdvancedSecurityGroupVirtualMachine(zone, offering, template, cmd.getNetworkIds(), securityGroupIds, owner, hostName, displayName,
+                    cmd.getDiskOfferingId(), cmd.getSize(), cmd.getGroup(), cmd.getHypervisor(), cmd.getUserData(), cmd.getSSHKeyPairName(), null, null, cmd.getKeyboard());
+        } else {
+            if (securityGroupIds != null && !securityGroupIds.isEmpty()) {
+                throw new InvalidParameterValueException("Can't create vm with security groups; security group feature is not enabled per zone");
+            }
+            return createAdvancedVirtualMachine(zone, offering, template, cmd.getNetworkIds(), owner, hostName, displayName, cmd.getDiskOfferingId(), cmd.getSize(),
+                    cmd.getGroup(), cmd.getHypervisor(), cmd.getUserData(), cmd.getSSHKeyPairName(), null, null, cmd.getKeyboard());
+        }
+    }
+
+    /**
+     * Starts a vm of a deployVirtualMachines batch on a deploy worker, in the
+     * cluster it was given if there is room left there.
+     */
+    protected class BatchStartTask implements Callable<Pair<UserVm, String>> {
+        private final long _vmId;
+        private final DataCenterDeployment _plan;
+        private final long _callerUserId;
+        private final Account _caller;
+
+        public BatchStartTask(long vmId, DataCenterDeployment plan, long callerUserId, Account caller) {
+            _vmId = vmId;
+            _plan = plan;
+            _callerUserId = callerUserId;
+            _caller = caller;
+        }
+
+        @Override
+        public Pair<UserVm, String> call() {
+            Transaction txn = Transaction.open(Transaction.CLOUD_DB);
+            UserContext.registerContext(_callerUserId, _caller, null, false);
+            try {
+                Pair<UserVmVO, Map<VirtualMachineProfile.Param, Object>> started;
+                try {
+                    started = startVirtualMachine(_vmId, null, null, _plan);
+                } catch (InsufficientServerCapacityException e) {
+                    if (_plan == null) {
+                        throw e;
+                    }
+                    s_logger.debug("Unable to start vm " + _vmId + " in cluster " + _plan.getClusterId() + ", looking in the whole zone");
+                    started = startVirtualMachine(_vmId, null, null, null);
+                }
+                return new Pair<UserVm, String>(started.first(), null);
+            } catch (Exception e) {
+                s_logger.warn("Unable to start vm " + _vmId, e);
+                updateVmStateForFailedVmCreation(_vmId);
+                return new Pair<UserVm, String>(_vmDao.findById(_vmId), e.getMessage() != null ? e.getMessage() : e.toString());
+            } finally {
+                UserContext.unregisterContext();
+                StackMaid.current().exitCleanup();
+                txn.close();
+            }
+        }
+    }
+
     @Override
     public boolean finalizeVirtualMachineProfile(VirtualMachineProfile<UserVmVO> profile, DeployDestination dest, ReservationContext context) {
         UserVmVO vm = profile.getVirtualMachine();
@@ -2750,6 +2952,13 @@ public class UserVmManagerImpl implements UserVmManager, UserVmService, Manager
 
     @Override
     public Pair<UserVmVO, Map<VirtualMachineProfile.Param, Object>> startVirtualMachine(long vmId, Long hostId, Map<VirtualMachineProfile.Param, Object> additionalParams) throws ConcurrentOperationException, ResourceUnavailableException, InsufficientCapacityException {
+        return startVirtualMachine(vmId, hostId, additionalParams, null);
+    }
+
+    /**
+     * @param planHint where to look for a host, unless hostId is given.
+     */
+    protected Pair<UserVmVO, Map<VirtualMachineProfile.Param, Object>> startVirtualMachine(long vmId, Long hostId, Map<VirtualMachineProfile.Param, Object> additionalParams, DataCenterDeployment planHint) throws ConcurrentOperationException, ResourceUnavailableException, InsufficientCapacityException {
         // Input validation
         Account callerAccount = UserContext.current().getCaller();
         UserVO callerUser = _userDao.findById(UserContext.current().getCallerUserId());
@@ -2803,7 +3012,7 @@ public class UserVmManagerImpl implements UserVmManager, UserVmService, Manager
             }
         }
         
-        DataCenterDeployment plan = null;
+        DataCenterDeployment plan = planHint;
         if (destinationHost != null) {
             s_logger.debug("Destination Host to deploy the VM is specified, specifying a deployment plan to deploy the VM");
             plan = new DataCenterDeployment(vm.getDataCenterIdToDeployIn(), destinationHost.getPodId(), destinationHost.getClusterId(), destinationHost.getId(), null, null);
@@ -2937,6 +3146,7 @@ public class UserVmManagerImpl implements UserVmManager, UserVmService, Manager
         c.addCriteria(Criteria.GROUPID, cmd.getGroupId());
         c.addCriteria(Criteria.FOR_VIRTUAL_NETWORK, cmd.getForVirtualNetwork());
         c.addCriteria(Criteria.NETWORKID, cmd.getNetworkId());
+        c.addCriteria(Criteria.START_ID, cmd.getStartId());
 
         if (domainId != null) {
             c.addCriteria(Criteria.DOMAINID, domainId);
@@ -2966,6 +3176,10 @@ public class UserVmManagerImpl implements UserVmManager, UserVmService, Manager
     @Override
     public List<UserVmVO> searchForUserVMs(Criteria c, Account caller, Long domainId, boolean isRecursive, List<Long> permittedAccounts, boolean listAll, ListProjectResourcesCriteria listProjectResourcesCriteria) {
         Filter searchFilter = new Filter(UserVmVO.class, c.getOrderBy(), c.getAscending(), c.getOffset(), c.getLimit());
+        Object startId = c.getCriteria(Criteria.START_ID);
+        if (startId != null) {
+            searchFilter.setSeek(UserVmVO.class, "id", startId, true);
+        }
 
         SearchBuilder<UserVmVO> sb = _vmDao.createSearchBuilder();
         _accountMgr.buildACLSearchBuilder(sb, domainId, isRecursive, permittedAccounts, listProjectResourcesCriteria);
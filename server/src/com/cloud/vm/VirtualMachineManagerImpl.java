@@ -1686,6 +1686,86 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
 
 
 
+    /**
+     * resyncHost checks the VMs the database has running on a host against
+     * the full states the host sends every so often, to catch a change a
+     * delta ping missed.  Unlike fullHostSync it only looks at the VMs of the
+     * host that the database thinks are running, and leaves alone the ones
+     * the agent is still starting, stopping or migrating.  The ping of a full
+     * sync doesn't acknowledge the pending deltas, which the next ping sends
+     * again for deltaHostSync to handle the VMs this doesn't look at.
+     */
+    public Commands resyncHost(long hostId, Map<String, State> states) {
+        Commands commands = new Commands(OnError.Continue);
+        if (states == null) {
+            return commands;
+        }
+
+        final List<? extends VMInstanceVO> vms = _vmDao.listByHostId(hostId);
+        for (VMInstanceVO vm : vms) {
+            if (vm.getState() != State.Running) {
+                continue;
+            }
+
+            State agentState = states.get(vm.getInstanceName());
+            if (agentState == State.Running || agentState == State.Starting || agentState == State.Stopping || agentState == State.Migrating) {
+                continue;
+            }
+            if (agentState == null) {
+                agentState = State.Stopped;
+            }
+
+            s_logger.info("VM " + vm.getInstanceName() + " is " + agentState + " on host " + hostId + " but Running in the database, resyncing");
+            AgentVmInfo info = new AgentVmInfo(vm.getInstanceName(), getVmGuru(vm), vm, agentState);
+            VMInstanceVO castedVm = info.guru.findById(vm.getId());
+            HypervisorGuru hvGuru = _hvGuruMgr.getGuru(castedVm.getHypervisorType());
+            Command command = compareState(hostId, castedVm, info, false, hvGuru.trackVmHostChange());
+            if (command != null) {
+                commands.addCommand(command);
+            }
+        }
+
+        return commands;
+    }
+
+    /**
+     * Catches what the delta syncs of a cluster missed: the VMs of the
+     * cluster that are Running in the database are checked against the
+     * state of every vm in the cluster.  VMs that are starting, stopping or
+     * migrating are left alone.
+     */
+    public void resyncCluster(long clusterId, Map<String, Pair<String, State>> states) {
+        final List<VMInstanceVO> vms = _vmDao.listByClusterId(clusterId);
+        for (VMInstanceVO vm : vms) {
+            if (vm.getState() != State.Running || vm.getHostId() == null) {
+                continue;
+            }
+
+            Pair<String, State> agentState = states.get(vm.getInstanceName());
+            State state = agentState != null ? agentState.second() : State.Stopped;
+            if (state == State.Running || state == State.Starting || state == State.Stopping || state == State.Migrating) {
+                continue;
+            }
+
+            long hostId = vm.getHostId();
+            s_logger.info("VM " + vm.getInstanceName() + " is " + state + " in cluster " + clusterId + " but Running in the database, resyncing");
+            AgentVmInfo info = new AgentVmInfo(vm.getInstanceName(), getVmGuru(vm), vm, state, agentState != null ? agentState.first() : null);
+            VMInstanceVO castedVm = info.guru.findById(vm.getId());
+            HypervisorGuru hvGuru = _hvGuruMgr.getGuru(castedVm.getHypervisorType());
+            Command command = compareState(hostId, castedVm, info, false, hvGuru.trackVmHostChange());
+            if (command != null) {
+                try {
+                    Answer answer = _agentMgr.send(hostId, command);
+                    if (!answer.getResult()) {
+                        s_logger.warn("Unable to resync VM " + vm.getInstanceName() + " due to " + answer.getDetails());
+                    }
+                } catch (Exception e) {
+                    s_logger.warn("Unable to resync VM " + vm.getInstanceName() + " due to " + e.getMessage());
+                }
+            }
+        }
+    }
+
     public void deltaSync(Map<String, Pair<String, State>> newStates) {
         Map<Long, AgentVmInfo> states = convertToInfos(newStates);
 
@@ -2170,6 +2250,9 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
                 ClusterSyncAnswer hs = (ClusterSyncAnswer) answer;
                 if (!hs.isExceuted()){
                     deltaSync(hs.getNewStates());
+                    if (hs.getAllStates() != null) {
+                        resyncCluster(hs.getClusterId(), hs.getAllStates());
+                    }
                     hs.setExecuted();
                 }
             }
@@ -2193,7 +2276,16 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
         for (Command cmd : cmds) {
             if (cmd instanceof PingRoutingCommand) {
                 PingRoutingCommand ping = (PingRoutingCommand) cmd;
-                if (ping.getNewStates() != null && ping.getNewStates().size() > 0) {
+                if (ping.isFullSync()) {
+                    Commands commands = resyncHost(agentId, ping.getNewStates());
+                    if (commands.size() > 0) {
+                        try {
+                            _agentMgr.send(agentId, commands, this);
+                        } catch (final AgentUnavailableException e) {
+                            s_logger.warn("Agent is now unavailable", e);
+                        }
+                    }
+                } else if (ping.getNewStates() != null && ping.getNewStates().size() > 0) {
                     Commands commands = deltaHostSync(agentId, ping.getNewStates());
                     if (commands.size() > 0) {
                         try {
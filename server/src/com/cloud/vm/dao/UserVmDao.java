@@ -46,6 +46,13 @@ public interface UserVmDao extends GenericDao<UserVmVO, Long> {
 	 */
 	public List<UserVmVO> listRunningByHostId(long hostId);
 
+	/**
+	 * List running VMs on any of the specified hosts, in one query
+	 * @param hostIds
+	 * @return
+	 */
+	public List<UserVmVO> listRunningByHostIds(List<Long> hostIds);
+
 	/**
 	 * List user vm instances with virtualized networking (i.e. not direct attached networking) for the given account and datacenter
 	 * @param accountId will search for vm instances belonging to this account
@@ -54,6 +54,7 @@ public class UserVmDaoImpl extends GenericDaoBase<UserVmVO, Long> implements Use
     protected final SearchBuilder<UserVmVO> LastHostSearch;
     protected final SearchBuilder<UserVmVO> HostUpSearch;
     protected final SearchBuilder<UserVmVO> HostRunningSearch;
+    protected final SearchBuilder<UserVmVO> HostsRunningSearch;
     protected final SearchBuilder<UserVmVO> StateChangeSearch;
     protected final SearchBuilder<UserVmVO> AccountHostSearch;
 
@@ -125,6 +126,11 @@ public class UserVmDaoImpl extends GenericDaoBase<UserVmVO, Long> implements Use
         HostRunningSearch.and("host", HostRunningSearch.entity().getHostId(), SearchCriteria.Op.EQ);
         HostRunningSearch.and("state", HostRunningSearch.entity().getState(), SearchCriteria.Op.EQ);
         HostRunningSearch.done();
+
+        HostsRunningSearch = createSearchBuilder();
+        HostsRunningSearch.and("hosts", HostsRunningSearch.entity().getHostId(), SearchCriteria.Op.IN);
+        HostsRunningSearch.and("state", HostsRunningSearch.entity().getState(), SearchCriteria.Op.EQ);
+        HostsRunningSearch.done();
         
         AccountPodSearch = createSearchBuilder();
         AccountPodSearch.and("account", AccountPodSearch.entity().getAccountId(), SearchCriteria.Op.EQ);
@@ -251,6 +257,18 @@ public class UserVmDaoImpl extends GenericDaoBase<UserVmVO, Long> implements Use
         return listBy(sc);
     }
 
+    @Override
+    public List<UserVmVO> listRunningByHostIds(List<Long> hostIds) {
+        if (hostIds.isEmpty()) {
+            return new ArrayList<UserVmVO>();
+        }
+        SearchCriteria<UserVmVO> sc = HostsRunningSearch.create();
+        sc.setParameters("hosts", hostIds.toArray());
+        sc.setParameters("state", State.Running);
+
+        return listBy(sc);
+    }
+
     @Override
     public List<UserVmVO> listVirtualNetworkInstancesByAcctAndZone(long accountId, long dcId, long networkId) {
 
@@ -0,0 +1,83 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.async;
+
+import junit.framework.TestCase;
+
+import com.cloud.utils.db.EntityCache;
+
+public class AsyncJobStatusCacheTest extends TestCase {
+    private static AsyncJobStatusCache s_cache;
+
+    private static AsyncJobVO job(long id, int status) {
+        AsyncJobVO job = new AsyncJobVO(1, 1, "cmd", null);
+        job.setId(id);
+        job.setStatus(status);
+        return job;
+    }
+
+    @Override
+    protected void setUp() {
+        // regions are registered by name, so share one between the tests
+        if (s_cache == null) {
+            s_cache = new AsyncJobStatusCache(100, 60);
+        }
+        s_cache.clear();
+    }
+
+    public void testStaleReadIsNotCached() {
+        long version = s_cache.getVersion();
+        s_cache.putWritten(job(1, AsyncJobResult.STATUS_IN_PROGRESS));
+
+        // read before the write above
+        s_cache.putRead(job(2, AsyncJobResult.STATUS_IN_PROGRESS), version);
+        assertNull(s_cache.getJob(2));
+
+        // a job that is done can't be stale
+        s_cache.putRead(job(3, AsyncJobResult.STATUS_SUCCEEDED), version);
+        assertEquals(AsyncJobResult.STATUS_SUCCEEDED, s_cache.getJob(3).getStatus());
+
+        s_cache.putRead(job(2, AsyncJobResult.STATUS_IN_PROGRESS), s_cache.getVersion());
+        assertNotNull(s_cache.getJob(2));
+    }
+
+    public void testRemoteInvalidation() {
+        s_cache.putWritten(job(4, AsyncJobResult.STATUS_IN_PROGRESS));
+        EntityCache.onRemoteInvalidation("peer", AsyncJobStatusCache.REGION, 1, new String[] { "4" });
+        assertNull(s_cache.getJob(4));
+    }
+
+    public void testWaitersAreWoken() throws Exception {
+        long generation = s_cache.getGeneration();
+        Thread completer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                }
+                s_cache.putWritten(job(5, AsyncJobResult.STATUS_SUCCEEDED));
+            }
+        };
+        completer.start();
+
+        long start = System.currentTimeMillis();
+        s_cache.awaitChange(generation, 10000);
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertTrue(AsyncJobStatusCache.isDone(s_cache.getJob(5)));
+        completer.join();
+
+        // nothing changes after this generation, so it times out
+        start = System.currentTimeMillis();
+        s_cache.awaitChange(s_cache.getGeneration(), 200);
+        assertTrue(System.currentTimeMillis() - start >= 190);
+    }
+}
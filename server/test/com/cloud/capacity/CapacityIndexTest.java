@@ -0,0 +1,184 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.capacity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.capacity.dao.CapacityDaoImpl.SummedCapacity;
+import com.cloud.utils.Pair;
+
+public class CapacityIndexTest extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(CapacityIndexTest.class);
+    private static final long GB = 1024L * 1024L * 1024L;
+
+    private static CapacityVO cpu(long hostId, long podId, long clusterId, long used, long total) {
+        return new CapacityVO(hostId, 1L, podId, clusterId, used, total, Capacity.CAPACITY_TYPE_CPU);
+    }
+
+    private static CapacityVO mem(long hostId, long podId, long clusterId, long used, long total) {
+        return new CapacityVO(hostId, 1L, podId, clusterId, used, total, Capacity.CAPACITY_TYPE_MEMORY);
+    }
+
+    public void testClustersWithEnoughCapacity() {
+        CapacityIndex index = new CapacityIndex();
+        List<CapacityVO> rows = new ArrayList<CapacityVO>();
+        // cluster 10 has the cpu, cluster 20 the memory, cluster 30 both
+        rows.add(cpu(1, 1, 10, 0, 4000));
+        rows.add(mem(1, 1, 10, 4 * GB, 4 * GB));
+        rows.add(cpu(2, 1, 20, 4000, 4000));
+        rows.add(mem(2, 1, 20, 0, 4 * GB));
+        rows.add(cpu(3, 2, 30, 1000, 4000));
+        rows.add(mem(3, 2, 30, 1 * GB, 4 * GB));
+        index.load(rows);
+
+        List<Long> clusters = index.listClustersByHostCapacities(1, 1000, 1 * GB, true, 1.0f);
+        assertEquals(1, clusters.size());
+        assertEquals(Long.valueOf(30), clusters.get(0));
+
+        assertTrue(index.listClustersByHostCapacities(2, 1000, 1 * GB, false, 1.0f).contains(30L));
+        assertTrue(index.listPodsByHostCapacities(1, 1000, 1 * GB, 1.0f).contains(2L));
+        // like the query, the cpu and the memory may be on different hosts of the pod
+        assertTrue(index.listPodsByHostCapacities(1, 1000, 1 * GB, 1.0f).contains(1L));
+    }
+
+    public void testOrderAndUpdate() {
+        CapacityIndex index = new CapacityIndex();
+        List<CapacityVO> rows = new ArrayList<CapacityVO>();
+        rows.add(cpu(1, 1, 10, 3000, 4000));
+        rows.add(cpu(2, 1, 20, 1000, 4000));
+        index.load(rows);
+
+        Pair<List<Long>, Map<Long, Double>> order = index.orderClustersByAggregateCapacity(1, Capacity.CAPACITY_TYPE_CPU, true, 1.0f);
+        assertEquals(Long.valueOf(20), order.first().get(0));
+        assertEquals(0.25, order.second().get(20L), 0.0001);
+
+        index.update(cpu(2, 1, 20, 3500, 4000));
+        order = index.orderClustersByAggregateCapacity(1, Capacity.CAPACITY_TYPE_CPU, true, 1.0f);
+        assertEquals(Long.valueOf(10), order.first().get(0));
+
+        SummedCapacity summed = index.listClusterCapacities(Capacity.CAPACITY_TYPE_CPU).get(20L);
+        assertEquals(3500L, summed.getUsedCapacity().longValue());
+        assertEquals(4000L, summed.getTotalCapacity().longValue());
+
+        // a reload drops the hosts that are gone
+        rows.remove(1);
+        index.load(rows);
+        assertEquals(1, index.size());
+        assertNull(index.listClusterCapacities(Capacity.CAPACITY_TYPE_CPU).get(20L));
+    }
+
+    public void testRemovedClustersAndPods() {
+        CapacityIndex index = new CapacityIndex();
+        List<CapacityVO> rows = new ArrayList<CapacityVO>();
+        rows.add(cpu(1, 1, 10, 0, 4000));
+        rows.add(mem(1, 1, 10, 0, 4 * GB));
+        rows.add(cpu(2, 2, 20, 0, 4000));
+        rows.add(mem(2, 2, 20, 0, 4 * GB));
+        index.load(rows);
+        assertEquals(2, index.listClustersByHostCapacities(1, 1000, 1 * GB, true, 1.0f).size());
+
+        // cluster 10 is removed, then pod 2
+        index.load(rows, Collections.singleton(10L), Collections.<Long>emptySet());
+        assertEquals(Collections.singletonList(20L), index.listClustersByHostCapacities(1, 1000, 1 * GB, true, 1.0f));
+        assertEquals(Collections.singletonList(2L), index.listPodsByHostCapacities(1, 1000, 1 * GB, 1.0f));
+        assertFalse(index.update(cpu(1, 1, 10, 1000, 4000)));
+        assertNull(index.listClusterCapacities(Capacity.CAPACITY_TYPE_CPU).get(10L));
+
+        index.load(rows, Collections.singleton(10L), Collections.singleton(2L));
+        assertTrue(index.listClustersByHostCapacities(1, 1000, 1 * GB, true, 1.0f).isEmpty());
+        assertTrue(index.listPodsByHostCapacities(1, 1000, 1 * GB, 1.0f).isEmpty());
+        assertEquals(0, index.size());
+    }
+
+    /**
+     * Simulates a mass deployment in a 2,000 host zone: each deployment runs
+     * the planner lookups and then allocates on a host, from several threads.
+     */
+    public void testDeploymentThroughput() throws Exception {
+        final CapacityIndex index = new CapacityIndex();
+        final int pods = 10, clustersPerPod = 20, hostsPerCluster = 10;
+        List<CapacityVO> rows = new ArrayList<CapacityVO>();
+        long hostId = 0;
+        for (int pod = 1; pod <= pods; pod++) {
+            for (int cluster = 0; cluster < clustersPerPod; cluster++) {
+                long clusterId = pod * 100 + cluster;
+                for (int host = 0; host < hostsPerCluster; host++) {
+                    hostId++;
+                    rows.add(cpu(hostId, pod, clusterId, 0, 16 * 2000));
+                    rows.add(mem(hostId, pod, clusterId, 0, 64 * GB));
+                }
+            }
+        }
+        index.load(rows);
+        final long hosts = hostId;
+
+        final int threads = 8, deploymentsPerThread = 2000;
+        final AtomicLong deployed = new AtomicLong();
+        // junit only sees failures thrown on the test thread
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            final int seed = i;
+            workers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        plan();
+                    } catch (Throwable t) {
+                        failures.add(t);
+                    }
+                }
+
+                private void plan() {
+                    for (int n = 0; n < deploymentsPerThread; n++) {
+                        List<Long> podIds = index.listPodsByHostCapacities(1, 1000, 1 * GB, 1.0f);
+                        Pair<List<Long>, Map<Long, Double>> podOrder = index.orderPodsByAggregateCapacity(1, Capacity.CAPACITY_TYPE_CPU, 1.0f);
+                        podOrder.first().retainAll(podIds);
+                        long podId = podOrder.first().get(0);
+                        List<Long> clusterIds = index.listClustersByHostCapacities(podId, 1000, 1 * GB, false, 1.0f);
+                        Pair<List<Long>, Map<Long, Double>> clusterOrder = index.orderClustersByAggregateCapacity(podId, Capacity.CAPACITY_TYPE_CPU, false, 1.0f);
+                        clusterOrder.first().retainAll(clusterIds);
+                        index.listClusterCapacities(Capacity.CAPACITY_TYPE_CPU);
+                        index.listClusterCapacities(Capacity.CAPACITY_TYPE_MEMORY);
+
+                        long clusterId = clusterOrder.first().get(0);
+                        long host = (clusterId % 100 + (clusterId / 100 - 1) * clustersPerPod) * hostsPerCluster + (seed + n) % hostsPerCluster + 1;
+                        assertTrue(host <= hosts);
+                        index.update(cpu(host, podId, clusterId, 1000, 16 * 2000));
+                        deployed.incrementAndGet();
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        for (Throwable failure : failures) {
+            s_logger.error("Deployment worker failed", failure);
+        }
+        assertTrue(failures.size() + " deployment workers failed, first: " + (failures.isEmpty() ? null : failures.get(0)), failures.isEmpty());
+        assertEquals(threads * deploymentsPerThread, deployed.get());
+        s_logger.info("Planned " + deployed.get() + " deployments over " + hosts + " hosts in " + elapsed / 1000000 + "ms, "
+                + (deployed.get() * 1000000000L / elapsed) + " deployments/s");
+    }
+}
@@ -0,0 +1,150 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.dc.dao;
+
+import java.sql.PreparedStatement;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.cloud.dc.DataCenterVnetVO;
+import com.cloud.network.PhysicalNetworkVO;
+import com.cloud.network.dao.PhysicalNetworkDaoImpl;
+import com.cloud.utils.component.ComponentLocator;
+import com.cloud.utils.db.Filter;
+import com.cloud.utils.db.SearchCriteria;
+import com.cloud.utils.db.Transaction;
+
+/**
+ * Takes vnets from many threads at once, with the random seek of
+ * lockOneRandomRow and with the ORDER BY RAND() it replaced.  Needs the
+ * database of a deployed zone 1; the vnets are added and removed by the test.
+ */
+public class DataCenterVnetDaoTest extends TestCase {
+    private static final int FIRST_VNET = 7000000;
+    private static final int VNETS = 4096;
+    private static final String VNET_PATTERN = "700____";
+
+    DataCenterVnetDaoImpl _vnetDao;
+    long _physicalNetworkId;
+
+    @Override
+    protected void setUp() throws Exception {
+        _vnetDao = ComponentLocator.inject(DataCenterVnetDaoImpl.class);
+        PhysicalNetworkDaoImpl physicalNetworkDao = ComponentLocator.inject(PhysicalNetworkDaoImpl.class);
+        List<PhysicalNetworkVO> physicalNetworks = physicalNetworkDao.listByZone(1);
+        if (physicalNetworks.isEmpty()) {
+            _physicalNetworkId = -1;
+            return;
+        }
+        _physicalNetworkId = physicalNetworks.get(0).getId();
+        execute("DELETE FROM `cloud`.`op_dc_vnet_alloc` WHERE physical_network_id=? AND vnet LIKE ?");
+        _vnetDao.add(1, _physicalNetworkId, FIRST_VNET, FIRST_VNET + VNETS - 1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (_physicalNetworkId != -1) {
+            execute("DELETE FROM `cloud`.`op_dc_vnet_alloc` WHERE physical_network_id=? AND vnet LIKE ?");
+        }
+    }
+
+    public void testTakeUnderContention() throws Exception {
+        if (_physicalNetworkId == -1) {
+            System.out.println("Not Found");
+            return;
+        }
+
+        for (boolean random : new boolean[] { false, true }) {
+            execute("UPDATE `cloud`.`op_dc_vnet_alloc` SET taken=NULL WHERE physical_network_id=? AND vnet LIKE ?");
+            takeFromThreads(random, 16, 100);
+        }
+    }
+
+    private void takeFromThreads(final boolean random, int threads, final int takesPerThread) throws Exception {
+        final Set<String> taken = Collections.synchronizedSet(new HashSet<String>());
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] workers = new Thread[threads];
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int n = 0; n < takesPerThread; n++) {
+                        Transaction txn = Transaction.open("DataCenterVnetDaoTest");
+                        try {
+                            DataCenterVnetVO vo = take(random);
+                            assertNotNull(vo);
+                            assertTrue("Taken twice: " + vo.getVnet(), taken.add(vo.getVnet()));
+                        } catch (RuntimeException e) {
+                            // lock wait timeouts and deadlocks
+                            failures.incrementAndGet();
+                        } finally {
+                            txn.close();
+                        }
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+
+        System.out.println((random ? "Random seek: " : "ORDER BY RAND(): ") + taken.size() + " vnets taken by " + threads + " threads in " + elapsed
+                + "ms, " + failures.get() + " failed");
+        assertEquals(threads * takesPerThread, taken.size() + failures.get());
+        if (random) {
+            assertEquals(0, failures.get());
+        }
+    }
+
+    private DataCenterVnetVO take(boolean random) {
+        SearchCriteria<DataCenterVnetVO> sc = _vnetDao.createSearchCriteria();
+        sc.addAnd("physicalNetworkId", SearchCriteria.Op.EQ, _physicalNetworkId);
+        sc.addAnd("vnet", SearchCriteria.Op.LIKE, VNET_PATTERN);
+        sc.addAnd("takenAt", SearchCriteria.Op.NULL);
+
+        Transaction txn = Transaction.currentTxn();
+        txn.start();
+        DataCenterVnetVO vo;
+        if (random) {
+            vo = _vnetDao.lockOneRandomRow(sc, true);
+        } else {
+            List<DataCenterVnetVO> vos = _vnetDao.lockRows(sc, new Filter(1), true);
+            vo = vos.isEmpty() ? null : vos.get(0);
+        }
+        if (vo != null) {
+            vo.setTakenAt(new Date());
+            _vnetDao.update(vo.getId(), vo);
+        }
+        txn.commit();
+        return vo;
+    }
+
+    private void execute(String sql) throws Exception {
+        Transaction txn = Transaction.open("DataCenterVnetDaoTest");
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(sql);
+            pstmt.setLong(1, _physicalNetworkId);
+            pstmt.setString(2, VNET_PATTERN);
+            pstmt.executeUpdate();
+        } finally {
+            txn.close();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.deploy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.cloud.capacity.Capacity;
+import com.cloud.capacity.CapacityIndex;
+import com.cloud.capacity.CapacityVO;
+
+public class BatchPlannerTest extends TestCase {
+    private static final long GB = 1024L * 1024L * 1024L;
+
+    private CapacityIndex _index;
+
+    @Override
+    protected void setUp() {
+        // cluster 10 has room for 4 vms of 1000MHz and 1GB, cluster 20 for 2
+        List<CapacityVO> rows = new ArrayList<CapacityVO>();
+        rows.add(new CapacityVO(1L, 1L, 1L, 10L, 0, 4000, Capacity.CAPACITY_TYPE_CPU));
+        rows.add(new CapacityVO(1L, 1L, 1L, 10L, 0, 8 * GB, Capacity.CAPACITY_TYPE_MEMORY));
+        rows.add(new CapacityVO(2L, 1L, 1L, 20L, 2000, 4000, Capacity.CAPACITY_TYPE_CPU));
+        rows.add(new CapacityVO(2L, 1L, 1L, 20L, 0, 8 * GB, Capacity.CAPACITY_TYPE_MEMORY));
+        _index = new CapacityIndex();
+        _index.load(rows);
+    }
+
+    public void testSpread() {
+        List<Long> clusters = new BatchPlanner(_index).assignClusters(1, 3, 1000, GB, 1.0f, BatchPlanner.Policy.Spread);
+        assertEquals(2, Collections.frequency(clusters, 10L));
+        assertEquals(1, Collections.frequency(clusters, 20L));
+    }
+
+    public void testPack() {
+        List<Long> clusters = new BatchPlanner(_index).assignClusters(1, 3, 1000, GB, 1.0f, BatchPlanner.Policy.Pack);
+        assertEquals(Long.valueOf(20), clusters.get(0));
+        assertEquals(Long.valueOf(20), clusters.get(1));
+        assertEquals(Long.valueOf(10), clusters.get(2));
+    }
+
+    public void testMoreThanFits() {
+        List<Long> clusters = new BatchPlanner(_index).assignClusters(1, 8, 1000, GB, 1.0f, BatchPlanner.Policy.Spread);
+        assertEquals(8, clusters.size());
+        assertEquals(6, clusters.size() - Collections.frequency(clusters, null));
+        assertNull(clusters.get(7));
+
+        // overprovisioning makes room for more
+        clusters = new BatchPlanner(_index).assignClusters(1, 8, 1000, GB, 2.0f, BatchPlanner.Policy.Spread);
+        assertEquals(0, Collections.frequency(clusters, null));
+    }
+}
@@ -0,0 +1,132 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.network;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.cloud.network.dao.NetworkDao;
+import com.cloud.utils.db.Transaction;
+import com.cloud.utils.net.NetUtils;
+import com.cloud.vm.dao.NicDao;
+
+/**
+ * Runs acquireGuestIpAddress against stubbed daos, with and without a
+ * transaction opened by the caller.
+ */
+public class AcquireGuestIpAddressTest extends TestCase {
+    private static final long NETWORK_ID = 42;
+
+    // the allocator registers a named cache region, so there's one for all of the tests
+    private static GuestIpAllocator s_allocator;
+
+    private NetworkManagerImpl _networkMgr;
+    private Network _network;
+    // whether a db transaction was started when the network row was locked
+    private final List<Boolean> _locks = new ArrayList<Boolean>();
+
+    @Override
+    protected void setUp() {
+        if (s_allocator == null) {
+            s_allocator = new GuestIpAllocator(stub(NicDao.class, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if (method.getName().equals("listIpAddressInNetwork")) {
+                        return new ArrayList<String>();
+                    }
+                    return null;
+                }
+            }), 10, 3600);
+        }
+        s_allocator.invalidateAll();
+
+        _network = stub(Network.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getId")) {
+                    return NETWORK_ID;
+                } else if (method.getName().equals("getCidr")) {
+                    return "10.1.1.0/24";
+                } else if (method.getName().equals("getGateway")) {
+                    return "10.1.1.1";
+                } else if (method.getName().equals("toString")) {
+                    return "Network[" + NETWORK_ID + "]";
+                }
+                return null;
+            }
+        });
+
+        _networkMgr = new NetworkManagerImpl();
+        _networkMgr._guestIpAllocator = s_allocator;
+        _networkMgr._networksDao = stub(NetworkDao.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("lockRow")) {
+                    _locks.add(Transaction.currentTxn().dbTxnStarted());
+                }
+                return null;
+            }
+        });
+    }
+
+    public void testOutsideTransaction() {
+        Transaction txn = Transaction.open("testOutsideTransaction");
+        try {
+            String ip = _networkMgr.acquireGuestIpAddress(_network, null);
+            assertNotNull(ip);
+            assertTrue(NetUtils.sameSubnetCIDR(ip, "10.1.1.0", 24));
+            assertEquals(1, _locks.size());
+            assertTrue(_locks.get(0));
+            // the method's own transaction is done and the address stays taken
+            assertFalse(txn.dbTxnStarted());
+            assertFalse(isFree(ip));
+        } finally {
+            txn.close();
+        }
+    }
+
+    public void testInCallersTransaction() {
+        Transaction txn = Transaction.open("testInCallersTransaction");
+        try {
+            txn.start();
+            String ip = _networkMgr.acquireGuestIpAddress(_network, null);
+            assertNotNull(ip);
+            // the caller's transaction, and so the lock, is still open
+            assertTrue(txn.dbTxnStarted());
+            txn.commit();
+            assertFalse(isFree(ip));
+
+            txn.start();
+            ip = _networkMgr.acquireGuestIpAddress(_network, null);
+            assertFalse(isFree(ip));
+            txn.rollback();
+            // the nic was never persisted, so the address is free again
+            assertTrue(isFree(ip));
+        } finally {
+            txn.close();
+        }
+    }
+
+    private boolean isFree(String ip) {
+        GuestIpBitmap bitmap = (GuestIpBitmap)s_allocator.get(NETWORK_ID);
+        return bitmap.isFree(NetUtils.ip2Long(ip));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> type, InvocationHandler handler) {
+        return (T)Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+}
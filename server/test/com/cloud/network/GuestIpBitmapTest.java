@@ -0,0 +1,137 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.network;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+
+import com.cloud.utils.net.NetUtils;
+
+public class GuestIpBitmapTest extends TestCase {
+
+    public void testRangeAndReservedAddresses() {
+        GuestIpBitmap bitmap = new GuestIpBitmap("10.1.1.0/24", "10.1.1.1");
+        // 10.1.1.2 to 10.1.1.254
+        assertEquals(253, bitmap.getSize());
+        assertEquals(253, bitmap.getFreeCount());
+        assertFalse(bitmap.contains(NetUtils.ip2Long("10.1.1.1")));
+        assertTrue(bitmap.contains(NetUtils.ip2Long("10.1.1.2")));
+        assertTrue(bitmap.contains(NetUtils.ip2Long("10.1.1.254")));
+        assertFalse(bitmap.contains(NetUtils.ip2Long("10.1.1.255")));
+
+        // the gateway doesn't have to be the first address
+        bitmap = new GuestIpBitmap("10.1.1.0/24", "10.1.1.254");
+        assertEquals(252, bitmap.getFreeCount());
+        assertFalse(bitmap.isFree(NetUtils.ip2Long("10.1.1.254")));
+        assertFalse(bitmap.take(NetUtils.ip2Long("10.1.1.254")));
+
+        // as before, the addresses ending in .1 are never picked in larger networks
+        bitmap = new GuestIpBitmap("10.1.0.0/22", "10.1.0.1");
+        assertEquals(1021 - 3, bitmap.getFreeCount());
+        assertFalse(bitmap.isFree(NetUtils.ip2Long("10.1.2.1")));
+        bitmap.release(NetUtils.ip2Long("10.1.2.1"));
+        assertFalse(bitmap.isFree(NetUtils.ip2Long("10.1.2.1")));
+    }
+
+    public void testTakeAndRelease() {
+        GuestIpBitmap bitmap = new GuestIpBitmap("192.168.0.0/24", "192.168.0.1");
+        long ip = NetUtils.ip2Long("192.168.0.100");
+        assertTrue(bitmap.take(ip));
+        assertFalse(bitmap.take(ip));
+        assertEquals(252, bitmap.getFreeCount());
+        bitmap.release(ip);
+        assertTrue(bitmap.isFree(ip));
+        assertEquals(253, bitmap.getFreeCount());
+        bitmap.release(ip);
+        assertEquals(253, bitmap.getFreeCount());
+        assertFalse(bitmap.take(NetUtils.ip2Long("192.168.1.100")));
+    }
+
+    public void testTakeEveryAddress() {
+        for (int size = 16; size <= 30; size++) {
+            GuestIpBitmap bitmap = new GuestIpBitmap("172.16.0.0/" + size, "172.16.0.1");
+            Set<Long> expected = NetUtils.getAllIpsFromCidr("172.16.0.0", size);
+            for (Long ip : new ArrayList<Long>(expected)) {
+                if ((ip & 0xff) == 1) {
+                    expected.remove(ip);
+                }
+            }
+            assertEquals(expected.size(), bitmap.getFreeCount());
+
+            Random random = new Random(size);
+            Set<Long> taken = new HashSet<Long>();
+            for (int i = 0; i < expected.size(); i++) {
+                long ip = (i % 2 == 0) ? bitmap.takeRandom(random) : bitmap.takeNext();
+                assertTrue(expected.contains(ip));
+                assertTrue(taken.add(ip));
+            }
+            assertEquals(0, bitmap.getFreeCount());
+            assertEquals(-1, bitmap.takeRandom(random));
+            assertEquals(-1, bitmap.takeNext());
+
+            long ip = taken.iterator().next();
+            bitmap.release(ip);
+            assertEquals(ip, bitmap.takeRandom(random));
+        }
+    }
+
+    public void testSmallNetworks() {
+        assertEquals(1, new GuestIpBitmap("10.0.0.0/30", "10.0.0.1").getSize());
+        GuestIpBitmap bitmap = new GuestIpBitmap("10.0.0.0/31", "10.0.0.1");
+        assertEquals(0, bitmap.getSize());
+        assertEquals(-1, bitmap.takeRandom(new Random()));
+    }
+
+    /**
+     * Compares picking an address with the bitmap to building the set of free
+     * addresses of the cidr every time, on networks that are 90% used.
+     */
+    public void testAllocationThroughput() {
+        Random random = new Random(1);
+        for (int size = 24; size >= 16; size -= 2) {
+            String cidr = "10.0.0.0/" + size;
+            GuestIpBitmap bitmap = new GuestIpBitmap(cidr, "10.0.0.1");
+            List<Long> used = new ArrayList<Long>();
+            int target = bitmap.getFreeCount() * 9 / 10;
+            for (int i = 0; i < target; i++) {
+                used.add(bitmap.takeRandom(random));
+            }
+
+            int rounds = 20;
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                Set<Long> all = NetUtils.getAllIpsFromCidr("10.0.0.0", size);
+                all.removeAll(new TreeSet<Long>(used));
+                Long[] array = all.toArray(new Long[all.size()]);
+                assertNotNull(array[random.nextInt(array.length)]);
+            }
+            long cidrNanos = (System.nanoTime() - start) / rounds;
+
+            rounds = 100000;
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                long ip = bitmap.takeRandom(random);
+                assertTrue(ip > 0);
+                bitmap.release(ip);
+            }
+            long bitmapNanos = (System.nanoTime() - start) / rounds;
+
+            System.out.println("/" + size + " with " + used.size() + " addresses used: " + cidrNanos / 1000 + "us per address from the cidr, "
+                    + bitmapNanos + "ns per address from the bitmap");
+        }
+    }
+}
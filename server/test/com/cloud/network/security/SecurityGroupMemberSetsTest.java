@@ -0,0 +1,143 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.network.security;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.cloud.agent.api.SecurityGroupMembersCmd;
+import com.cloud.agent.api.SecurityGroupMembersCmd.MemberSet;
+import com.cloud.agent.api.SecurityGroupRulesCmd;
+import com.cloud.agent.api.SecurityGroupRulesCmd.IpPortAndProto;
+import com.cloud.serializer.GsonHelper;
+import com.cloud.utils.net.NetUtils;
+
+public class SecurityGroupMemberSetsTest extends TestCase {
+    private static final long GROUP = 7;
+    private static final int VMS_PER_HOST = 20;
+
+    public void testHoldAndChange() {
+        SecurityGroupMemberSets sets = new SecurityGroupMemberSets();
+        assertFalse(sets.isHeld(GROUP));
+        assertNull(sets.change(GROUP, "10.1.1.2", true));
+        assertEquals(Arrays.asList(GROUP), sets.getMissing(1, Arrays.asList(GROUP)));
+
+        MemberSet full = sets.hold(1, GROUP, Arrays.asList("10.1.1.3", "10.1.1.2"));
+        assertTrue(full.isFull());
+        assertEquals("sg_7", full.getName());
+        assertEquals(Arrays.asList("10.1.1.2", "10.1.1.3"), Arrays.asList(full.getAdded()));
+        assertTrue(sets.getMissing(1, Arrays.asList(GROUP)).isEmpty());
+
+        // a second host gets the members as they are now
+        full = sets.hold(2, GROUP, Arrays.asList("10.1.1.2"));
+        assertEquals(Arrays.asList("10.1.1.2"), Arrays.asList(full.getAdded()));
+        assertEquals(2, sets.getHolders(GROUP).size());
+
+        MemberSet change = sets.change(GROUP, "10.1.1.4", true);
+        assertFalse(change.isFull());
+        assertEquals(Arrays.asList("10.1.1.4"), Arrays.asList(change.getAdded()));
+        assertEquals(0, change.getRemoved().length);
+        change = sets.change(GROUP, "10.1.1.3", false);
+        assertEquals(0, change.getAdded().length);
+        assertEquals(Arrays.asList("10.1.1.3"), Arrays.asList(change.getRemoved()));
+    }
+
+    public void testForgetHost() {
+        SecurityGroupMemberSets sets = new SecurityGroupMemberSets();
+        sets.hold(1, GROUP, Arrays.asList("10.1.1.2"));
+        sets.hold(2, GROUP, Arrays.asList("10.1.1.2"));
+        sets.forgetHost(1);
+        assertEquals(Arrays.asList(2L), sets.getHolders(GROUP));
+        assertEquals(Arrays.asList(GROUP), sets.getMissing(1, Arrays.asList(GROUP)));
+
+        sets.forgetHost(2);
+        assertFalse(sets.isHeld(GROUP));
+        assertEquals(0, sets.getHeldCount());
+        // the members are read again for the next host
+        MemberSet full = sets.hold(2, GROUP, Arrays.asList("10.1.1.5"));
+        assertEquals(Arrays.asList("10.1.1.5"), Arrays.asList(full.getAdded()));
+    }
+
+    public void testStringifiedRules() {
+        IpPortAndProto rule = new IpPortAndProto("tcp", 22, 22, new String[] { "10.0.0.0/8" }, new String[] { "sg_7" });
+        SecurityGroupRulesCmd cmd = new SecurityGroupRulesCmd("10.1.1.2", "02:00:00:00:00:01", "i-2-3-VM", 3L, null, 1L, new IpPortAndProto[] { rule },
+                new IpPortAndProto[0]);
+        assertEquals("I:tcp:22:22:10.0.0.0/8,@sg_7,NEXT ", cmd.stringifyRules());
+        assertEquals(1, cmd.getTotalNumCidrs());
+        assertEquals(1, cmd.getTotalNumSets());
+
+        SecurityGroupMembersCmd members = new SecurityGroupMembersCmd(new MemberSet[] { new MemberSet(7, false, new String[] { "10.1.1.4" },
+                new String[] { "10.1.1.3", "10.1.1.5" }) });
+        assertEquals("sg_7:D:10.1.1.4,:10.1.1.3,10.1.1.5, ", members.stringifySets());
+    }
+
+    /**
+     * Compares what is sent to the hosts when a vm of a group allowing
+     * itself starts, with the members listed in the rules of every vm of the
+     * group and with member sets, for groups of 10 to 5000 vms on hosts of
+     * 20 vms.  The sizes are the ones of the commands in json.
+     */
+    public void testRulesTrafficVersusGroupSize() {
+        for (int size : new int[] { 10, 100, 1000, 5000 }) {
+            List<String> members = new ArrayList<String>();
+            for (int i = 0; i < size; i++) {
+                members.add(NetUtils.long2Ip(NetUtils.ip2Long("10.0.0.2") + i));
+            }
+            int hosts = (size + VMS_PER_HOST - 1) / VMS_PER_HOST;
+
+            // every vm of the group gets all the members; the commands only differ by the vm
+            List<String> cidrs = new ArrayList<String>();
+            for (String ip : members) {
+                cidrs.add(ip + "/32");
+            }
+            SecurityGroupRulesCmd listed = rulesCmd(cidrs.toArray(new String[cidrs.size()]), new String[0]);
+            long listedBytes = (long)json(listed) * size;
+            long listedAddresses = (long)listed.getTotalNumCidrs() * size;
+
+            // the vm gets rules naming the set, and the hosts holding the set get the address
+            SecurityGroupMemberSets sets = new SecurityGroupMemberSets();
+            for (long host = 0; host < hosts; host++) {
+                sets.hold(host, GROUP, members.subList(0, size - 1));
+            }
+            SecurityGroupRulesCmd named = rulesCmd(new String[0], new String[] { SecurityGroupMembersCmd.getSetName(GROUP) });
+            long setBytes = json(named);
+            long setAddresses = 0;
+            MemberSet change = sets.change(GROUP, members.get(size - 1), true);
+            for (int i = 0; i < sets.getHolders(GROUP).size(); i++) {
+                SecurityGroupMembersCmd update = new SecurityGroupMembersCmd(new MemberSet[] { change });
+                setBytes += json(update);
+                setAddresses += update.getTotalNumAddresses();
+            }
+            assertEquals(1, change.getAdded().length);
+
+            // a host seeing the group for the first time gets the full set once
+            long fullBytes = json(new SecurityGroupMembersCmd(new MemberSet[] { sets.hold(hosts, GROUP, members) }));
+
+            System.out.println(size + " vms on " + hosts + " hosts: " + size + " rules commands, " + listedAddresses + " addresses, " + listedBytes / 1024
+                    + "KB with the members listed; 1 rules command and " + hosts + " set updates, " + setAddresses + " addresses, " + setBytes / 1024
+                    + "KB with member sets (" + fullBytes / 1024 + "KB for a full set)");
+            assertEquals(hosts, setAddresses);
+            assertTrue(setBytes < listedBytes);
+        }
+    }
+
+    private SecurityGroupRulesCmd rulesCmd(String[] cidrs, String[] sets) {
+        IpPortAndProto rule = new IpPortAndProto("tcp", 22, 22, cidrs, sets);
+        return new SecurityGroupRulesCmd("10.0.0.2", "02:00:00:00:00:01", "i-2-3-VM", 3L, null, 1L, new IpPortAndProto[] { rule }, new IpPortAndProto[0]);
+    }
+
+    private int json(Object cmd) {
+        return GsonHelper.getGson().toJson(cmd).length();
+    }
+}
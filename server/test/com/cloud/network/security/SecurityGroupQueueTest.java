@@ -13,8 +13,10 @@
 package com.cloud.network.security;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import com.cloud.utils.Profiler;
@@ -212,4 +214,51 @@ public class SecurityGroupQueueTest extends TestCase {
         _testDequeueOneJob(10,1,10);
     }
 
+    public void testCoalescePerHost() throws InterruptedException {
+        SecurityGroupWorkQueue hostQueue = new LocalSecurityGroupWorkQueue();
+        Map<Long, Long> vmHosts = new HashMap<Long, Long>();
+        for (long vmId = 1; vmId <= 6; vmId++) {
+            vmHosts.put(vmId, vmId % 2 + 1);
+        }
+        assertEquals(6, hostQueue.submitWorkForVms(vmHosts, false));
+        assertEquals(0, hostQueue.submitWorkForVms(vmHosts, false));
+        assertEquals(6, hostQueue.size());
+        assertEquals(12, hostQueue.getSubmittedCount());
+        assertEquals(6, hostQueue.getCoalescedCount());
+
+        // vm 6 moves from host 1 to host 2, and vm 3 has to go first
+        Map<Long, Long> moved = new HashMap<Long, Long>();
+        moved.put(6L, 2L);
+        hostQueue.submitWorkForVms(moved, false);
+        Map<Long, Long> started = new HashMap<Long, Long>();
+        started.put(3L, 2L);
+        hostQueue.submitWorkForVms(started, true);
+        assertEquals(6, hostQueue.size());
+
+        List<SecurityGroupWork> work = hostQueue.getWorkForHost(10);
+        assertEquals(4, work.size());
+        assertEquals(3L, work.get(0).getInstanceId().longValue());
+        for (SecurityGroupWork w : work) {
+            assertEquals(2, ((LocalSecurityGroupWorkQueue.LocalSecurityGroupWork)w).getHostId());
+        }
+        work = hostQueue.getWorkForHost(10);
+        assertEquals(2, work.size());
+        assertEquals(0, hostQueue.size());
+        assertTrue(hostQueue.getQueueWaits().containsKey(1L));
+    }
+
+    public void testHostsServedInTurn() throws InterruptedException {
+        SecurityGroupWorkQueue hostQueue = new LocalSecurityGroupWorkQueue();
+        Map<Long, Long> vmHosts = new HashMap<Long, Long>();
+        for (long vmId = 1; vmId <= 30; vmId++) {
+            vmHosts.put(vmId, vmId <= 20 ? 1L : 2L);
+        }
+        hostQueue.submitWorkForVms(vmHosts, false);
+        long first = ((LocalSecurityGroupWorkQueue.LocalSecurityGroupWork)hostQueue.getWorkForHost(5).get(0)).getHostId();
+        long second = ((LocalSecurityGroupWorkQueue.LocalSecurityGroupWork)hostQueue.getWorkForHost(5).get(0)).getHostId();
+        assertTrue(first != second);
+        assertEquals(10, hostQueue.getWork(10).size());
+        assertEquals(10, hostQueue.size());
+    }
+
 }
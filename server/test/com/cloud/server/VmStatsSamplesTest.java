@@ -0,0 +1,70 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.server;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.cloud.agent.api.VmStatsEntry;
+
+public class VmStatsSamplesTest extends TestCase {
+    private static VmStatsEntry sample(double cpu, double read, double write) {
+        return new VmStatsEntry(cpu, read, write, 2, "vm");
+    }
+
+    public void testEmpty() {
+        VmStatsSamples samples = new VmStatsSamples(3);
+        assertNull(samples.getStats());
+        assertTrue(samples.getSamples().isEmpty());
+    }
+
+    public void testWindowRollsOver() {
+        VmStatsSamples samples = new VmStatsSamples(3);
+        samples.add(sample(10, 1, 1));
+        samples.add(sample(20, 1, 1));
+        assertEquals(2, samples.getSamples().size());
+
+        samples.add(sample(30, 1, 1));
+        samples.add(sample(40, 1, 1));
+        samples.add(sample(50, 1, 1));
+        List<VmStatsEntry> kept = samples.getSamples();
+        // only the last three are kept, oldest first
+        assertEquals(3, kept.size());
+        assertEquals(30.0, kept.get(0).getCPUUtilization());
+        assertEquals(40.0, kept.get(1).getCPUUtilization());
+        assertEquals(50.0, kept.get(2).getCPUUtilization());
+        assertEquals(50.0, samples.getStats().getCPUUtilization());
+    }
+
+    public void testNetworkTotalsOutliveTheWindow() {
+        VmStatsSamples samples = new VmStatsSamples(2);
+        samples.add(sample(10, 100, 10));
+        samples.add(sample(20, 200, 20));
+        samples.add(sample(30, 300, 30));
+
+        VmStatsEntry stats = samples.getStats();
+        assertEquals(30.0, stats.getCPUUtilization());
+        assertEquals(600.0, stats.getNetworkReadKBs());
+        assertEquals(60.0, stats.getNetworkWriteKBs());
+        assertEquals(2, stats.getNumCPUs());
+        assertEquals("vm", stats.getEntityType());
+    }
+
+    public void testZeroSizeKeepsOneSample() {
+        VmStatsSamples samples = new VmStatsSamples(0);
+        samples.add(sample(10, 1, 1));
+        samples.add(sample(20, 1, 1));
+        assertEquals(1, samples.getSamples().size());
+        assertEquals(20.0, samples.getStats().getCPUUtilization());
+        assertEquals(2.0, samples.getStats().getNetworkReadKBs());
+    }
+}
@@ -12,6 +12,11 @@
 // Automatically generated by addcopyright.py at 04/03/2012
 package com.cloud.vm.dao;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
 import junit.framework.TestCase;
 
 import com.cloud.hypervisor.Hypervisor.HypervisorType;
@@ -33,4 +38,31 @@ public class UserVmDaoImplTest extends TestCase {
         assert (vo.getType() == VirtualMachine.Type.User) : "Incorrect type " + vo.getType();
     }
 
+    public void testFindByIds() {
+        UserVmDao dao = ComponentLocator.inject(UserVmDaoImpl.class);
+
+        dao.expunge(1001l);
+        dao.expunge(1002l);
+        List<UserVmVO> vms = new ArrayList<UserVmVO>();
+        vms.add(new UserVmVO(1001l, "instancename1", "displayname1", 1, HypervisorType.XenServer, 1, true, true, 1, 1, 1, "userdata", "name1"));
+        vms.add(new UserVmVO(1002l, "instancename2", "displayname2", 1, HypervisorType.XenServer, 1, true, true, 1, 1, 1, "userdata", "name2"));
+        // reads the vms back through findByIds(Object[])
+        List<UserVmVO> persisted = dao.persistBatch(vms);
+        assertEquals(2, persisted.size());
+        assertEquals(1001l, persisted.get(0).getId());
+        assertEquals(1002l, persisted.get(1).getId());
+
+        dao.remove(1002l);
+        Map<Long, UserVmVO> found = dao.findByIds(Arrays.asList(1001l, 1002l, 1003l));
+        assertEquals(1, found.size());
+        assertTrue(found.containsKey(1001l));
+
+        found = dao.findByIdsIncludingRemoved(Arrays.asList(1001l, 1002l, 1003l));
+        assertEquals(2, found.size());
+        assertTrue(found.containsKey(1002l));
+
+        dao.expunge(1001l);
+        dao.expunge(1002l);
+    }
+
 }
@@ -119,3 +119,17 @@ DELETE FROM `cloud`.`configuration` WHERE name='xen.min.version';
 DELETE FROM `cloud`.`configuration` WHERE name='xen.min.xapi.version';
 
 DELETE FROM `cloud`.`storage_pool_host_ref` WHERE pool_id IN (SELECT id FROM storage_pool WHERE removed IS NOT NULL);
+
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'AgentManager', 'agent.selectors', '0', 'Number of selector threads that share the agent connections; 0 means one thread accepts, reads and writes for all agents.');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'AgentManager', 'agent.handler.queue.size', '0', 'Number of agent requests that can wait for a handler thread before reads from agents are throttled; 0 means no limit.');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'AgentManager', 'agent.compression.threshold', '8192', 'Size in bytes above which commands and answers sent to agents are compressed.');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server', 'vm.stats.samples', '10', 'The number of recent stats samples kept for each vm.');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server', 'stats.collector.workers', '16', 'The number of threads that collect host, vm and volume stats in parallel.');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server', 'stats.collector.host.timeout', '30', 'Time (in seconds) to wait for the stats of one host or storage pool before skipping it for the cycle.');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server', 'capacity.index.refresh.interval', '10', 'Time (in seconds) between reloads of the host capacities the deployment planners read from memory.');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'UserVmManager', 'vm.deploy.batch.workers', '16', 'The number of threads that start the vms of deployVirtualMachines calls in parallel.');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server', 'job.status.cache.size', '10000', 'The number of async-jobs whose status each management server keeps in memory for queryAsyncJobResult');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server', 'job.max.wait.seconds', '60', 'The longest time (in seconds) queryAsyncJobResult and queryAsyncJobResults may wait for jobs to complete');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Network', 'DEFAULT', 'management-server', 'network.guest.ip.cache.size', '1000', 'The number of guest networks whose address allocation each management server keeps in memory');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Network', 'DEFAULT', 'management-server', 'network.securitygroups.member.sets', 'true', 'If true, rules allowing a security group refer to a set of the group members kept on the KVM and XenServer hosts and updated as vms start and stop, instead of listing the members in the rules of every vm');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Network', 'DEFAULT', 'management-server', 'network.securitygroups.work.batch.size', '50', 'The maximum number of vms of a host whose security group rules are sent to the host at once');
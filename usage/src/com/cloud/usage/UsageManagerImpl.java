@@ -14,6 +14,7 @@ package com.cloud.usage;
 
 import java.net.InetAddress;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
@@ -510,9 +511,9 @@ public class UsageManagerImpl implements UsageManager, Runnable {
                     // - create the usage records using the parse methods below
                     for (UsageEventVO event : events) {
                         event.setProcessed(true);
-                        _usageEventDao.update(event.getId(), event);
                         createHelperRecord(event);
                     }
+                    _usageEventDao.updateBatch(events);
                 }
 
                 // TODO:  Fetch a maximum number of user stats and process them before moving on to the next range of user stats
@@ -552,15 +553,17 @@ public class UsageManagerImpl implements UsageManager, Runnable {
 
                 // loop over the user stats, create delta entries in the usage_network helper table
                 int numAcctsProcessed = 0;
+                List<UsageNetworkVO> networkHelperEntries = new ArrayList<UsageNetworkVO>(aggregatedStats.size());
                 for (String key : aggregatedStats.keySet()) {
                 	UsageNetworkVO currentNetworkStats = null;
                     if (networkStats != null) {
                         currentNetworkStats = networkStats.get(key);
                     }
                 	
-                    createNetworkHelperEntry(aggregatedStats.get(key), currentNetworkStats, endDateMillis);
+                    networkHelperEntries.add(createNetworkHelperEntry(aggregatedStats.get(key), currentNetworkStats, endDateMillis));
                     numAcctsProcessed++;
                 }                                
+                m_usageNetworkDao.persistBatch(networkHelperEntries);
                                                                             
                 if (s_logger.isDebugEnabled()) {
                     s_logger.debug("created network stats helper entries for " + numAcctsProcessed + " accts");
@@ -969,7 +972,7 @@ public class UsageManagerImpl implements UsageManager, Runnable {
         }
     }
 
-    private void createNetworkHelperEntry(UserStatisticsVO userStat, UsageNetworkVO usageNetworkStats, long timestamp) {
+    private UsageNetworkVO createNetworkHelperEntry(UserStatisticsVO userStat, UsageNetworkVO usageNetworkStats, long timestamp) {
         long currentAccountedBytesSent = 0L;
         long currentAccountedBytesReceived = 0L;
         if (usageNetworkStats != null) {
@@ -1004,7 +1007,7 @@ public class UsageManagerImpl implements UsageManager, Runnable {
             s_logger.debug("creating networkHelperEntry... accountId: " + userStat.getAccountId() + " in zone: " + userStat.getDataCenterId() + "; abr: " + userStat.getAggBytesReceived() + "; abs: " + userStat.getAggBytesSent() +
                     "; curABS: " + currentAccountedBytesSent + "; curABR: " + currentAccountedBytesReceived + "; ubs: " + bytesSent + "; ubr: " + bytesReceived);
         }
-        m_usageNetworkDao.persist(usageNetworkVO);
+        return usageNetworkVO;
     }
 
     private void createIPHelperEvent(UsageEventVO event) {
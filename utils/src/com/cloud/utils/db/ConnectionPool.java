@@ -0,0 +1,66 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.utils.db;
+
+import java.util.Collection;
+
+import javax.sql.DataSource;
+
+/**
+ * ConnectionPool is the DataSource Transaction gets its database connections
+ * from.  The implementation is picked with db.<database>.pool.class in
+ * db.properties and must have a public constructor taking
+ * (String name, String url, Properties dbProps, int isolationLevel), where
+ * name is the prefix of its keys in db.properties, e.g. "cloud".
+ */
+public interface ConnectionPool extends DataSource {
+    String getName();
+
+    int getMaxActive();
+
+    /**
+     * @return number of connections borrowed from the pool.
+     */
+    int getActiveCount();
+
+    /**
+     * @return number of connections waiting in the pool to be borrowed.
+     */
+    int getIdleCount();
+
+    /**
+     * @return number of borrows that had to wait for a connection.
+     */
+    long getWaitCount();
+
+    long getWaitMillis();
+
+    long getMaxWaitMillis();
+
+    /**
+     * @return number of borrows that gave up waiting.
+     */
+    long getTimeoutCount();
+
+    long getCreatedCount();
+
+    long getDestroyedCount();
+
+    long getStatementCacheHitCount();
+
+    long getStatementCacheMissCount();
+
+    Collection<StatementStats> getStatementStats();
+
+    void resetStatistics();
+
+    void close();
+}
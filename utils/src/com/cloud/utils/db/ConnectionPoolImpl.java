@@ -0,0 +1,741 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.utils.db;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.NumbersUtil;
+
+/**
+ * ConnectionPoolImpl is the default ConnectionPool.  Borrowing and returning
+ * a connection never takes a lock: the number of connections handed out is
+ * bounded by a semaphore and the idle connections are kept on a lock free
+ * stack, so the most recently used connection is handed out first and the
+ * rest can age out.
+ *
+ * Connections are validated on borrow only if they have not been used or
+ * validated within db.<name>.validationInterval milliseconds.  If
+ * db.<name>.poolPreparedStatements is set, each connection keeps up to
+ * db.<name>.maxOpenPreparedStatements prepared statements for reuse.  The
+ * execution time of every statement is recorded in a StatementStats.
+ */
+public class ConnectionPoolImpl implements ConnectionPool {
+    private static final Logger s_logger = Logger.getLogger(ConnectionPoolImpl.class);
+
+    // Distinct statements to keep stats for.  Statements past that are lumped together.
+    protected static final int MAX_STATEMENT_STATS = 1000;
+    protected static final String OTHER_STATEMENTS = "other";
+
+    protected final String _name;
+    protected final String _url;
+    protected final String _username;
+    protected final String _password;
+    protected final int _isolationLevel;
+    protected final int _maxActive;
+    protected final int _maxIdle;
+    protected final long _maxWait;
+    protected final String _validationQuery;
+    protected final boolean _testOnBorrow;
+    protected final boolean _testWhileIdle;
+    protected final long _validationInterval;
+    protected final long _minEvictableIdleTime;
+    protected final boolean _poolStatements;
+    protected final int _maxStatements;
+
+    protected final Semaphore _permits;
+    protected final AtomicReference<Node> _idle = new AtomicReference<Node>();
+    protected final AtomicInteger _idleCount = new AtomicInteger();
+    protected final AtomicInteger _activeCount = new AtomicInteger();
+    protected final Timer _evictor;
+    protected volatile boolean _closed;
+    protected PrintWriter _logWriter;
+
+    protected final AtomicLong _waits = new AtomicLong();
+    protected final AtomicLong _waitMillis = new AtomicLong();
+    protected final AtomicLong _maxWaitMillis = new AtomicLong();
+    protected final AtomicLong _timeouts = new AtomicLong();
+    protected final AtomicLong _created = new AtomicLong();
+    protected final AtomicLong _destroyed = new AtomicLong();
+    protected final AtomicLong _statementHits = new AtomicLong();
+    protected final AtomicLong _statementMisses = new AtomicLong();
+    protected final ConcurrentHashMap<String, StatementStats> _statementStats = new ConcurrentHashMap<String, StatementStats>();
+
+    /**
+     * @param name name of the database in db.properties, e.g. "cloud".
+     * @param url jdbc url of the database.
+     * @param dbProps db.properties.
+     * @param isolationLevel isolation level of the connections; -1 to use the driver's default.
+     */
+    public ConnectionPoolImpl(String name, String url, Properties dbProps, int isolationLevel) {
+        String prefix = "db." + name + ".";
+        _name = name;
+        _url = url;
+        _username = dbProps.getProperty(prefix + "username");
+        _password = dbProps.getProperty(prefix + "password");
+        _isolationLevel = isolationLevel;
+        _maxActive = NumbersUtil.parseInt(dbProps.getProperty(prefix + "maxActive"), 8);
+        _maxIdle = NumbersUtil.parseInt(dbProps.getProperty(prefix + "maxIdle"), _maxActive);
+        _maxWait = NumbersUtil.parseLong(dbProps.getProperty(prefix + "maxWait"), -1);
+        _validationQuery = dbProps.getProperty(prefix + "validationQuery");
+        _testOnBorrow = Boolean.parseBoolean(dbProps.getProperty(prefix + "testOnBorrow"));
+        _testWhileIdle = Boolean.parseBoolean(dbProps.getProperty(prefix + "testWhileIdle"));
+        _validationInterval = NumbersUtil.parseLong(dbProps.getProperty(prefix + "validationInterval"), 30000);
+        _minEvictableIdleTime = NumbersUtil.parseLong(dbProps.getProperty(prefix + "minEvictableIdleTimeMillis"), 1800000);
+        _poolStatements = Boolean.parseBoolean(dbProps.getProperty(prefix + "poolPreparedStatements"));
+        _maxStatements = NumbersUtil.parseInt(dbProps.getProperty(prefix + "maxOpenPreparedStatements"), 100);
+        _permits = new Semaphore(_maxActive);
+
+        long evictionInterval = NumbersUtil.parseLong(dbProps.getProperty(prefix + "timeBetweenEvictionRunsMillis"), -1);
+        if (evictionInterval > 0) {
+            _evictor = new Timer("DbPoolEvictor-" + name, true);
+            _evictor.schedule(new EvictionTask(), evictionInterval, evictionInterval);
+        } else {
+            _evictor = null;
+        }
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (_closed) {
+            throw new SQLException("Connection pool " + _name + " is closed");
+        }
+
+        if (!_permits.tryAcquire()) {
+            waitForPermit();
+        }
+
+        try {
+            PooledConnection conn = borrow();
+            _activeCount.incrementAndGet();
+            return conn.lease();
+        } catch (SQLException e) {
+            _permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            _permits.release();
+            throw e;
+        }
+    }
+
+    protected void waitForPermit() throws SQLException {
+        _waits.incrementAndGet();
+        long start = System.nanoTime();
+        boolean acquired = false;
+        try {
+            if (_maxWait <= 0) {
+                _permits.acquire();
+                acquired = true;
+            } else {
+                acquired = _permits.tryAcquire(_maxWait, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection from " + _name);
+        } finally {
+            long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            _waitMillis.addAndGet(waited);
+            long max = _maxWaitMillis.get();
+            while (waited > max && !_maxWaitMillis.compareAndSet(max, waited)) {
+                max = _maxWaitMillis.get();
+            }
+        }
+
+        if (!acquired) {
+            _timeouts.incrementAndGet();
+            throw new SQLException("Timed out waiting " + _maxWait + "ms for a connection from " + _name + "; " + _activeCount.get() + " in use");
+        }
+    }
+
+    protected PooledConnection borrow() throws SQLException {
+        PooledConnection conn;
+        while ((conn = pop()) != null) {
+            _idleCount.decrementAndGet();
+            if (_testOnBorrow && System.currentTimeMillis() - conn._lastValidated > _validationInterval && !conn.validate()) {
+                destroy(conn);
+                continue;
+            }
+            return conn;
+        }
+
+        Connection physical = DriverManager.getConnection(_url, _username, _password);
+        try {
+            if (_isolationLevel >= 0) {
+                physical.setTransactionIsolation(_isolationLevel);
+            }
+            conn = new PooledConnection(physical);
+        } catch (SQLException e) {
+            physical.close();
+            throw e;
+        }
+        _created.incrementAndGet();
+        return conn;
+    }
+
+    protected void release(PooledConnection conn) {
+        _activeCount.decrementAndGet();
+        try {
+            if (_closed || !conn.reset() || _idleCount.get() >= _maxIdle) {
+                destroy(conn);
+            } else {
+                conn._lastUsed = System.currentTimeMillis();
+                _idleCount.incrementAndGet();
+                push(conn);
+            }
+        } finally {
+            _permits.release();
+        }
+    }
+
+    protected void destroy(PooledConnection conn) {
+        _destroyed.incrementAndGet();
+        try {
+            conn._conn.close();
+        } catch (SQLException e) {
+            s_logger.debug("Unable to close connection to " + _name + ": " + e.getMessage());
+        }
+    }
+
+    protected void push(PooledConnection conn) {
+        Node node = new Node(conn);
+        do {
+            node.next = _idle.get();
+        } while (!_idle.compareAndSet(node.next, node));
+    }
+
+    protected PooledConnection pop() {
+        Node node;
+        do {
+            node = _idle.get();
+            if (node == null) {
+                return null;
+            }
+        } while (!_idle.compareAndSet(node, node.next));
+        return node.conn;
+    }
+
+    /**
+     * Closes the connections that have been idle too long or, if
+     * testWhileIdle is set, fail validation.
+     */
+    protected void evict() {
+        long now = System.currentTimeMillis();
+        List<PooledConnection> survivors = new ArrayList<PooledConnection>();
+        int count = _idleCount.get();
+        PooledConnection conn;
+        for (int i = 0; i < count && (conn = pop()) != null; i++) {
+            _idleCount.decrementAndGet();
+            if (now - conn._lastUsed > _minEvictableIdleTime || (_testWhileIdle && !conn.validate())) {
+                destroy(conn);
+            } else {
+                survivors.add(conn);
+            }
+        }
+
+        // Put them back so the most recently used is still on top.
+        for (int i = survivors.size() - 1; i >= 0; i--) {
+            _idleCount.incrementAndGet();
+            push(survivors.get(i));
+        }
+    }
+
+    protected StatementStats getStats(String sql) {
+        StatementStats stats = _statementStats.get(sql);
+        if (stats == null) {
+            if (_statementStats.size() >= MAX_STATEMENT_STATS) {
+                sql = OTHER_STATEMENTS;
+                stats = _statementStats.get(sql);
+            }
+            if (stats == null) {
+                stats = new StatementStats(sql);
+                StatementStats existing = _statementStats.putIfAbsent(sql, stats);
+                if (existing != null) {
+                    stats = existing;
+                }
+            }
+        }
+        return stats;
+    }
+
+    @Override
+    public String getName() {
+        return _name;
+    }
+
+    @Override
+    public int getMaxActive() {
+        return _maxActive;
+    }
+
+    @Override
+    public int getActiveCount() {
+        return _activeCount.get();
+    }
+
+    @Override
+    public int getIdleCount() {
+        return _idleCount.get();
+    }
+
+    @Override
+    public long getWaitCount() {
+        return _waits.get();
+    }
+
+    @Override
+    public long getWaitMillis() {
+        return _waitMillis.get();
+    }
+
+    @Override
+    public long getMaxWaitMillis() {
+        return _maxWaitMillis.get();
+    }
+
+    @Override
+    public long getTimeoutCount() {
+        return _timeouts.get();
+    }
+
+    @Override
+    public long getCreatedCount() {
+        return _created.get();
+    }
+
+    @Override
+    public long getDestroyedCount() {
+        return _destroyed.get();
+    }
+
+    @Override
+    public long getStatementCacheHitCount() {
+        return _statementHits.get();
+    }
+
+    @Override
+    public long getStatementCacheMissCount() {
+        return _statementMisses.get();
+    }
+
+    @Override
+    public Collection<StatementStats> getStatementStats() {
+        return new ArrayList<StatementStats>(_statementStats.values());
+    }
+
+    @Override
+    public void resetStatistics() {
+        _waits.set(0);
+        _waitMillis.set(0);
+        _maxWaitMillis.set(0);
+        _timeouts.set(0);
+        _statementHits.set(0);
+        _statementMisses.set(0);
+        _statementStats.clear();
+    }
+
+    @Override
+    public void close() {
+        _closed = true;
+        if (_evictor != null) {
+            _evictor.cancel();
+        }
+        PooledConnection conn;
+        while ((conn = pop()) != null) {
+            _idleCount.decrementAndGet();
+            destroy(conn);
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Connections are created with the credentials in db.properties");
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return _logWriter;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+        _logWriter = out;
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+        DriverManager.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return DriverManager.getLoginTimeout();
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException(getClass().getName() + " does not wrap " + iface.getName());
+    }
+
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionPool[" + _name + ", active=" + _activeCount.get() + ", idle=" + _idleCount.get() + ", max=" + _maxActive + "]";
+    }
+
+    protected static Throwable causeOf(InvocationTargetException e) {
+        return e.getCause() != null ? e.getCause() : e;
+    }
+
+    protected static class Node {
+        final PooledConnection conn;
+        Node next;
+
+        Node(PooledConnection conn) {
+            this.conn = conn;
+        }
+    }
+
+    protected class EvictionTask extends TimerTask {
+        @Override
+        public void run() {
+            try {
+                evict();
+            } catch (Throwable th) {
+                s_logger.warn("Unable to evict idle connections from " + _name, th);
+            }
+        }
+    }
+
+    /**
+     * A physical connection in the pool.  Each time it is borrowed, it is
+     * handed out behind a new proxy so a stale reference can't close it
+     * under the next borrower, and the settings a borrower changed are put
+     * back to what they were when the connection was created.
+     */
+    protected class PooledConnection implements InvocationHandler {
+        protected final Connection _conn;
+        protected volatile Object _proxy;
+        protected volatile long _lastUsed;
+        protected volatile long _lastValidated;
+        protected boolean _broken;
+        protected final boolean _autoCommit;
+        protected final int _isolation;
+        protected final boolean _readOnly;
+        protected final String _catalog;
+        protected boolean _settingsChanged;
+        protected final List<PooledStatement> _openStatements = new LinkedList<PooledStatement>();
+        protected final LinkedHashMap<String, LinkedList<PooledStatement>> _cachedStatements = new LinkedHashMap<String, LinkedList<PooledStatement>>(16, 0.75f, true);
+        protected int _cachedCount;
+
+        protected PooledConnection(Connection conn) throws SQLException {
+            _conn = conn;
+            _lastUsed = _lastValidated = System.currentTimeMillis();
+            _autoCommit = conn.getAutoCommit();
+            _isolation = conn.getTransactionIsolation();
+            _readOnly = conn.isReadOnly();
+            _catalog = conn.getCatalog();
+        }
+
+        protected Connection lease() {
+            Connection proxy = (Connection)Proxy.newProxyInstance(ConnectionPoolImpl.class.getClassLoader(), new Class<?>[] { Connection.class }, this);
+            _proxy = proxy;
+            return proxy;
+        }
+
+        protected boolean validate() {
+            try {
+                if (_validationQuery != null) {
+                    Statement stmt = _conn.createStatement();
+                    try {
+                        stmt.execute(_validationQuery);
+                    } finally {
+                        stmt.close();
+                    }
+                } else if (!_conn.isValid(5)) {
+                    return false;
+                }
+                _lastValidated = System.currentTimeMillis();
+                return true;
+            } catch (SQLException e) {
+                s_logger.debug("Connection to " + _name + " failed validation: " + e.getMessage());
+                return false;
+            }
+        }
+
+        /**
+         * Gets the connection ready for the next borrower.
+         * @return false if it can't be reused.
+         */
+        protected boolean reset() {
+            if (_broken) {
+                return false;
+            }
+            try {
+                for (PooledStatement stmt : new ArrayList<PooledStatement>(_openStatements)) {
+                    stmt._open = false;
+                    closeStatement(stmt);
+                }
+                if (!_conn.getAutoCommit()) {
+                    _conn.rollback();
+                }
+                if (_settingsChanged) {
+                    restoreSettings();
+                }
+                return !_conn.isClosed();
+            } catch (SQLException e) {
+                s_logger.debug("Unable to reset connection to " + _name + ": " + e.getMessage());
+                return false;
+            }
+        }
+
+        protected void restoreSettings() throws SQLException {
+            if (_conn.getAutoCommit() != _autoCommit) {
+                _conn.setAutoCommit(_autoCommit);
+            }
+            if (_conn.getTransactionIsolation() != _isolation) {
+                _conn.setTransactionIsolation(_isolation);
+            }
+            if (_conn.isReadOnly() != _readOnly) {
+                _conn.setReadOnly(_readOnly);
+            }
+            if (_catalog != null && !_catalog.equals(_conn.getCatalog())) {
+                _conn.setCatalog(_catalog);
+            }
+            _settingsChanged = false;
+        }
+
+        protected void checkBroken(Throwable th) {
+            if (th instanceof SQLException) {
+                String state = ((SQLException)th).getSQLState();
+                if (state != null && state.startsWith("08")) {
+                    _broken = true;
+                }
+            }
+        }
+
+        protected Object call(Object target, Method method, Object[] args) throws Throwable {
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                Throwable cause = causeOf(e);
+                checkBroken(cause);
+                throw cause;
+            }
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("toString")) {
+                return _conn.toString();
+            } else if (name.equals("isClosed")) {
+                return proxy != _proxy || _conn.isClosed();
+            } else if (name.equals("close")) {
+                if (proxy == _proxy) {
+                    _proxy = null;
+                    release(this);
+                }
+                return null;
+            }
+
+            if (proxy != _proxy) {
+                throw new SQLException("Connection has already been returned to " + _name);
+            }
+
+            if (name.equals("setAutoCommit") || name.equals("setTransactionIsolation") || name.equals("setReadOnly") || name.equals("setCatalog")) {
+                _settingsChanged = true;
+            } else if (name.equals("prepareStatement")) {
+                return prepareStatement(method, args);
+            } else if (name.equals("prepareCall")) {
+                return open(new PooledStatement(this, (Statement)call(_conn, method, args), (String)args[0], null, CallableStatement.class));
+            } else if (name.equals("createStatement")) {
+                return open(new PooledStatement(this, (Statement)call(_conn, method, args), null, null, Statement.class));
+            }
+            return call(_conn, method, args);
+        }
+
+        protected Object prepareStatement(Method method, Object[] args) throws Throwable {
+            String sql = (String)args[0];
+            String key = null;
+            if (_poolStatements) {
+                key = args.length == 1 ? sql : Arrays.deepToString(args);
+                LinkedList<PooledStatement> cached = _cachedStatements.get(key);
+                if (cached != null && !cached.isEmpty()) {
+                    _cachedCount--;
+                    _statementHits.incrementAndGet();
+                    return open(cached.removeFirst());
+                }
+                _statementMisses.incrementAndGet();
+            }
+            return open(new PooledStatement(this, (Statement)call(_conn, method, args), sql, key, PreparedStatement.class));
+        }
+
+        protected Object open(PooledStatement stmt) {
+            stmt._open = true;
+            _openStatements.add(stmt);
+            return stmt._proxy;
+        }
+
+        protected void closeStatement(PooledStatement stmt) {
+            _openStatements.remove(stmt);
+            if (stmt._key != null && !_broken) {
+                try {
+                    PreparedStatement pstmt = (PreparedStatement)stmt._stmt;
+                    pstmt.clearParameters();
+                    pstmt.clearBatch();
+
+                    LinkedList<PooledStatement> cached = _cachedStatements.get(stmt._key);
+                    if (cached == null) {
+                        cached = new LinkedList<PooledStatement>();
+                        _cachedStatements.put(stmt._key, cached);
+                    }
+                    cached.addFirst(stmt);
+                    _cachedCount++;
+                    evictStatements();
+                    return;
+                } catch (SQLException e) {
+                    s_logger.debug("Unable to reuse statement: " + e.getMessage());
+                }
+            }
+
+            try {
+                stmt._stmt.close();
+            } catch (SQLException e) {
+                s_logger.trace("Unable to close statement: " + e.getMessage());
+            }
+        }
+
+        protected void evictStatements() {
+            Iterator<LinkedList<PooledStatement>> it = _cachedStatements.values().iterator();
+            while (_cachedCount > _maxStatements && it.hasNext()) {
+                LinkedList<PooledStatement> cached = it.next();
+                while (_cachedCount > _maxStatements && !cached.isEmpty()) {
+                    _cachedCount--;
+                    try {
+                        cached.removeLast()._stmt.close();
+                    } catch (SQLException e) {
+                        s_logger.trace("Unable to close statement: " + e.getMessage());
+                    }
+                }
+                if (cached.isEmpty()) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * A statement handed out by a PooledConnection.  It times the executions
+     * and, if it is cached, goes back to the connection on close.
+     */
+    protected class PooledStatement implements InvocationHandler {
+        protected final PooledConnection _owner;
+        protected final Statement _stmt;
+        protected final String _sql;
+        protected final String _key;
+        protected final Object _proxy;
+        protected boolean _open;
+
+        protected PooledStatement(PooledConnection owner, Statement stmt, String sql, String key, Class<?> iface) {
+            _owner = owner;
+            _stmt = stmt;
+            _sql = sql;
+            _key = key;
+            _proxy = Proxy.newProxyInstance(ConnectionPoolImpl.class.getClassLoader(), new Class<?>[] { iface }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("toString")) {
+                return _stmt.toString();
+            } else if (name.equals("isClosed")) {
+                return !_open || _stmt.isClosed();
+            } else if (name.equals("close")) {
+                if (_open) {
+                    _open = false;
+                    _owner.closeStatement(this);
+                }
+                return null;
+            }
+
+            if (!_open) {
+                throw new SQLException("Statement is already closed");
+            }
+
+            if (name.equals("getConnection")) {
+                return _owner._proxy;
+            } else if (name.startsWith("execute")) {
+                String sql = _sql;
+                if (sql == null) {
+                    sql = args != null && args.length > 0 && args[0] instanceof String ? (String)args[0] : name;
+                }
+                long start = System.nanoTime();
+                boolean failed = true;
+                try {
+                    Object result = _owner.call(_stmt, method, args);
+                    failed = false;
+                    return result;
+                } finally {
+                    getStats(sql).record(System.nanoTime() - start, failed);
+                }
+            }
+            return _owner.call(_stmt, method, args);
+        }
+    }
+}
@@ -52,4 +52,11 @@ public @interface DB {
      * the method is not surrounded with transaction code.
      */
     boolean txn() default true;
+
+    /**
+     * (Optional) Specifies that the method only reads.  If
+     * it is the start of the transaction, its SELECTs may be
+     * served by the read replica.  See Transaction.openReadOnly().
+     */
+    boolean readOnly() default false;
 }
\ No newline at end of file
@@ -59,7 +59,12 @@ public class DatabaseCallback implements MethodInterceptor, AnnotationIntercepto
 
     @Override
     public Transaction interceptStart(AnnotatedElement element) {
-        return Transaction.open(((Method)element).getName());
+        Method method = (Method)element;
+        DB db = method.getAnnotation(DB.class);
+        if (db != null && db.readOnly()) {
+            return Transaction.openReadOnly(method.getName());
+        }
+        return Transaction.open(method.getName());
     }
 
     @Override
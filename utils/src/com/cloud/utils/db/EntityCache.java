@@ -0,0 +1,416 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.utils.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.mgmt.JmxUtil;
+
+/**
+ * EntityCache is the second level cache of a DAO.  It holds the entities
+ * found by id and, if configured, the results of searches keyed by the sql
+ * and its bound parameters.
+ *
+ * Every write to the table bumps the version of the region.  Search results
+ * are stamped with the version they were read at and are ignored once the
+ * version moves, while entities are removed by id; an entity or a search
+ * read before a write is not cached.  Writes are also sent to the other
+ * management servers through the Broadcaster so their regions are
+ * invalidated the same way.  The version carried by a remote invalidation
+ * moves the local version past it, so a region never goes back to a version
+ * another management server has already written at.
+ */
+public class EntityCache extends StandardMBean implements EntityCacheMBean {
+    private static final Logger s_logger = Logger.getLogger(EntityCache.class);
+
+    /**
+     * Sends invalidations to the other management servers.
+     */
+    public interface Broadcaster {
+        /**
+         * @param region name of the region.
+         * @param version version of the region after the write.
+         * @param ids ids of the entities written; null if it could be any of them.
+         */
+        void broadcast(String region, long version, String[] ids);
+    }
+
+    private static final Map<String, EntityCache> s_regions = new ConcurrentHashMap<String, EntityCache>();
+    private static volatile Broadcaster s_broadcaster;
+
+    protected final String _name;
+    protected final Class<?> _idType;
+    protected final Cache _entities;
+    protected final Cache _queries;
+    protected final AtomicLong _version = new AtomicLong();
+
+    protected final AtomicLong _hits = new AtomicLong();
+    protected final AtomicLong _misses = new AtomicLong();
+    protected final AtomicLong _queryHits = new AtomicLong();
+    protected final AtomicLong _queryMisses = new AtomicLong();
+    protected final AtomicLong _evictions = new AtomicLong();
+    protected final AtomicLong _invalidations = new AtomicLong();
+    protected final AtomicLong _remoteInvalidations = new AtomicLong();
+
+    /**
+     * @param name name of the region; must be the same on every management server.
+     * @param idType type of the id of the entities.
+     * @param maxEntities number of entities to keep.
+     * @param maxQueries number of search results to keep; 0 to not cache searches.
+     * @param live seconds to keep an entry; -1 to keep it until it is evicted.
+     * @param idle seconds to keep an entry that is not used.
+     */
+    public EntityCache(String name, Class<?> idType, int maxEntities, int maxQueries, int live, int idle) {
+        super(EntityCacheMBean.class, false);
+        _name = name;
+        _idType = idType;
+
+        CacheManager cm = CacheManager.create();
+        CacheEventListener listener = new EvictionCounter();
+        _entities = new Cache(name, maxEntities, false, live == -1, live == -1 ? Integer.MAX_VALUE : live, idle);
+        cm.addCache(_entities);
+        _entities.getCacheEventNotificationService().registerListener(listener);
+        if (maxQueries > 0) {
+            _queries = new Cache(name + ".queries", maxQueries, false, live == -1, live == -1 ? Integer.MAX_VALUE : live, idle);
+            cm.addCache(_queries);
+            _queries.getCacheEventNotificationService().registerListener(listener);
+        } else {
+            _queries = null;
+        }
+
+        s_regions.put(name, this);
+        try {
+            JmxUtil.registerMBean("DAO Cache", name, this);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register mbean for the cache of " + name, e);
+        }
+    }
+
+    public static void setBroadcaster(Broadcaster broadcaster) {
+        s_broadcaster = broadcaster;
+    }
+
+    public static EntityCache getRegion(String name) {
+        return s_regions.get(name);
+    }
+
+    /**
+     * Applies an invalidation sent by another management server.
+     */
+    public static void onRemoteInvalidation(String source, String region, long version, String[] ids) {
+        EntityCache cache = s_regions.get(region);
+        if (cache == null) {
+            return;
+        }
+
+        if (s_logger.isTraceEnabled()) {
+            s_logger.trace("Invalidating " + region + " for version " + version + " from " + source);
+        }
+        cache._remoteInvalidations.incrementAndGet();
+        cache.advanceVersion(version);
+        if (ids == null) {
+            cache.invalidateAll();
+            return;
+        }
+        for (String id : ids) {
+            Object key = cache.toId(id);
+            if (key == null) {
+                cache.invalidateAll();
+                return;
+            }
+            cache.invalidate(key);
+        }
+    }
+
+    public Object get(Object id) {
+        Element element = _entities.get(id);
+        if (element == null) {
+            _misses.incrementAndGet();
+            return null;
+        }
+        _hits.incrementAndGet();
+        return element.getObjectValue();
+    }
+
+    /**
+     * Caches an entity that can't be stale, e.g. one that was just written.
+     */
+    public void put(Object id, Object entity) {
+        _entities.put(new Element(id, entity));
+    }
+
+    /**
+     * Caches an entity read from the database, unless the region was written
+     * while it was being read.
+     *
+     * @param version version of the region before the entity was read.
+     * @return true if the entity was cached.
+     */
+    public boolean put(Object id, Object entity, long version) {
+        if (version != _version.get()) {
+            return false;
+        }
+        _entities.put(new Element(id, entity, version));
+        // a write between the check and the put has already removed the entity
+        if (version != _version.get()) {
+            _entities.remove(id);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Drops the entity without invalidating the region.
+     */
+    public void remove(Object id) {
+        _entities.remove(id);
+    }
+
+    public boolean isCachingQueries() {
+        return _queries != null;
+    }
+
+    /**
+     * @return results of the search if they were read at the current version; null if not.
+     */
+    public List<?> getQuery(String key) {
+        Element element = _queries.get(key);
+        if (element != null) {
+            QueryResult result = (QueryResult)element.getObjectValue();
+            if (result.version == _version.get()) {
+                _queryHits.incrementAndGet();
+                return new ArrayList<Object>(result.entities);
+            }
+        }
+        _queryMisses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * @param version version of the region before the search was run.
+     */
+    public void putQuery(String key, List<?> entities, long version) {
+        if (version == _version.get()) {
+            _queries.put(new Element(key, new QueryResult(version, new ArrayList<Object>(entities))));
+        }
+    }
+
+    /**
+     * Invalidates the entity locally.
+     */
+    public void invalidate(Object id) {
+        _version.incrementAndGet();
+        _invalidations.incrementAndGet();
+        _entities.remove(id);
+    }
+
+    /**
+     * Invalidates every entity locally.
+     */
+    public void invalidateAll() {
+        _version.incrementAndGet();
+        _invalidations.incrementAndGet();
+        _entities.removeAll();
+        if (_queries != null) {
+            _queries.removeAll();
+        }
+    }
+
+    /**
+     * Tells the other management servers about a write.
+     *
+     * @param ids ids of the entities written; null if it could be any of them.
+     */
+    public void broadcast(Object[] ids) {
+        Broadcaster broadcaster = s_broadcaster;
+        if (broadcaster == null) {
+            return;
+        }
+
+        String[] strs = null;
+        if (ids != null) {
+            strs = new String[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                strs[i] = ids[i].toString();
+            }
+        }
+        try {
+            broadcaster.broadcast(_name, _version.get(), strs);
+        } catch (Exception e) {
+            s_logger.warn("Unable to broadcast invalidation of " + _name, e);
+        }
+    }
+
+    /**
+     * Moves the version of the region to at least the version.
+     */
+    protected void advanceVersion(long version) {
+        long current = _version.get();
+        while (current < version && !_version.compareAndSet(current, version)) {
+            current = _version.get();
+        }
+    }
+
+    protected Object toId(String id) {
+        if (_idType == Long.class || _idType == long.class) {
+            return Long.valueOf(id);
+        } else if (_idType == Integer.class || _idType == int.class) {
+            return Integer.valueOf(id);
+        } else if (_idType == String.class) {
+            return id;
+        }
+        return null;
+    }
+
+    @Override
+    public String getName() {
+        return _name;
+    }
+
+    @Override
+    public long getVersion() {
+        return _version.get();
+    }
+
+    @Override
+    public int getEntityCount() {
+        return _entities.getSize();
+    }
+
+    @Override
+    public int getQueryCount() {
+        return _queries != null ? _queries.getSize() : 0;
+    }
+
+    @Override
+    public long getHitCount() {
+        return _hits.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return _misses.get();
+    }
+
+    @Override
+    public long getQueryHitCount() {
+        return _queryHits.get();
+    }
+
+    @Override
+    public long getQueryMissCount() {
+        return _queryMisses.get();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long hits = _hits.get() + _queryHits.get();
+        long total = hits + _misses.get() + _queryMisses.get();
+        return total == 0 ? 0 : (double)hits / total;
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return _evictions.get();
+    }
+
+    @Override
+    public long getInvalidationCount() {
+        return _invalidations.get();
+    }
+
+    @Override
+    public long getRemoteInvalidationCount() {
+        return _remoteInvalidations.get();
+    }
+
+    @Override
+    public void resetCounters() {
+        _hits.set(0);
+        _misses.set(0);
+        _queryHits.set(0);
+        _queryMisses.set(0);
+        _evictions.set(0);
+        _invalidations.set(0);
+        _remoteInvalidations.set(0);
+    }
+
+    @Override
+    public void clear() {
+        invalidateAll();
+    }
+
+    @Override
+    public String toString() {
+        return "EntityCache[" + _name + ", caching queries=" + (_queries != null) + "]";
+    }
+
+    protected static class QueryResult {
+        final long version;
+        final List<Object> entities;
+
+        QueryResult(long version, List<Object> entities) {
+            this.version = version;
+            this.entities = entities;
+        }
+    }
+
+    protected class EvictionCounter implements CacheEventListener {
+        @Override
+        public void notifyElementEvicted(Ehcache cache, Element element) {
+            _evictions.incrementAndGet();
+        }
+
+        @Override
+        public void notifyElementExpired(Ehcache cache, Element element) {
+            _evictions.incrementAndGet();
+        }
+
+        @Override
+        public void notifyElementRemoved(Ehcache cache, Element element) {
+        }
+
+        @Override
+        public void notifyElementPut(Ehcache cache, Element element) {
+        }
+
+        @Override
+        public void notifyElementUpdated(Ehcache cache, Element element) {
+        }
+
+        @Override
+        public void notifyRemoveAll(Ehcache cache) {
+        }
+
+        @Override
+        public void dispose() {
+        }
+
+        @Override
+        public Object clone() throws CloneNotSupportedException {
+            throw new CloneNotSupportedException();
+        }
+    }
+}
@@ -33,6 +33,9 @@ public class Filter {
     Long _offset;
     Long _limit;
     String _orderBy;
+    String _seekField;
+    Object _seekValue;
+    boolean _seekAscending;
     
     /**
      * @param clazz the VO object type
@@ -108,4 +111,39 @@ public class Filter {
     public void setLimit(Long limit) {
         _limit = limit;
     }
+    
+    /**
+     * Pages by key instead of by offset.  The results are ordered by the field
+     * and start right after the row whose field has the value, so MySQL seeks
+     * to it through the index instead of reading and dropping every row before
+     * it.  The field has to be unique, e.g. the id.  This replaces the order
+     * by and the offset.
+     * 
+     * @param clazz the VO object type
+     * @param field name of the field
+     * @param after value of the field in the last row of the previous page; null for the first page.
+     * @param ascending
+     */
+    public void setSeek(Class<?> clazz, String field, Object after, boolean ascending) {
+        _orderBy = null;
+        addOrderBy(clazz, field, ascending);
+        _seekField = field;
+        _seekValue = after;
+        _seekAscending = ascending;
+        if (_offset != null) {
+            _offset = 0L;
+        }
+    }
+    
+    public String getSeekField() {
+        return _seekField;
+    }
+    
+    public Object getSeekValue() {
+        return _seekValue;
+    }
+    
+    public boolean isSeekAscending() {
+        return _seekAscending;
+    }
 }
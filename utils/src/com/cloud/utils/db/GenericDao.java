@@ -13,6 +13,7 @@
 package com.cloud.utils.db;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -49,6 +50,15 @@ public interface GenericDao<T, ID extends Serializable> {
     
     T findById(ID id, boolean fresh);
     
+    /**
+     * Looks up the entity beans with one query per few hundred ids.
+     * @param ids database unique ids of the entity beans.
+     * @return entity beans found, by id.  Ids not found are left out.
+     */
+    Map<ID, T> findByIds(Collection<ID> ids);
+    
+    Map<ID, T> findByIdsIncludingRemoved(Collection<ID> ids);
+    
     /**
      * @return VO object ready to be used for update.  It won't have any fields filled in.
      */
@@ -79,7 +89,8 @@ public interface GenericDao<T, ID extends Serializable> {
     
     /**
      * lock 1 of the return set.  This method needs to be run within a
-     * transaction or else it's useless.
+     * transaction or else it's useless.  The row is the first one to match
+     * from a random id on, so only the rows up to it are read and locked.
      * @param sc
      * @param exclusive
      * @return T if found and locked.  null if not.
@@ -160,6 +171,17 @@ public interface GenericDao<T, ID extends Serializable> {
 
     List<T> searchIncludingRemoved(SearchCriteria<T> sc, final Filter filter, final Boolean lock, final boolean cache, final boolean enable_query_cache);
     
+    /**
+     * Search that reads the rows as they are iterated instead of all at once,
+     * so the results don't have to fit in memory.  The cursor reads on its own
+     * connection, from the read replica if there's a usable one, and has to be
+     * closed unless it is iterated to the end.
+     * @param sc
+     * @param filter
+     * @return cursor over the entity beans.
+     */
+    SearchCursor<T> searchCursorIncludingRemoved(SearchCriteria<T> sc, Filter filter);
+    
     
     /**
      * Customized search with SearchCritiria
@@ -190,6 +212,23 @@ public interface GenericDao<T, ID extends Serializable> {
      * there's no primary key specified in the VO object.
      **/
     T persist(T entity);
+
+    /**
+     * Persist the entity beans using jdbc batches.  The id field of each
+     * entity is updated with the new id.  Entities whose id comes from a
+     * table generator and isn't set yet get ids out of one reserved block.
+     * @param entities the beans to persist.
+     * @return The persisted versions of the objects, in the same order.
+     **/
+    List<T> persistBatch(List<T> entities);
+
+    /**
+     * Update the entity beans using jdbc batches.  The entities must have
+     * been created by createForUpdate() and have their ids set.
+     * @param entities the beans to update.
+     * @return number of rows updated.
+     **/
+    int updateBatch(List<T> entities);
     
     /**
      * remove the entity bean.  This will call delete automatically if
@@ -227,6 +266,12 @@ public interface GenericDao<T, ID extends Serializable> {
     void expunge();
     
     public <K> K getNextInSequence(Class<K> clazz, String name);
+
+    /**
+     * Reserves a block of count values from the sequence in one round trip.
+     * @return the first value; the others follow it by the allocation size.
+     */
+    public <K> K getNextInSequence(Class<K> clazz, String name, int count);
     
     /**
      * Configure.
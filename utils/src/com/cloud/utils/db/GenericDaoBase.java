@@ -22,6 +22,7 @@ import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
@@ -33,8 +34,11 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.TimeZone;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
@@ -53,9 +57,6 @@ import net.sf.cglib.proxy.CallbackFilter;
 import net.sf.cglib.proxy.Enhancer;
 import net.sf.cglib.proxy.Factory;
 import net.sf.cglib.proxy.NoOp;
-import net.sf.ehcache.Cache;
-import net.sf.ehcache.CacheManager;
-import net.sf.ehcache.Element;
 
 import org.apache.log4j.Logger;
 
@@ -151,6 +152,12 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
 
     protected static final SequenceFetcher s_seqFetcher = SequenceFetcher.getInstance();
 
+    // Rows sent to the database in one jdbc batch by persistBatch() and updateBatch().
+    protected static final int BATCH_SIZE = 500;
+
+    protected static final String RANDOM_ROW_PIVOT = "randomRowPivot";
+    protected static final Random s_random = new Random();
+
     protected String _name;
 
     public static <J> GenericDaoBase<? extends J, ? extends Serializable> getDao(Class<J> entityType) {
@@ -291,6 +298,14 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         return s_seqFetcher.getNextSequence(clazz, tg);
     }
 
+    @Override @DB(txn=false)
+    public <K> K getNextInSequence(final Class<K> clazz, final String name, final int count) {
+        final TableGenerator tg = _tgs.get(name);
+        assert (tg != null) : "Couldn't find Table generator using " + name;
+
+        return s_seqFetcher.getNextSequenceBlock(clazz, tg, count);
+    }
+
     @Override @DB(txn=false)
     public <K> K getRandomlyIncreasingNextInSequence(final Class<K> clazz, final String name) {
         final TableGenerator tg = _tgs.get(name);
@@ -305,12 +320,90 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
     }
 
     @Override @DB(txn=false)
-    public T lockOneRandomRow(final SearchCriteria<T> sc, final boolean exclusive) {
-        final Filter filter = new Filter(1);
-        final List<T> beans = search(sc, filter, exclusive, true);
+    public T lockOneRandomRow(SearchCriteria<T> sc, final boolean exclusive) {
+        // the conditions added here go on a copy, for the caller to be able to search again with its criteria
+        sc = sc == null ? createSearchCriteria() : sc.copy();
+        if (_idField == null || (_idField.getType() != Long.class && _idField.getType() != long.class)) {
+            final Filter filter = new Filter(1);
+            final List<T> beans = search(sc, filter, exclusive, true);
+            return beans.isEmpty() ? null : beans.get(0);
+        }
+
+        if (_removed != null) {
+            sc.addAnd(_removed.second().field.getName(), SearchCriteria.Op.NULL);
+        }
+
+        Pair<Long, Long> range = getIdRange(sc);
+        if (range == null) {
+            return null;
+        }
+        long pivot = range.first() + (long)(s_random.nextDouble() * (range.second() - range.first() + 1));
+
+        // ORDER BY RAND() reads, locks and sorts every matching row.  Seeking from a random
+        // id through the primary key only reads the rows up to the first one that matches,
+        // and a row taken meanwhile is skipped once its lock is released.
+        String idName = _idField.getName();
+        sc.addCondition(RANDOM_ROW_PIVOT, " AND ", idName, SearchCriteria.Op.BETWEEN);
+        sc.setParameters(RANDOM_ROW_PIVOT, pivot, Long.MAX_VALUE);
+        List<T> beans = searchIncludingRemoved(sc, new Filter(_entityBeanType, idName, true, 0L, 1L), exclusive, true);
+        if (beans.isEmpty()) {
+            sc.setParameters(RANDOM_ROW_PIVOT, Long.MIN_VALUE, pivot - 1);
+            beans = searchIncludingRemoved(sc, new Filter(_entityBeanType, idName, false, 0L, 1L), exclusive, true);
+        }
         return beans.isEmpty() ? null : beans.get(0);
     }
 
+    /**
+     * @return the lowest and the highest id of the rows matching the search,
+     *         read without locking them; null if no row matches.
+     */
+    @DB(txn=false)
+    protected Pair<Long, Long> getIdRange(SearchCriteria<T> sc) {
+        String clause = sc.getWhereClause();
+        if (clause != null && clause.length() == 0) {
+            clause = null;
+        }
+
+        final StringBuilder str = createPartialSelectSql(null, clause != null);
+        String column = _table + "." + DbUtil.getColumnName(_idField, null);
+        str.replace(7, str.indexOf(" FROM"), "MIN(" + column + "), MAX(" + column + ")");
+        if (clause != null) {
+            str.append(clause);
+        }
+
+        Collection<JoinBuilder<SearchCriteria<?>>> joins = sc.getJoins();
+        if (joins != null) {
+            addJoins(str, joins);
+        }
+
+        final Transaction txn = Transaction.currentTxn();
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = txn.prepareAutoCloseStatement(str.toString());
+            int i = 0;
+            if (clause != null) {
+                for (final Pair<Attribute, Object> value : sc.getValues()) {
+                    prepareAttribute(++i, pstmt, value.first(), value.second());
+                }
+            }
+            if (joins != null) {
+                addJoinAttributes(i, pstmt, joins);
+            }
+
+            final ResultSet rs = pstmt.executeQuery();
+            if (!rs.next()) {
+                return null;
+            }
+            long min = rs.getLong(1);
+            if (rs.wasNull()) {
+                return null;
+            }
+            return new Pair<Long, Long>(min, rs.getLong(2));
+        } catch (final SQLException e) {
+            throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
+        }
+    }
+
     @DB(txn=false)
     protected List<T> search(SearchCriteria<T> sc, final Filter filter, final Boolean lock, final boolean cache) {
         if (_removed != null) {
@@ -338,9 +431,15 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         return searchIncludingRemoved(sc, filter, lock, cache, false) ;
     }
 
-    @Override
+    @Override @SuppressWarnings("unchecked")
     public List<T> searchIncludingRemoved(SearchCriteria<T> sc, final Filter filter, final Boolean lock, 
             final boolean cache, final boolean enable_query_cache) {
+        if (filter != null && filter.getSeekValue() != null) {
+            // the caller may reuse its criteria for the next page
+            sc = sc == null ? createSearchCriteria() : sc.copy();
+            sc.addSeek(filter);
+        }
+
         String clause = sc != null ? sc.getWhereClause() : null;
         if (clause != null && clause.length() == 0) {
             clause = null;
@@ -370,6 +469,18 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
 
         final String sql = str.toString();
 
+        final EntityCache queryCache = _cache;
+        // version of the region before the rows are read
+        final long version = queryCache != null ? queryCache.getVersion() : 0;
+        String queryKey = null;
+        if (queryCache != null && queryCache.isCachingQueries() && lock == null && joins == null && !txn.dbTxnStarted()) {
+            queryKey = buildQueryKey(sql, clause != null ? sc.getValues() : null, groupByValues);
+            List<T> cached = (List<T>)queryCache.getQuery(queryKey);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
         PreparedStatement pstmt = null;
         final List<T> result = new ArrayList<T>();
         try {
@@ -396,7 +507,11 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             }
             final ResultSet rs = pstmt.executeQuery();
             while (rs.next()) {
-                result.add(toEntityBean(rs, cache));
+                result.add(toEntityBean(rs, cache, version));
+            }
+            // rows read from the replica may be older than the invalidations already seen
+            if (queryKey != null && !txn.isReadingReplica()) {
+                queryCache.putQuery(queryKey, result, version);
             }
             return result;
         } catch (final SQLException e) {
@@ -406,8 +521,180 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         }
     }
 
+    @Override
+    public SearchCursor<T> searchCursorIncludingRemoved(SearchCriteria<T> sc, final Filter filter) {
+        if (filter != null && filter.getSeekValue() != null) {
+            sc = sc == null ? createSearchCriteria() : sc.copy();
+            sc.addSeek(filter);
+        }
+
+        String clause = sc != null ? sc.getWhereClause() : null;
+        if (clause != null && clause.length() == 0) {
+            clause = null;
+        }
+
+        final StringBuilder str = createPartialSelectSql(sc, clause != null);
+        if (clause != null) {
+            str.append(clause);
+        }
+
+        Collection<JoinBuilder<SearchCriteria<?>>> joins = null;
+        if (sc != null) {
+            joins = sc.getJoins();
+            if (joins != null) {
+                addJoins(str, joins);
+            }
+        }
+
+        List<Object> groupByValues = addGroupBy(str, sc);
+        addFilter(str, filter);
+
+        final String sql = str.toString();
+
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        try {
+            conn = Transaction.getStandaloneReadConnection();
+            pstmt = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            // Tells the MySQL driver to hand out the rows as they arrive instead of reading them all first.
+            pstmt.setFetchSize(Integer.MIN_VALUE);
+            int i = 0;
+            if (clause != null) {
+                for (final Pair<Attribute, Object> value : sc.getValues()) {
+                    prepareAttribute(++i, pstmt, value.first(), value.second());
+                }
+            }
+
+            if (joins != null) {
+                i = addJoinAttributes(i, pstmt, joins);
+            }
+
+            if (groupByValues != null) {
+                for (Object value : groupByValues) {
+                    pstmt.setObject(i++, value);
+                }
+            }
+
+            return new Cursor(conn, pstmt, pstmt.executeQuery());
+        } catch (final Exception e) {
+            if (conn != null) {
+                try {
+                    conn.close();
+                } catch (SQLException ignored) {
+                }
+            }
+            throw new CloudRuntimeException("Caught: " + pstmt, e);
+        }
+    }
+
+    /**
+     * Cursor reads the entity beans from a result set as it is iterated.
+     */
+    protected class Cursor implements SearchCursor<T> {
+        Connection _conn;
+        PreparedStatement _pstmt;
+        ResultSet _rs;
+        T _next;
+
+        protected Cursor(Connection conn, PreparedStatement pstmt, ResultSet rs) {
+            _conn = conn;
+            _pstmt = pstmt;
+            _rs = rs;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (_next != null) {
+                return true;
+            }
+            if (_rs == null) {
+                return false;
+            }
+
+            try {
+                if (_rs.next()) {
+                    _next = toEntityBean(_rs, false);
+                    return true;
+                }
+            } catch (SQLException e) {
+                close();
+                throw new CloudRuntimeException("DB Exception on: " + _pstmt, e);
+            }
+            close();
+            return false;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            T next = _next;
+            _next = null;
+            return next;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            if (_conn == null) {
+                return;
+            }
+            try {
+                _rs.close();
+                _pstmt.close();
+            } catch (SQLException e) {
+                s_logger.debug("Unable to close the cursor on " + _pstmt + ": " + e.getMessage());
+            }
+            try {
+                _conn.close();
+            } catch (SQLException e) {
+                s_logger.warn("Unable to close the connection of the cursor", e);
+            }
+            _rs = null;
+            _pstmt = null;
+            _conn = null;
+        }
+    }
+
+    @DB(txn=false)
+    protected String buildQueryKey(String sql, List<Pair<Attribute, Object>> values, List<Object> groupByValues) {
+        StringBuilder key = new StringBuilder(sql);
+        if (values != null) {
+            for (Pair<Attribute, Object> value : values) {
+                appendQueryKey(key, value.second());
+            }
+        }
+        if (groupByValues != null) {
+            for (Object value : groupByValues) {
+                appendQueryKey(key, value);
+            }
+        }
+        return key.toString();
+    }
+
+    private static void appendQueryKey(StringBuilder key, Object value) {
+        key.append('|');
+        if (value instanceof Object[]) {
+            key.append(Arrays.deepToString((Object[])value));
+        } else if (value instanceof Date) {
+            key.append(((Date)value).getTime());
+        } else {
+            key.append(value);
+        }
+    }
+
     @Override @SuppressWarnings("unchecked")
     public <M> List<M> customSearchIncludingRemoved(SearchCriteria<M> sc, final Filter filter) {
+        if (sc != null && filter != null && filter.getSeekValue() != null) {
+            sc = sc.copy();
+            sc.addSeek(filter);
+        }
+
         String clause = sc != null ? sc.getWhereClause() : null;
         if (clause != null && clause.length() == 0) {
             clause = null;
@@ -743,9 +1030,6 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
     }
 
     protected int update(ID id, UpdateBuilder ub, T entity) {
-        if (_cache != null) {
-            _cache.remove(id);
-        }
         SearchCriteria<T> sc = createSearchCriteria();
         sc.addAnd(_idAttributes.get(_table)[0], SearchCriteria.Op.EQ, id);
         Transaction txn = Transaction.currentTxn();
@@ -759,7 +1043,8 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             throw new CloudRuntimeException("Unable to persist element collection", e);
         }
 
-        int rowsUpdated = update(ub, sc, null);
+        int rowsUpdated = executeUpdate(ub, sc, null);
+        invalidateCache(id);
 
         txn.commit();
 
@@ -767,6 +1052,14 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
     }
 
     public int update(UpdateBuilder ub, final SearchCriteria<?> sc, Integer rows) {
+        int result = executeUpdate(ub, sc, rows);
+        if (result > 0) {
+            invalidateCache(null);
+        }
+        return result;
+    }
+
+    protected int executeUpdate(UpdateBuilder ub, final SearchCriteria<?> sc, Integer rows) {
         StringBuilder sql = null;
         PreparedStatement pstmt = null;
         final Transaction txn = Transaction.currentTxn();
@@ -897,8 +1190,8 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
     @SuppressWarnings("unchecked")
     public T findById(final ID id) {
         if (_cache != null) {
-            final Element element = _cache.get(id);
-            return element == null ? lockRow(id, null) : (T)element.getObjectValue();
+            final T entity = (T)_cache.get(id);
+            return entity == null ? lockRow(id, null) : entity;
         } else {
             return lockRow(id, null);
         }
@@ -935,6 +1228,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             sql.append(lock ? FOR_UPDATE_CLAUSE : SHARE_MODE_CLAUSE);
         }
         Transaction txn = Transaction.currentTxn();
+        final long version = _cache != null ? _cache.getVersion() : 0;
         PreparedStatement pstmt = null;
         try {
             pstmt = txn.prepareAutoCloseStatement(sql.toString());
@@ -944,7 +1238,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             }
 
             ResultSet rs = pstmt.executeQuery();
-            return rs.next() ? toEntityBean(rs, true) : null;
+            return rs.next() ? toEntityBean(rs, true, version) : null;
         } catch (SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
         }
@@ -1040,6 +1334,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
 
     protected List<T> executeList(final String sql, final Object... params) {
         final Transaction txn = Transaction.currentTxn();
+        final long version = _cache != null ? _cache.getVersion() : 0;
         PreparedStatement pstmt = null;
         final List<T> result = new ArrayList<T>();
         try {
@@ -1051,7 +1346,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
 
             final ResultSet rs = pstmt.executeQuery();
             while (rs.next()) {
-                result.add(toEntityBean(rs, true));
+                result.add(toEntityBean(rs, true, version));
             }
             return result;
         } catch (final SQLException e) {
@@ -1098,10 +1393,8 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
                 pstmt.executeUpdate();
             }
 
+            invalidateCache(id);
             txn.commit();
-            if (_cache != null) {
-                _cache.remove(id);
-            }
             return true;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
@@ -1129,7 +1422,11 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             for (final Pair<Attribute, Object> value : sc.getValues()) {
                 prepareAttribute(++i, pstmt, value.first(), value.second());
             }
-            return pstmt.executeUpdate();
+            int result = pstmt.executeUpdate();
+            if (result > 0) {
+                invalidateCache(null);
+            }
+            return result;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
         } catch (final Throwable e) {
@@ -1297,6 +1594,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
 
                 insertElementCollection(entity, _idAttributes.get(_table)[0], id, ecAttributes);
             }
+            invalidateCache(id);
             txn.commit();
         } catch (final SQLException e) {
             if (e.getSQLState().equals("23000") && e.getErrorCode() == 1062) {
@@ -1313,6 +1611,263 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         return _idField != null ? findByIdIncludingRemoved(id) : null;
     }
 
+    /**
+     * Gives the entities that have no id yet one out of a block reserved from
+     * the table generator of the id, so that a batch takes one update of the
+     * sequence table instead of one per row.
+     */
+    protected void assignTableGeneratedIds(final List<T> entities) throws IllegalAccessException {
+        if (_idField == null || (_idField.getType() != Long.class && _idField.getType() != long.class)) {
+            return;
+        }
+        final TableGenerator tg = _tgs.get(_idField.getName());
+        if (tg == null) {
+            return;
+        }
+
+        final List<T> unassigned = new ArrayList<T>();
+        for (final T entity : entities) {
+            final Object id = _idField.get(entity);
+            if (id == null || ((Long)id).longValue() == 0) {
+                unassigned.add(entity);
+            }
+        }
+        if (unassigned.isEmpty()) {
+            return;
+        }
+
+        final Long first = s_seqFetcher.getNextSequenceBlock(Long.class, tg, unassigned.size());
+        if (first == null) {
+            throw new CloudRuntimeException("Unable to reserve " + unassigned.size() + " ids from " + tg.table() + ":" + tg.pkColumnValue());
+        }
+        for (int i = 0; i < unassigned.size(); i++) {
+            _idField.set(unassigned.get(i), first + (long)i * tg.allocationSize());
+        }
+    }
+
+    @Override @DB(txn=false)
+    @SuppressWarnings("unchecked")
+    public List<T> persistBatch(final List<T> entities) {
+        if (entities.isEmpty()) {
+            return new ArrayList<T>();
+        }
+
+        final Transaction txn = Transaction.currentTxn();
+        PreparedStatement pstmt = null;
+        final Object[] ids = new Object[entities.size()];
+        try {
+            txn.start();
+            assignTableGeneratedIds(entities);
+            boolean first = true;
+            for (final Pair<String, Attribute[]> pair : _insertSqls) {
+                final Attribute[] attrs = pair.second();
+                pstmt = txn.prepareAutoCloseStatement(pair.first(), Statement.RETURN_GENERATED_KEYS);
+
+                int start = 0;
+                while (start < entities.size()) {
+                    final int end = Math.min(start + BATCH_SIZE, entities.size());
+                    for (int i = start; i < end; i++) {
+                        prepareAttributes(pstmt, entities.get(i), attrs, 1);
+                        pstmt.addBatch();
+                    }
+                    pstmt.executeBatch();
+
+                    // The secondary tables take the id generated for the primary table.
+                    if (first && _idField != null) {
+                        final ResultSet rs = pstmt.getGeneratedKeys();
+                        for (int i = start; i < end; i++) {
+                            final T entity = entities.get(i);
+                            if (rs != null && rs.next()) {
+                                ids[i] = rs.getObject(1);
+                                _idField.set(entity, ids[i]);
+                            } else {
+                                ids[i] = _idField.get(entity);
+                            }
+                        }
+                    }
+                    start = end;
+                }
+                first = false;
+            }
+
+            if (_ecAttributes != null && _ecAttributes.size() > 0) {
+                for (int i = 0; i < entities.size(); i++) {
+                    HashMap<Attribute, Object> ecAttributes = new HashMap<Attribute, Object>();
+                    for (Attribute attr : _ecAttributes) {
+                        Object ec = attr.field.get(entities.get(i));
+                        if (ec != null) {
+                            ecAttributes.put(attr, ec);
+                        }
+                    }
+
+                    insertElementCollection(entities.get(i), _idAttributes.get(_table)[0], (ID)ids[i], ecAttributes);
+                }
+            }
+            invalidateCacheEntries(_idField != null ? ids : null);
+            txn.commit();
+        } catch (final SQLException e) {
+            if (e.getSQLState().equals("23000") && e.getErrorCode() == 1062) {
+                throw new EntityExistsException("Entity already exists: ", e);
+            } else {
+                throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new CloudRuntimeException("Problem with getting the ec attribute ", e);
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException("Problem with getting the ec attribute ", e);
+        }
+
+        if (_idField == null) {
+            return new ArrayList<T>();
+        }
+
+        return findByIds(ids);
+    }
+
+    @Override @DB(txn=false)
+    public Map<ID, T> findByIds(final Collection<ID> ids) {
+        return findByIds(ids, false);
+    }
+
+    @Override @DB(txn=false)
+    public Map<ID, T> findByIdsIncludingRemoved(final Collection<ID> ids) {
+        return findByIds(ids, true);
+    }
+
+    @DB(txn=false)
+    @SuppressWarnings("unchecked")
+    protected Map<ID, T> findByIds(final Collection<ID> ids, final boolean removed) {
+        final Map<ID, T> found = new HashMap<ID, T>(ids.size() * 2);
+        if (_idField == null || ids.isEmpty()) {
+            return found;
+        }
+
+        final Object[] all = ids.toArray();
+        for (int start = 0; start < all.length; start += BATCH_SIZE) {
+            final Object[] chunk = new Object[Math.min(BATCH_SIZE, all.length - start)];
+            System.arraycopy(all, start, chunk, 0, chunk.length);
+
+            SearchCriteria<T> sc = createSearchCriteria();
+            sc.addAnd(_idAttributes.get(_table)[0], SearchCriteria.Op.IN, chunk);
+            final List<T> entities = removed ? searchIncludingRemoved(sc, null, null, false) : search(sc, null, null, false);
+            for (final T entity : entities) {
+                try {
+                    found.put((ID)_idField.get(entity), entity);
+                } catch (final IllegalAccessException e) {
+                    throw new CloudRuntimeException("Yikes! ", e);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Reads back the entities in the order of the ids given.
+     */
+    @DB(txn=false)
+    @SuppressWarnings("unchecked")
+    protected List<T> findByIds(final Object[] ids) {
+        final Map<ID, T> found = findByIds((Collection<ID>)(Collection<?>)Arrays.asList(ids), true);
+        final List<T> result = new ArrayList<T>(ids.length);
+        for (final Object id : ids) {
+            result.add(found.get(id));
+        }
+        return result;
+    }
+
+    @Override @DB(txn=false)
+    @SuppressWarnings("unchecked")
+    public int updateBatch(final List<T> entities) {
+        // Entities that changed the same columns share one statement.
+        final Map<String, List<Ternary<ID, UpdateBuilder, T>>> batches = new LinkedHashMap<String, List<Ternary<ID, UpdateBuilder, T>>>();
+        final Object[] ids = new Object[entities.size()];
+        String whereClause = null;
+        for (int i = 0; i < entities.size(); i++) {
+            final T entity = entities.get(i);
+            assert Enhancer.isEnhanced(entity.getClass()) : "Entity is not generated by this dao";
+            try {
+                ids[i] = _idField.get(entity);
+            } catch (final IllegalAccessException e) {
+                throw new CloudRuntimeException("How can it be illegal access...come on", e);
+            }
+
+            final UpdateBuilder ub = getUpdateBuilder(entity);
+            if (whereClause == null) {
+                final SearchCriteria<T> sc = createSearchCriteria();
+                sc.addAnd(_idAttributes.get(_table)[0], SearchCriteria.Op.EQ, ids[i]);
+                whereClause = sc.getWhereClause();
+            }
+            final StringBuilder sql = ub.toSql(_tables);
+            final String key = sql != null ? sql.append(whereClause).toString() : "";
+            List<Ternary<ID, UpdateBuilder, T>> batch = batches.get(key);
+            if (batch == null) {
+                batch = new ArrayList<Ternary<ID, UpdateBuilder, T>>();
+                batches.put(key, batch);
+            }
+            batch.add(new Ternary<ID, UpdateBuilder, T>((ID)ids[i], ub, entity));
+        }
+
+        final Transaction txn = Transaction.currentTxn();
+        PreparedStatement pstmt = null;
+        int rowsUpdated = 0;
+        try {
+            txn.start();
+            for (final Map.Entry<String, List<Ternary<ID, UpdateBuilder, T>>> entry : batches.entrySet()) {
+                final List<Ternary<ID, UpdateBuilder, T>> batch = entry.getValue();
+                for (final Ternary<ID, UpdateBuilder, T> pair : batch) {
+                    if (pair.second().getCollectionChanges() != null) {
+                        insertElementCollection(pair.third(), _idAttributes.get(_table)[0], pair.first(), pair.second().getCollectionChanges());
+                    }
+                }
+                if (entry.getKey().length() == 0) {
+                    continue;
+                }
+
+                pstmt = txn.prepareAutoCloseStatement(entry.getKey());
+                int count = 0;
+                for (final Ternary<ID, UpdateBuilder, T> pair : batch) {
+                    int i = 1;
+                    for (final Ternary<Attribute, Boolean, Object> value : pair.second().getChanges()) {
+                        prepareAttribute(i++, pstmt, value.first(), value.third());
+                    }
+                    prepareAttribute(i, pstmt, _idAttributes.get(_table)[0], pair.first());
+                    pstmt.addBatch();
+                    if (++count % BATCH_SIZE == 0) {
+                        rowsUpdated += countUpdated(pstmt.executeBatch());
+                    }
+                }
+                if (count % BATCH_SIZE != 0) {
+                    rowsUpdated += countUpdated(pstmt.executeBatch());
+                }
+                for (final Ternary<ID, UpdateBuilder, T> pair : batch) {
+                    pair.second().clear();
+                }
+            }
+            invalidateCacheEntries(ids);
+            txn.commit();
+        } catch (final SQLException e) {
+            if (e.getSQLState().equals("23000") && e.getErrorCode() == 1062) {
+                throw new EntityExistsException("Entity already exists ", e);
+            }
+            throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
+        }
+
+        return rowsUpdated;
+    }
+
+    private static int countUpdated(final int[] results) {
+        int count = 0;
+        for (final int result : results) {
+            if (result > 0) {
+                count += result;
+            } else if (result == Statement.SUCCESS_NO_INFO) {
+                // The driver rewrote the batch and can't tell which rows changed.
+                count++;
+            }
+        }
+        return count;
+    }
+
     protected void insertElementCollection(T entity, Attribute idAttribute, ID id, Map<Attribute, Object> ecAttributes) throws SQLException {
         Transaction txn = Transaction.currentTxn();
         txn.start();
@@ -1483,15 +2038,33 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         return j;
     }
 
-    @SuppressWarnings("unchecked") @DB(txn=false)
+    /**
+     * @return true if the rows just read by the transaction can go in the
+     *         cache: they're not part of a db transaction, which may still
+     *         roll back, nor read from the replica, which may be behind.
+     */
+    protected static boolean isCacheable(Transaction txn) {
+        return !txn.dbTxnStarted() && !txn.isReadingReplica();
+    }
+
+    @DB(txn=false)
     protected T toEntityBean(final ResultSet result, final boolean cache) throws SQLException {
+        return toEntityBean(result, cache, _cache != null ? _cache.getVersion() : 0);
+    }
+
+    /**
+     * @param version version of the cache before the row was read; the
+     *        entity isn't cached if the table was written since.
+     */
+    @SuppressWarnings("unchecked") @DB(txn=false)
+    protected T toEntityBean(final ResultSet result, final boolean cache, final long version) throws SQLException {
         final T entity = (T)_factory.newInstance(new Callback[] {NoOp.INSTANCE, new UpdateBuilder(this)});
 
         toEntityBean(result, entity);
 
-        if (cache && _cache != null) {
+        if (cache && _cache != null && isCacheable(Transaction.currentTxn())) {
             try {
-                _cache.put(new Element(_idField.get(entity), entity));
+                _cache.put(_idField.get(entity), entity, version);
             } catch (final Exception e) {
                 s_logger.debug("Can't put it in the cache", e);
             }
@@ -1502,6 +2075,15 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
 
     @DB(txn=false)
     protected T toVO(ResultSet result, boolean cache) throws SQLException {
+        return toVO(result, cache, _cache != null ? _cache.getVersion() : 0);
+    }
+
+    /**
+     * @param version version of the cache before the row was read; the
+     *        entity isn't cached if the table was written since.
+     */
+    @DB(txn=false)
+    protected T toVO(ResultSet result, boolean cache, long version) throws SQLException {
         T entity;
         try {
             entity = _entityBeanType.newInstance();
@@ -1511,9 +2093,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             throw new CloudRuntimeException("Illegal Access", e1);
         }
         toEntityBean(result, entity);
-        if (cache && _cache != null) {
+        if (cache && _cache != null && isCacheable(Transaction.currentTxn())) {
             try {
-                _cache.put(new Element(_idField.get(entity), entity));
+                _cache.put(_idField.get(entity), entity, version);
             } catch (final Exception e) {
                 s_logger.debug("Can't put it in the cache", e);
             }
@@ -1661,10 +2243,8 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             }
 
             final int result = pstmt.executeUpdate();
+            invalidateCache(id);
             txn.commit();
-            if (_cache != null) {
-                _cache.remove(id);
-            }
             return result > 0;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
@@ -1684,24 +2264,65 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         return update(ub, sc, null);
     }
 
-    protected Cache _cache;
+    protected EntityCache _cache;
     @DB(txn=false)
     protected void createCache(final Map<String, ? extends Object> params) {
         final String value = (String)params.get("cache.size");
 
         if (value != null) {
-            final CacheManager cm = CacheManager.create();
             final int maxElements = NumbersUtil.parseInt(value, 0);
+            final int maxQueries = NumbersUtil.parseInt((String)params.get("cache.query.size"), 0);
             final int live = NumbersUtil.parseInt((String)params.get("cache.time.to.live"), 300);
             final int idle = NumbersUtil.parseInt((String)params.get("cache.time.to.idle"), 300);
-            _cache = new Cache(getName(), maxElements, false, live == -1, live == -1 ? Integer.MAX_VALUE : live, idle);
-            cm.addCache(_cache);
+            _cache = new EntityCache(getName(), _idField != null ? _idField.getType() : null, maxElements, maxQueries, live, idle);
             s_logger.info("Cache created: " + _cache.toString());
         } else {
             _cache = null;
         }
     }
 
+    /**
+     * Invalidates the cache after a write.  The entity is dropped right away
+     * so this thread sees its own change, and again once the change is
+     * committed, at which point the other management servers are told too.
+     *
+     * @param id id of the entity written; null if it could be any of them.
+     */
+    @DB(txn=false)
+    protected void invalidateCache(final ID id) {
+        invalidateCacheEntries(id != null ? new Object[] { id } : null);
+    }
+
+    /**
+     * @param ids ids of the entities written; null if it could be any of them.
+     */
+    @DB(txn=false)
+    protected void invalidateCacheEntries(final Object[] ids) {
+        final EntityCache cache = _cache;
+        if (cache == null) {
+            return;
+        }
+
+        invalidate(cache, ids);
+        Transaction.currentTxn().runAfterCommit(new Runnable() {
+            @Override
+            public void run() {
+                invalidate(cache, ids);
+                cache.broadcast(ids);
+            }
+        });
+    }
+
+    private static void invalidate(EntityCache cache, Object[] ids) {
+        if (ids != null) {
+            for (Object id : ids) {
+                cache.invalidate(id);
+            }
+        } else {
+            cache.invalidateAll();
+        }
+    }
+
     @Override @DB(txn=false)
     public boolean configure(final String name, final Map<String, Object> params) throws ConfigurationException {
         _name = name;
@@ -0,0 +1,138 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.utils.db;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * ReadReplica is a MySQL replica of the cloud database that read only
+ * transactions read from.  Its replication lag is checked periodically and
+ * connections are only handed out while the lag is within the bound, so
+ * reads fall back to the primary database when the replica is behind,
+ * broken or down.
+ */
+public class ReadReplica {
+    private static final Logger s_logger = Logger.getLogger(ReadReplica.class);
+
+    protected final ConnectionPool _pool;
+    protected final long _maxLag;
+    protected final Timer _monitor;
+    protected volatile boolean _usable;
+    protected volatile long _lag = -1;
+
+    protected final AtomicLong _routed = new AtomicLong();
+    protected final AtomicLong _fallbacks = new AtomicLong();
+
+    /**
+     * @param pool pool of connections to the replica.
+     * @param maxLag seconds the replica can be behind before reads go to the primary.
+     * @param checkInterval milliseconds between checks of the replication lag.
+     */
+    public ReadReplica(ConnectionPool pool, long maxLag, long checkInterval) {
+        _pool = pool;
+        _maxLag = maxLag;
+        _monitor = new Timer("ReadReplicaMonitor", true);
+        _monitor.schedule(new LagCheckTask(), 0, checkInterval);
+    }
+
+    /**
+     * @return a connection to the replica; null if reads should go to the primary.
+     */
+    public Connection getConnection() {
+        if (!_usable) {
+            _fallbacks.incrementAndGet();
+            return null;
+        }
+
+        try {
+            Connection conn = _pool.getConnection();
+            _routed.incrementAndGet();
+            return conn;
+        } catch (SQLException e) {
+            s_logger.warn("Unable to get a connection to the read replica, reading from the primary until it is checked again", e);
+            _usable = false;
+            _fallbacks.incrementAndGet();
+            return null;
+        }
+    }
+
+    protected void checkLag() {
+        boolean usable = false;
+        try {
+            Connection conn = _pool.getConnection();
+            try {
+                Statement stmt = conn.createStatement();
+                try {
+                    ResultSet rs = stmt.executeQuery("SHOW SLAVE STATUS");
+                    if (!rs.next()) {
+                        // Not replicating from anything, so it can't be behind.
+                        _lag = 0;
+                    } else {
+                        long lag = rs.getLong("Seconds_Behind_Master");
+                        _lag = rs.wasNull() ? -1 : lag;
+                    }
+                } finally {
+                    stmt.close();
+                }
+            } finally {
+                conn.close();
+            }
+            usable = _lag >= 0 && _lag <= _maxLag;
+        } catch (SQLException e) {
+            s_logger.debug("Unable to check the read replica: " + e.getMessage());
+            _lag = -1;
+        }
+
+        if (usable != _usable) {
+            if (usable) {
+                s_logger.info("Read replica is " + _lag + " seconds behind, reading from it");
+            } else {
+                s_logger.warn("Read replica is unavailable or " + _lag + " seconds behind, reading from the primary");
+            }
+        }
+        _usable = usable;
+    }
+
+    public ConnectionPool getPool() {
+        return _pool;
+    }
+
+    public Map<String, String> toMap() {
+        Map<String, String> map = new HashMap<String, String>();
+        map.put("usable", Boolean.toString(_usable));
+        map.put("lagSeconds", Long.toString(_lag));
+        map.put("maxLagSeconds", Long.toString(_maxLag));
+        map.put("routed", Long.toString(_routed.get()));
+        map.put("fallbacks", Long.toString(_fallbacks.get()));
+        return map;
+    }
+
+    protected class LagCheckTask extends TimerTask {
+        @Override
+        public void run() {
+            try {
+                checkLag();
+            } catch (Throwable th) {
+                s_logger.warn("Unable to check the read replica", th);
+            }
+        }
+    }
+}
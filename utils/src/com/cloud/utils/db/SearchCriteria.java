@@ -169,6 +169,30 @@ public class SearchCriteria<K> {
         _selectType = sb._selectType;
     }
     
+    protected SearchCriteria(SearchCriteria<K> sc) {
+        _builder = sc._builder;
+        _attrs = sc._attrs;
+        _conditions = sc._conditions;
+        _additionals = sc._additionals != null ? new ArrayList<Condition>(sc._additionals) : null;
+        _params = new HashMap<String, Object[]>(sc._params);
+        _counter = sc._counter;
+        _joins = sc._joins;
+        _selects = sc._selects;
+        _groupBy = sc._groupBy;
+        _groupByValues = sc._groupByValues != null ? new ArrayList<Object>(sc._groupByValues) : null;
+        _resultType = sc._resultType;
+        _selectType = sc._selectType;
+    }
+    
+    /**
+     * @return criteria with the same conditions and parameters, that
+     *         conditions can be added to without changing these.  The joins
+     *         are shared.
+     */
+    public SearchCriteria<K> copy() {
+        return new SearchCriteria<K>(this);
+    }
+    
     public SelectType getSelectType() {
         return _selectType;
     }
@@ -274,6 +298,16 @@ public class SearchCriteria<K> {
         setParameters(name, values);
     }
     
+    /**
+     * Adds the condition that starts the results after the filter's seek
+     * value.  See Filter.setSeek().
+     */
+    public void addSeek(Filter filter) {
+        if (filter != null && filter.getSeekValue() != null) {
+            addAnd(filter.getSeekField(), filter.isSeekAscending() ? Op.GT : Op.LT, filter.getSeekValue());
+        }
+    }
+    
     public void addAnd(Attribute attr, Op op, Object... values) {
         String name = Integer.toString(_counter++);
         addCondition(name, " AND ", attr, op);
@@ -0,0 +1,24 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.utils.db;
+
+import java.util.Iterator;
+
+/**
+ * SearchCursor iterates over the results of a search as they are read from
+ * the database.  It is closed once it is iterated to the end.
+ */
+public interface SearchCursor<T> extends Iterator<T> {
+    /**
+     * Releases the database resources.  It can be called more than once.
+     */
+    void close();
+}
@@ -55,7 +55,19 @@ public class SequenceFetcher {
     }
     
     public <T> T getNextSequence(Class<T> clazz, TableGenerator tg, Object key, boolean isRandom) {
-        Future<T> future = _executors.submit(new Fetcher<T>(clazz, tg, key, isRandom));
+        return fetch(clazz, tg, new Fetcher<T>(clazz, tg, key, isRandom, 1));
+    }
+
+    /**
+     * Reserves count values of the sequence in one update.
+     * @return the first value reserved; the rest follow it by the allocation size.
+     */
+    public <T> T getNextSequenceBlock(Class<T> clazz, TableGenerator tg, int count) {
+        return fetch(clazz, tg, new Fetcher<T>(clazz, tg, null, false, count));
+    }
+
+    protected <T> T fetch(Class<T> clazz, TableGenerator tg, Fetcher<T> fetcher) {
+        Future<T> future = _executors.submit(fetcher);
         try {
             return future.get();
         } catch (Exception e) {
@@ -78,12 +90,14 @@ public class SequenceFetcher {
         Class<T> _clazz;
         Object _key;
         boolean isRandom = false;
+        int _count;
         
-        protected Fetcher(Class<T> clazz, TableGenerator tg, Object key, boolean isRandom) {
+        protected Fetcher(Class<T> clazz, TableGenerator tg, Object key, boolean isRandom, int count) {
             _tg = tg;
             _clazz = clazz;
             _key = key;
             this.isRandom = isRandom;
+            _count = count;
         }
         
         @Override @SuppressWarnings("unchecked")
@@ -111,7 +125,7 @@ public class SequenceFetcher {
                 if(isRandom){
                 	updateStmt.setInt(2, random.nextInt(10) + 1);
                 } else {
-                	updateStmt.setInt(2, _tg.allocationSize());
+                	updateStmt.setInt(2, _tg.allocationSize() * _count);
                 }
                 if (_key == null) {
                     updateStmt.setString(3, _tg.pkColumnValue());
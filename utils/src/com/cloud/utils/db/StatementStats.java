@@ -0,0 +1,103 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.utils.db;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * StatementStats keeps the execution count and a histogram of the execution
+ * times of one sql statement.
+ */
+public class StatementStats {
+    // Upper bounds, in milliseconds, of the histogram buckets.  The last bucket holds the rest.
+    protected static final long[] s_buckets = { 1, 5, 10, 50, 100, 500, 1000, 5000 };
+
+    protected final String _sql;
+    protected final AtomicLong _count = new AtomicLong();
+    protected final AtomicLong _errors = new AtomicLong();
+    protected final AtomicLong _totalNanos = new AtomicLong();
+    protected final AtomicLong _maxNanos = new AtomicLong();
+    protected final AtomicLongArray _histogram = new AtomicLongArray(s_buckets.length + 1);
+
+    public StatementStats(String sql) {
+        _sql = sql;
+    }
+
+    public void record(long nanos, boolean failed) {
+        _count.incrementAndGet();
+        if (failed) {
+            _errors.incrementAndGet();
+        }
+        _totalNanos.addAndGet(nanos);
+
+        long max = _maxNanos.get();
+        while (nanos > max && !_maxNanos.compareAndSet(max, nanos)) {
+            max = _maxNanos.get();
+        }
+
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int bucket = 0;
+        while (bucket < s_buckets.length && millis >= s_buckets[bucket]) {
+            bucket++;
+        }
+        _histogram.incrementAndGet(bucket);
+    }
+
+    public String getSql() {
+        return _sql;
+    }
+
+    public long getCount() {
+        return _count.get();
+    }
+
+    public long getErrorCount() {
+        return _errors.get();
+    }
+
+    public long getTotalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(_totalNanos.get());
+    }
+
+    public long getMaxMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(_maxNanos.get());
+    }
+
+    public long[] getHistogram() {
+        long[] histogram = new long[_histogram.length()];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = _histogram.get(i);
+        }
+        return histogram;
+    }
+
+    public Map<String, String> toMap() {
+        Map<String, String> map = new HashMap<String, String>();
+        map.put("sql", _sql);
+        map.put("count", Long.toString(getCount()));
+        map.put("errors", Long.toString(getErrorCount()));
+        map.put("totalMillis", Long.toString(getTotalMillis()));
+        map.put("maxMillis", Long.toString(getMaxMillis()));
+
+        StringBuilder buff = new StringBuilder();
+        long[] histogram = getHistogram();
+        for (int i = 0; i < histogram.length; i++) {
+            buff.append(i < s_buckets.length ? "<" + s_buckets[i] : ">=" + s_buckets[s_buckets.length - 1]);
+            buff.append("ms:").append(histogram[i]).append(",");
+        }
+        map.put("histogram", buff.toString());
+        return map;
+    }
+}
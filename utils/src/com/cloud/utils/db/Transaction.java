@@ -26,15 +26,6 @@ import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.atomic.AtomicLong;
 
-import javax.sql.DataSource;
-
-import org.apache.commons.dbcp.ConnectionFactory;
-import org.apache.commons.dbcp.DriverManagerConnectionFactory;
-import org.apache.commons.dbcp.PoolableConnectionFactory;
-import org.apache.commons.dbcp.PoolingDataSource;
-import org.apache.commons.pool.KeyedObjectPoolFactory;
-import org.apache.commons.pool.impl.GenericObjectPool;
-import org.apache.commons.pool.impl.StackKeyedObjectPoolFactory;
 import org.apache.log4j.Logger;
 import org.jasypt.encryption.pbe.StandardPBEStringEncryptor;
 import org.jasypt.properties.EncryptableProperties;
@@ -78,6 +69,12 @@ public class Transaction {
     public static final short CONNECTED_DB = -1;
 
     private static AtomicLong s_id = new AtomicLong();
+    private static final ThreadLocal<long[]> s_statementCount = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
     private static final TransactionMBeanImpl s_mbean = new TransactionMBeanImpl();
     static {
         try {
@@ -91,9 +88,15 @@ public class Transaction {
     private long _id;
 
     private final LinkedList<Pair<String, Long>> _lockTimes = new LinkedList<Pair<String, Long>>();
+    private final LinkedList<Runnable> _commitHooks = new LinkedList<Runnable>();
+    private final LinkedList<Runnable> _rollbackHooks = new LinkedList<Runnable>();
 
     private String _name;
     private Connection _conn;
+    private Connection _readConn;
+    private boolean _readOnly;
+    // the last statement ran on the read replica
+    private boolean _readingReplica;
     private boolean _txn;
     private short _dbId;
     private long _txnTime;
@@ -110,6 +113,15 @@ public class Transaction {
         return txn;
     }
 
+    /**
+     * @return number of statements the thread has prepared through its
+     *         transactions.  The difference before and after a piece of work
+     *         is the number of statements it ran.
+     */
+    public static long getStatementCount() {
+        return s_statementCount.get()[0];
+    }
+
     public static Transaction open(final short databaseId) {
         String name = buildName();
         if (name == null) {
@@ -139,6 +151,33 @@ public class Transaction {
         return open(name, CLOUD_DB, false);
     }
 
+    /**
+     * Opens the transaction like open(name).  If this starts a new
+     * transaction, statements run outside of a db transaction read from the
+     * read replica, if one is configured and is not too far behind.  Once a
+     * db transaction is started or anything but a SELECT is run, it goes back
+     * to the primary so it reads its own writes.
+     */
+    public static Transaction openReadOnly(final String name) {
+        Transaction txn = open(name);
+        if (txn._stack.size() == 1 && txn._dbId == CLOUD_DB) {
+            txn._readOnly = true;
+        }
+        return txn;
+    }
+
+    public boolean isReadOnly() {
+        return _readOnly;
+    }
+
+    /**
+     * @return true if the last statement ran on the read replica.  What it
+     *         read may be behind the primary and must not be cached.
+     */
+    public boolean isReadingReplica() {
+        return _readingReplica;
+    }
+
     public static Transaction open(final String name, final short databaseId, final boolean forceDbChange) {
         Transaction txn = tls.get();
         boolean isNew = false;
@@ -190,6 +229,67 @@ public class Transaction {
         return _txn;
     }
 
+    /**
+     * Runs the hook once the changes made in this transaction are committed.
+     * The hook is dropped if the transaction is rolled back.  If there's no
+     * transaction, the changes are already committed and the hook is run now.
+     */
+    public void runAfterCommit(Runnable hook) {
+        if (!_txn) {
+            hook.run();
+            return;
+        }
+        _commitHooks.add(hook);
+    }
+
+    /**
+     * Runs the hook if this transaction is rolled back, to undo what was done
+     * outside of the database for it.  The hook is dropped if the transaction
+     * commits.  If there's no transaction, there's nothing to roll back and
+     * the hook is dropped.
+     */
+    public void runAfterRollback(Runnable hook) {
+        if (_txn) {
+            _rollbackHooks.add(hook);
+        }
+    }
+
+    protected void runRollbackHooks() {
+        while (!_rollbackHooks.isEmpty()) {
+            Runnable hook = _rollbackHooks.removeFirst();
+            try {
+                hook.run();
+            } catch (Exception e) {
+                s_logger.warn("Unable to run the rollback hook " + hook, e);
+            }
+        }
+    }
+
+    protected void runCommitHooks() {
+        while (!_commitHooks.isEmpty()) {
+            Runnable hook = _commitHooks.removeFirst();
+            try {
+                hook.run();
+            } catch (Exception e) {
+                s_logger.warn("Unable to run the commit hook " + hook, e);
+            }
+        }
+    }
+
+    /**
+     * @return a standalone connection to the read replica if it's usable, or to the primary if not.
+     */
+    public static Connection getStandaloneReadConnection() throws SQLException {
+        if (s_replica != null) {
+            Connection conn = s_replica.getConnection();
+            if (conn != null) {
+                conn.setAutoCommit(true);
+                return conn;
+            }
+        }
+        return getStandaloneConnectionWithException();
+    }
+
     public static Connection getStandaloneConnectionWithException() throws SQLException {
         Connection conn = s_ds.getConnection();
         if (s_connLogger.isTraceEnabled()) {
@@ -418,7 +518,7 @@ public class Transaction {
     }
 
     public PreparedStatement prepareStatement(final String sql) throws SQLException {
-        final Connection conn = getConnection();
+        final Connection conn = getConnection(sql);
         final PreparedStatement pstmt = conn.prepareStatement(sql);
         if (s_stmtLogger.isTraceEnabled()) {
             s_stmtLogger.trace("Preparing: " + sql);
@@ -438,7 +538,7 @@ public class Transaction {
      * @see java.sql.Connection
      */
     public PreparedStatement prepareAutoCloseStatement(final String sql, final int autoGeneratedKeys) throws SQLException {
-        final Connection conn = getConnection();
+        final Connection conn = getConnection(sql);
         final PreparedStatement pstmt = conn.prepareStatement(sql, autoGeneratedKeys);
         if (s_stmtLogger.isTraceEnabled()) {
             s_stmtLogger.trace("Preparing: " + sql);
@@ -460,7 +560,7 @@ public class Transaction {
      * @see java.sql.Connection
      */
     public PreparedStatement prepareAutoCloseStatement(final String sql, final String[] columnNames) throws SQLException {
-        final Connection conn = getConnection();
+        final Connection conn = getConnection(sql);
         final PreparedStatement pstmt = conn.prepareStatement(sql, columnNames);
         if (s_stmtLogger.isTraceEnabled()) {
             s_stmtLogger.trace("Preparing: " + sql);
@@ -481,7 +581,7 @@ public class Transaction {
      * @see java.sql.Connection
      */
     public PreparedStatement prepareAutoCloseStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
-        final Connection conn = getConnection();
+        final Connection conn = getConnection(sql);
         final PreparedStatement pstmt = conn.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
         if (s_stmtLogger.isTraceEnabled()) {
             s_stmtLogger.trace("Preparing: " + sql);
@@ -503,6 +603,9 @@ public class Transaction {
      * @throws SQLException
      */
     public Connection getConnection() throws SQLException {
+        // There's no telling what the caller runs on it, so stay on the primary from now on.
+        _readOnly = false;
+
         if (_conn == null) {
             switch (_dbId) {
             case CLOUD_DB:
@@ -584,7 +687,11 @@ public class Transaction {
             rollbackTransaction();
         }
         _txn = false;
+        _readOnly = false;
+        _readingReplica = false;
         _name = null;
+        _commitHooks.clear();
+        _rollbackHooks.clear();
 
         closeConnection();
 
@@ -683,16 +790,79 @@ public class Transaction {
                 clearLockTimes();
                 closeConnection();
             }
+            _rollbackHooks.clear();
+            runCommitHooks();
             return true;
         } catch (final SQLException e) {
             rollbackTransaction();
+            _commitHooks.clear();
+            runRollbackHooks();
             throw new CloudRuntimeException("Unable to commit or close the connection. ", e);
         }
     }
 
+    /**
+     * Returns the connection to run the sql on.  A read only transaction runs
+     * plain SELECTs outside of a db transaction on the read replica, if it's
+     * usable.  Anything else moves it back to the primary.
+     */
+    protected Connection getConnection(final String sql) throws SQLException {
+        s_statementCount.get()[0]++;
+        if (_readOnly && !_txn && isPlainSelect(sql)) {
+            Connection conn = getReadConnection();
+            if (conn != null) {
+                _readingReplica = true;
+                return conn;
+            }
+        }
+        _readingReplica = false;
+        return getConnection();
+    }
+
+    protected static boolean isPlainSelect(final String sql) {
+        final String trimmed = sql.trim();
+        if (!trimmed.regionMatches(true, 0, "SELECT", 0, 6)) {
+            return false;
+        }
+        final String upper = trimmed.toUpperCase();
+        return !upper.contains("FOR UPDATE") && !upper.contains("LOCK IN SHARE MODE");
+    }
+
+    protected Connection getReadConnection() throws SQLException {
+        if (_readConn != null) {
+            return _readConn;
+        }
+        if (s_replica == null) {
+            return null;
+        }
+
+        _readConn = s_replica.getConnection();
+        if (_readConn == null) {
+            return null;
+        }
+        _readConn.setAutoCommit(true);
+        _stack.push(new StackElement(CREATE_CONN, null));
+        if (s_connLogger.isTraceEnabled()) {
+            s_connLogger.trace("Creating a read replica connection: dbconn" + System.identityHashCode(_readConn) + ". Stack: " + buildName());
+        }
+        return _readConn;
+    }
+
     protected void closeConnection() {
         closePreviousStatement();
 
+        if (_readConn != null) {
+            try {
+                if (s_connLogger.isTraceEnabled()) {
+                    s_connLogger.trace("Closing read replica connection: dbconn" + System.identityHashCode(_readConn));
+                }
+                _readConn.close();
+            } catch (final SQLException e) {
+                s_logger.warn("Unable to close read replica connection", e);
+            }
+            _readConn = null;
+        }
+
         if (_conn == null) {
             return;
         }
@@ -791,6 +961,7 @@ public class Transaction {
         }
         assert (!hasTxnInStack()) : "Who's rolling back transaction when there's still txn in stack?";
         _txn = false;
+        _commitHooks.clear();
         try {
             if (_conn != null) {
                 if (s_logger.isDebugEnabled()) {
@@ -803,6 +974,7 @@ public class Transaction {
         } catch(final SQLException e) {
             s_logger.warn("Unable to rollback", e);
         }
+        runRollbackHooks();
     }
 
     protected void rollbackSavepoint(Savepoint sp) {
@@ -947,8 +1119,9 @@ public class Transaction {
         }
     }
 
-    private static DataSource s_ds;
-    private static DataSource s_usageDS;
+    private static ConnectionPool s_ds;
+    private static ConnectionPool s_usageDS;
+    private static ReadReplica s_replica;
     static {
         try {
             final File dbPropsFile = PropertiesUtil.findConfigFile("db.properties");
@@ -962,17 +1135,11 @@ public class Transaction {
             }
             dbProps.load(new FileInputStream(dbPropsFile));
             
-            // FIXME:  If params are missing...default them????
-            final int cloudMaxActive = Integer.parseInt(dbProps.getProperty("db.cloud.maxActive"));
-            final int cloudMaxIdle = Integer.parseInt(dbProps.getProperty("db.cloud.maxIdle"));
-            final long cloudMaxWait = Long.parseLong(dbProps.getProperty("db.cloud.maxWait"));
-            final String cloudUsername = dbProps.getProperty("db.cloud.username");
-            final String cloudPassword = dbProps.getProperty("db.cloud.password");
+            // The pool reads the rest of the db.<name>.* keys itself.
             final String cloudHost = dbProps.getProperty("db.cloud.host");
             final int cloudPort = Integer.parseInt(dbProps.getProperty("db.cloud.port"));
             final String cloudDbName = dbProps.getProperty("db.cloud.name");
             final boolean cloudAutoReconnect = Boolean.parseBoolean(dbProps.getProperty("db.cloud.autoReconnect"));
-            final String cloudValidationQuery = dbProps.getProperty("db.cloud.validationQuery");
             final String cloudIsolationLevel = dbProps.getProperty("db.cloud.isolation.level");
             int isolationLevel = Connection.TRANSACTION_READ_COMMITTED;
             if (cloudIsolationLevel == null) {
@@ -988,14 +1155,6 @@ public class Transaction {
             } else {
                 s_logger.warn("Unknown isolation level " + cloudIsolationLevel + ".  Using read uncommitted");
             }
-            final boolean cloudTestOnBorrow = Boolean.parseBoolean(dbProps.getProperty("db.cloud.testOnBorrow"));
-            final boolean cloudTestWhileIdle = Boolean.parseBoolean(dbProps.getProperty("db.cloud.testWhileIdle"));
-            final long cloudTimeBtwEvictionRunsMillis = Long.parseLong(dbProps.getProperty("db.cloud.timeBetweenEvictionRunsMillis"));
-            final long cloudMinEvcitableIdleTimeMillis = Long.parseLong(dbProps.getProperty("db.cloud.minEvictableIdleTimeMillis"));
-            final boolean cloudRemoveAbandoned = Boolean.parseBoolean(dbProps.getProperty("db.cloud.removeAbandoned"));
-            final int cloudRemoveAbandonedTimeout = Integer.parseInt(dbProps.getProperty("db.cloud.removeAbandonedTimeout"));
-            final boolean cloudLogAbandoned = Boolean.parseBoolean(dbProps.getProperty("db.cloud.logAbandoned"));
-            final boolean cloudPoolPreparedStatements = Boolean.parseBoolean(dbProps.getProperty("db.cloud.poolPreparedStatements"));
             final String url = dbProps.getProperty("db.cloud.url.params");
             final boolean useSSL = Boolean.parseBoolean(dbProps.getProperty("db.cloud.useSSL"));
             if(useSSL){
@@ -1005,43 +1164,66 @@ public class Transaction {
                 System.setProperty("javax.net.ssl.trustStorePassword", dbProps.getProperty("db.cloud.trustStorePassword"));
             }
 
-            final GenericObjectPool cloudConnectionPool = new GenericObjectPool(null, cloudMaxActive, GenericObjectPool.DEFAULT_WHEN_EXHAUSTED_ACTION,
-                    cloudMaxWait, cloudMaxIdle, cloudTestOnBorrow, false, cloudTimeBtwEvictionRunsMillis, 1, cloudMinEvcitableIdleTimeMillis, cloudTestWhileIdle);
-            final ConnectionFactory cloudConnectionFactory = new DriverManagerConnectionFactory("jdbc:mysql://"+cloudHost + ":" + cloudPort + "/" + cloudDbName +
-                    "?autoReconnect="+cloudAutoReconnect + (url != null ? "&" + url : "")+ (useSSL ? "&useSSL=true" : ""), cloudUsername, cloudPassword);
-            final KeyedObjectPoolFactory poolableObjFactory = (cloudPoolPreparedStatements ? new StackKeyedObjectPoolFactory() : null);
-            final PoolableConnectionFactory cloudPoolableConnectionFactory = new PoolableConnectionFactory(cloudConnectionFactory, cloudConnectionPool, poolableObjFactory,
-                    cloudValidationQuery, false, false, isolationLevel);
-            s_ds = new PoolingDataSource(cloudPoolableConnectionFactory.getPool());
+            s_ds = createPool("cloud", "jdbc:mysql://"+cloudHost + ":" + cloudPort + "/" + cloudDbName +
+                    "?autoReconnect="+cloudAutoReconnect + (url != null ? "&" + url : "")+ (useSSL ? "&useSSL=true" : ""), dbProps, isolationLevel);
 
             // configure the usage db
-            final int usageMaxActive = Integer.parseInt(dbProps.getProperty("db.usage.maxActive"));
-            final int usageMaxIdle = Integer.parseInt(dbProps.getProperty("db.usage.maxIdle"));
-            final long usageMaxWait = Long.parseLong(dbProps.getProperty("db.usage.maxWait"));
-            final String usageUsername = dbProps.getProperty("db.usage.username");
-            final String usagePassword = dbProps.getProperty("db.usage.password");
             final String usageHost = dbProps.getProperty("db.usage.host");
             final int usagePort = Integer.parseInt(dbProps.getProperty("db.usage.port"));
             final String usageDbName = dbProps.getProperty("db.usage.name");
             final boolean usageAutoReconnect = Boolean.parseBoolean(dbProps.getProperty("db.usage.autoReconnect"));
-            final GenericObjectPool usageConnectionPool = new GenericObjectPool(null, usageMaxActive, GenericObjectPool.DEFAULT_WHEN_EXHAUSTED_ACTION,
-                    usageMaxWait, usageMaxIdle);
-            final ConnectionFactory usageConnectionFactory = new DriverManagerConnectionFactory("jdbc:mysql://"+usageHost + ":" + usagePort + "/" + usageDbName +
-                    "?autoReconnect="+usageAutoReconnect, usageUsername, usagePassword);
-            final PoolableConnectionFactory usagePoolableConnectionFactory = new PoolableConnectionFactory(usageConnectionFactory, usageConnectionPool,
-                    new StackKeyedObjectPoolFactory(), null, false, false);
-            s_usageDS = new PoolingDataSource(usagePoolableConnectionFactory.getPool());
+            final String usageUrl = dbProps.getProperty("db.usage.url.params");
+            s_usageDS = createPool("usage", "jdbc:mysql://"+usageHost + ":" + usagePort + "/" + usageDbName +
+                    "?autoReconnect="+usageAutoReconnect + (usageUrl != null ? "&" + usageUrl : ""), dbProps, -1);
+
+            // configure the read replica of the cloud db, if there's one
+            final String replicaHost = dbProps.getProperty("db.replica.host");
+            if (replicaHost != null && replicaHost.trim().length() > 0) {
+                // Anything not set for the replica is the same as for the cloud db.
+                for (String key : dbProps.stringPropertyNames()) {
+                    if (key.startsWith("db.cloud.")) {
+                        String replicaKey = "db.replica." + key.substring("db.cloud.".length());
+                        if (dbProps.getProperty(replicaKey) == null) {
+                            dbProps.setProperty(replicaKey, dbProps.getProperty(key));
+                        }
+                    }
+                }
+                final int replicaPort = Integer.parseInt(dbProps.getProperty("db.replica.port"));
+                final String replicaDbName = dbProps.getProperty("db.replica.name");
+                final String replicaUrl = dbProps.getProperty("db.replica.url.params");
+                final ConnectionPool replicaDS = createPool("replica", "jdbc:mysql://" + replicaHost + ":" + replicaPort + "/" + replicaDbName +
+                        "?autoReconnect=" + cloudAutoReconnect + (replicaUrl != null ? "&" + replicaUrl : "") + (useSSL ? "&useSSL=true" : ""), dbProps, isolationLevel);
+                final long maxLag = Long.parseLong(dbProps.getProperty("db.replica.maxLag", "10"));
+                final long lagCheckInterval = Long.parseLong(dbProps.getProperty("db.replica.lagCheckInterval", "5000"));
+                s_replica = new ReadReplica(replicaDS, maxLag, lagCheckInterval);
+                s_mbean.addConnectionPool(replicaDS);
+                s_mbean.setReadReplica(s_replica);
+            }
         } catch (final Exception e) {
-            final GenericObjectPool connectionPool = new GenericObjectPool(null, 5);
-            final ConnectionFactory connectionFactory = new DriverManagerConnectionFactory("jdbc:mysql://localhost:3306/cloud", "cloud", "cloud");
-            final PoolableConnectionFactory poolableConnectionFactory = new PoolableConnectionFactory(connectionFactory, connectionPool, null, null, false, true);
-            s_ds = new PoolingDataSource(/*connectionPool*/ poolableConnectionFactory.getPool());
-
-            final GenericObjectPool connectionPoolUsage = new GenericObjectPool(null, 5);
-            final ConnectionFactory connectionFactoryUsage = new DriverManagerConnectionFactory("jdbc:mysql://localhost:3306/cloud_usage", "cloud", "cloud");
-            final PoolableConnectionFactory poolableConnectionFactoryUsage = new PoolableConnectionFactory(connectionFactoryUsage, connectionPoolUsage, null, null, false, true);
-            s_usageDS = new PoolingDataSource(poolableConnectionFactoryUsage.getPool());
+            final Properties defaults = new Properties();
+            for (String db : new String[] { "cloud", "usage" }) {
+                defaults.setProperty("db." + db + ".username", "cloud");
+                defaults.setProperty("db." + db + ".password", "cloud");
+                defaults.setProperty("db." + db + ".maxActive", "5");
+            }
+            s_ds = new ConnectionPoolImpl("cloud", "jdbc:mysql://localhost:3306/cloud", defaults, -1);
+            s_usageDS = new ConnectionPoolImpl("usage", "jdbc:mysql://localhost:3306/cloud_usage", defaults, -1);
             s_logger.warn("Unable to load db configuration, using defaults with 5 connections.  Please check your configuration", e);
         }
+        s_mbean.addConnectionPool(s_ds);
+        s_mbean.addConnectionPool(s_usageDS);
+    }
+
+    /**
+     * Creates the pool named by db.<name>.pool.class, or ConnectionPoolImpl if
+     * there's none.
+     */
+    protected static ConnectionPool createPool(String name, String url, Properties dbProps, int isolationLevel) throws Exception {
+        final String poolClass = dbProps.getProperty("db." + name + ".pool.class");
+        if (poolClass == null) {
+            return new ConnectionPoolImpl(name, url, dbProps, isolationLevel);
+        }
+        final Class<?> clazz = Class.forName(poolClass);
+        return (ConnectionPool)clazz.getConstructor(String.class, String.class, Properties.class, int.class).newInstance(name, url, dbProps, isolationLevel);
     }
 }
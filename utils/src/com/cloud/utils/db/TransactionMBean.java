@@ -26,4 +26,20 @@ public interface TransactionMBean {
     
     List<Map<String, String>> getTransactionsWithDatabaseConnection();
     
+    /**
+     * @return active and idle counts and wait times of each connection pool.
+     */
+    List<Map<String, String>> getConnectionPools();
+    
+    /**
+     * @return execution count and time histogram of each sql statement.
+     */
+    List<Map<String, String>> getStatementStats();
+    
+    void resetConnectionPoolStatistics();
+    
+    /**
+     * @return lag and routing counts of the read replica; empty if there's none.
+     */
+    Map<String, String> getReadReplica();
 }
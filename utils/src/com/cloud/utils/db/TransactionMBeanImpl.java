@@ -18,6 +18,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.management.StandardMBean;
 
@@ -26,6 +27,8 @@ import com.cloud.utils.db.Transaction.StackElement;
 public class TransactionMBeanImpl extends StandardMBean implements TransactionMBean {
     
     Map<Long, Transaction> _txns = new ConcurrentHashMap<Long, Transaction>();
+    List<ConnectionPool> _pools = new CopyOnWriteArrayList<ConnectionPool>();
+    volatile ReadReplica _replica;
     
     public TransactionMBeanImpl() {
         super(TransactionMBean.class, false);
@@ -39,6 +42,14 @@ public class TransactionMBeanImpl extends StandardMBean implements TransactionMB
         _txns.remove(txn.getId());
     }
     
+    public void addConnectionPool(ConnectionPool pool) {
+        _pools.add(pool);
+    }
+    
+    public void setReadReplica(ReadReplica replica) {
+        _replica = replica;
+    }
+    
     @Override
     public int getTransactionCount() {
         return _txns.size();
@@ -106,4 +117,55 @@ public class TransactionMBeanImpl extends StandardMBean implements TransactionMB
         }
         return txns;
     }
-}
\ No newline at end of file
+
+    @Override
+    public List<Map<String, String>> getConnectionPools() {
+        ArrayList<Map<String, String>> pools = new ArrayList<Map<String, String>>();
+        for (ConnectionPool pool : _pools) {
+            Map<String, String> map = new HashMap<String, String>();
+            map.put("name", pool.getName());
+            map.put("maxActive", Integer.toString(pool.getMaxActive()));
+            map.put("active", Integer.toString(pool.getActiveCount()));
+            map.put("idle", Integer.toString(pool.getIdleCount()));
+            map.put("waits", Long.toString(pool.getWaitCount()));
+            map.put("waitMillis", Long.toString(pool.getWaitMillis()));
+            map.put("maxWaitMillis", Long.toString(pool.getMaxWaitMillis()));
+            map.put("timeouts", Long.toString(pool.getTimeoutCount()));
+            map.put("created", Long.toString(pool.getCreatedCount()));
+            map.put("destroyed", Long.toString(pool.getDestroyedCount()));
+            map.put("statementCacheHits", Long.toString(pool.getStatementCacheHitCount()));
+            map.put("statementCacheMisses", Long.toString(pool.getStatementCacheMissCount()));
+            pools.add(map);
+        }
+        return pools;
+    }
+
+    @Override
+    public List<Map<String, String>> getStatementStats() {
+        ArrayList<Map<String, String>> stats = new ArrayList<Map<String, String>>();
+        for (ConnectionPool pool : _pools) {
+            for (StatementStats stat : pool.getStatementStats()) {
+                Map<String, String> map = stat.toMap();
+                map.put("pool", pool.getName());
+                stats.add(map);
+            }
+        }
+        return stats;
+    }
+
+    @Override
+    public void resetConnectionPoolStatistics() {
+        for (ConnectionPool pool : _pools) {
+            pool.resetStatistics();
+        }
+    }
+
+    @Override
+    public Map<String, String> getReadReplica() {
+        ReadReplica replica = _replica;
+        if (replica == null) {
+            return new HashMap<String, String>();
+        }
+        return replica.toMap();
+    }
+}
@@ -0,0 +1,204 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.utils.nio;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.mgmt.JmxUtil;
+
+/**
+ * BufferPool hands out direct ByteBuffers in power of two size classes so
+ * that the NIO transport does not have to allocate fresh buffers for every
+ * packet it wraps or unwraps.  Buffers larger than the biggest size class
+ * are allocated on the heap and are simply dropped on release.
+ */
+public class BufferPool extends StandardMBean implements BufferPoolMBean {
+    private static final Logger s_logger = Logger.getLogger(BufferPool.class);
+
+    protected static final int MIN_SIZE_SHIFT = 9;      // 512 bytes
+    protected static final int MAX_SIZE_SHIFT = 20;     // 1 MB
+
+    private static final BufferPool s_pool = new BufferPool(NumbersUtil.parseInt(System.getProperty("cloud.nio.buffer.pool.size"), 256));
+    static {
+        try {
+            JmxUtil.registerMBean("NIO", "Buffer Pool", s_pool);
+        } catch (Exception e) {
+            s_logger.error("Unable to register mbean for the nio buffer pool", e);
+        }
+    }
+
+    private final int _maxBuffersPerSize;
+    private final ConcurrentLinkedQueue<ByteBuffer>[] _buckets;
+    private final AtomicInteger[] _counts;
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _releases = new AtomicLong();
+    private final AtomicLong _discards = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    public BufferPool(int maxBuffersPerSize) {
+        super(BufferPoolMBean.class, false);
+        _maxBuffersPerSize = maxBuffersPerSize;
+        int classes = MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1;
+        _buckets = (ConcurrentLinkedQueue<ByteBuffer>[]) new ConcurrentLinkedQueue<?>[classes];
+        _counts = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            _buckets[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            _counts[i] = new AtomicInteger();
+        }
+    }
+
+    public static BufferPool getInstance() {
+        return s_pool;
+    }
+
+    /**
+     * @param size minimum capacity needed.
+     * @return a cleared buffer with at least size bytes of capacity.
+     */
+    public ByteBuffer acquire(int size) {
+        int index = sizeClass(size);
+        if (index < 0) {
+            _misses.incrementAndGet();
+            return ByteBuffer.allocate(size);
+        }
+
+        ByteBuffer buffer = _buckets[index].poll();
+        if (buffer != null) {
+            _counts[index].decrementAndGet();
+            _hits.incrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+
+        _misses.incrementAndGet();
+        return ByteBuffer.allocateDirect(1 << (index + MIN_SIZE_SHIFT));
+    }
+
+    /**
+     * Returns a buffer to the pool.  The caller must not touch the buffer
+     * afterwards.  Buffers that did not come from the pool are ignored.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+
+        int capacity = buffer.capacity();
+        int index = sizeClass(capacity);
+        if (!buffer.isDirect() || index < 0 || (1 << (index + MIN_SIZE_SHIFT)) != capacity) {
+            _discards.incrementAndGet();
+            return;
+        }
+
+        if (_counts[index].incrementAndGet() > _maxBuffersPerSize) {
+            _counts[index].decrementAndGet();
+            _discards.incrementAndGet();
+            return;
+        }
+
+        buffer.clear();
+        _buckets[index].offer(buffer);
+        _releases.incrementAndGet();
+    }
+
+    /**
+     * @return index of the size class that fits size; -1 if it is too big to be pooled.
+     */
+    protected static int sizeClass(int size) {
+        if (size <= (1 << MIN_SIZE_SHIFT)) {
+            return 0;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        if (shift > MAX_SIZE_SHIFT) {
+            return -1;
+        }
+        return shift - MIN_SIZE_SHIFT;
+    }
+
+    @Override
+    public long getHitCount() {
+        return _hits.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return _misses.get();
+    }
+
+    @Override
+    public long getReleaseCount() {
+        return _releases.get();
+    }
+
+    @Override
+    public long getDiscardCount() {
+        return _discards.get();
+    }
+
+    @Override
+    public int getPooledBufferCount() {
+        int count = 0;
+        for (AtomicInteger c : _counts) {
+            count += c.get();
+        }
+        return count;
+    }
+
+    @Override
+    public long getPooledBytes() {
+        long bytes = 0;
+        for (int i = 0; i < _counts.length; i++) {
+            bytes += (long)_counts[i].get() << (i + MIN_SIZE_SHIFT);
+        }
+        return bytes;
+    }
+
+    @Override
+    public Map<Integer, Integer> getPooledBuffersBySize() {
+        Map<Integer, Integer> sizes = new HashMap<Integer, Integer>();
+        for (int i = 0; i < _counts.length; i++) {
+            int count = _counts[i].get();
+            if (count > 0) {
+                sizes.put(1 << (i + MIN_SIZE_SHIFT), count);
+            }
+        }
+        return sizes;
+    }
+
+    @Override
+    public void resetCounters() {
+        _hits.set(0);
+        _misses.set(0);
+        _releases.set(0);
+        _discards.set(0);
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < _buckets.length; i++) {
+            while (_buckets[i].poll() != null) {
+                _counts[i].decrementAndGet();
+            }
+        }
+    }
+}
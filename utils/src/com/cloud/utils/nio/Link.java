@@ -38,12 +38,14 @@ import javax.net.ssl.SSLEngineResult.HandshakeStatus;
 
 import org.apache.log4j.Logger;
 
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.PropertiesUtil;
 
 /**
  */
 public class Link {
     private static final Logger s_logger = Logger.getLogger(Link.class);
+    private static final ByteBuffer[] CLOSE_REQUEST = new ByteBuffer[0];
    
     private final InetSocketAddress _addr;
     private final NioConnection _connection;
@@ -56,6 +58,9 @@ public class Link {
     private boolean _gotFollowingPacket;
     
     private SSLEngine _sslEngine;
+    private final BufferPool _bufferPool;
+    private final ByteBuffer _headBuffer;
+    private volatile byte _peerCapabilities;
 
     public Link(InetSocketAddress addr, NioConnection connection) {
         _addr = addr;
@@ -66,6 +71,8 @@ public class Link {
         _writeQueue = new ConcurrentLinkedQueue<ByteBuffer[]>();
         _readHeader = true;
         _gotFollowingPacket = false;
+        _bufferPool = connection != null ? connection.getBufferPool() : BufferPool.getInstance();
+        _headBuffer = ByteBuffer.allocate(4);
     }
     
     public Link (Link link) {
@@ -88,6 +95,17 @@ public class Link {
         _sslEngine = sslEngine;
     }
 
+    /**
+     * @return what the peer said it can decode in the last packet it sent; 0 if it hasn't said.
+     */
+    public byte getPeerCapabilities() {
+        return _peerCapabilities;
+    }
+
+    public void setPeerCapabilities(byte capabilities) {
+        _peerCapabilities = capabilities;
+    }
+
     /**
      * No user, so comment it out.
      * 
@@ -131,13 +149,19 @@ public class Link {
     }
     */
     
-    private static void doWrite(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine) throws IOException {
+    private static void doWrite(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine, BufferPool pool, ByteBuffer headBuf) throws IOException {
         SSLSession sslSession = sslEngine.getSession();
-        ByteBuffer pkgBuf = ByteBuffer.allocate(sslSession.getPacketBufferSize() + 40);
+        ByteBuffer pkgBuf = pool.acquire(sslSession.getPacketBufferSize() + 40);
+        try {
+            doWrite(ch, buffers, sslEngine, pkgBuf, headBuf);
+        } finally {
+            pool.release(pkgBuf);
+        }
+    }
+
+    private static void doWrite(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine, ByteBuffer pkgBuf, ByteBuffer headBuf) throws IOException {
         SSLEngineResult engResult;
 
-        ByteBuffer headBuf = ByteBuffer.allocate(4);
-        
         int totalLen = 0;
         for (ByteBuffer buffer : buffers) {
             totalLen += buffer.limit();
@@ -197,13 +221,15 @@ public class Link {
      */
     public static void write(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine) throws IOException {
         synchronized(ch) {
-            doWrite(ch, buffers, sslEngine);
+            doWrite(ch, buffers, sslEngine, BufferPool.getInstance(), ByteBuffer.allocate(4));
         } 
     }
     
     /* SSL has limitation of 16k, we may need to split packets. 18000 is 16k + some extra SSL informations */
     protected static final int      MAX_SIZE_PER_PACKET = 18000;
     protected static final int      HEADER_FLAG_FOLLOWING = 0x10000;
+    /* Upper bound on a reassembled message so a bad peer can't make us grow the plaintext buffer forever */
+    protected static final int      MAX_PLAINTEXT_SIZE = NumbersUtil.parseInt(System.getProperty("cloud.nio.max.message.size"), 128 * 1024 * 1024);
     
     public byte[] read(SocketChannel ch) throws IOException {
         if (_readHeader) {   // Start of a packet
@@ -231,7 +257,8 @@ public class Link {
             }
             
             if (!_gotFollowingPacket) {
-                _plaintextBuffer = ByteBuffer.allocate(2000);
+                _bufferPool.release(_plaintextBuffer);
+                _plaintextBuffer = _bufferPool.acquire(2000);
             }
             
             if ((header & HEADER_FLAG_FOLLOWING) != 0) {
@@ -265,16 +292,19 @@ public class Link {
         
         _readBuffer.flip();
 
-        ByteBuffer appBuf;
-
         SSLSession sslSession = _sslEngine.getSession();
         SSLEngineResult engResult;
         int remaining = 0;
+        int appBufSize = sslSession.getApplicationBufferSize() + 40;
 
         while (_readBuffer.hasRemaining()) {
             remaining = _readBuffer.remaining();
-            appBuf = ByteBuffer.allocate(sslSession.getApplicationBufferSize() + 40);
-            engResult = _sslEngine.unwrap(_readBuffer, appBuf);
+            if (_plaintextBuffer.remaining() < appBufSize) {
+                // Unwrap straight into _plaintextBuffer, so make sure it can hold a full SSL record
+                expandPlaintextBuffer(appBufSize);
+            }
+            int start = _plaintextBuffer.position();
+            engResult = _sslEngine.unwrap(_readBuffer, _plaintextBuffer);
             if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED &&
                     engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
                     engResult.getStatus() != SSLEngineResult.Status.OK) {
@@ -283,18 +313,8 @@ public class Link {
             if (remaining == _readBuffer.remaining()) {
                 throw new IOException("SSL: Unable to unwrap received data! still remaining " + remaining + "bytes!");
             }
-            
-            appBuf.flip();
-            if (_plaintextBuffer.remaining() < appBuf.limit()) {
-                // We need to expand _plaintextBuffer for more data
-                ByteBuffer newBuffer = ByteBuffer.allocate(_plaintextBuffer.capacity() + appBuf.limit() * 5);
-                _plaintextBuffer.flip();
-                newBuffer.put(_plaintextBuffer);
-                _plaintextBuffer = newBuffer;
-            }
-            _plaintextBuffer.put(appBuf);
             if (s_logger.isTraceEnabled()) {
-                s_logger.trace("Done with packet: " + appBuf.limit());
+                s_logger.trace("Done with packet: " + (_plaintextBuffer.position() - start));
             }
         }
         
@@ -305,6 +325,8 @@ public class Link {
             _plaintextBuffer.flip();
             byte[] result = new byte[_plaintextBuffer.limit()];
             _plaintextBuffer.get(result);
+            _bufferPool.release(_plaintextBuffer);
+            _plaintextBuffer = null;
             return result;
         } else {
             if (s_logger.isTraceEnabled()) {
@@ -314,6 +336,19 @@ public class Link {
         }
     }
     
+    private void expandPlaintextBuffer(int needed) throws IOException {
+        if (_plaintextBuffer.position() > MAX_PLAINTEXT_SIZE) {
+            throw new IOException("Message is bigger than the allowed " + MAX_PLAINTEXT_SIZE + " bytes");
+        }
+        // Double it so a large message doesn't cost us a copy per packet
+        int required = _plaintextBuffer.position() + needed;
+        ByteBuffer newBuffer = _bufferPool.acquire(Math.max(required, Math.min(_plaintextBuffer.capacity() * 2, MAX_PLAINTEXT_SIZE + needed)));
+        _plaintextBuffer.flip();
+        newBuffer.put(_plaintextBuffer);
+        _bufferPool.release(_plaintextBuffer);
+        _plaintextBuffer = newBuffer;
+    }
+    
     public void send(byte[] data) throws ClosedChannelException {
         send(data, false);
     }
@@ -323,24 +358,18 @@ public class Link {
     }
     
     public void send(ByteBuffer[] data, boolean close) throws ClosedChannelException {
-        ByteBuffer[] item = new ByteBuffer[data.length + 1];
-        int remaining = 0;
-        for (int i = 0; i < data.length; i++) {
-            remaining += data[i].remaining();
-            item[i + 1] = data[i];
-        }
-        
-        item[0] = ByteBuffer.allocate(4);
-        item[0].putInt(remaining);
-        item[0].flip();
-        
         if (s_logger.isTraceEnabled()) {
+            int remaining = 0;
+            for (ByteBuffer buffer : data) {
+                remaining += buffer.remaining();
+            }
             s_logger.trace("Sending packet of length " + remaining);
         }
         
-        _writeQueue.add(item);
+        // The SSL packets carry their own length headers, so queue the data as is
+        _writeQueue.add(data);
         if  (close) {
-            _writeQueue.add(new ByteBuffer[0]);
+            _writeQueue.add(CLOSE_REQUEST);
         }
         synchronized (this) {
             if (_key == null) {
@@ -363,17 +392,14 @@ public class Link {
     public boolean write(SocketChannel ch) throws IOException {
         ByteBuffer[] data = null;
         while ((data = _writeQueue.poll()) != null) {
-            if (data.length == 0) {
+            if (data == CLOSE_REQUEST) {
                 if (s_logger.isTraceEnabled()) {
                     s_logger.trace("Closing connection requested");
                 }
                 return true;
             }
 
-            ByteBuffer[] raw_data = new ByteBuffer[data.length - 1];
-            System.arraycopy(data, 1, raw_data, 0, data.length - 1);
-
-            doWrite(ch, raw_data, _sslEngine);
+            doWrite(ch, data, _sslEngine, _bufferPool, _headBuffer);
         }
         return false;
     }
@@ -444,17 +470,28 @@ public class Link {
             s_logger.trace("SSL: begin Handshake, isClient: " + isClient);
         }
 
-        SSLEngineResult engResult;
+        BufferPool pool = BufferPool.getInstance();
         SSLSession sslSession = sslEngine.getSession();
+        ByteBuffer in_pkgBuf = pool.acquire(sslSession.getPacketBufferSize() + 40);
+        ByteBuffer in_appBuf = pool.acquire(sslSession.getApplicationBufferSize() + 40);
+        ByteBuffer out_pkgBuf = pool.acquire(sslSession.getPacketBufferSize() + 40);
+        ByteBuffer out_appBuf = pool.acquire(sslSession.getApplicationBufferSize() + 40);
+        ByteBuffer tmp_pkgBuf = pool.acquire(sslSession.getPacketBufferSize() + 40);
+        try {
+            doHandshake(ch, sslEngine, isClient, in_pkgBuf, in_appBuf, out_pkgBuf, out_appBuf, tmp_pkgBuf);
+        } finally {
+            pool.release(in_pkgBuf);
+            pool.release(in_appBuf);
+            pool.release(out_pkgBuf);
+            pool.release(out_appBuf);
+            pool.release(tmp_pkgBuf);
+        }
+    }
+
+    private static void doHandshake(SocketChannel ch, SSLEngine sslEngine, boolean isClient, ByteBuffer in_pkgBuf, ByteBuffer in_appBuf,
+            ByteBuffer out_pkgBuf, ByteBuffer out_appBuf, ByteBuffer tmp_pkgBuf) throws IOException {
+        SSLEngineResult engResult;
         HandshakeStatus hsStatus;
-        ByteBuffer in_pkgBuf =
-            ByteBuffer.allocate(sslSession.getPacketBufferSize() + 40);
-        ByteBuffer in_appBuf =
-            ByteBuffer.allocate(sslSession.getApplicationBufferSize() + 40);
-        ByteBuffer out_pkgBuf =
-            ByteBuffer.allocate(sslSession.getPacketBufferSize() + 40);
-        ByteBuffer out_appBuf =
-            ByteBuffer.allocate(sslSession.getApplicationBufferSize() + 40);
         int count;
 
         if (isClient) {
@@ -493,8 +530,6 @@ public class Link {
                     in_pkgBuf.flip();
                 }
                 engResult = sslEngine.unwrap(in_pkgBuf, in_appBuf);
-                ByteBuffer tmp_pkgBuf =
-                    ByteBuffer.allocate(sslSession.getPacketBufferSize() + 40);
                 int loop_count = 0;
                 while (engResult.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
                     // The client is too slow? Cut it and let it reconnect
@@ -26,8 +26,13 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -36,40 +41,94 @@ import javax.net.ssl.SSLEngine;
 
 import org.apache.log4j.Logger;
 
+import com.cloud.utils.Pair;
 import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.exception.CloudRuntimeException;
 
 /**
  * NioConnection abstracts the NIO socket operations.  The Java implementation
  * provides that.
+ * 
+ * By default one selector thread does all of the accepting, reading and
+ * writing.  If I/O loops are configured, the selector thread only accepts
+ * and each accepted channel is handed to one of the I/O loops by hash.
+ * Handler tasks go to a thread pool whose queue can be bounded; when it is
+ * full, the tasks are parked in a backlog and reading from their link stops
+ * until all of the link's parked tasks have been handed over.  When the
+ * backlog itself reaches the size of the queue, new connections are left
+ * waiting in the listen queue until it drains.
  */
 public abstract class NioConnection implements Runnable {
     private static final Logger s_logger = Logger.getLogger(NioConnection.class);;
     
+    protected static final int BACKLOG_RETRY_INTERVAL = 100;    // ms
+    protected static final int KEY_BACKLOG_LOW_WATER = 1;       // reads resume once fewer tasks of the key are parked
+    
     protected Selector _selector;
     protected Thread _thread;
-    protected boolean _isRunning;
+    protected volatile boolean _isRunning;
     protected boolean _isStartup;
     protected int _port;
     protected List<ChangeRequest> _todos;
     protected HandlerFactory _factory;
     protected String _name;
     protected ExecutorService _executor;
+    protected BufferPool _bufferPool;
+    protected int _ioLoopCount;
+    protected IoLoop[] _ioLoops;
+    protected final ConcurrentLinkedQueue<Pair<SelectionKey, Task>> _backlog;
+    protected final int _backlogLimit;
+    // key -> number of its tasks parked in the backlog; a key in here is not read from
+    protected final ConcurrentHashMap<SelectionKey, Integer> _throttled;
+    protected volatile SelectionKey _pausedAcceptKey;
     
     public NioConnection(String name, int port, int workers, HandlerFactory factory) {
+        this(name, port, workers, 0, factory);
+    }
+    
+    /**
+     * @param queueSize number of tasks that can wait for a handler thread.  0 means no limit.
+     */
+    public NioConnection(String name, int port, int workers, int queueSize, HandlerFactory factory) {
         _name = name;
         _isRunning = false;
         _thread = null;
         _selector = null;
         _port = port;
         _factory = factory;
-        _executor = new ThreadPoolExecutor(workers, 5 * workers, 1, TimeUnit.DAYS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(name + "-Handler"));
+        _bufferPool = BufferPool.getInstance();
+        _ioLoopCount = 0;
+        _ioLoops = null;
+        _backlog = new ConcurrentLinkedQueue<Pair<SelectionKey, Task>>();
+        _backlogLimit = queueSize;
+        _throttled = new ConcurrentHashMap<SelectionKey, Integer>();
+        
+        // The pool only grows past its core size once the queue is full, so an unbounded queue means it never does.
+        BlockingQueue<Runnable> queue = queueSize > 0 ? new ArrayBlockingQueue<Runnable>(queueSize) : new LinkedBlockingQueue<Runnable>();
+        _executor = new ThreadPoolExecutor(workers, 5 * workers, 60, TimeUnit.SECONDS, queue, new NamedThreadFactory(name + "-Handler"));
     }
 
     public void start() {
         _todos = new ArrayList<ChangeRequest>();
         
+        if (_ioLoopCount > 0) {
+            _ioLoops = new IoLoop[_ioLoopCount];
+            for (int i = 0; i < _ioLoopCount; i++) {
+                try {
+                    _ioLoops[i] = new IoLoop(_name + "-IoSelector-" + i);
+                } catch (IOException e) {
+                    throw new CloudRuntimeException("Unable to open the selector for " + _name, e);
+                }
+            }
+        }
+        
         _thread = new Thread(this, _name + "-Selector");
         _isRunning = true;
+        if (_ioLoops != null) {
+            for (IoLoop loop : _ioLoops) {
+                loop.start();
+            }
+        }
         _thread.start();
         // Wait until we got init() done
         synchronized(_thread) {
@@ -87,6 +146,11 @@ public abstract class NioConnection implements Runnable {
         if (_thread != null) {
             _thread.interrupt();
         }
+        if (_ioLoops != null) {
+            for (IoLoop loop : _ioLoops) {
+                loop.stop();
+            }
+        }
     }
     
     public boolean isRunning() {
@@ -97,6 +161,30 @@ public abstract class NioConnection implements Runnable {
     	return _isStartup;
     }
     
+    public int getIoLoopCount() {
+        return _ioLoopCount;
+    }
+    
+    /**
+     * @param count number of I/O selector threads to shard the accepted channels over.  0 means
+     *              the main selector thread does all of the I/O.  Must be set before start().
+     */
+    public void setIoLoopCount(int count) {
+        _ioLoopCount = count;
+    }
+    
+    public int getBacklogSize() {
+        return _backlog.size();
+    }
+    
+    public BufferPool getBufferPool() {
+        return _bufferPool;
+    }
+    
+    public void setBufferPool(BufferPool pool) {
+        _bufferPool = pool;
+    }
+    
     @Override
     public void run() {
     	synchronized(_thread) {
@@ -118,42 +206,7 @@ public abstract class NioConnection implements Runnable {
     	
         while (_isRunning) {
             try {
-                _selector.select();
-
-                // Someone is ready for I/O, get the ready keys
-                Set<SelectionKey> readyKeys = _selector.selectedKeys();
-                Iterator<SelectionKey> i = readyKeys.iterator();
-
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Keys Processing: " + readyKeys.size());
-                }
-                // Walk through the ready keys collection.
-                while (i.hasNext()) {
-                    SelectionKey sk = i.next();
-                    i.remove();
-
-                    if (!sk.isValid()) {
-                        if (s_logger.isTraceEnabled()) {
-                            s_logger.trace("Selection Key is invalid: " + sk.toString());
-                        }
-                        Link link = (Link)sk.attachment();
-                        if (link != null) {
-                            link.terminated();
-                        } else {
-                            closeConnection(sk);
-                        }
-                    } else if (sk.isReadable()) {
-                        read(sk);
-                    } else if (sk.isWritable()) {
-                        write(sk);
-                    } else if (sk.isAcceptable()) {
-                        accept(sk);
-                    } else if (sk.isConnectable()) {
-                        connect(sk);
-                    }
-                }
-                
-                s_logger.trace("Keys Done Processing.");
+                select(_selector);
 
                 processTodos();
             } catch (Throwable e) {
@@ -165,11 +218,150 @@ public abstract class NioConnection implements Runnable {
     	}
     }
 
+    protected void select(Selector selector) throws IOException {
+        if (_backlog.isEmpty()) {
+            selector.select();
+        } else {
+            selector.select(BACKLOG_RETRY_INTERVAL);
+        }
+        
+        processBacklog();
+
+        // Someone is ready for I/O, get the ready keys
+        Set<SelectionKey> readyKeys = selector.selectedKeys();
+        Iterator<SelectionKey> i = readyKeys.iterator();
+
+        if (s_logger.isTraceEnabled()) {
+            s_logger.trace("Keys Processing: " + readyKeys.size());
+        }
+        // Walk through the ready keys collection.
+        while (i.hasNext()) {
+            SelectionKey sk = i.next();
+            i.remove();
+
+            if (!sk.isValid()) {
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("Selection Key is invalid: " + sk.toString());
+                }
+                Link link = (Link)sk.attachment();
+                if (link != null) {
+                    link.terminated();
+                } else {
+                    closeConnection(sk);
+                }
+            } else if (sk.isReadable()) {
+                read(sk);
+            } else if (sk.isWritable()) {
+                write(sk);
+            } else if (sk.isAcceptable()) {
+                accept(sk);
+            } else if (sk.isConnectable()) {
+                connect(sk);
+            }
+        }
+        
+        s_logger.trace("Keys Done Processing.");
+    }
+    
+    /**
+     * Hands the task to the handler pool.  If the pool is saturated, the task
+     * is parked in the backlog and, if key is given, reading from that key
+     * stops until its parked tasks have been handed over.
+     */
+    protected void submit(SelectionKey key, Task task) {
+        if (_backlog.isEmpty()) {
+            try {
+                _executor.execute(task);
+                return;
+            } catch (RejectedExecutionException e) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug(_name + " handlers are saturated, throttling reads");
+                }
+            }
+        }
+        
+        synchronized (_backlog) {
+            if (key != null) {
+                Integer parked = _throttled.get(key);
+                _throttled.put(key, parked == null ? 1 : parked + 1);
+                try {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                } catch (CancelledKeyException e) {
+                    s_logger.debug("key has been cancelled");
+                }
+            }
+            _backlog.add(new Pair<SelectionKey, Task>(key, task));
+        }
+        if (_selector != null) {
+            _selector.wakeup();
+        }
+    }
+    
+    /**
+     * @return true if reading from the key is stopped until its parked tasks are handed over.
+     */
+    protected boolean isThrottled(SelectionKey key) {
+        return _throttled.containsKey(key);
+    }
+    
+    /**
+     * @return true if the backlog is as long as the handler queue and no more connections should be accepted.
+     */
+    protected boolean isBacklogFull() {
+        return _backlogLimit > 0 && _backlog.size() >= _backlogLimit;
+    }
+    
+    protected void processBacklog() {
+        if (_backlog.isEmpty() || _executor.isShutdown()) {
+            return;
+        }
+        
+        synchronized (_backlog) {
+            Pair<SelectionKey, Task> pending;
+            while ((pending = _backlog.peek()) != null) {
+                try {
+                    _executor.execute(pending.second());
+                } catch (RejectedExecutionException e) {
+                    break;
+                }
+                _backlog.poll();
+                
+                SelectionKey key = pending.first();
+                if (key != null) {
+                    Integer parked = _throttled.get(key);
+                    if (parked == null || parked - 1 < KEY_BACKLOG_LOW_WATER) {
+                        _throttled.remove(key);
+                        // Ask for OP_WRITE as well so anything queued on the link while it was throttled gets flushed.
+                        change(SelectionKey.OP_READ | SelectionKey.OP_WRITE, key, null);
+                    } else {
+                        _throttled.put(key, parked - 1);
+                    }
+                }
+            }
+            
+            SelectionKey acceptKey = _pausedAcceptKey;
+            if (acceptKey != null && !isBacklogFull()) {
+                _pausedAcceptKey = null;
+                change(SelectionKey.OP_ACCEPT, acceptKey, null);
+            }
+        }
+    }
+    
     abstract void init() throws IOException;
     abstract void registerLink(InetSocketAddress saddr, Link link);
     abstract void unregisterLink(InetSocketAddress saddr);
 
     protected void accept(SelectionKey key) throws IOException {
+        if (isBacklogFull()) {
+            // The connections wait in the listen queue until the handlers catch up.
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug(_name + " backlog is full, no longer accepting connections");
+            }
+            key.interestOps(0);
+            _pausedAcceptKey = key;
+            return;
+        }
+        
         ServerSocketChannel serverSocketChannel = (ServerSocketChannel)key.channel();
 
         SocketChannel socketChannel = serverSocketChannel.accept();
@@ -211,10 +403,16 @@ public abstract class NioConnection implements Runnable {
         InetSocketAddress saddr = (InetSocketAddress)socket.getRemoteSocketAddress();
         Link link = new Link(saddr, this);
         link.setSSLEngine(sslEngine);
+        if (_ioLoops != null) {
+            // The I/O loop registers the channel on its own selector and then announces the connection.
+            IoLoop loop = _ioLoops[(saddr.hashCode() & Integer.MAX_VALUE) % _ioLoops.length];
+            loop.addTodo(new ChangeRequest(socketChannel, ChangeRequest.ACCEPT, SelectionKey.OP_READ, link));
+            return;
+        }
         link.setKey(socketChannel.register(key.selector(), SelectionKey.OP_READ, link));
         Task task = _factory.create(Task.Type.CONNECT, link, null);
         registerLink(saddr, link);
-        _executor.execute(task);
+        submit(null, task);
     }
     
     protected void terminate(SelectionKey key) {
@@ -224,7 +422,7 @@ public abstract class NioConnection implements Runnable {
             link.terminated();
             Task task = _factory.create(Task.Type.DISCONNECT, link, null);
             unregisterLink(link.getSocketAddress());
-            _executor.execute(task);
+            submit(null, task);
         }
     }
     
@@ -243,7 +441,7 @@ public abstract class NioConnection implements Runnable {
                 return;
             }
             Task task = _factory.create(Task.Type.DATA, link, data);
-            _executor.execute(task);
+            submit(key, task);
         } catch (Exception e) {
             logDebug(e, key, 1);
             terminate(key);
@@ -288,7 +486,11 @@ public abstract class NioConnection implements Runnable {
             todos = _todos;
             _todos = new ArrayList<ChangeRequest>();
         }
-
+        
+        processTodos(_selector, todos);
+    }
+    
+    protected void processTodos(Selector selector, List<ChangeRequest> todos) {
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("Todos Processing: " + todos.size());
         }
@@ -304,7 +506,8 @@ public abstract class NioConnection implements Runnable {
                                 Link link = (Link)todo.att;
                                 link.setKey(key);
                             }
-                            key.interestOps(todo.ops);
+                            // A key throttled after the change was asked for stays unread.
+                            key.interestOps(isThrottled(key) ? todo.ops & ~SelectionKey.OP_READ : todo.ops);
                         }
                     } catch (CancelledKeyException e) {
                         s_logger.debug("key has been cancelled");
@@ -312,7 +515,7 @@ public abstract class NioConnection implements Runnable {
                     break;
                 case ChangeRequest.REGISTER :
                     try {
-                        key = ((SocketChannel)(todo.key)).register(_selector, todo.ops, todo.att);
+                        key = ((SocketChannel)(todo.key)).register(selector, todo.ops, todo.att);
                         if (todo.att != null) {
                             Link link = (Link)todo.att;
                             link.setKey(key);
@@ -328,6 +531,23 @@ public abstract class NioConnection implements Runnable {
                         }
                     }
                     break;
+                case ChangeRequest.ACCEPT :
+                    Link accepted = (Link)todo.att;
+                    try {
+                        key = ((SocketChannel)(todo.key)).register(selector, todo.ops, accepted);
+                        accepted.setKey(key);
+                        registerLink(accepted.getSocketAddress(), accepted);
+                        submit(null, _factory.create(Task.Type.CONNECT, accepted, null));
+                    } catch (ClosedChannelException e) {
+                        s_logger.warn("Couldn't register accepted socket: " + todo.key);
+                        try {
+                            ((SocketChannel)(todo.key)).close();
+                        } catch (IOException ignore) {
+                        } finally {
+                            accepted.terminated();
+                        }
+                    }
+                    break;
                 case ChangeRequest.CLOSE :
                     if (s_logger.isTraceEnabled()) {
                         s_logger.trace("Trying to close " + todo.key);
@@ -366,7 +586,7 @@ public abstract class NioConnection implements Runnable {
             link.setKey(key);
             key.attach(link);
             Task task = _factory.create(Task.Type.CONNECT, link, null);
-            _executor.execute(task);
+            submit(null, task);
         } catch (IOException e) {
             logTrace(e, key, 2);
             terminate(key);
@@ -374,7 +594,7 @@ public abstract class NioConnection implements Runnable {
     }
     
     protected void scheduleTask(Task task) {
-    	_executor.execute(task);
+        submit(null, task);
     }
 
     protected void write(SelectionKey key) throws IOException {
@@ -388,7 +608,7 @@ public abstract class NioConnection implements Runnable {
                 closeConnection(key);
                 link.terminated();
             } else {
-                key.interestOps(SelectionKey.OP_READ);
+                key.interestOps(isThrottled(key) ? 0 : SelectionKey.OP_READ);
             }
         } catch (Exception e) {
             logDebug(e, key, 3);
@@ -422,14 +642,27 @@ public abstract class NioConnection implements Runnable {
 
     public void change(int ops, SelectionKey key, Object att) {
         ChangeRequest todo = new ChangeRequest(key, ChangeRequest.CHANGEOPS, ops, att);
-        synchronized (this) {
-            _todos.add(todo);
-        }
-        _selector.wakeup();
+        addTodo(key, todo);
     }
 
     public void close(SelectionKey key) {
         ChangeRequest todo = new ChangeRequest(key, ChangeRequest.CLOSE, 0, null);
+        addTodo(key, todo);
+    }
+    
+    /**
+     * Changes to a key have to be done by the thread that selects on it.
+     */
+    protected void addTodo(SelectionKey key, ChangeRequest todo) {
+        if (key != null && _ioLoops != null) {
+            Selector selector = key.selector();
+            for (IoLoop loop : _ioLoops) {
+                if (loop._ioSelector == selector) {
+                    loop.addTodo(todo);
+                    return;
+                }
+            }
+        }
         synchronized (this) {
             _todos.add(todo);
         }
@@ -441,12 +674,69 @@ public abstract class NioConnection implements Runnable {
        if (_selector != null) {
            _selector.close();
        }
+       if (_ioLoops != null) {
+           for (IoLoop loop : _ioLoops) {
+               loop._ioSelector.close();
+           }
+       }
+    }
+    
+    /**
+     * Selects on the channels that the acceptor has assigned to it.
+     */
+    protected class IoLoop implements Runnable {
+        protected final Selector _ioSelector;
+        protected final Thread _ioThread;
+        protected List<ChangeRequest> _ioTodos;
+        
+        public IoLoop(String name) throws IOException {
+            _ioSelector = Selector.open();
+            _ioThread = new Thread(this, name);
+            _ioTodos = new ArrayList<ChangeRequest>();
+        }
+        
+        public void start() {
+            _ioThread.start();
+        }
+        
+        public void stop() {
+            _ioThread.interrupt();
+            _ioSelector.wakeup();
+        }
+        
+        public void addTodo(ChangeRequest todo) {
+            synchronized (this) {
+                _ioTodos.add(todo);
+            }
+            _ioSelector.wakeup();
+        }
+        
+        @Override
+        public void run() {
+            while (_isRunning) {
+                try {
+                    select(_ioSelector);
+                    
+                    List<ChangeRequest> todos;
+                    synchronized (this) {
+                        todos = _ioTodos;
+                        _ioTodos = new ArrayList<ChangeRequest>();
+                    }
+                    if (todos.size() > 0) {
+                        processTodos(_ioSelector, todos);
+                    }
+                } catch (Throwable e) {
+                    s_logger.warn("Caught an exception but continuing on.", e);
+                }
+            }
+        }
     }
 
     public class ChangeRequest {
         public static final int REGISTER = 1;
         public static final int CHANGEOPS = 2;
         public static final int CLOSE = 3;
+        public static final int ACCEPT = 4;
 
         public Object key;
         public int type;
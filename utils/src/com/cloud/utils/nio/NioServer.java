@@ -30,9 +30,19 @@ public class NioServer extends NioConnection {
     protected WeakHashMap<InetSocketAddress, Link> _links;
     
     public NioServer(String name, int port, int workers, HandlerFactory factory) {
-        super(name, port, workers, factory);
+        this(name, port, workers, 0, 0, factory);
+    }
+    
+    /**
+     * @param queueSize number of tasks that can wait for a handler thread.  0 means no limit.
+     * @param ioLoops number of selector threads that share the accepted connections.  0 means
+     *                the acceptor thread also does all of the reading and writing.
+     */
+    public NioServer(String name, int port, int workers, int queueSize, int ioLoops, HandlerFactory factory) {
+        super(name, port, workers, queueSize, factory);
         _localAddr = null;
         _links = new WeakHashMap<InetSocketAddress, Link>(1024);
+        _ioLoopCount = ioLoops;
     }
     
     @Override
@@ -52,12 +62,16 @@ public class NioServer extends NioConnection {
     
     @Override
     protected void registerLink(InetSocketAddress addr, Link link) {
-        _links.put(addr, link);
+        synchronized (_links) {
+            _links.put(addr, link);
+        }
     }
 
     @Override
     protected void unregisterLink(InetSocketAddress saddr) {
-        _links.remove(saddr);
+        synchronized (_links) {
+            _links.remove(saddr);
+        }
     }
     
     /**
@@ -70,7 +84,10 @@ public class NioServer extends NioConnection {
      * @return null if not sent.  attach object in link if sent.
      */
     public Object send(InetSocketAddress saddr, byte[] data) throws ClosedChannelException {
-        Link link = _links.get(saddr);
+        Link link;
+        synchronized (_links) {
+            link = _links.get(saddr);
+        }
         if (link == null) {
             return null;
         }
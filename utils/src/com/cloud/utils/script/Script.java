@@ -267,6 +267,21 @@ public class Script implements Callable<String> {
         }
     }
 
+    /**
+     * @return the exit value of the last execution, or -1 if the script
+     *         didn't run to completion.
+     */
+    public int getExitValue() {
+        if (_process == null) {
+            return -1;
+        }
+        try {
+            return _process.exitValue();
+        } catch (IllegalThreadStateException e) {
+            return -1;
+        }
+    }
+
     @Override
     public String call() {
         try {
@@ -0,0 +1,224 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.utils.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class ConnectionPoolImplTest extends TestCase {
+    static final String URL = "jdbc:pooltest:";
+
+    static {
+        try {
+            DriverManager.registerDriver(new StubDriver());
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    protected ConnectionPoolImpl createPool(String maxActive, String maxWait) {
+        Properties props = new Properties();
+        props.setProperty("db.test.maxActive", maxActive);
+        props.setProperty("db.test.maxWait", maxWait);
+        props.setProperty("db.test.poolPreparedStatements", "true");
+        return new ConnectionPoolImpl("test", URL, props, -1);
+    }
+
+    @Test
+    public void testConnectionIsReused() throws Exception {
+        ConnectionPoolImpl pool = createPool("2", "100");
+
+        Connection conn = pool.getConnection();
+        assertEquals(1, pool.getActiveCount());
+        conn.close();
+        assertTrue(conn.isClosed());
+        assertEquals(0, pool.getActiveCount());
+        assertEquals(1, pool.getIdleCount());
+
+        Connection again = pool.getConnection();
+        assertNotSame("Each borrow should get its own handle", conn, again);
+        assertEquals("Connection should have been reused", 1, pool.getCreatedCount());
+
+        conn.close();
+        assertEquals("A stale handle should not return the connection", 1, pool.getActiveCount());
+        again.close();
+        pool.close();
+    }
+
+    @Test
+    public void testBorrowTimesOut() throws Exception {
+        ConnectionPoolImpl pool = createPool("1", "50");
+
+        Connection conn = pool.getConnection();
+        try {
+            pool.getConnection();
+            fail("Pool should have been exhausted");
+        } catch (SQLException e) {
+        }
+        assertEquals(1, pool.getTimeoutCount());
+        assertEquals(1, pool.getWaitCount());
+
+        conn.close();
+        pool.getConnection().close();
+        pool.close();
+    }
+
+    @Test
+    public void testStatementsAreCachedAndTimed() throws Exception {
+        ConnectionPoolImpl pool = createPool("1", "100");
+
+        Connection conn = pool.getConnection();
+        PreparedStatement pstmt = conn.prepareStatement("SELECT 1");
+        pstmt.executeUpdate();
+        pstmt.close();
+        assertTrue(pstmt.isClosed());
+
+        PreparedStatement again = conn.prepareStatement("SELECT 1");
+        again.executeUpdate();
+        assertEquals(1, pool.getStatementCacheHitCount());
+        assertEquals(1, pool.getStatementCacheMissCount());
+
+        StatementStats stats = pool.getStatementStats().iterator().next();
+        assertEquals("SELECT 1", stats.getSql());
+        assertEquals(2, stats.getCount());
+
+        conn.close();
+        pool.close();
+    }
+
+    @Test
+    public void testSettingsAreResetForTheNextBorrower() throws Exception {
+        ConnectionPoolImpl pool = createPool("1", "100");
+
+        Connection conn = pool.getConnection();
+        conn.setAutoCommit(false);
+        conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+        conn.setReadOnly(true);
+        conn.setCatalog("other");
+        conn.close();
+
+        Connection again = pool.getConnection();
+        assertEquals("Connection should have been reused", 1, pool.getCreatedCount());
+        assertTrue(again.getAutoCommit());
+        assertEquals(Connection.TRANSACTION_READ_COMMITTED, again.getTransactionIsolation());
+        assertFalse(again.isReadOnly());
+        assertEquals("cloud", again.getCatalog());
+        again.close();
+        pool.close();
+    }
+
+    @Test
+    public void testCredentialsCantBeGiven() throws Exception {
+        ConnectionPoolImpl pool = createPool("1", "100");
+        try {
+            pool.getConnection("someone", "secret");
+            fail("Connections should only use the configured credentials");
+        } catch (SQLFeatureNotSupportedException e) {
+        }
+        pool.close();
+    }
+
+    /**
+     * Hands out connections and statements that do nothing.  Connections
+     * keep the settings given to them.
+     */
+    public static class StubDriver implements Driver {
+        @Override
+        public Connection connect(String url, Properties info) {
+            if (!acceptsURL(url)) {
+                return null;
+            }
+            Map<String, Object> settings = new HashMap<String, Object>();
+            settings.put("AutoCommit", true);
+            settings.put("TransactionIsolation", Connection.TRANSACTION_READ_COMMITTED);
+            settings.put("ReadOnly", false);
+            settings.put("Catalog", "cloud");
+            return (Connection)stub(Connection.class, settings);
+        }
+
+        @Override
+        public boolean acceptsURL(String url) {
+            return url.startsWith(URL);
+        }
+
+        @Override
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+
+        protected static Object stub(Class<?> iface, final Map<String, Object> settings) {
+            return Proxy.newProxyInstance(StubDriver.class.getClassLoader(), new Class<?>[] { iface }, new InvocationHandler() {
+                boolean _closed;
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    String name = method.getName();
+                    if (name.equals("close")) {
+                        _closed = true;
+                    } else if (name.equals("isClosed")) {
+                        return _closed;
+                    } else if (settings != null && name.startsWith("set") && settings.containsKey(name.substring(3))) {
+                        settings.put(name.substring(3), args[0]);
+                    } else if (settings != null && (name.startsWith("get") || name.startsWith("is")) && settings.containsKey(name.substring(name.startsWith("is") ? 2 : 3))) {
+                        return settings.get(name.substring(name.startsWith("is") ? 2 : 3));
+                    } else if (name.equals("getAutoCommit") || name.equals("isValid")) {
+                        return true;
+                    } else if (name.startsWith("prepare")) {
+                        return stub(PreparedStatement.class, null);
+                    } else if (name.equals("executeUpdate")) {
+                        return 1;
+                    } else if (name.equals("toString")) {
+                        return "stub";
+                    } else if (name.equals("hashCode")) {
+                        return System.identityHashCode(proxy);
+                    } else if (name.equals("equals")) {
+                        return proxy == args[0];
+                    }
+                    return null;
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,91 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.utils.db;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class EntityCacheTest extends TestCase {
+
+    @Test
+    public void testStaleQueriesAreIgnored() {
+        EntityCache cache = new EntityCache("EntityCacheTest.queries", Long.class, 10, 10, 600, 600);
+
+        long version = cache.getVersion();
+        cache.putQuery("q|1", Arrays.asList("a", "b"), version);
+        List<?> result = cache.getQuery("q|1");
+        assertEquals(2, result.size());
+        assertEquals(1, cache.getQueryHitCount());
+
+        cache.invalidate(5L);
+        assertNull("Query read at an older version should be ignored", cache.getQuery("q|1"));
+
+        cache.putQuery("q|1", Arrays.asList("a"), version);
+        assertNull("Query run before the write should not be cached", cache.getQuery("q|1"));
+        assertEquals(2, cache.getQueryMissCount());
+    }
+
+    @Test
+    public void testStalePutsAreRefused() {
+        EntityCache cache = new EntityCache("EntityCacheTest.puts", Long.class, 10, 0, 600, 600);
+
+        long version = cache.getVersion();
+        assertTrue(cache.put(1L, "one", version));
+        assertEquals("one", cache.get(1L));
+
+        // a write while the entity was being read
+        version = cache.getVersion();
+        cache.invalidate(1L);
+        assertFalse("Entity read before the write should not be cached", cache.put(1L, "stale", version));
+        assertNull(cache.get(1L));
+
+        assertTrue(cache.put(1L, "fresh", cache.getVersion()));
+        assertEquals("fresh", cache.get(1L));
+    }
+
+    @Test
+    public void testRemoteVersionMovesTheLocalVersion() {
+        EntityCache cache = new EntityCache("EntityCacheTest.versions", Long.class, 10, 0, 600, 600);
+
+        long version = cache.getVersion();
+        EntityCache.onRemoteInvalidation("peer", "EntityCacheTest.versions", version + 10, new String[] { "1" });
+        assertTrue(cache.getVersion() > version + 10);
+        assertFalse(cache.put(1L, "stale", version));
+
+        // an older remote version still invalidates, but doesn't move the version back
+        version = cache.getVersion();
+        EntityCache.onRemoteInvalidation("peer", "EntityCacheTest.versions", 1, null);
+        assertTrue(cache.getVersion() > version);
+    }
+
+    @Test
+    public void testRemoteInvalidation() {
+        EntityCache cache = new EntityCache("EntityCacheTest.remote", Long.class, 10, 0, 600, 600);
+
+        cache.put(1L, "one");
+        cache.put(2L, "two");
+        assertEquals("one", cache.get(1L));
+
+        EntityCache.onRemoteInvalidation("peer", "EntityCacheTest.remote", 1, new String[] { "1" });
+        assertNull(cache.get(1L));
+        assertEquals("two", cache.get(2L));
+
+        EntityCache.onRemoteInvalidation("peer", "EntityCacheTest.remote", 2, null);
+        assertNull(cache.get(2L));
+        assertEquals(2, cache.getRemoteInvalidationCount());
+        assertEquals(2, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+}
@@ -0,0 +1,64 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.cloud.utils.nio;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class BufferPoolTest extends TestCase {
+
+    @Test
+    public void testAcquireRelease() {
+        BufferPool pool = new BufferPool(2);
+
+        ByteBuffer buffer = pool.acquire(16709);
+        assertTrue("Pooled buffers should be direct", buffer.isDirect());
+        assertEquals("Buffer should be rounded up to the size class", 32 * 1024, buffer.capacity());
+        assertEquals(1, pool.getMissCount());
+
+        buffer.put((byte)1);
+        pool.release(buffer);
+        assertEquals(1, pool.getPooledBufferCount());
+
+        ByteBuffer reused = pool.acquire(20000);
+        assertSame("Buffer should have been reused", buffer, reused);
+        assertEquals("Reused buffer should be cleared", 0, reused.position());
+        assertEquals(1, pool.getHitCount());
+        assertEquals(0, pool.getPooledBufferCount());
+    }
+
+    @Test
+    public void testPoolLimits() {
+        BufferPool pool = new BufferPool(1);
+
+        ByteBuffer first = pool.acquire(1000);
+        ByteBuffer second = pool.acquire(1000);
+        pool.release(first);
+        pool.release(second);
+        assertEquals("Only one buffer per size should be kept", 1, pool.getPooledBufferCount());
+        assertEquals(1, pool.getDiscardCount());
+
+        pool.release(ByteBuffer.allocate(1024));
+        assertEquals("Heap buffers should not be pooled", 2, pool.getDiscardCount());
+
+        ByteBuffer huge = pool.acquire(4 * 1024 * 1024);
+        assertFalse("Buffers beyond the largest size class come from the heap", huge.isDirect());
+        pool.release(huge);
+        assertEquals(3, pool.getDiscardCount());
+
+        pool.clear();
+        assertEquals(0, pool.getPooledBufferCount());
+        assertEquals(0, pool.getPooledBytes());
+    }
+}